@@ -0,0 +1,121 @@
+package org.jruby.pg.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.jruby.pg.internal.PostgresqlString;
+import org.jruby.pg.messages.ProtocolWriter;
+
+/**
+ * A {@link ProtocolWriter} that encodes messages into a growable heap
+ * buffer the same way the connection fills its output buffer, without
+ * a socket behind it
+ */
+public class BufferWriter implements ProtocolWriter {
+  private ByteBuffer buffer;
+  private int lengthPosition = -1;
+
+  public BufferWriter(int capacity) {
+    buffer = ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Discard the messages written so far
+   */
+  public void clear() {
+    buffer.clear();
+  }
+
+  public int position() {
+    return buffer.position();
+  }
+
+  /**
+   * Return a copy of the messages written so far
+   */
+  public byte[] toByteArray() {
+    byte[] bytes = new byte[buffer.position()];
+    System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  /**
+   * Write the messages written so far to the given stream and clear
+   * the buffer
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buffer.array(), 0, buffer.position());
+    buffer.clear();
+  }
+
+  public void writeMsgStart(byte type) {
+    ensureRemaining(5);
+    if(type != 0) {
+      buffer.put(type);
+    }
+    lengthPosition = buffer.position();
+    buffer.putInt(0);
+  }
+
+  public void writeByte(char b) {
+    ensureRemaining(1);
+    buffer.put((byte) b);
+  }
+
+  public void writeInt(int n) {
+    ensureRemaining(4);
+    buffer.putInt(n);
+  }
+
+  public void writeShort(int s) {
+    ensureRemaining(2);
+    buffer.putShort((short) s);
+  }
+
+  public void writeLong(long n) {
+    ensureRemaining(8);
+    buffer.putLong(n);
+  }
+
+  public void writeString(byte[] bytes) {
+    ensureRemaining(bytes.length + 1);
+    buffer.put(bytes);
+    if(bytes.length == 0 || bytes[bytes.length - 1] != 0) {
+      buffer.put((byte) 0);
+    }
+  }
+
+  public void writeString(String s) {
+    writeString(s.getBytes());
+  }
+
+  public void writeString(PostgresqlString s) {
+    writeString(s.getBytes());
+  }
+
+  public void writeNChar(byte[] bytes) {
+    writeNChar(bytes, 0, bytes.length);
+  }
+
+  public void writeNChar(byte[] bytes, int offset, int len) {
+    ensureRemaining(len);
+    buffer.put(bytes, offset, len);
+  }
+
+  public void writeMsgEnd() {
+    buffer.putInt(lengthPosition, buffer.position() - lengthPosition);
+    lengthPosition = -1;
+  }
+
+  // private methods
+
+  private void ensureRemaining(int required) {
+    if(buffer.remaining() < required) {
+      ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() * 2 + required);
+      buffer.flip();
+      newBuffer.put(buffer);
+      buffer = newBuffer;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package org.jruby.pg.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.pg.internal.ReceiveBuffer;
+import org.jruby.pg.messages.ProtocolMessage;
+import org.jruby.pg.messages.ProtocolMessageParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse one DataRow per operation, from narrow rows where the per
+ * message overhead dominates to wide rows where copying the values
+ * does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataRowBenchmark {
+  @Param({"1", "10", "100"})
+  public int columns;
+
+  @Param({"4", "64", "1024"})
+  public int width;
+
+  private byte[] dataRow;
+  private ReceiveBuffer buffer;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    dataRow = Messages.dataRows(1, columns, width);
+    buffer = new ReceiveBuffer(4096);
+  }
+
+  @Benchmark
+  public ProtocolMessage dataRow() {
+    buffer.put(dataRow, 0, dataRow.length);
+    return ProtocolMessageParser.parseMessage(buffer);
+  }
+}
@@ -0,0 +1,111 @@
+package org.jruby.pg.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.pg.internal.PostgresqlString;
+import org.jruby.pg.messages.Bind;
+import org.jruby.pg.messages.Close.StatementType;
+import org.jruby.pg.messages.Describe;
+import org.jruby.pg.messages.Execute;
+import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.Parse;
+import org.jruby.pg.messages.Query;
+import org.jruby.pg.messages.Sync;
+import org.jruby.pg.messages.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encode the frontend messages of the simple and extended query
+ * protocols. The messages are built once, every operation writes them
+ * to a buffer that is reused.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+  @Param({"1", "10", "100"})
+  public int parameters;
+
+  private BufferWriter writer;
+  private Query query;
+  private Parse parse;
+  private Bind textBind;
+  private Bind binaryBind;
+  private Describe describe;
+  private Execute execute;
+  private Sync sync;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    StringBuilder sql = new StringBuilder("SELECT * FROM items WHERE id IN (");
+    Value[] textValues = new Value[parameters];
+    Value[] binaryValues = new Value[parameters];
+    int[] oids = new int[parameters];
+    for(int i = 0; i < parameters; i++) {
+      sql.append(i == 0 ? "$" : ", $").append(i + 1);
+      textValues[i] = new Value(String.valueOf(1000000 + i).getBytes(), Format.Text);
+      binaryValues[i] = Value.int8(1000000 + i);
+      oids[i] = 20;
+    }
+    sql.append(")");
+
+    PostgresqlString statement = new PostgresqlString("");
+    writer = new BufferWriter(4096);
+    query = new Query(new PostgresqlString(sql.toString()));
+    parse = new Parse(statement, new PostgresqlString(sql.toString()), oids);
+    textBind = new Bind(statement, statement, textValues, Format.Text);
+    binaryBind = new Bind(statement, statement, binaryValues, Format.Binary);
+    describe = new Describe(statement, StatementType.Portal);
+    execute = new Execute(statement);
+    sync = new Sync();
+  }
+
+  @Benchmark
+  public int query() {
+    writer.clear();
+    query.write(writer);
+    return writer.position();
+  }
+
+  @Benchmark
+  public int bindText() {
+    writer.clear();
+    textBind.write(writer);
+    return writer.position();
+  }
+
+  @Benchmark
+  public int bindBinary() {
+    writer.clear();
+    binaryBind.write(writer);
+    return writer.position();
+  }
+
+  /**
+   * Everything execParams sends for a statement that isn't prepared
+   */
+  @Benchmark
+  public int extendedQuery() {
+    writer.clear();
+    parse.write(writer);
+    textBind.write(writer);
+    describe.write(writer);
+    execute.write(writer);
+    sync.write(writer);
+    return writer.position();
+  }
+}
@@ -0,0 +1,167 @@
+package org.jruby.pg.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.pg.internal.PostgresqlConnection;
+import org.jruby.pg.internal.PostgresqlString;
+import org.jruby.pg.internal.ResultSet;
+import org.jruby.pg.internal.ResultSet.ResultStatus;
+import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Run commands end to end, from encoding the request to building the
+ * result, against a {@link FakeServer} over loopback. Every operation
+ * is one command, the latency parameter adds a delay per round trip
+ * in microseconds, e.g. -p latency=200 to approximate a remote server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+  private static final int COLUMNS = 4;
+  private static final int WIDTH = 16;
+
+  @Param({"1", "100", "10000"})
+  public int rows;
+
+  @Param({"0"})
+  public long latency;
+
+  private FakeServer server;
+  private PostgresqlConnection connection;
+  private PostgresqlString select;
+  private PostgresqlString selectParams;
+  private PostgresqlString copyOut;
+  private PostgresqlString copyIn;
+  private PostgresqlString statement;
+  private Value[] values;
+  private int[] oids;
+  private byte[][] lines;
+  private WritableByteChannel discard;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    server = new FakeServer();
+    server.setLatency(latency);
+    server.on("SELECT", FakeServer.Result.rows(rows, COLUMNS, WIDTH));
+    server.on("COPY items TO", FakeServer.Result.copyOut(rows, COLUMNS * (WIDTH + 1)));
+    server.on("COPY items FROM", FakeServer.Result.copyIn());
+    connection = PostgresqlConnection.connectDb(server.connectionProperties());
+
+    select = new PostgresqlString("SELECT * FROM items");
+    selectParams = new PostgresqlString("SELECT * FROM items WHERE id > $1");
+    copyOut = new PostgresqlString("COPY items TO STDOUT");
+    copyIn = new PostgresqlString("COPY items FROM STDIN");
+    statement = new PostgresqlString("select_items");
+    values = new Value[] {new Value("42".getBytes(), Format.Text)};
+    oids = new int[] {20};
+    check(connection.prepare(statement, selectParams, oids), ResultStatus.PGRES_COMMAND_OK);
+
+    lines = new byte[rows][];
+    for(int i = 0; i < rows; i++) {
+      lines[i] = (i + "\tname " + i + "\t" + i * 3 + "\tdescription of item " + i + "\n").getBytes();
+    }
+    discard = new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) {
+        int count = src.remaining();
+        src.position(src.limit());
+        return count;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    connection.close();
+    server.close();
+  }
+
+  @Benchmark
+  public ResultSet exec() throws IOException {
+    return check(connection.exec(select), ResultStatus.PGRES_TUPLES_OK);
+  }
+
+  @Benchmark
+  public ResultSet execParams() throws IOException {
+    return check(connection.execQueryParams(selectParams, values, Format.Text, oids),
+                 ResultStatus.PGRES_TUPLES_OK);
+  }
+
+  @Benchmark
+  public ResultSet execPrepared() throws IOException {
+    return check(connection.execPrepared(statement, values, Format.Text),
+                 ResultStatus.PGRES_TUPLES_OK);
+  }
+
+  @Benchmark
+  public void singleRowMode(Blackhole blackhole) throws IOException {
+    connection.sendQuery(select);
+    connection.setSingleRowMode();
+    ResultSet result;
+    while((result = connection.getResult()) != null) {
+      blackhole.consume(result);
+    }
+  }
+
+  @Benchmark
+  public ResultSet copyOut() throws IOException {
+    check(connection.exec(copyOut), ResultStatus.PGRES_COPY_OUT);
+    return check(connection.copyOutTo(discard), ResultStatus.PGRES_COMMAND_OK);
+  }
+
+  @Benchmark
+  public ResultSet copyIn() throws IOException {
+    check(connection.exec(copyIn), ResultStatus.PGRES_COPY_IN);
+    for(byte[] line : lines) {
+      connection.putCopyData(line);
+    }
+    connection.putCopyEnd(null);
+    ResultSet last = null;
+    ResultSet result;
+    while((result = connection.getResult()) != null) {
+      last = result;
+    }
+    return check(last, ResultStatus.PGRES_COMMAND_OK);
+  }
+
+  // private methods
+
+  private static ResultSet check(ResultSet result, ResultStatus status) {
+    if(result == null || result.getStatus() != status) {
+      throw new IllegalStateException("expected " + status + " but got " +
+                                      (result == null ? null : result.getStatus() + " " + result.getError()));
+    }
+    return result;
+  }
+}
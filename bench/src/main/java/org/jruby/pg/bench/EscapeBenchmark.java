@@ -0,0 +1,71 @@
+package org.jruby.pg.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.pg.internal.PostgresqlConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Escape strings and binary data. The static variants are used, the
+ * ones of a connection run the same code with the parameters reported
+ * by its server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeBenchmark {
+  @Param({"16", "1024", "65536"})
+  public int length;
+
+  private String text;
+  private byte[] bytes;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    // mostly plain text with a quote and a backslash now and then
+    Random random = new Random(42);
+    StringBuilder builder = new StringBuilder(length);
+    for(int i = 0; i < length; i++) {
+      int r = random.nextInt(64);
+      builder.append(r == 0 ? '\'' : r == 1 ? '\\' : (char) ('a' + r % 26));
+    }
+    text = builder.toString();
+    bytes = new byte[length];
+    random.nextBytes(bytes);
+  }
+
+  @Benchmark
+  public String escapeString() {
+    return PostgresqlConnection.escapeStringStatic(text);
+  }
+
+  @Benchmark
+  public String escapeLiteral() {
+    return PostgresqlConnection.escapeLiteral(text);
+  }
+
+  @Benchmark
+  public String escapeIdentifier() {
+    return PostgresqlConnection.escapeIdentifier(text);
+  }
+
+  @Benchmark
+  public byte[] escapeBytes() {
+    return PostgresqlConnection.escapeBytesStatic(bytes);
+  }
+}
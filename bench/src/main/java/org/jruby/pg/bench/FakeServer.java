@@ -0,0 +1,713 @@
+package org.jruby.pg.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jruby.pg.messages.ProtocolMessage.MessageType;
+
+/**
+ * A PostgreSQL server that runs in the benchmark JVM and answers
+ * queries with scripted results, so the whole client stack can be
+ * measured without a real server and the noise that comes with it.
+ *
+ * The server accepts any user without authentication and speaks
+ * enough of the protocol for the client: the simple and extended
+ * query protocols, COPY in both directions and notifications. The
+ * results are encoded once when they're scripted, answering a query
+ * only copies bytes to the socket. Every session runs on its own
+ * thread.
+ *
+ * <pre>
+ *   FakeServer server = new FakeServer();
+ *   server.on("SELECT", FakeServer.Result.rows(100, 4, 16));
+ *   PostgresqlConnection connection = PostgresqlConnection.connectDb(server.connectionProperties());
+ * </pre>
+ */
+public class FakeServer implements Closeable {
+  private static final int SSL_REQUEST_CODE = 80877103;
+  private static final int CANCEL_REQUEST_CODE = 80877102;
+
+  private final ServerSocket serverSocket;
+  private final Thread acceptor;
+  private final Map<String, Result> results = new LinkedHashMap<String, Result>();
+  private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+  private final AtomicInteger nextPid = new AtomicInteger(1000);
+  private volatile long latencyNanos;
+  private volatile boolean closed;
+
+  /**
+   * Start a server that listens on an ephemeral port of the loopback
+   * interface
+   */
+  public FakeServer() throws IOException {
+    serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    }, "fake-postgres-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Return the properties to connect to this server with
+   */
+  public Properties connectionProperties() {
+    Properties props = new Properties();
+    props.setProperty("host", serverSocket.getInetAddress().getHostAddress());
+    props.setProperty("port", String.valueOf(getPort()));
+    props.setProperty("user", "bench");
+    props.setProperty("dbname", "bench");
+    props.setProperty("sslmode", "disable");
+    return props;
+  }
+
+  /**
+   * Delay every answer by the given number of microseconds, i.e. once
+   * per round trip, to simulate the network between the client and the
+   * server
+   */
+  public void setLatency(long micros) {
+    latencyNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+  }
+
+  /**
+   * Answer the queries that start with the given prefix, ignoring
+   * case, with the given result. The prefixes are tried in the order
+   * they were added, a query that doesn't match any gets an error.
+   */
+  public FakeServer on(String prefix, Result result) {
+    synchronized(results) {
+      results.put(prefix.toUpperCase(), result);
+    }
+    return this;
+  }
+
+  /**
+   * Send a notification to the sessions listening on the given channel
+   */
+  public void notify(String channel, String payload) throws IOException {
+    for(Session session : sessions) {
+      session.notify(channel, payload);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    serverSocket.close();
+    for(Session session : sessions) {
+      session.close();
+    }
+  }
+
+  // private methods
+
+  private void accept() {
+    while(!closed) {
+      try {
+        Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        Session session = new Session(socket);
+        sessions.add(session);
+        Thread thread = new Thread(session, "fake-postgres-session-" + socket.getPort());
+        thread.setDaemon(true);
+        thread.start();
+      } catch(IOException ex) {
+        // the server was closed
+      }
+    }
+  }
+
+  private Result lookup(String query) {
+    String upper = query.trim().toUpperCase();
+    synchronized(results) {
+      for(Map.Entry<String, Result> entry : results.entrySet()) {
+        if(upper.startsWith(entry.getKey())) {
+          return entry.getValue();
+        }
+      }
+    }
+    for(String command : new String[] {"BEGIN", "COMMIT", "ROLLBACK", "SET", "LISTEN", "UNLISTEN", "NOTIFY"}) {
+      if(upper.startsWith(command)) {
+        return Result.command(command);
+      }
+    }
+    return Result.error("42601", "no result scripted for \"" + query + "\"");
+  }
+
+  private static void sleep(long nanos) {
+    if(nanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+      } catch(InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * The scripted answer to a query. The rows are encoded once, an
+   * Execute with a row limit sends a slice of them.
+   */
+  public static class Result {
+    private final byte[] description;
+    private final byte[] rows;
+    private final int rowCount;
+    private final byte[] complete;
+    private final boolean copyIn;
+
+    private Result(byte[] description, byte[] rows, int rowCount, byte[] complete, boolean copyIn) {
+      this.description = description;
+      this.rows = rows;
+      this.rowCount = rowCount;
+      this.complete = complete;
+      this.copyIn = copyIn;
+    }
+
+    /**
+     * Return the given number of rows of text columns of the given
+     * width, followed by "SELECT rows"
+     */
+    public static Result rows(int rows, int columns, int width) {
+      return new Result(Messages.rowDescription(columns), Messages.dataRows(rows, columns, width),
+                        rows, Messages.commandComplete("SELECT " + rows), false);
+    }
+
+    /**
+     * Return a command that doesn't return rows, e.g. "INSERT 0 1"
+     */
+    public static Result command(String tag) {
+      return new Result(null, new byte[0], 0, Messages.commandComplete(tag), false);
+    }
+
+    /**
+     * Return an error with the given SQLSTATE and message
+     */
+    public static Result error(String sqlstate, String message) {
+      BufferWriter writer = new BufferWriter(64 + message.length());
+      writer.writeMsgStart(MessageType.ErrorResponse.firstByte);
+      writer.writeByte('S');
+      writer.writeString("ERROR");
+      writer.writeByte('C');
+      writer.writeString(sqlstate);
+      writer.writeByte('M');
+      writer.writeString(message);
+      writer.writeByte((char) 0);
+      writer.writeMsgEnd();
+      return new Result(null, new byte[0], 0, writer.toByteArray(), false);
+    }
+
+    /**
+     * Return a COPY TO STDOUT of the given number of text rows of the
+     * given width, every row ends with a newline
+     */
+    public static Result copyOut(int rows, int width) {
+      BufferWriter writer = new BufferWriter(16 + rows * (width + 6));
+      writer.writeMsgStart(MessageType.CopyOutResponse.firstByte);
+      writer.writeByte((char) 0);
+      writer.writeShort(1);
+      writer.writeShort(0);
+      writer.writeMsgEnd();
+      byte[] description = writer.toByteArray();
+      writer.clear();
+      byte[] row = new byte[width + 1];
+      for(int i = 0; i < width; i++) {
+        row[i] = (byte) ('a' + i % 26);
+      }
+      row[width] = '\n';
+      for(int i = 0; i < rows; i++) {
+        writer.writeMsgStart(MessageType.CopyData.firstByte);
+        writer.writeNChar(row);
+        writer.writeMsgEnd();
+      }
+      writer.writeMsgStart(MessageType.CopyDone.firstByte);
+      writer.writeMsgEnd();
+      return new Result(description, writer.toByteArray(), rows,
+                        Messages.commandComplete("COPY " + rows), false);
+    }
+
+    /**
+     * Return a COPY FROM STDIN, the data sent by the client is
+     * discarded and the command tag counts its newlines
+     */
+    public static Result copyIn() {
+      BufferWriter writer = new BufferWriter(16);
+      writer.writeMsgStart(MessageType.CopyInResponse.firstByte);
+      writer.writeByte((char) 0);
+      writer.writeShort(1);
+      writer.writeShort(0);
+      writer.writeMsgEnd();
+      return new Result(writer.toByteArray(), new byte[0], 0, null, true);
+    }
+
+    boolean isError() {
+      return complete != null && complete[0] == MessageType.ErrorResponse.firstByte;
+    }
+
+    boolean isCopy() {
+      return copyIn || (description != null && description[0] == MessageType.CopyOutResponse.firstByte);
+    }
+  }
+
+  /**
+   * A client connection, the messages are read and answered in order
+   * by a dedicated thread
+   */
+  private class Session implements Runnable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final BufferWriter writer = new BufferWriter(1024);
+    private final int pid = nextPid.incrementAndGet();
+    private final Map<String, String> statements = new HashMap<String, String>();
+    private final Map<String, int[]> statementOids = new HashMap<String, int[]>();
+    private final Map<String, Portal> portals = new HashMap<String, Portal>();
+    private final Set<String> channels = new HashSet<String>();
+    private byte transactionStatus = 'I';
+    private byte[] payload = new byte[1024];
+
+    Session(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+      this.out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+    }
+
+    @Override
+    public void run() {
+      try {
+        if(startup()) {
+          while(serve()) {
+          }
+        }
+      } catch(EOFException ex) {
+        // the client went away
+      } catch(IOException ex) {
+        // same as above
+      } finally {
+        sessions.remove(this);
+        close();
+      }
+    }
+
+    synchronized void notify(String channel, String payload) throws IOException {
+      if(!channels.contains(channel)) {
+        return;
+      }
+      writer.writeMsgStart(MessageType.NotificationResponse.firstByte);
+      writer.writeInt(pid);
+      writer.writeString(channel);
+      writer.writeString(payload);
+      writer.writeMsgEnd();
+      flush();
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch(IOException ex) {
+        // nothing to do
+      }
+    }
+
+    // private methods
+
+    /**
+     * Read the startup message and accept the client, return false if
+     * the connection was a cancel request
+     */
+    private boolean startup() throws IOException {
+      while(true) {
+        int length = in.readInt();
+        int code = in.readInt();
+        in.readFully(payload(length - 8), 0, length - 8);
+        if(code == SSL_REQUEST_CODE) {
+          out.write('N');
+          out.flush();
+          continue;
+        }
+        if(code == CANCEL_REQUEST_CODE) {
+          return false;
+        }
+        break;
+      }
+      synchronized(this) {
+        writer.writeMsgStart(MessageType.AuthenticationOk.firstByte);
+        writer.writeInt(0);
+        writer.writeMsgEnd();
+        parameterStatus("server_version", "14.0");
+        parameterStatus("server_encoding", "UTF8");
+        parameterStatus("client_encoding", "UTF8");
+        parameterStatus("DateStyle", "ISO, MDY");
+        parameterStatus("integer_datetimes", "on");
+        parameterStatus("standard_conforming_strings", "on");
+        parameterStatus("TimeZone", "UTC");
+        writer.writeMsgStart(MessageType.BackendKeyData.firstByte);
+        writer.writeInt(pid);
+        writer.writeInt(pid * 31);
+        writer.writeMsgEnd();
+        readyForQuery();
+        flush();
+      }
+      return true;
+    }
+
+    /**
+     * Answer the next message, return false once the client terminates
+     */
+    private boolean serve() throws IOException {
+      byte type = in.readByte();
+      int length = in.readInt() - 4;
+      byte[] payload = payload(length);
+      in.readFully(payload, 0, length);
+      Reader reader = new Reader(payload, length);
+      synchronized(this) {
+        switch(type) {
+        case 'Q':
+          query(reader.string());
+          readyForQuery();
+          flush();
+          break;
+        case 'P':
+          parse(reader);
+          break;
+        case 'B':
+          bind(reader);
+          break;
+        case 'D':
+          describe(reader);
+          break;
+        case 'E':
+          execute(reader);
+          break;
+        case 'C':
+          reader.skip(1);
+          statements.remove(reader.string());
+          writeMessage(MessageType.CloseComplete.firstByte);
+          break;
+        case 'S':
+          readyForQuery();
+          flush();
+          break;
+        case 'H':
+          flush();
+          break;
+        case 'X':
+          return false;
+        default:
+          writeError("08P01", "unsupported message " + (char) type);
+          break;
+        }
+      }
+      return true;
+    }
+
+    private void query(String query) throws IOException {
+      if(query.trim().isEmpty()) {
+        writeMessage(MessageType.EmptyQueryResponse.firstByte);
+        return;
+      }
+      Result result = lookup(query);
+      if(result.description != null) {
+        writer.writeNChar(result.description);
+      }
+      if(result.copyIn) {
+        copyIn();
+        return;
+      }
+      writer.writeNChar(result.rows);
+      writer.writeNChar(result.complete);
+      completed(query, result);
+    }
+
+    private void parse(Reader reader) throws IOException {
+      String name = reader.string();
+      String query = reader.string();
+      int[] oids = new int[reader.int16()];
+      for(int i = 0; i < oids.length; i++) {
+        oids[i] = reader.int32();
+      }
+      statements.put(name, query);
+      statementOids.put(name, oids);
+      writeMessage(MessageType.ParseComplete.firstByte);
+    }
+
+    private void bind(Reader reader) throws IOException {
+      String portal = reader.string();
+      String statement = reader.string();
+      String query = statements.get(statement);
+      if(query == null) {
+        error("26000", "prepared statement \"" + statement + "\" does not exist");
+        return;
+      }
+      portals.put(portal, new Portal(query));
+      writeMessage(MessageType.BindComplete.firstByte);
+    }
+
+    private void describe(Reader reader) throws IOException {
+      byte type = reader.byte8();
+      String name = reader.string();
+      String query;
+      if(type == 'S') {
+        query = statements.get(name);
+        if(query == null) {
+          error("26000", "prepared statement \"" + name + "\" does not exist");
+          return;
+        }
+        int[] oids = statementOids.get(name);
+        writer.writeMsgStart(MessageType.ParameterDescription.firstByte);
+        writer.writeShort(oids.length);
+        for(int oid : oids) {
+          writer.writeInt(oid);
+        }
+        writer.writeMsgEnd();
+      } else {
+        Portal portal = portals.get(name);
+        if(portal == null) {
+          error("34000", "portal \"" + name + "\" does not exist");
+          return;
+        }
+        query = portal.query;
+      }
+      Result result = lookup(query);
+      if(result.description != null && !result.isCopy()) {
+        writer.writeNChar(result.description);
+      } else {
+        writeMessage(MessageType.NoData.firstByte);
+      }
+    }
+
+    private void execute(Reader reader) throws IOException {
+      Portal portal = portals.get(reader.string());
+      int maxRows = reader.int32();
+      if(portal == null) {
+        error("34000", "portal does not exist");
+        return;
+      }
+      Result result = lookup(portal.query);
+      if(result.isError()) {
+        writer.writeNChar(result.complete);
+        skipToSync();
+        return;
+      }
+      if(result.copyIn) {
+        writer.writeNChar(result.description);
+        copyIn();
+        return;
+      }
+      if(result.isCopy()) {
+        writer.writeNChar(result.description);
+        writer.writeNChar(result.rows);
+        writer.writeNChar(result.complete);
+        return;
+      }
+      int remaining = result.rowCount - portal.sent;
+      int count = maxRows > 0 ? Math.min(maxRows, remaining) : remaining;
+      if(count > 0) {
+        // the rows are all the same length
+        int rowLength = result.rows.length / result.rowCount;
+        writer.writeNChar(result.rows, portal.sent * rowLength, count * rowLength);
+        portal.sent += count;
+      }
+      if(maxRows > 0 && portal.sent < result.rowCount) {
+        writeMessage(MessageType.PortalSuspended.firstByte);
+      } else {
+        writer.writeNChar(result.complete);
+        completed(portal.query, result);
+      }
+    }
+
+    /**
+     * Read the data of a COPY FROM STDIN until the client ends it
+     */
+    private void copyIn() throws IOException {
+      flush();
+      long lines = 0;
+      while(true) {
+        byte type = in.readByte();
+        int length = in.readInt() - 4;
+        byte[] payload = payload(length);
+        in.readFully(payload, 0, length);
+        if(type == MessageType.CopyData.firstByte) {
+          for(int i = 0; i < length; i++) {
+            if(payload[i] == '\n') {
+              lines++;
+            }
+          }
+        } else if(type == MessageType.CopyDone.firstByte) {
+          writer.writeNChar(Messages.commandComplete("COPY " + lines));
+          return;
+        } else if(type == MessageType.CopyFail.firstByte) {
+          writeError("57014", "COPY from stdin failed: " + new Reader(payload, length).string());
+          return;
+        }
+        // Flush and Sync are ignored during the copy
+      }
+    }
+
+    /**
+     * Track the transaction status and the channels listened to
+     */
+    private void completed(String query, Result result) {
+      if(result.isError()) {
+        if(transactionStatus == 'T') {
+          transactionStatus = 'E';
+        }
+        return;
+      }
+      String upper = query.trim().toUpperCase();
+      if(upper.startsWith("BEGIN")) {
+        transactionStatus = 'T';
+      } else if(upper.startsWith("COMMIT") || upper.startsWith("ROLLBACK")) {
+        transactionStatus = 'I';
+      } else if(upper.startsWith("LISTEN ")) {
+        channels.add(query.trim().substring(7).trim());
+      } else if(upper.startsWith("UNLISTEN ")) {
+        channels.remove(query.trim().substring(9).trim());
+      }
+    }
+
+    /**
+     * Send an error and discard the extended query messages up to the
+     * next Sync, which is answered
+     */
+    private void error(String sqlstate, String message) throws IOException {
+      writeError(sqlstate, message);
+      skipToSync();
+    }
+
+    private void skipToSync() throws IOException {
+      while(true) {
+        byte type = in.readByte();
+        int length = in.readInt() - 4;
+        in.readFully(payload(length), 0, length);
+        if(type == MessageType.Sync.firstByte) {
+          readyForQuery();
+          flush();
+          return;
+        }
+      }
+    }
+
+    private void writeError(String sqlstate, String message) {
+      writer.writeNChar(Result.error(sqlstate, message).complete);
+      if(transactionStatus == 'T') {
+        transactionStatus = 'E';
+      }
+    }
+
+    private void parameterStatus(String name, String value) {
+      writer.writeMsgStart(MessageType.ParameterStatus.firstByte);
+      writer.writeString(name);
+      writer.writeString(value);
+      writer.writeMsgEnd();
+    }
+
+    private void readyForQuery() {
+      writer.writeMsgStart(MessageType.ReadyForQuery.firstByte);
+      writer.writeByte((char) transactionStatus);
+      writer.writeMsgEnd();
+    }
+
+    private void writeMessage(byte type) {
+      writer.writeMsgStart(type);
+      writer.writeMsgEnd();
+    }
+
+    private void flush() throws IOException {
+      sleep(latencyNanos);
+      writer.writeTo(out);
+      out.flush();
+    }
+
+    private byte[] payload(int length) {
+      if(payload.length < length) {
+        payload = new byte[Math.max(length, payload.length * 2)];
+      }
+      return payload;
+    }
+  }
+
+  /**
+   * A bound statement and the number of rows already sent
+   */
+  private static class Portal {
+    final String query;
+    int sent;
+
+    Portal(String query) {
+      this.query = query;
+    }
+  }
+
+  /**
+   * Read the fields of a frontend message
+   */
+  private static class Reader {
+    private final byte[] bytes;
+    private final int length;
+    private int position;
+
+    Reader(byte[] bytes, int length) {
+      this.bytes = bytes;
+      this.length = length;
+    }
+
+    byte byte8() {
+      return bytes[position++];
+    }
+
+    int int16() {
+      int s = ((bytes[position] & 0xFF) << 8) | (bytes[position + 1] & 0xFF);
+      position += 2;
+      return (short) s;
+    }
+
+    int int32() {
+      int i = ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16) |
+              ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+      position += 4;
+      return i;
+    }
+
+    String string() {
+      int end = position;
+      while(end < length && bytes[end] != 0) {
+        end++;
+      }
+      String s = new String(bytes, position, end - position);
+      position = end + 1;
+      return s;
+    }
+
+    void skip(int count) {
+      position += count;
+    }
+  }
+}
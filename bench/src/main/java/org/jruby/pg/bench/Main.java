@@ -0,0 +1,32 @@
+package org.jruby.pg.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with the JMH command line options and the GC
+ * profiler, every benchmark reports the bytes it allocates per
+ * operation (gc.alloc.rate.norm) next to its score.
+ */
+public class Main {
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions options;
+    try {
+      options = new CommandLineOptions(args);
+    } catch(CommandLineOptionException ex) {
+      System.err.println("error: " + ex.getMessage());
+      System.exit(1);
+      return;
+    }
+    if(options.shouldHelp() || options.shouldList() || options.shouldListProfilers() ||
+        options.shouldListResultFormats() || options.shouldListWithParams()) {
+      // let JMH print what was asked for
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+  }
+}
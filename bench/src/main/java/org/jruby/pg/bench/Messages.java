@@ -0,0 +1,124 @@
+package org.jruby.pg.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Helpers to build backend messages as they would be received on the
+ * wire
+ */
+public final class Messages {
+  private Messages() {
+  }
+
+  /**
+   * Return the bytes of the given number of DataRow messages, each
+   * with the given number of columns of the given width
+   */
+  public static byte[] dataRows(int rows, int columns, int width) {
+    int messageLength = 1 + 4 + 2 + columns * (4 + width);
+    ByteBuffer buffer = ByteBuffer.allocate(rows * messageLength);
+    for(int i = 0; i < rows; i++) {
+      buffer.put((byte) 'D');
+      buffer.putInt(messageLength - 1);
+      buffer.putShort((short) columns);
+      for(int j = 0; j < columns; j++) {
+        buffer.putInt(width);
+        for(int k = 0; k < width; k++) {
+          buffer.put((byte) ('a' + (i + j + k) % 26));
+        }
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Return the bytes of a RowDescription of the given number of text
+   * columns
+   */
+  public static byte[] rowDescription(int columns) {
+    ByteBuffer buffer = ByteBuffer.allocate(7 + columns * 64);
+    buffer.put((byte) 'T');
+    buffer.putInt(0);
+    buffer.putShort((short) columns);
+    for(int i = 0; i < columns; i++) {
+      putString(buffer, "column_" + i);
+      buffer.putInt(16384 + i);  // table oid
+      buffer.putShort((short) (i + 1));
+      buffer.putInt(25);         // text
+      buffer.putShort((short) -1);
+      buffer.putInt(-1);
+      buffer.putShort((short) 0);
+    }
+    return finish(buffer);
+  }
+
+  /**
+   * Return the bytes of a CommandComplete with the given tag
+   */
+  public static byte[] commandComplete(String tag) {
+    ByteBuffer buffer = ByteBuffer.allocate(6 + tag.length());
+    buffer.put((byte) 'C');
+    buffer.putInt(0);
+    putString(buffer, tag);
+    return finish(buffer);
+  }
+
+  /**
+   * Return the bytes of an ErrorResponse with the fields the server
+   * usually sends
+   */
+  public static byte[] errorResponse() {
+    ByteBuffer buffer = ByteBuffer.allocate(512);
+    buffer.put((byte) 'E');
+    buffer.putInt(0);
+    putField(buffer, 'S', "ERROR");
+    putField(buffer, 'V', "ERROR");
+    putField(buffer, 'C', "42P01");
+    putField(buffer, 'M', "relation \"does_not_exist\" does not exist");
+    putField(buffer, 'P', "15");
+    putField(buffer, 'F', "parse_relation.c");
+    putField(buffer, 'L', "1384");
+    putField(buffer, 'R', "parserOpenTable");
+    buffer.put((byte) 0);
+    return finish(buffer);
+  }
+
+  /**
+   * Return the concatenation of the given messages
+   */
+  public static byte[] concat(byte[]... messages) {
+    int length = 0;
+    for(byte[] message : messages) {
+      length += message.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    for(byte[] message : messages) {
+      buffer.put(message);
+    }
+    return buffer.array();
+  }
+
+  // private methods
+
+  private static void putField(ByteBuffer buffer, char code, String value) {
+    buffer.put((byte) code);
+    putString(buffer, value);
+  }
+
+  private static void putString(ByteBuffer buffer, String s) {
+    buffer.put(s.getBytes(Charset.forName("UTF-8")));
+    buffer.put((byte) 0);
+  }
+
+  /**
+   * Set the length of the message and return its bytes
+   */
+  private static byte[] finish(ByteBuffer buffer) {
+    buffer.putInt(1, buffer.position() - 1);
+    byte[] bytes = new byte[buffer.position()];
+    buffer.flip();
+    buffer.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,64 @@
+package org.jruby.pg.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.pg.internal.ReceiveBuffer;
+import org.jruby.pg.messages.ProtocolMessage;
+import org.jruby.pg.messages.ProtocolMessageParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse the messages that come with every result, except DataRow (see
+ * {@link DataRowBenchmark}). Every operation appends one message to
+ * the receive buffer and parses it, as the connection does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+  private byte[] rowDescription;
+  private byte[] commandComplete;
+  private byte[] errorResponse;
+  private ReceiveBuffer buffer;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    rowDescription = Messages.rowDescription(10);
+    commandComplete = Messages.commandComplete("SELECT 100");
+    errorResponse = Messages.errorResponse();
+    buffer = new ReceiveBuffer(4096);
+  }
+
+  @Benchmark
+  public ProtocolMessage rowDescription() {
+    return parse(rowDescription);
+  }
+
+  @Benchmark
+  public ProtocolMessage commandComplete() {
+    return parse(commandComplete);
+  }
+
+  @Benchmark
+  public ProtocolMessage errorResponse() {
+    return parse(errorResponse);
+  }
+
+  private ProtocolMessage parse(byte[] message) {
+    buffer.put(message, 0, message.length);
+    return ProtocolMessageParser.parseMessage(buffer);
+  }
+}
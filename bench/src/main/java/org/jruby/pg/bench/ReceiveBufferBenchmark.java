@@ -0,0 +1,183 @@
+package org.jruby.pg.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.pg.internal.ReceiveBuffer;
+import org.jruby.pg.messages.ProtocolMessage;
+import org.jruby.pg.messages.ProtocolMessageParser;
+import org.jruby.pg.messages.ProtocolReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parse a read full of DataRow messages. The time per message of
+ * {@link #receiveBuffer} should stay flat as the number of messages
+ * per read grows, while {@link #flipCompact}, which reproduces the
+ * old flip/parse/compact cycle, grows linearly with it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveBufferBenchmark {
+  @Param({"100", "1000", "10000"})
+  public int rowsPerRead;
+
+  private byte[] payload;
+  private ByteArrayChannel channel;
+  private ReceiveBuffer receiveBuffer;
+  private FlipCompactReader flipCompactReader;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    payload = Messages.dataRows(rowsPerRead, 3, 16);
+    channel = new ByteArrayChannel(payload);
+    receiveBuffer = new ReceiveBuffer(4096);
+    flipCompactReader = new FlipCompactReader(4096);
+  }
+
+  @Benchmark
+  public int receiveBuffer(Blackhole bh) throws IOException {
+    channel.rewind();
+    receiveBuffer.readFrom(channel);
+    int count = 0;
+    ProtocolMessage msg;
+    while((msg = ProtocolMessageParser.parseMessage(receiveBuffer)) != null) {
+      bh.consume(msg);
+      count++;
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int flipCompact(Blackhole bh) throws IOException {
+    channel.rewind();
+    flipCompactReader.readFrom(channel);
+    int count = 0;
+    ProtocolMessage msg;
+    while((msg = flipCompactReader.getMessage()) != null) {
+      bh.consume(msg);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * A channel that returns the same bytes every time it's rewound
+   */
+  static class ByteArrayChannel implements ReadableByteChannel {
+    private final ByteBuffer data;
+
+    ByteArrayChannel(byte[] bytes) {
+      data = ByteBuffer.wrap(bytes);
+    }
+
+    void rewind() {
+      data.rewind();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      if(!data.hasRemaining()) {
+        return 0;
+      }
+      int n = Math.min(dst.remaining(), data.remaining());
+      ByteBuffer slice = data.slice();
+      slice.limit(n);
+      dst.put(slice);
+      data.position(data.position() + n);
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * The input path as it used to be: the buffer is left in put()
+   * mode, flipped before every message and compacted after it
+   */
+  static class FlipCompactReader implements ProtocolReader {
+    private ByteBuffer buffer;
+
+    FlipCompactReader(int capacity) {
+      buffer = ByteBuffer.allocate(capacity);
+    }
+
+    void readFrom(ReadableByteChannel channel) throws IOException {
+      do {
+        if(!buffer.hasRemaining()) {
+          ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+          buffer.flip();
+          newBuffer.put(buffer);
+          buffer = newBuffer;
+        }
+      } while(channel.read(buffer) > 0);
+    }
+
+    ProtocolMessage getMessage() {
+      buffer.flip();
+      ProtocolMessage msg = ProtocolMessageParser.parseMessage(this);
+      buffer.compact();
+      return msg;
+    }
+
+    public boolean hasCompleteMessage() {
+      if(buffer.remaining() < 5) {
+        return false;
+      }
+      return buffer.remaining() >= buffer.getInt(buffer.position() + 1) + 1;
+    }
+
+    public byte getByte() {
+      return buffer.get();
+    }
+
+    public int getInt() {
+      return buffer.getInt();
+    }
+
+    public short getShort() {
+      return buffer.getShort();
+    }
+
+    public String getString() {
+      int start = buffer.position();
+      int end = start;
+      while(buffer.get(end) != '\0') {
+        end++;
+      }
+      String s = new String(buffer.array(), buffer.arrayOffset() + start, end - start);
+      buffer.position(end + 1);
+      return s;
+    }
+
+    public byte[] getNChar(int len) {
+      byte[] bytes = new byte[len];
+      buffer.get(bytes);
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.jruby.pg.internal;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.pg.bench.Messages;
+import org.jruby.pg.internal.ResultSet.ResultStatus;
+import org.jruby.pg.messages.CommandComplete;
+import org.jruby.pg.messages.DataRow;
+import org.jruby.pg.messages.ProtocolMessage;
+import org.jruby.pg.messages.ProtocolMessageParser;
+import org.jruby.pg.messages.RowDescription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Build a result from the messages of a SELECT as the connection does,
+ * and read all its values back. Lives in the internal package to use
+ * the package private setters of {@link ResultSet}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultSetBenchmark {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @Param({"1", "100", "10000"})
+  public int rows;
+
+  @Param({"4", "20"})
+  public int columns;
+
+  private byte[] messages;
+  private ReceiveBuffer buffer;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    messages = Messages.concat(Messages.rowDescription(columns),
+                               Messages.dataRows(rows, columns, 12),
+                               Messages.commandComplete("SELECT " + rows));
+    buffer = new ReceiveBuffer(4096);
+  }
+
+  @Benchmark
+  public ResultSet materialize() {
+    buffer.put(messages, 0, messages.length);
+    ResultSet result = null;
+    ProtocolMessage msg;
+    while((msg = ProtocolMessageParser.parseMessage(buffer)) != null) {
+      switch(msg.getType()) {
+      case RowDescription:
+        result = new ResultSet().setStatus(ResultStatus.PGRES_TUPLES_OK)
+                 .setDescription((RowDescription) msg);
+        break;
+      case DataRow:
+        result.appendRow((DataRow) msg);
+        break;
+      case CommandComplete:
+        result.setCmdStatus((CommandComplete) msg);
+        break;
+      default:
+        throw new IllegalStateException("unexpected message " + msg.getType());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Materialize the result and decode every value to a string, as
+   * PG::Result#values does for text columns
+   */
+  @Benchmark
+  public void materializeAndRead(Blackhole bh) {
+    ResultSet result = materialize();
+    for(DataRow row : result.getRows()) {
+      byte[] data = row.getData();
+      for(int i = 0; i < row.getColumnCount(); i++) {
+        if(!row.isNull(i)) {
+          bh.consume(new String(data, row.getOffset(i), row.getLength(i), UTF8));
+        }
+      }
+    }
+  }
+}
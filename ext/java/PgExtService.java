@@ -2,12 +2,19 @@ import java.io.IOException;
 
 import org.jruby.*;
 import org.jruby.anno.JRubyMethod;
+import org.jruby.pg.Coder;
 import org.jruby.pg.Connection;
+import org.jruby.pg.CopyRow;
+import org.jruby.pg.LargeObject;
+import org.jruby.pg.Pool;
 import org.jruby.pg.Result;
+import org.jruby.pg.TypeMapByClass;
+import org.jruby.pg.TypeMapByOid;
 import org.jruby.pg.internal.ConnectionStatus;
 import org.jruby.pg.internal.LargeObjectAPI;
 import org.jruby.pg.internal.PollingStatus;
 import org.jruby.pg.internal.PingStatus;
+import org.jruby.pg.internal.PipelineStatus;
 import org.jruby.pg.internal.ResultSet.ResultStatus;
 import org.jruby.pg.messages.ErrorResponse;
 import org.jruby.pg.messages.ErrorResponse.ErrorField;
@@ -35,6 +42,7 @@ public class PgExtService implements BasicLibraryService {
     pgError.defineAlias("error", "message");
     pgError.addReadAttribute(ruby.getCurrentContext(), "connection");
     pgError.addReadAttribute(ruby.getCurrentContext(), "result");
+    pgError.addReadAttribute(ruby.getCurrentContext(), "batch_index");
     RubyModule pgConstants = ruby.defineModuleUnder("Constants", pg);
 
     // create the server error
@@ -49,6 +57,13 @@ public class PgExtService implements BasicLibraryService {
 
     Errors.initializeError(ruby);
 
+    // raised when a command runs for longer than its timeout and is
+    // cancelled by the client
+    RubyClass queryCanceledClass = (RubyClass) pg.getConstant("QueryCanceled");
+    RubyClass queryTimeoutClass = ruby.defineClassUnder("QueryTimeout", queryCanceledClass,
+                                                        queryCanceledClass.getAllocator(), pg);
+    registerErrorClass(ruby, "QueryTimeout", queryTimeoutClass);
+
     // create the connection status constants
     for(ConnectionStatus status : ConnectionStatus.values()) {
       pgConstants.defineConstant(status.name(), ruby.newFixnum(status.ordinal()));
@@ -70,6 +85,10 @@ public class PgExtService implements BasicLibraryService {
       pgConstants.defineConstant(status.name(), ruby.newFixnum(status.ordinal()));
     }
 
+    for(PipelineStatus status : PipelineStatus.values()) {
+      pgConstants.defineConstant(status.name(), ruby.newFixnum(status.ordinal()));
+    }
+
     // create the large object constants
     pgConstants.defineConstant("INV_READ", new RubyFixnum(ruby, LargeObjectAPI.READ));
     pgConstants.defineConstant("INV_WRITE", new RubyFixnum(ruby, LargeObjectAPI.WRITE));
@@ -98,6 +117,12 @@ public class PgExtService implements BasicLibraryService {
     pg.includeModule(pgConstants);
     Connection.define(ruby, pg, pgConstants);
     Result.define(ruby, pg, pgConstants);
+    Coder.define(ruby, pg);
+    CopyRow.define(ruby, pg);
+    TypeMapByOid.define(ruby, pg);
+    TypeMapByClass.define(ruby, pg);
+    Pool.define(ruby, pg);
+    LargeObject.define(ruby, pg);
   }
 
   public static RubyClass defineErrorClass(Ruby ruby, String className, String baseClassCode) {
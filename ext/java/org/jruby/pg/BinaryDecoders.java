@@ -0,0 +1,334 @@
+package org.jruby.pg;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+import org.jcodings.Encoding;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyFloat;
+import org.jruby.RubyString;
+import org.jruby.RubyTime;
+import org.jruby.ext.bigdecimal.RubyBigDecimal;
+import org.jruby.pg.messages.Oid;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Decoders for values in the binary format. The ruby objects are built
+ * directly from the bytes received from the backend without going
+ * through an intermediate string.
+ */
+public final class BinaryDecoders {
+  // 2000-01-01, the epoch of dates and timestamps in postgresql
+  static final int POSTGRES_EPOCH_JDATE = 2451545;
+  static final long POSTGRES_EPOCH_MILLIS = 946684800000L;
+
+  // numeric signs
+  private static final int NUMERIC_NEG = 0x4000;
+  private static final int NUMERIC_NAN = 0xC000;
+  private static final int NUMERIC_PINF = 0xD000;
+  private static final int NUMERIC_NINF = 0xF000;
+
+  private static final BigInteger NBASE = BigInteger.valueOf(10000);
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  private BinaryDecoders() {
+  }
+
+  /** int2, int4 and int8 */
+  public static final ValueDecoder INTEGER = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      switch(length) {
+      case 2:
+        return context.runtime.newFixnum(getShort(data, offset));
+      case 4:
+        return context.runtime.newFixnum(getInt(data, offset));
+      case 8:
+        return context.runtime.newFixnum(getLong(data, offset));
+      default:
+        throw context.runtime.newArgumentError("invalid length " + length + " for a binary integer");
+      }
+    }
+  };
+
+  /** oid, i.e. an unsigned int4 */
+  public static final ValueDecoder OID = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      checkLength(context, "oid", length, 4);
+      return context.runtime.newFixnum(getInt(data, offset) & 0xFFFFFFFFL);
+    }
+  };
+
+  /** float4 and float8 */
+  public static final ValueDecoder FLOAT = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      switch(length) {
+      case 4:
+        return RubyFloat.newFloat(context.runtime, Float.intBitsToFloat(getInt(data, offset)));
+      case 8:
+        return RubyFloat.newFloat(context.runtime, Double.longBitsToDouble(getLong(data, offset)));
+      default:
+        throw context.runtime.newArgumentError("invalid length " + length + " for a binary float");
+      }
+    }
+  };
+
+  /** bool */
+  public static final ValueDecoder BOOLEAN = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      checkLength(context, "bool", length, 1);
+      return context.runtime.newBoolean(data[offset] != 0);
+    }
+  };
+
+  /** numeric, returns a BigDecimal */
+  public static final ValueDecoder NUMERIC = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      Ruby runtime = context.runtime;
+      int ndigits = getShort(data, offset);
+      int weight = getShort(data, offset + 2);
+      int sign = getShort(data, offset + 4) & 0xFFFF;
+      int dscale = getShort(data, offset + 6);
+
+      switch(sign) {
+      case NUMERIC_NAN:
+        return specialBigDecimal(context, "NaN");
+      case NUMERIC_PINF:
+        return specialBigDecimal(context, "Infinity");
+      case NUMERIC_NINF:
+        return specialBigDecimal(context, "-Infinity");
+      }
+
+      // every digit is a base 10000 digit, accumulate in a long as
+      // long as it can't overflow
+      BigInteger unscaled;
+      if(ndigits <= 4) {
+        long value = 0;
+        for(int i = 0; i < ndigits; i++) {
+          value = value * 10000 + getShort(data, offset + 8 + i * 2);
+        }
+        unscaled = BigInteger.valueOf(value);
+      } else {
+        unscaled = BigInteger.ZERO;
+        for(int i = 0; i < ndigits; i++) {
+          unscaled = unscaled.multiply(NBASE).add(BigInteger.valueOf(getShort(data, offset + 8 + i * 2)));
+        }
+      }
+
+      BigDecimal value = new BigDecimal(unscaled, (ndigits - weight - 1) * 4);
+      value = value.setScale(dscale, RoundingMode.DOWN);
+      if(sign == NUMERIC_NEG) {
+        value = value.negate();
+      }
+      return new RubyBigDecimal(runtime, bigDecimalClass(runtime), value);
+    }
+  };
+
+  /** text, varchar, bpchar and name, returns a string in the connection's encoding */
+  public static final ValueDecoder STRING = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      return RubyString.newStringShared(context.runtime, new ByteList(data, offset, length, encoding, false));
+    }
+  };
+
+  /** bytea, returns a binary string */
+  public static final ValueDecoder BYTEA = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      return RubyString.newStringShared(context.runtime, new ByteList(data, offset, length, false));
+    }
+  };
+
+  /** date, returns a Date */
+  public static final ValueDecoder DATE = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      checkLength(context, "date", length, 4);
+      int days = getInt(data, offset);
+      if(days == Integer.MAX_VALUE) {
+        return context.runtime.newString("infinity");
+      } else if(days == Integer.MIN_VALUE) {
+        return context.runtime.newString("-infinity");
+      }
+      return dateClass(context.runtime).callMethod(context, "jd",
+             context.runtime.newFixnum((long) days + POSTGRES_EPOCH_JDATE));
+    }
+  };
+
+  /**
+   * timestamp, returns a Time in the local timezone with the same
+   * wall clock time
+   */
+  public static final ValueDecoder TIMESTAMP = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      return decodeTimestamp(context, data, offset, length, false);
+    }
+  };
+
+  /** timestamptz, returns a Time in the local timezone */
+  public static final ValueDecoder TIMESTAMPTZ = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      return decodeTimestamp(context, data, offset, length, true);
+    }
+  };
+
+  /** uuid, returns the canonical string representation */
+  public static final ValueDecoder UUID = new ValueDecoder() {
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      checkLength(context, "uuid", length, 16);
+      byte[] uuid = new byte[36];
+      int j = 0;
+      for(int i = 0; i < 16; i++) {
+        if(i == 4 || i == 6 || i == 8 || i == 10) {
+          uuid[j++] = '-';
+        }
+        uuid[j++] = HEX[(data[offset + i] >> 4) & 0xF];
+        uuid[j++] = HEX[data[offset + i] & 0xF];
+      }
+      return context.runtime.newString(new ByteList(uuid, false));
+    }
+  };
+
+  /**
+   * Return the binary decoder of the given type, null if the type
+   * isn't supported
+   */
+  public static ValueDecoder forOid(int oid) {
+    switch(oid) {
+    case Oid.INT2:
+    case Oid.INT4:
+    case Oid.INT8:
+      return INTEGER;
+    case Oid.OID:
+      return OID;
+    case Oid.FLOAT4:
+    case Oid.FLOAT8:
+      return FLOAT;
+    case Oid.BOOL:
+      return BOOLEAN;
+    case Oid.NUMERIC:
+      return NUMERIC;
+    case Oid.TEXT:
+    case Oid.VARCHAR:
+    case Oid.BPCHAR:
+    case Oid.NAME:
+      return STRING;
+    case Oid.BYTEA:
+      return BYTEA;
+    case Oid.DATE:
+      return DATE;
+    case Oid.TIMESTAMP:
+      return TIMESTAMP;
+    case Oid.TIMESTAMPTZ:
+      return TIMESTAMPTZ;
+    case Oid.UUID:
+      return UUID;
+    default:
+      return null;
+    }
+  }
+
+  // private methods
+
+  /**
+   * Timestamps are the number of microseconds since the postgresql
+   * epoch, this assumes the server uses integer datetimes which is
+   * the default since 8.4
+   */
+  private static IRubyObject decodeTimestamp(ThreadContext context, byte[] data, int offset,
+                                             int length, boolean withTimeZone) {
+    checkLength(context, "timestamp", length, 8);
+    long usec = getLong(data, offset);
+    if(usec == Long.MAX_VALUE) {
+      return context.runtime.newString("infinity");
+    } else if(usec == Long.MIN_VALUE) {
+      return context.runtime.newString("-infinity");
+    }
+
+    long millis = usec / 1000;
+    if(usec % 1000 < 0) {
+      millis--;
+    }
+    long nsec = (usec - millis * 1000) * 1000;
+    millis += POSTGRES_EPOCH_MILLIS;
+
+    DateTimeZone zone = RubyTime.getLocalTimeZone(context.runtime);
+    DateTime time;
+    if(withTimeZone) {
+      time = new DateTime(millis, zone);
+    } else {
+      time = new DateTime(millis, DateTimeZone.UTC).withZoneRetainFields(zone);
+    }
+    return RubyTime.newTime(context.runtime, time, nsec);
+  }
+
+  private static IRubyObject specialBigDecimal(ThreadContext context, String value) {
+    bigDecimalClass(context.runtime);
+    return context.runtime.getKernel().callMethod(context, "BigDecimal", context.runtime.newString(value));
+  }
+
+  private static RubyClass bigDecimalClass(Ruby runtime) {
+    RubyClass klass = runtime.getClass("BigDecimal");
+    if(klass == null) {
+      runtime.getLoadService().require("bigdecimal");
+      klass = runtime.getClass("BigDecimal");
+    }
+    return klass;
+  }
+
+  private static RubyClass dateClass(Ruby runtime) {
+    RubyClass klass = runtime.getClass("Date");
+    if(klass == null) {
+      runtime.getLoadService().require("date");
+      klass = runtime.getClass("Date");
+    }
+    return klass;
+  }
+
+  private static void checkLength(ThreadContext context, String type, int length, int expected) {
+    if(length != expected) {
+      throw context.runtime.newArgumentError("invalid length " + length + " for a binary " + type);
+    }
+  }
+
+  private static short getShort(byte[] data, int offset) {
+    return (short) (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+  }
+
+  private static int getInt(byte[] data, int offset) {
+    return ((data[offset] & 0xFF) << 24) |
+           ((data[offset + 1] & 0xFF) << 16) |
+           ((data[offset + 2] & 0xFF) << 8) |
+           (data[offset + 3] & 0xFF);
+  }
+
+  private static long getLong(byte[] data, int offset) {
+    return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,308 @@
+package org.jruby.pg;
+
+import java.math.BigDecimal;
+
+import org.joda.time.DateTimeZone;
+import org.jruby.RubyBignum;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyString;
+import org.jruby.RubyTime;
+import org.jruby.ext.bigdecimal.RubyBigDecimal;
+import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.Oid;
+import org.jruby.pg.messages.Value;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Encoders of query parameters. The binary encoders return values
+ * that write themselves to the output buffer, the ruby objects are
+ * never formatted as strings.
+ */
+public final class BinaryEncoders {
+  // numeric signs
+  private static final int NUMERIC_POS = 0x0000;
+  private static final int NUMERIC_NEG = 0x4000;
+  private static final int NUMERIC_NAN = 0xC000;
+  private static final int NUMERIC_PINF = 0xD000;
+  private static final int NUMERIC_NINF = 0xF000;
+
+  private BinaryEncoders() {
+  }
+
+  /** int8, bignums that don't fit raise a RangeError */
+  public static final ValueEncoder INT8 = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      if(value instanceof RubyFixnum) {
+        return Value.int8(((RubyFixnum) value).getLongValue());
+      } else if(value instanceof RubyBignum) {
+        return Value.int8(RubyBignum.big2long((RubyBignum) value));
+      }
+      return Value.int8(RubyNumeric.num2long(value));
+    }
+  };
+
+  /** int4, values that don't fit raise a RangeError */
+  public static final ValueEncoder INT4 = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      return Value.int4(RubyNumeric.num2int(value));
+    }
+  };
+
+  /** int2, values that don't fit raise a RangeError */
+  public static final ValueEncoder INT2 = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      long n = RubyNumeric.num2long(value);
+      if(n < Short.MIN_VALUE || n > Short.MAX_VALUE) {
+        throw context.runtime.newRangeError("integer " + n + " too big to convert to `short'");
+      }
+      return Value.int2((short) n);
+    }
+  };
+
+  /** float4 */
+  public static final ValueEncoder FLOAT4 = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      return Value.float4((float) RubyNumeric.num2dbl(value));
+    }
+  };
+
+  /** float8 */
+  public static final ValueEncoder FLOAT8 = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      return Value.float8(RubyNumeric.num2dbl(value));
+    }
+  };
+
+  /** bool, every object other than nil and false is true */
+  public static final ValueEncoder BOOLEAN = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      return Value.bool(value.isTrue());
+    }
+  };
+
+  /** timestamptz, the number of microseconds since 2000-01-01 UTC */
+  public static final ValueEncoder TIMESTAMPTZ = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      RubyTime time = toTime(context, value);
+      long millis = time.getDateTime().getMillis() - BinaryDecoders.POSTGRES_EPOCH_MILLIS;
+      return Value.int8(millis * 1000 + time.getNSec() / 1000);
+    }
+  };
+
+  /**
+   * timestamp, the number of microseconds between 2000-01-01 and the
+   * local time of the given Time
+   */
+  public static final ValueEncoder TIMESTAMP = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      RubyTime time = toTime(context, value);
+      long millis = time.getDateTime().withZoneRetainFields(DateTimeZone.UTC).getMillis() -
+        BinaryDecoders.POSTGRES_EPOCH_MILLIS;
+      return Value.int8(millis * 1000 + time.getNSec() / 1000);
+    }
+  };
+
+  /** date, accepts a Date or any object that responds to jd */
+  public static final ValueEncoder DATE = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      long jd = RubyNumeric.num2long(value.callMethod(context, "jd"));
+      return Value.int4((int) (jd - BinaryDecoders.POSTGRES_EPOCH_JDATE));
+    }
+  };
+
+  /** numeric, accepts a BigDecimal or any object whose to_s is a number */
+  public static final ValueEncoder NUMERIC = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      if(value instanceof RubyBigDecimal) {
+        if(value.callMethod(context, "nan?").isTrue()) {
+          return Value.numeric(new short[0], 0, NUMERIC_NAN, 0);
+        }
+        IRubyObject infinite = value.callMethod(context, "infinite?");
+        if(!infinite.isNil()) {
+          int sign = RubyNumeric.num2int(infinite) > 0 ? NUMERIC_PINF : NUMERIC_NINF;
+          return Value.numeric(new short[0], 0, sign, 0);
+        }
+        return encodeNumeric(((RubyBigDecimal) value).getValue());
+      }
+      try {
+        return encodeNumeric(new BigDecimal(value.asString().toString()));
+      } catch(NumberFormatException e) {
+        throw context.runtime.newArgumentError("invalid value for numeric: " + value.inspect());
+      }
+    }
+  };
+
+  /** bytea, the string's bytes are sent as is */
+  public static final ValueEncoder BYTEA = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      return stringValue(value.asString(), Format.Binary);
+    }
+  };
+
+  /** uuid, accepts the usual hexadecimal representation with or without dashes */
+  public static final ValueEncoder UUID = new BinaryEncoder() {
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      ByteList hex = value.asString().getByteList();
+      byte[] uuid = new byte[16];
+      int digits = 0;
+      for(int i = 0; i < hex.getRealSize(); i++) {
+        int c = hex.get(i);
+        if(c == '-') {
+          continue;
+        }
+        int digit = Character.digit(c, 16);
+        if(digit < 0 || digits == 32) {
+          digits = -1;
+          break;
+        }
+        uuid[digits / 2] |= digits % 2 == 0 ? digit << 4 : digit;
+        digits++;
+      }
+      if(digits != 32) {
+        throw context.runtime.newArgumentError("invalid value for uuid: " + value.inspect());
+      }
+      return new Value(uuid, Format.Binary);
+    }
+  };
+
+  /**
+   * Strings are sent in text format with an unspecified type, the
+   * backend infers the type from the query and parses the string
+   */
+  public static final ValueEncoder STRING = new ValueEncoder() {
+    @Override
+    public Format getFormat() {
+      return Format.Text;
+    }
+
+    @Override
+    public Value encode(ThreadContext context, IRubyObject value) {
+      return stringValue(value.asString(), Format.Text);
+    }
+  };
+
+  /**
+   * Return the binary encoder of the given type, null if the type
+   * isn't supported. Text types are sent as is.
+   */
+  public static ValueEncoder forOid(int oid) {
+    switch(oid) {
+    case Oid.INT2:
+      return INT2;
+    case Oid.INT4:
+      return INT4;
+    case Oid.INT8:
+      return INT8;
+    case Oid.FLOAT4:
+      return FLOAT4;
+    case Oid.FLOAT8:
+      return FLOAT8;
+    case Oid.BOOL:
+      return BOOLEAN;
+    case Oid.NUMERIC:
+      return NUMERIC;
+    case Oid.DATE:
+      return DATE;
+    case Oid.TIMESTAMP:
+      return TIMESTAMP;
+    case Oid.TIMESTAMPTZ:
+      return TIMESTAMPTZ;
+    case Oid.UUID:
+      return UUID;
+    case Oid.BYTEA:
+    case Oid.TEXT:
+    case Oid.VARCHAR:
+    case Oid.BPCHAR:
+    case Oid.NAME:
+      return BYTEA;
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Return a value that shares the bytes of the given string
+   */
+  static Value stringValue(RubyString value, Format format) {
+    ByteList bytes = value.getByteList();
+    return new Value(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize(), format);
+  }
+
+  // private methods
+
+  private static RubyTime toTime(ThreadContext context, IRubyObject value) {
+    if(!(value instanceof RubyTime)) {
+      throw context.runtime.newTypeError("wrong argument type " + value.getMetaClass().getName() +
+                                         " (expected Time)");
+    }
+    return (RubyTime) value;
+  }
+
+  /**
+   * Split the digits of the given decimal in base 10000 digits. The
+   * fractional part is padded with zeros so that it's made of whole
+   * base 10000 digits.
+   */
+  private static Value encodeNumeric(BigDecimal value) {
+    int sign = value.signum() < 0 ? NUMERIC_NEG : NUMERIC_POS;
+    int dscale = Math.max(0, value.scale());
+    int fractionDigits = (dscale + 3) / 4;
+    String unscaled = value.abs().setScale(fractionDigits * 4).unscaledValue().toString();
+    if(unscaled.equals("0")) {
+      return Value.numeric(new short[0], 0, NUMERIC_POS, dscale);
+    }
+
+    int length = Math.max((unscaled.length() + 3) / 4 * 4, fractionDigits * 4);
+    int padding = length - unscaled.length();
+    int ndigits = length / 4;
+    int weight = ndigits - fractionDigits - 1;
+
+    short[] digits = new short[ndigits];
+    for(int i = 0; i < ndigits; i++) {
+      short digit = 0;
+      for(int j = i * 4; j < i * 4 + 4; j++) {
+        int c = j < padding ? 0 : unscaled.charAt(j - padding) - '0';
+        digit = (short) (digit * 10 + c);
+      }
+      digits[i] = digit;
+    }
+
+    // strip the leading and trailing zeros
+    int first = 0, last = ndigits;
+    while(digits[first] == 0) {
+      first++;
+      weight--;
+    }
+    while(digits[last - 1] == 0) {
+      last--;
+    }
+    if(first > 0 || last < ndigits) {
+      short[] stripped = new short[last - first];
+      System.arraycopy(digits, first, stripped, 0, stripped.length);
+      digits = stripped;
+    }
+    return Value.numeric(digits, weight, sign, dscale);
+  }
+
+  private static abstract class BinaryEncoder implements ValueEncoder {
+    @Override
+    public Format getFormat() {
+      return Format.Binary;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package org.jruby.pg;
+
+import org.jruby.*;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.Oid;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Visibility;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * A coder associates a {@link ValueDecoder} or a {@link ValueEncoder}
+ * with the oid of the type it converts. Decoders are registered in a
+ * {@link TypeMapByOid} and encoders in a {@link TypeMapByClass}.
+ */
+@SuppressWarnings("serial")
+public class Coder extends RubyObject {
+  private final ValueDecoder decoder;
+  private final ValueEncoder encoder;
+  private int oid;
+  private IRubyObject name;
+
+  public Coder(Ruby ruby, RubyClass rubyClass, ValueDecoder decoder) {
+    super(ruby, rubyClass);
+    this.decoder = decoder;
+    this.encoder = null;
+    this.name = ruby.getNil();
+  }
+
+  public Coder(Ruby ruby, RubyClass rubyClass, ValueEncoder encoder, int oid) {
+    super(ruby, rubyClass);
+    this.decoder = null;
+    this.encoder = encoder;
+    this.oid = oid;
+    this.name = ruby.getNil();
+  }
+
+  public static void define(Ruby ruby, RubyModule pg) {
+    RubyClass coder = pg.defineClassUnder("Coder", ruby.getObject(), ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+    coder.defineAnnotatedMethods(Coder.class);
+
+    RubyModule binaryDecoder = pg.defineModuleUnder("BinaryDecoder");
+    defineDecoder(ruby, binaryDecoder, coder, "Integer", BinaryDecoders.INTEGER);
+    defineDecoder(ruby, binaryDecoder, coder, "Oid", BinaryDecoders.OID);
+    defineDecoder(ruby, binaryDecoder, coder, "Float", BinaryDecoders.FLOAT);
+    defineDecoder(ruby, binaryDecoder, coder, "Boolean", BinaryDecoders.BOOLEAN);
+    defineDecoder(ruby, binaryDecoder, coder, "Numeric", BinaryDecoders.NUMERIC);
+    defineDecoder(ruby, binaryDecoder, coder, "String", BinaryDecoders.STRING);
+    defineDecoder(ruby, binaryDecoder, coder, "Bytea", BinaryDecoders.BYTEA);
+    defineDecoder(ruby, binaryDecoder, coder, "Date", BinaryDecoders.DATE);
+    defineDecoder(ruby, binaryDecoder, coder, "Timestamp", BinaryDecoders.TIMESTAMP);
+    defineDecoder(ruby, binaryDecoder, coder, "TimestampTz", BinaryDecoders.TIMESTAMPTZ);
+    defineDecoder(ruby, binaryDecoder, coder, "Uuid", BinaryDecoders.UUID);
+
+    RubyModule binaryEncoder = pg.defineModuleUnder("BinaryEncoder");
+    defineEncoder(ruby, binaryEncoder, coder, "Int8", BinaryEncoders.INT8, Oid.INT8);
+    defineEncoder(ruby, binaryEncoder, coder, "Float8", BinaryEncoders.FLOAT8, Oid.FLOAT8);
+    defineEncoder(ruby, binaryEncoder, coder, "Boolean", BinaryEncoders.BOOLEAN, Oid.BOOL);
+    defineEncoder(ruby, binaryEncoder, coder, "Numeric", BinaryEncoders.NUMERIC, Oid.NUMERIC);
+    defineEncoder(ruby, binaryEncoder, coder, "TimestampTz", BinaryEncoders.TIMESTAMPTZ, Oid.TIMESTAMPTZ);
+    defineEncoder(ruby, binaryEncoder, coder, "Bytea", BinaryEncoders.BYTEA, Oid.BYTEA);
+
+    RubyModule textEncoder = pg.defineModuleUnder("TextEncoder");
+    defineEncoder(ruby, textEncoder, coder, "String", BinaryEncoders.STRING, Oid.UNSPECIFIED);
+  }
+
+  private static void defineDecoder(Ruby ruby, RubyModule module, RubyClass superClass,
+                                    String name, final ValueDecoder decoder) {
+    module.defineClassUnder(name, superClass, new ObjectAllocator() {
+      @Override
+      public IRubyObject allocate(Ruby ruby, RubyClass klass) {
+        return new Coder(ruby, klass, decoder);
+      }
+    });
+  }
+
+  private static void defineEncoder(Ruby ruby, RubyModule module, RubyClass superClass,
+                                    String name, final ValueEncoder encoder, final int oid) {
+    module.defineClassUnder(name, superClass, new ObjectAllocator() {
+      @Override
+      public IRubyObject allocate(Ruby ruby, RubyClass klass) {
+        return new Coder(ruby, klass, encoder, oid);
+      }
+    });
+  }
+
+  /**
+   * Return the decoder of this coder, null if this is an encoder
+   */
+  public ValueDecoder getDecoder() {
+    return decoder;
+  }
+
+  /**
+   * Return the encoder of this coder, null if this is a decoder
+   */
+  public ValueEncoder getEncoder() {
+    return encoder;
+  }
+
+  /**
+   * Return the oid of the type this coder converts
+   */
+  public int getOid() {
+    return oid;
+  }
+
+  /******     PG::Coder INSTANCE METHODS    ******/
+
+  @JRubyMethod(optional = 1, visibility = Visibility.PRIVATE)
+  public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+    if(args.length == 1 && !args[0].isNil()) {
+      RubyHash hash = (RubyHash) args[0];
+      IRubyObject value = hash.op_aref(context, context.runtime.newSymbol("oid"));
+      if(!value.isNil()) {
+        oid_set(context, value);
+      }
+      name = hash.op_aref(context, context.runtime.newSymbol("name"));
+    }
+    return this;
+  }
+
+  @JRubyMethod
+  public IRubyObject oid(ThreadContext context) {
+    return context.runtime.newFixnum(oid);
+  }
+
+  @JRubyMethod(name = "oid=")
+  public IRubyObject oid_set(ThreadContext context, IRubyObject value) {
+    oid = (int) ((RubyNumeric) value).getLongValue();
+    return value;
+  }
+
+  @JRubyMethod
+  public IRubyObject name(ThreadContext context) {
+    return name;
+  }
+
+  @JRubyMethod(name = "name=")
+  public IRubyObject name_set(ThreadContext context, IRubyObject value) {
+    name = value;
+    return value;
+  }
+
+  @JRubyMethod
+  public IRubyObject format(ThreadContext context) {
+    Format format = encoder == null ? Format.Binary : encoder.getFormat();
+    return context.runtime.newFixnum(format.getValue());
+  }
+
+  @JRubyMethod(required = 1)
+  public IRubyObject decode(ThreadContext context, IRubyObject value) {
+    if(decoder == null) {
+      throw context.runtime.newNotImplementedError(getMetaClass().getName() + " can't decode");
+    }
+    if(value.isNil()) {
+      return value;
+    }
+    // decoders can share the array with the object they return, copy
+    // it so the result doesn't change if the argument is modified
+    ByteList bytes = value.convertToString().getByteList();
+    byte[] data = bytes.bytes();
+    return decoder.decode(context, data, 0, data.length, bytes.getEncoding());
+  }
+}
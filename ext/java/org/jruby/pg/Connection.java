@@ -1,11 +1,18 @@
 package org.jruby.pg;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -20,6 +27,7 @@ import org.jruby.pg.internal.ResultSet.ResultStatus;
 import org.jruby.pg.messages.ErrorResponse.ErrorField;
 import org.jruby.pg.messages.Format;
 import org.jruby.pg.messages.NotificationResponse;
+import org.jruby.pg.messages.Oid;
 import org.jruby.pg.messages.Value;
 import org.jruby.runtime.Arity;
 import org.jruby.runtime.Block;
@@ -39,6 +47,8 @@ public class Connection extends RubyObject {
 
   // private state
   private  PostgresqlConnection postgresConnection;
+  // the counters of the connection once it is closed
+  private ProtocolMetrics closedMetrics;
   private Properties props;
   private IRubyObject proc;
 
@@ -51,6 +61,30 @@ public class Connection extends RubyObject {
   // the cached rubyIO that is returned by socket_io
   private RubyIO rubyIO;
 
+  // the type map assigned to the results created by this connection
+  private IRubyObject typeMapForResults;
+
+  // the type map used to encode query parameters
+  private TypeMapByClass typeMapForQueries;
+
+  // the default coders of put_copy_data and get_copy_data
+  private IRubyObject encoderForPutCopyData;
+  private IRubyObject decoderForGetCopyData;
+
+  // the state of the current binary COPY, used by the CopyRow coders
+  private final BinaryCopyWriter copyWriter = new BinaryCopyWriter();
+  private final BinaryCopyReader copyReader = new BinaryCopyReader();
+  private boolean copyWriterUsed;
+
+  // the size of the statement cache, 0 if it's disabled, and the
+  // number of executions after which a statement is prepared
+  private int statementCacheSize = 0;
+  private int prepareThreshold = 5;
+
+  // the pool entry of the connection if it was checked out of a
+  // PG::Pool, null otherwise
+  private ConnectionPool.PooledConnection pooledConnection;
+
   static {
     postgresEncodingToRubyEncoding.put("BIG5",          "Big5");
     postgresEncodingToRubyEncoding.put("EUC_CN",        "GB2312");
@@ -205,6 +239,94 @@ public class Connection extends RubyObject {
     return context.nil;
   }
 
+  /**
+   * Return the protocol counters summed over all the connections of
+   * the process, see Connection#stats
+   */
+  @JRubyMethod(name = "stats", meta = true)
+  public static IRubyObject global_stats(ThreadContext context, IRubyObject self) {
+    ProtocolMetricsRegistry registry = ProtocolMetricsRegistry.getDefault();
+    RubyHash hash = metricsToHash(context, registry.getTotals());
+    hash.op_aset(context, context.runtime.newSymbol("open_connections"),
+                 context.runtime.newFixnum(registry.getOpenConnections()));
+    return hash;
+  }
+
+  /**
+   * Return the occupancy of the buffer pool the connections borrow
+   * their buffers from: the pooled bytes and buffers, the pooled
+   * buffers by size, the number of buffers borrowed from the pool
+   * (hits), allocated (misses) and given back but dropped (discarded)
+   * and the limits of the pool
+   */
+  @JRubyMethod(meta = true)
+  public static IRubyObject buffer_pool_stats(ThreadContext context, IRubyObject self) {
+    Ruby ruby = context.runtime;
+    BufferPool pool = BufferPool.getDefault();
+    RubyHash bySize = new RubyHash(ruby);
+    for(Entry<Integer, Integer> entry : pool.getPooledBuffersBySize().entrySet()) {
+      bySize.op_aset(context, ruby.newFixnum(entry.getKey()), ruby.newFixnum(entry.getValue()));
+    }
+    RubyHash hash = new RubyHash(ruby);
+    hash.op_aset(context, ruby.newSymbol("pooled_bytes"), ruby.newFixnum(pool.getPooledBytes()));
+    hash.op_aset(context, ruby.newSymbol("pooled_buffers"), ruby.newFixnum(pool.getPooledBuffers()));
+    hash.op_aset(context, ruby.newSymbol("pooled_buffers_by_size"), bySize);
+    hash.op_aset(context, ruby.newSymbol("hits"), ruby.newFixnum(pool.getHits()));
+    hash.op_aset(context, ruby.newSymbol("misses"), ruby.newFixnum(pool.getMisses()));
+    hash.op_aset(context, ruby.newSymbol("discarded"), ruby.newFixnum(pool.getDiscarded()));
+    hash.op_aset(context, ruby.newSymbol("max_pooled_bytes"), ruby.newFixnum(pool.getMaxPooledBytes()));
+    hash.op_aset(context, ruby.newSymbol("max_buffer_size"), ruby.newFixnum(pool.getMaxBufferSize()));
+    hash.op_aset(context, ruby.newSymbol("direct"), ruby.newBoolean(pool.isDirect()));
+    return hash;
+  }
+
+  /**
+   * Configure the buffer pool shared by the connections of the
+   * process. Accepts :max_pooled_bytes, the total size of the buffers
+   * that are kept for reuse, :max_buffer_size, the size of the largest
+   * buffer that is kept, and :direct to borrow direct buffers instead
+   * of heap ones. The buffers above the new limits are dropped.
+   */
+  @JRubyMethod(meta = true)
+  public static IRubyObject configure_buffer_pool(ThreadContext context, IRubyObject self, IRubyObject arg) {
+    RubyHash options = arg.convertToHash();
+    BufferPool pool = BufferPool.getDefault();
+    try {
+      IRubyObject value = options.op_aref(context, context.runtime.newSymbol("max_pooled_bytes"));
+      if(!value.isNil()) {
+        pool.setMaxPooledBytes(RubyNumeric.num2long(value));
+      }
+      value = options.op_aref(context, context.runtime.newSymbol("max_buffer_size"));
+      if(!value.isNil()) {
+        pool.setMaxBufferSize((int) RubyNumeric.num2long(value));
+      }
+      value = options.op_aref(context, context.runtime.newSymbol("direct"));
+      if(!value.isNil()) {
+        pool.setDirect(value.isTrue());
+      }
+    } catch(IllegalArgumentException ex) {
+      throw context.runtime.newArgumentError(ex.getLocalizedMessage());
+    }
+    return buffer_pool_stats(context, self);
+  }
+
+  /**
+   * Decode a trace written by Connection#dump_trace to the format of
+   * Connection#trace, every message is preceded by its time
+   */
+  @JRubyMethod(meta = true)
+  public static IRubyObject decode_trace(ThreadContext context, IRubyObject self, IRubyObject dump) {
+    ByteList bytes = dump.convertToString().getByteList();
+    StringWriter out = new StringWriter();
+    try {
+      ProtocolTraceDecoder.decode(new ByteArrayInputStream(bytes.getUnsafeBytes(), bytes.getBegin(),
+                                                           bytes.getRealSize()), out);
+    } catch(IOException ex) {
+      throw context.runtime.newArgumentError(ex.getLocalizedMessage());
+    }
+    return context.runtime.newString(out.toString());
+  }
+
   /**
    * binary data is received from the jdbc driver after being unescaped
    *
@@ -236,7 +358,7 @@ public class Connection extends RubyObject {
   }
 
   @SuppressWarnings("unchecked")
-  private static Properties parse_args(ThreadContext context, IRubyObject[] args) {
+  static Properties parse_args(ThreadContext context, IRubyObject[] args) {
     Properties argumentsHash = new Properties();
     if(args.length == 0) {
       return argumentsHash;
@@ -280,6 +402,32 @@ public class Connection extends RubyObject {
     return argumentsHash;
   }
 
+  /**
+   * Return a new connection object that wraps the given pooled
+   * connection, used by {@link Pool}
+   */
+  static Connection fromPool(ThreadContext context, ConnectionPool.PooledConnection pooled, Properties props) {
+    Connection connection = new Connection(context.runtime, context.runtime.getModule("PG").getClass("Connection"));
+    connection.proc = context.nil;
+    connection.props = props;
+    connection.pooledConnection = pooled;
+    connection.postgresConnection = pooled.getConnection();
+    connection.set_default_encoding(context);
+    return connection;
+  }
+
+  ConnectionPool.PooledConnection getPooledConnection() {
+    return pooledConnection;
+  }
+
+  /**
+   * Return true if the connection still uses the pooled connection it
+   * was created with, i.e. it wasn't reset or closed
+   */
+  boolean usesPooledConnection() {
+    return pooledConnection != null && postgresConnection == pooledConnection.getConnection();
+  }
+
   private static ObjectAllocator CONNECTION_ALLOCATOR = new ObjectAllocator() {
     @Override
     public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
@@ -383,6 +531,7 @@ public class Connection extends RubyObject {
         rubyIO.getOpenFile().cleanup(context.runtime, false);
         rubyIO = null;
       }
+      closedMetrics = postgresConnection.getMetrics();
       postgresConnection = null;
       return context.nil;
     } catch(IOException e) {
@@ -515,15 +664,25 @@ public class Connection extends RubyObject {
 
   /******     PG::Connection INSTANCE METHODS: Command Execution     ******/
 
-  @JRubyMethod(alias = {"query", "exec_params", "async_exec", "async_query"}, required = 1, optional = 2)
+  /**
+   * exec(sql, params = nil, result_format = 0, timeout: nil), the
+   * timeout in seconds overrides the query_timeout of the connection
+   */
+  @JRubyMethod(alias = {"query", "exec_params", "async_exec", "async_query"}, required = 1, optional = 3)
   public IRubyObject exec(ThreadContext context, IRubyObject[] args, Block block) {
     if(postgresConnection == null) {
       throw newPgError(context, "closed connection used", null);
     }
 
+    RubyHash options = extractOptions(args);
+    if(options != null) {
+      args = Arrays.copyOf(args, args.length - 1);
+    }
     PostgresqlString query = rubyStringAsPostgresqlString(args[0]);
     ResultSet set = null;
+    long previousTimeout = postgresConnection.getQueryTimeout();
     try {
+      setTimeout(context, options);
       if(args.length == 1 || args[1].isNil()) {
         set = postgresConnection.exec(query);
       } else {
@@ -542,6 +701,8 @@ public class Connection extends RubyObject {
       }
     } catch(IOException sqle) {
       throw newPgError(context, sqle.getLocalizedMessage(), null);
+    } finally {
+      postgresConnection.setQueryTimeout(previousTimeout);
     }
 
     IRubyObject res = createResult(context, set);
@@ -579,9 +740,38 @@ public class Connection extends RubyObject {
     }
   }
 
-  @JRubyMethod(required = 1, optional = 2)
+  /**
+   * exec_batch(sql, param_sets), execute the query once for every
+   * array of parameters in param_sets in one round trip and return the
+   * number of rows affected by each execution. If an execution fails
+   * the error's batch_index is the index of the failed parameters.
+   */
+  @JRubyMethod(required = 2)
+  public IRubyObject exec_batch(ThreadContext context, IRubyObject query, IRubyObject paramSets) {
+    return execBatchCommon(context, null, rubyStringAsPostgresqlString(query), paramSets);
+  }
+
+  /**
+   * exec_batch_prepared(statement_name, param_sets), same as exec_batch
+   * for a prepared statement
+   */
+  @JRubyMethod(required = 2)
+  public IRubyObject exec_batch_prepared(ThreadContext context, IRubyObject name, IRubyObject paramSets) {
+    return execBatchCommon(context, rubyStringAsPostgresqlString(name), null, paramSets);
+  }
+
+  /**
+   * exec_prepared(name, params = nil, result_format = 0, timeout: nil)
+   */
+  @JRubyMethod(required = 1, optional = 3)
   public IRubyObject exec_prepared(ThreadContext context, IRubyObject[] args, Block block) {
+    RubyHash options = extractOptions(args);
+    if(options != null) {
+      args = Arrays.copyOf(args, args.length - 1);
+    }
+    long previousTimeout = getConnection(context).getQueryTimeout();
     try {
+      setTimeout(context, options);
       ResultSet set = execPreparedCommon(context, args, false);
       IRubyObject res = createResult(context, set);
       if(!res.isNil()) {
@@ -593,6 +783,8 @@ public class Connection extends RubyObject {
       return res;
     } catch(IOException ex) {
       throw newPgError(context, ex, null);
+    } finally {
+      postgresConnection.setQueryTimeout(previousTimeout);
     }
   }
 
@@ -675,6 +867,43 @@ public class Connection extends RubyObject {
     return unescapeBytes(context, array);
   }
 
+  /**
+   * Return the maximum number of statements that are prepared
+   * automatically by exec_params and send_query_params, 0 if the
+   * statement cache is disabled
+   */
+  @JRubyMethod
+  public IRubyObject statement_cache_size(ThreadContext context) {
+    return context.runtime.newFixnum(statementCacheSize);
+  }
+
+  @JRubyMethod(name = "statement_cache_size=")
+  public IRubyObject statement_cache_size_set(ThreadContext context, IRubyObject size) {
+    statementCacheSize = (int) ((RubyNumeric) size).getLongValue();
+    if(postgresConnection != null) {
+      postgresConnection.setStatementCache(statementCacheSize, prepareThreshold);
+    }
+    return size;
+  }
+
+  /**
+   * Return the number of times a query is executed before it's
+   * prepared by the statement cache
+   */
+  @JRubyMethod
+  public IRubyObject prepare_threshold(ThreadContext context) {
+    return context.runtime.newFixnum(prepareThreshold);
+  }
+
+  @JRubyMethod(name = "prepare_threshold=")
+  public IRubyObject prepare_threshold_set(ThreadContext context, IRubyObject threshold) {
+    prepareThreshold = (int) ((RubyNumeric) threshold).getLongValue();
+    if(postgresConnection != null) {
+      postgresConnection.setStatementCache(statementCacheSize, prepareThreshold);
+    }
+    return threshold;
+  }
+
   /******     PG::Connection INSTANCE METHODS: Asynchronous Command Processing     ******/
 
   @JRubyMethod(rest = true)
@@ -698,9 +927,97 @@ public class Connection extends RubyObject {
     return context.nil;
   }
 
+  /**
+   * send_query_portal(sql, params, fetch_size, result_format = 0)
+   *
+   * Send the query and fetch its rows fetch_size rows at a time, every
+   * call to get_result returns the next batch of rows
+   */
+  @JRubyMethod(required = 3, optional = 1)
+  public IRubyObject send_query_portal(ThreadContext context, IRubyObject[] args) {
+    try {
+      PostgresqlString query = rubyStringAsPostgresqlString(args[0]);
+      RubyArray params = (RubyArray) args[1];
+      int fetchSize = (int) ((RubyNumeric) args[2]).getLongValue();
+      Format resultFormat = Format.Text;
+      if(args.length == 4) {
+        resultFormat = ((RubyFixnum) args[3]).getLongValue() == 1 ? Format.Binary : Format.Text;
+      }
+
+      Value [] values = new Value[params.getLength()];
+      int [] oids = new int[params.getLength()];
+      fillValuesAndFormat(context, params, values, oids);
+      postgresConnection.sendQueryPortal(query, values, resultFormat, oids, fetchSize);
+    } catch(IOException e) {
+      throw newPgError(context, e.getLocalizedMessage(), null);
+    }
+    return context.nil;
+  }
+
+  /**
+   * exec_portal(sql, params, fetch_size, result_format = 0) { |result| ... }
+   *
+   * Execute the query and yield its rows fetch_size rows at a time,
+   * only one batch of rows is kept in memory
+   */
+  @JRubyMethod(required = 3, optional = 1)
+  public IRubyObject exec_portal(ThreadContext context, IRubyObject[] args, Block block) {
+    if(!block.isGiven()) {
+      throw context.runtime.newArgumentError("Must supply block for PG::Connection#exec_portal");
+    }
+
+    send_query_portal(context, args);
+    boolean done = false;
+    try {
+      Result error = null;
+      ResultSet set;
+      while((set = postgresConnection.getResult()) != null) {
+        Result res = (Result) createResult(context, set);
+        if(set.getStatus() == ResultStatus.PGRES_FATAL_ERROR) {
+          // wait for the end of the command before raising the error
+          error = res;
+        } else if(error == null) {
+          block.yield(context, res);
+        }
+      }
+      done = true;
+      if(error != null) {
+        error.check(context);
+      }
+    } catch(IOException e) {
+      throw newPgError(context, e.getLocalizedMessage(), null);
+    } finally {
+      if(!done) {
+        // the block broke out or raised, close the portal so the
+        // connection can run the next command
+        try {
+          postgresConnection.closePortal();
+        } catch(IOException e) {
+          // the exception that got us here is more relevant
+        }
+      }
+    }
+    return context.nil;
+  }
+
   @JRubyMethod(rest = true)
   public IRubyObject send_prepare(ThreadContext context, IRubyObject[] args) {
-    throw newPgError(context, "Not implemented", null);
+    try {
+      PostgresqlString name = rubyStringAsPostgresqlString(args[0]);
+      PostgresqlString query = rubyStringAsPostgresqlString(args[1]);
+      int [] oids = new int[0];
+      if(args.length == 3) {
+        RubyArray array = ((RubyArray) args[2]);
+        oids = new int[array.getLength()];
+        for(int i = 0; i < oids.length; i++) {
+          oids[i] = (int)((RubyFixnum) array.get(i)).getLongValue();
+        }
+      }
+      postgresConnection.sendPrepare(name, query, oids);
+      return context.nil;
+    } catch(IOException ex) {
+      throw newPgError(context, ex.getLocalizedMessage(), null);
+    }
   }
 
   @JRubyMethod(rest = true)
@@ -715,12 +1032,22 @@ public class Connection extends RubyObject {
 
   @JRubyMethod
   public IRubyObject send_describe_prepared(ThreadContext context, IRubyObject arg0) {
-    throw newPgError(context, "not implemented", null);
+    try {
+      postgresConnection.sendDescribePrepared(rubyStringAsPostgresqlString(arg0));
+      return context.nil;
+    } catch(IOException ex) {
+      throw newPgError(context, ex.getLocalizedMessage(), null);
+    }
   }
 
   @JRubyMethod
   public IRubyObject send_describe_portal(ThreadContext context, IRubyObject arg0) {
-    throw newPgError(context, "not implemented", null);
+    try {
+      postgresConnection.sendDescribePortal(rubyStringAsPostgresqlString(arg0));
+      return context.nil;
+    } catch(IOException ex) {
+      throw newPgError(context, ex.getLocalizedMessage(), null);
+    }
   }
 
   @JRubyMethod
@@ -758,10 +1085,7 @@ public class Connection extends RubyObject {
 
   @JRubyMethod
   public IRubyObject set_nonblocking(ThreadContext context, IRubyObject arg0) {
-    if(arg0.isTrue()) {
-      postgresConnection.setNonBlocking(true);
-    }
-    postgresConnection.setNonBlocking(false);
+    postgresConnection.setNonBlocking(arg0.isTrue());
     return arg0;
   }
 
@@ -775,6 +1099,16 @@ public class Connection extends RubyObject {
     return this;
   }
 
+  @JRubyMethod
+  public IRubyObject set_chunked_rows_mode(ThreadContext context, IRubyObject chunkSize) {
+    try {
+      postgresConnection.setChunkedRowsMode((int) ((RubyNumeric) chunkSize).getLongValue());
+    } catch(IOException e) {
+      throw newPgError(context, e.getLocalizedMessage(), null);
+    }
+    return this;
+  }
+
   @JRubyMethod(name = {"isnonblocking", "nonblocking?"})
   public IRubyObject isnonblocking(ThreadContext context) {
     return context.runtime.newBoolean(postgresConnection.isNonBlocking());
@@ -789,14 +1123,76 @@ public class Connection extends RubyObject {
     }
   }
 
-  /******     PG::Connection INSTANCE METHODS: Cancelling Queries in Progress     ******/
+  /******     PG::Connection INSTANCE METHODS: Pipeline Mode     ******/
+
+  @JRubyMethod
+  public IRubyObject pipeline_status(ThreadContext context) {
+    return context.runtime.newFixnum(postgresConnection.getPipelineStatus().ordinal());
+  }
 
   @JRubyMethod
-  public IRubyObject cancel(ThreadContext context) {
+  public IRubyObject enter_pipeline_mode(ThreadContext context) {
     try {
-      postgresConnection.cancel();
+      postgresConnection.enterPipelineMode();
+      return context.nil;
+    } catch(IOException e) {
+      throw newPgError(context, e.getLocalizedMessage(), null);
+    }
+  }
+
+  @JRubyMethod
+  public IRubyObject exit_pipeline_mode(ThreadContext context) {
+    try {
+      postgresConnection.exitPipelineMode();
+      return context.nil;
+    } catch(IOException e) {
+      throw newPgError(context, e.getLocalizedMessage(), null);
+    }
+  }
+
+  @JRubyMethod
+  public IRubyObject pipeline_sync(ThreadContext context) {
+    try {
+      postgresConnection.pipelineSync();
+      return context.nil;
+    } catch(IOException e) {
+      throw newPgError(context, e.getLocalizedMessage(), null);
+    }
+  }
+
+  @JRubyMethod
+  public IRubyObject send_flush_request(ThreadContext context) {
+    try {
+      postgresConnection.sendFlushRequest();
+      return context.nil;
+    } catch(IOException e) {
+      throw newPgError(context, e.getLocalizedMessage(), null);
+    }
+  }
+
+  /******     PG::Connection INSTANCE METHODS: Cancelling Queries in Progress     ******/
+
+  /**
+   * cancel(wait: true), request the server to cancel the current
+   * command. Returns nil on success or the error message if the
+   * request failed. With wait: false the request is sent in the
+   * background and nil is returned right away.
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject cancel(ThreadContext context, IRubyObject[] args) {
+    boolean wait = true;
+    if(args.length > 0 && !args[0].isNil()) {
+      IRubyObject value = args[0].convertToHash().op_aref(context, context.runtime.newSymbol("wait"));
+      wait = value.isNil() || value.isTrue();
+    }
+
+    try {
+      CancelFuture future = getConnection(context).cancelAsync();
+      if(wait) {
+        future.await(0);
+      }
     } catch(IOException ex) {
-      throw newPgError(context, ex, null);
+      return context.runtime.newString(ex.getLocalizedMessage() == null ? ex.toString() : ex.getLocalizedMessage());
     }
     return context.nil;
   }
@@ -828,15 +1224,149 @@ public class Connection extends RubyObject {
 
   /******     PG::Connection INSTANCE METHODS: COPY     ******/
 
-  @JRubyMethod
-  public IRubyObject put_copy_data(ThreadContext context, IRubyObject arg0) {
-    byte[] bytes = ((RubyString) arg0).getBytes();
+  /**
+   * put_copy_data(data, encoder = nil), data is a string unless an
+   * encoder is given, or set with encoder_for_put_copy_data=, in which
+   * case data is a row that is encoded by the encoder
+   */
+  @JRubyMethod(required = 1, optional = 1)
+  public IRubyObject put_copy_data(ThreadContext context, IRubyObject[] args) {
+    IRubyObject encoder = args.length > 1 && !args[1].isNil() ? args[1] : encoderForPutCopyData;
+    if(encoder != null) {
+      return putCopyRow(context, args[0], encoder);
+    }
+
+    ByteList bytes = args[0].convertToString().getByteList();
+    try {
+      boolean queued = getConnection(context).putCopyData(bytes.getUnsafeBytes(), bytes.getBegin(),
+                                                          bytes.getRealSize());
+      return context.runtime.newBoolean(queued);
+    } catch(IOException ex) {
+      throw newPgError(context, ex, null);
+    }
+  }
+
+  private IRubyObject putCopyRow(ThreadContext context, IRubyObject row, IRubyObject encoder) {
+    if(!(encoder instanceof CopyRow) || ((CopyRow) encoder).isDecoder()) {
+      throw context.runtime.newTypeError("wrong argument type " + encoder.getMetaClass().getName() +
+                                         " (expected PG::BinaryEncoder::CopyRow)");
+    }
+    if(!copyWriterUsed) {
+      copyWriter.reset();
+      copyWriterUsed = true;
+    }
+    copyWriter.clear();
+    ((CopyRow) encoder).encode(context, row, copyWriter);
     try {
-      postgresConnection.putCopyData(bytes);
+      boolean queued = getConnection(context).putCopyData(copyWriter.getBuffer(), 0, copyWriter.getLength());
+      return context.runtime.newBoolean(queued);
     } catch(IOException ex) {
-      // todo: raise ??
+      throw newPgError(context, ex, null);
     }
-    return context.runtime.getTrue();
+  }
+
+  @JRubyMethod
+  public IRubyObject encoder_for_put_copy_data(ThreadContext context) {
+    return encoderForPutCopyData == null ? context.nil : encoderForPutCopyData;
+  }
+
+  @JRubyMethod(name = "encoder_for_put_copy_data=")
+  public IRubyObject encoder_for_put_copy_data_set(ThreadContext context, IRubyObject encoder) {
+    if(!encoder.isNil() && (!(encoder instanceof CopyRow) || ((CopyRow) encoder).isDecoder())) {
+      throw context.runtime.newTypeError("wrong argument type " + encoder.getMetaClass().getName() +
+                                         " (expected PG::BinaryEncoder::CopyRow)");
+    }
+    encoderForPutCopyData = encoder.isNil() ? null : encoder;
+    return encoder;
+  }
+
+  @JRubyMethod
+  public IRubyObject decoder_for_get_copy_data(ThreadContext context) {
+    return decoderForGetCopyData == null ? context.nil : decoderForGetCopyData;
+  }
+
+  @JRubyMethod(name = "decoder_for_get_copy_data=")
+  public IRubyObject decoder_for_get_copy_data_set(ThreadContext context, IRubyObject decoder) {
+    if(!decoder.isNil() && (!(decoder instanceof CopyRow) || !((CopyRow) decoder).isDecoder())) {
+      throw context.runtime.newTypeError("wrong argument type " + decoder.getMetaClass().getName() +
+                                         " (expected PG::BinaryDecoder::CopyRow)");
+    }
+    decoderForGetCopyData = decoder.isNil() ? null : decoder;
+    return decoder;
+  }
+
+  /**
+   * Return the timeout of the synchronous commands in seconds, nil if
+   * they can run forever
+   */
+  @JRubyMethod
+  public IRubyObject query_timeout(ThreadContext context) {
+    long timeout = getConnection(context).getQueryTimeout();
+    if(timeout == 0) {
+      return context.nil;
+    }
+    return context.runtime.newFloat(timeout / 1000.0);
+  }
+
+  /**
+   * Set the timeout of the synchronous commands in seconds, nil to
+   * disable it. When a command times out a cancel request is sent and
+   * PG::QueryTimeout is raised once the connection is idle again.
+   */
+  @JRubyMethod(name = "query_timeout=")
+  public IRubyObject query_timeout_set(ThreadContext context, IRubyObject timeout) {
+    getConnection(context).setQueryTimeout(toTimeoutMillis(context, timeout));
+    return timeout;
+  }
+
+  @JRubyMethod
+  public IRubyObject copy_buffer_size(ThreadContext context) {
+    return context.runtime.newFixnum(getConnection(context).getCopyBufferSize());
+  }
+
+  @JRubyMethod(name = "copy_buffer_size=")
+  public IRubyObject copy_buffer_size_set(ThreadContext context, IRubyObject size) {
+    try {
+      getConnection(context).setCopyBufferSize((int) RubyNumeric.num2long(size));
+    } catch(IllegalArgumentException ex) {
+      throw context.runtime.newArgumentError(ex.getLocalizedMessage());
+    }
+    return size;
+  }
+
+  @JRubyMethod
+  public IRubyObject buffer_retain_size(ThreadContext context) {
+    return context.runtime.newFixnum(getConnection(context).getBufferRetainSize());
+  }
+
+  /**
+   * Set the size the send and receive buffers can grow to and still
+   * be kept once a result is delivered. Larger buffers, e.g. after a
+   * large result, are given back to the buffer pool.
+   */
+  @JRubyMethod(name = "buffer_retain_size=")
+  public IRubyObject buffer_retain_size_set(ThreadContext context, IRubyObject size) {
+    try {
+      getConnection(context).setBufferRetainSize((int) RubyNumeric.num2long(size));
+    } catch(IllegalArgumentException ex) {
+      throw context.runtime.newArgumentError(ex.getLocalizedMessage());
+    }
+    return size;
+  }
+
+  /**
+   * Return the protocol counters of the connection: bytes and messages
+   * sent and received, round trips, the time spent waiting for the
+   * server, flushing and parsing in seconds, the number of results and
+   * rows and the buffer high water marks. The counters are kept after
+   * the connection is closed.
+   */
+  @JRubyMethod
+  public IRubyObject stats(ThreadContext context) {
+    if(postgresConnection == null && closedMetrics != null) {
+      return metricsToHash(context, closedMetrics);
+    }
+    return metricsToHash(context, getConnection(context).getMetrics());
   }
 
   @JRubyMethod(rest = true)
@@ -846,6 +1376,18 @@ public class Connection extends RubyObject {
       if(args.length > 0) {
         err = ((RubyString)args[0]).asJavaString();
       }
+      if(copyWriterUsed) {
+        if(err == null) {
+          copyWriter.clear();
+          copyWriter.writeTrailer();
+          // in non blocking mode the trailer is written again when
+          // put_copy_end is retried
+          if(!postgresConnection.putCopyData(copyWriter.getBuffer(), 0, copyWriter.getLength())) {
+            return context.runtime.getFalse();
+          }
+        }
+        copyWriterUsed = false;
+      }
       postgresConnection.putCopyEnd(err);
       return context.runtime.getTrue();
     } catch(IOException ex) {
@@ -853,13 +1395,22 @@ public class Connection extends RubyObject {
     }
   }
 
+  /**
+   * get_copy_data(async = false, decoder = nil), if a decoder is given,
+   * or set with decoder_for_get_copy_data=, the rows are returned as
+   * arrays instead of strings
+   */
   @JRubyMethod(rest = true)
   public IRubyObject get_copy_data(ThreadContext context, IRubyObject[] args) {
     try {
       boolean async = false;
-      if(args.length == 1) {
+      if(args.length >= 1) {
         async = args[0].isTrue();
       }
+      IRubyObject decoder = args.length > 1 && !args[1].isNil() ? args[1] : decoderForGetCopyData;
+      if(decoder != null) {
+        return getCopyRow(context, async, decoder);
+      }
       byte[] data = postgresConnection.getCopyData(async);
       if(data == null) {
         // copy mode is over return a nil
@@ -874,6 +1425,94 @@ public class Connection extends RubyObject {
     }
   }
 
+  private IRubyObject getCopyRow(ThreadContext context, boolean async, IRubyObject decoder)
+  throws IOException {
+    if(!(decoder instanceof CopyRow) || !((CopyRow) decoder).isDecoder()) {
+      throw context.runtime.newTypeError("wrong argument type " + decoder.getMetaClass().getName() +
+                                         " (expected PG::BinaryDecoder::CopyRow)");
+    }
+    for(;;) {
+      if(copyReader.nextRow()) {
+        return ((CopyRow) decoder).decode(context, copyReader, getClientEncodingAsJavaEncoding(context));
+      }
+      byte[] data = getConnection(context).getCopyData(async);
+      if(data == null) {
+        copyReader.reset();
+        return context.nil;
+      } else if(data.length == 0) {
+        return context.runtime.getFalse();
+      }
+      copyReader.feed(data);
+    }
+  }
+
+  /**
+   * copy_out_to(io_or_path), write the data of the current COPY TO
+   * STDOUT to the given IO or file, without creating a String per
+   * row, and return the result of the COPY command
+   */
+  @JRubyMethod
+  public IRubyObject copy_out_to(ThreadContext context, IRubyObject dest) {
+    PostgresqlConnection connection = getConnection(context);
+    ResultSet result;
+    try {
+      if(dest instanceof RubyIO) {
+        dest.callMethod(context, "flush");
+        result = connection.copyOutTo(Channels.newChannel(((RubyIO) dest).getOutStream()));
+      } else if(dest instanceof RubyString || dest.respondsTo("to_path")) {
+        String path = dest instanceof RubyString ? dest.asJavaString()
+          : dest.callMethod(context, "to_path").asJavaString();
+        FileOutputStream file = new FileOutputStream(path);
+        try {
+          result = connection.copyOutTo(file.getChannel());
+        } finally {
+          file.close();
+        }
+      } else {
+        result = connection.copyOutTo(new IOWriterChannel(context, dest));
+      }
+    } catch(IOException ex) {
+      throw newPgError(context, ex.getLocalizedMessage(), null);
+    }
+
+    IRubyObject res = createResult(context, result);
+    if(!res.isNil()) {
+      ((Result)res).check(context);
+    }
+    return res;
+  }
+
+  /**
+   * A channel that writes to a ruby object that responds to write,
+   * e.g. a StringIO
+   */
+  private static class IOWriterChannel implements WritableByteChannel {
+    private final ThreadContext context;
+    private final IRubyObject io;
+
+    IOWriterChannel(ThreadContext context, IRubyObject io) {
+      this.context = context;
+      this.io = io;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      byte[] bytes = new byte[src.remaining()];
+      src.get(bytes);
+      io.callMethod(context, "write", context.runtime.newString(new ByteList(bytes, false)));
+      return bytes.length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
   /******     PG::Connection INSTANCE METHODS: Control Functions     ******/
 
   @JRubyMethod
@@ -921,6 +1560,68 @@ public class Connection extends RubyObject {
     return context.nil;
   }
 
+  /**
+   * Record the last messages exchanged with the server in a ring
+   * buffer, the options are :records, the number of messages kept
+   * (4096 by default), :payload, the number of bytes of every message
+   * kept (64 by default) and :dump_on_error, a file the messages are
+   * written to if the connection fails. The ring can be written at any
+   * time with dump_trace and decoded with PG::Connection.decode_trace.
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject enable_trace_buffer(ThreadContext context, IRubyObject[] args) {
+    int records = ProtocolTrace.DEFAULT_CAPACITY;
+    int payload = ProtocolTrace.DEFAULT_PAYLOAD_LIMIT;
+    File dumpFile = null;
+    if(args.length > 0 && !args[0].isNil()) {
+      RubyHash options = args[0].convertToHash();
+      IRubyObject value = options.op_aref(context, context.runtime.newSymbol("records"));
+      if(!value.isNil()) {
+        records = (int) RubyNumeric.num2long(value);
+      }
+      value = options.op_aref(context, context.runtime.newSymbol("payload"));
+      if(!value.isNil()) {
+        payload = (int) RubyNumeric.num2long(value);
+      }
+      value = options.op_aref(context, context.runtime.newSymbol("dump_on_error"));
+      if(!value.isNil()) {
+        dumpFile = new File(value.convertToString().toString());
+      }
+    }
+
+    try {
+      getConnection(context).enableTraceBuffer(records, payload, dumpFile);
+    } catch(IllegalArgumentException ex) {
+      throw context.runtime.newArgumentError(ex.getLocalizedMessage());
+    }
+    return context.nil;
+  }
+
+  @JRubyMethod
+  public IRubyObject disable_trace_buffer(ThreadContext context) {
+    getConnection(context).disableTraceBuffer();
+    return context.nil;
+  }
+
+  /**
+   * Return the messages recorded by the trace buffer as a binary
+   * string, nil if the trace buffer isn't enabled
+   */
+  @JRubyMethod
+  public IRubyObject dump_trace(ThreadContext context) {
+    ProtocolTrace trace = getConnection(context).getTrace();
+    if(trace == null || trace.getCapacity() == 0) {
+      return context.nil;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      trace.writeTo(out);
+    } catch(IOException ex) {
+      throw context.runtime.newIOErrorFromException(ex);
+    }
+    return context.runtime.newString(new ByteList(out.toByteArray(), false));
+  }
+
   /******     PG::Connection INSTANCE METHODS: Notice Processing     ******/
 
   @JRubyMethod
@@ -975,6 +1676,38 @@ public class Connection extends RubyObject {
     return oldProc;
   }
 
+  /******     PG::Connection INSTANCE METHODS: Type Casting    ******/
+
+  @JRubyMethod
+  public IRubyObject type_map_for_queries(ThreadContext context) {
+    return typeMapForQueries == null ? context.nil : typeMapForQueries;
+  }
+
+  @JRubyMethod(name = "type_map_for_queries=")
+  public IRubyObject type_map_for_queries_set(ThreadContext context, IRubyObject typeMap) {
+    if(!typeMap.isNil() && !(typeMap instanceof TypeMapByClass)) {
+      throw context.runtime.newTypeError("wrong argument type " + typeMap.getMetaClass().getName() +
+                                         " (expected PG::TypeMapByClass)");
+    }
+    typeMapForQueries = typeMap.isNil() ? null : (TypeMapByClass) typeMap;
+    return typeMap;
+  }
+
+  @JRubyMethod
+  public IRubyObject type_map_for_results(ThreadContext context) {
+    return typeMapForResults == null ? context.nil : typeMapForResults;
+  }
+
+  @JRubyMethod(name = "type_map_for_results=")
+  public IRubyObject type_map_for_results_set(ThreadContext context, IRubyObject typeMap) {
+    if(!typeMap.isNil() && !(typeMap instanceof TypeMapByOid)) {
+      throw context.runtime.newTypeError("wrong argument type " + typeMap.getMetaClass().getName() +
+                                         " (expected PG::TypeMapByOid)");
+    }
+    typeMapForResults = typeMap.isNil() ? null : typeMap;
+    return typeMap;
+  }
+
   /******     PG::Connection INSTANCE METHODS: Other    ******/
 
   @JRubyMethod()
@@ -1149,14 +1882,49 @@ public class Connection extends RubyObject {
     }
   }
 
-  @JRubyMethod(name = {"lo_import", "loimport"})
-  public IRubyObject lo_import(ThreadContext context, IRubyObject arg0) {
-    return context.nil;
+  /**
+   * lo_import(file, oid = 0), create a large object with the content
+   * of the given file and return its oid. The transfer runs in the
+   * current transaction or in its own if there isn't one.
+   */
+  @JRubyMethod(name = {"lo_import", "loimport"}, required = 1, optional = 1)
+  public IRubyObject lo_import(ThreadContext context, IRubyObject[] args) {
+    int oid = args.length > 1 ? (int) RubyNumeric.num2long(args[1]) : 0;
+    try {
+      FileInputStream file = new FileInputStream(args[0].convertToString().asJavaString());
+      try {
+        oid = getConnection(context).getLargeObjectAPI().loImport(file.getChannel(), oid);
+      } finally {
+        file.close();
+      }
+      return context.runtime.newFixnum(oid & 0xFFFFFFFFL);
+    } catch(PostgresqlException e) {
+      throw newPgError(context, "lo_import failed: " + e.getLocalizedMessage(), e.getResultSet());
+    } catch(IOException e) {
+      throw newPgError(context, "lo_import failed: " + e.getLocalizedMessage(), null);
+    }
   }
 
+  /**
+   * lo_export(oid, file), write the content of the given large object
+   * to the file
+   */
   @JRubyMethod(name = {"lo_export", "loexport"})
   public IRubyObject lo_export(ThreadContext context, IRubyObject arg0, IRubyObject arg1) {
-    return context.nil;
+    int oid = (int) RubyNumeric.num2long(arg0);
+    try {
+      FileOutputStream file = new FileOutputStream(arg1.convertToString().asJavaString());
+      try {
+        getConnection(context).getLargeObjectAPI().loExport(oid, file.getChannel());
+      } finally {
+        file.close();
+      }
+      return context.nil;
+    } catch(PostgresqlException e) {
+      throw newPgError(context, "lo_export failed: " + e.getLocalizedMessage(), e.getResultSet());
+    } catch(IOException e) {
+      throw newPgError(context, "lo_export failed: " + e.getLocalizedMessage(), null);
+    }
   }
 
   @JRubyMethod(name = {"lo_open", "loopen"}, required = 1, optional = 1)
@@ -1375,28 +2143,22 @@ public class Connection extends RubyObject {
       abortTime = System.currentTimeMillis() + timeout;
     }
     Object retVal;
-    Selector selector = Selector.open();
-    try {
-      SelectionKey key = getConnection(context).getSocket().register(selector, 0);
-      // wait until the connection is ready
-      while((retVal = readable.isReadable()) == null) {
-        key.interestOps(SelectionKey.OP_READ);
-        long waitTime = abortTime - System.currentTimeMillis();
-
-        if(abortTime > 0 && waitTime <= 0) {
-          // break if we ran out of time
-          break;
-        } else if(abortTime > 0) {
-          // otherwise wait `waitTime' for the socket to be readable
-          selector.select(waitTime);
-        } else {
-          selector.select();
-        }
-        // read more data
-        getConnection(context).consumeInput();
+    PostgresqlConnection connection = getConnection(context);
+    // wait until the connection is ready
+    while((retVal = readable.isReadable()) == null) {
+      long waitTime = abortTime - System.currentTimeMillis();
+
+      if(abortTime > 0 && waitTime <= 0) {
+        // break if we ran out of time
+        break;
+      } else if(abortTime > 0) {
+        // otherwise wait `waitTime' for the socket to be readable
+        connection.waitForSocket(SelectionKey.OP_READ, waitTime);
+      } else {
+        connection.waitForSocket(SelectionKey.OP_READ, 0);
       }
-    } finally {
-      selector.close();
+      // read more data
+      connection.consumeInput();
     }
 
     return retVal;
@@ -1405,6 +2167,7 @@ public class Connection extends RubyObject {
   private IRubyObject connectStart(ThreadContext context, Block block) {
     try {
       postgresConnection = PostgresqlConnection.connectStart(props);
+      postgresConnection.setStatementCache(statementCacheSize, prepareThreshold);
       if(block.isGiven()) {
         IRubyObject value = block.yield(context, this);
         finish(context);
@@ -1442,7 +2205,10 @@ public class Connection extends RubyObject {
 
   RaiseException newPgError(ThreadContext context, String message, ResultSet result) {
     String sqlstate = null;
-    if(result != null) {
+    if(result != null && result.isTimedOut()) {
+      sqlstate = "QueryTimeout";
+      message = "query timed out after " + result.getTimeout() / 1000.0 + "s: " + message;
+    } else if(result != null) {
       sqlstate = result.getErrorField(ErrorField.PG_DIAG_SQLSTATE.getCode());
     }
 
@@ -1462,6 +2228,7 @@ public class Connection extends RubyObject {
       // to make testing possible
       // connection = (BaseConnection)driver.connect(connectionString, props);
       postgresConnection = PostgresqlConnection.connectDb(props);
+      postgresConnection.setStatementCache(statementCacheSize, prepareThreshold);
     } catch(IOException ex) {
       throw newPgError(context, ex, null);
     }
@@ -1485,7 +2252,68 @@ public class Connection extends RubyObject {
     return resultFormat;
   }
 
-  private PostgresqlConnection getConnection(ThreadContext context) {
+  private static RubyHash metricsToHash(ThreadContext context, ProtocolMetrics metrics) {
+    Ruby ruby = context.runtime;
+    RubyHash hash = new RubyHash(ruby);
+    hash.op_aset(context, ruby.newSymbol("bytes_in"), ruby.newFixnum(metrics.getBytesIn()));
+    hash.op_aset(context, ruby.newSymbol("bytes_out"), ruby.newFixnum(metrics.getBytesOut()));
+    hash.op_aset(context, ruby.newSymbol("messages_in"), countsToHash(context, metrics.getMessagesIn()));
+    hash.op_aset(context, ruby.newSymbol("messages_out"), countsToHash(context, metrics.getMessagesOut()));
+    hash.op_aset(context, ruby.newSymbol("round_trips"), ruby.newFixnum(metrics.getRoundTrips()));
+    hash.op_aset(context, ruby.newSymbol("result_wait_time"), ruby.newFloat(metrics.getResultWaitNanos() / 1e9));
+    hash.op_aset(context, ruby.newSymbol("flush_wait_time"), ruby.newFloat(metrics.getFlushWaitNanos() / 1e9));
+    hash.op_aset(context, ruby.newSymbol("parse_time"), ruby.newFloat(metrics.getParseNanos() / 1e9));
+    hash.op_aset(context, ruby.newSymbol("results"), ruby.newFixnum(metrics.getResults()));
+    hash.op_aset(context, ruby.newSymbol("rows"), ruby.newFixnum(metrics.getRows()));
+    hash.op_aset(context, ruby.newSymbol("input_buffer_high_water"), ruby.newFixnum(metrics.getInputBufferHighWater()));
+    hash.op_aset(context, ruby.newSymbol("output_buffer_high_water"), ruby.newFixnum(metrics.getOutputBufferHighWater()));
+    return hash;
+  }
+
+  private static RubyHash countsToHash(ThreadContext context, Map<String, Long> counts) {
+    RubyHash hash = new RubyHash(context.runtime);
+    for(Entry<String, Long> count : counts.entrySet()) {
+      hash.op_aset(context, context.runtime.newString(count.getKey()), context.runtime.newFixnum(count.getValue()));
+    }
+    return hash;
+  }
+
+  /**
+   * Return the trailing options hash of the arguments, null if there
+   * isn't one
+   */
+  private static RubyHash extractOptions(IRubyObject[] args) {
+    if(args.length > 1 && args[args.length - 1] instanceof RubyHash) {
+      return (RubyHash) args[args.length - 1];
+    }
+    return null;
+  }
+
+  /**
+   * Apply the :timeout option, if given, to the next command
+   */
+  private void setTimeout(ThreadContext context, RubyHash options) {
+    if(options == null) {
+      return;
+    }
+    RubySymbol timeout = context.runtime.newSymbol("timeout");
+    if(options.has_key_p(timeout).isTrue()) {
+      getConnection(context).setQueryTimeout(toTimeoutMillis(context, options.op_aref(context, timeout)));
+    }
+  }
+
+  private static long toTimeoutMillis(ThreadContext context, IRubyObject timeout) {
+    if(timeout.isNil()) {
+      return 0;
+    }
+    double seconds = RubyNumeric.num2dbl(timeout);
+    if(seconds <= 0) {
+      throw context.runtime.newArgumentError("timeout must be positive");
+    }
+    return Math.max(1, (long) (seconds * 1000));
+  }
+
+  PostgresqlConnection getConnection(ThreadContext context) {
     if(postgresConnection != null && !postgresConnection.closed()) {
       return postgresConnection;
     }
@@ -1516,14 +2344,98 @@ public class Connection extends RubyObject {
         if(value.isNil()) {
           values[i] = new Value(null, valueFormat);
         } else {
-          RubyString str = value.asString();
-          values[i] = new Value(str.getBytes(), valueFormat);
+          values[i] = BinaryEncoders.stringValue(value.asString(), valueFormat);
         }
       } else {
-        RubyString str = param.asString();
-        values[i] = new Value(str.getBytes(), valueFormat);
+        Coder coder = typeMapForQueries == null ? null : typeMapForQueries.getCoder(param);
+        if(coder != null) {
+          values[i] = coder.getEncoder().encode(context, param);
+          oids[i] = coder.getOid();
+        } else {
+          values[i] = BinaryEncoders.stringValue(param.asString(), valueFormat);
+        }
+      }
+    }
+  }
+
+  private IRubyObject execBatchCommon(ThreadContext context, PostgresqlString name, PostgresqlString query,
+                                      IRubyObject paramSets) {
+    RubyArray sets = paramSets.convertToArray();
+    RubyArray[] params = new RubyArray[sets.getLength()];
+    Value[][] values = new Value[params.length][];
+    int[][] rowOids = new int[params.length][];
+    for(int i = 0; i < params.length; i++) {
+      params[i] = sets.entry(i).convertToArray();
+      values[i] = new Value[params[i].getLength()];
+      rowOids[i] = new int[params[i].getLength()];
+      fillValuesAndFormat(context, params[i], values[i], rowOids[i]);
+      if(name != null) {
+        encodeForStatement(context, name, params[i], values[i], rowOids[i]);
+      }
+    }
+    int[] oids = batchOids(context, params, values, rowOids);
+
+    ResultSet set;
+    try {
+      set = getConnection(context).execBatch(name, query, values, oids);
+    } catch(IOException ex) {
+      throw newPgError(context, ex.getLocalizedMessage(), null);
+    }
+
+    int[] counts = set.getBatchCounts();
+    if(set.getStatus() == ResultStatus.PGRES_FATAL_ERROR) {
+      RaiseException error = newPgError(context, set.getError(), set);
+      error.getException().setInstanceVariable("@batch_index", context.runtime.newFixnum(counts.length));
+      throw error;
+    }
+
+    RubyArray result = RubyArray.newArray(context.runtime, counts.length);
+    for(int count : counts) {
+      result.append(context.runtime.newFixnum(count));
+    }
+    return result;
+  }
+
+  /**
+   * Return the oids the batch's query is parsed with. A parameter's
+   * type is the one of its first typed value, nil and untyped text
+   * values fit any type. If the values of a parameter have different
+   * types they're sent as text and the server infers the type.
+   */
+  private int[] batchOids(ThreadContext context, RubyArray[] params, Value[][] values, int[][] rowOids) {
+    int columns = 0;
+    for(int[] row : rowOids) {
+      columns = Math.max(columns, row.length);
+    }
+    int[] oids = new int[columns];
+    for(int column = 0; column < columns; column++) {
+      boolean mixed = false;
+      for(int[] row : rowOids) {
+        if(column >= row.length || row[column] == 0) {
+          continue;
+        }
+        if(oids[column] == 0) {
+          oids[column] = row[column];
+        } else if(oids[column] != row[column]) {
+          mixed = true;
+        }
+      }
+      if(mixed) {
+        oids[column] = 0;
+        for(int i = 0; i < params.length; i++) {
+          if(column >= rowOids[i].length || rowOids[i][column] == 0) {
+            continue;
+          }
+          IRubyObject param = params[i].entry(column);
+          if(param instanceof RubyHash) {
+            throw context.runtime.newArgumentError("parameter $" + (column + 1) +
+                                                  " has a different type in parameter set " + i);
+          }
+          values[i][column] = textValue(context, param);
+        }
       }
     }
+    return oids;
   }
 
   private IRubyObject createResult(ThreadContext context, ResultSet set) {
@@ -1532,7 +2444,62 @@ public class Connection extends RubyObject {
     }
     Encoding encoding = getClientEncodingAsJavaEncoding(context);
     RubyClass klass = (RubyClass)context.runtime.getClassFromPath("PG::Result");
-    return new Result(context.runtime, klass, this, set, encoding);
+    Result result = new Result(context.runtime, klass, this, set, encoding);
+    if(set.getStatus() == ResultStatus.PGRES_COPY_IN) {
+      // a new COPY starts with the binary header even if the previous
+      // one didn't end with put_copy_end
+      copyWriterUsed = false;
+    } else if(set.getStatus() == ResultStatus.PGRES_COPY_OUT) {
+      copyReader.reset();
+    }
+    if(typeMapForResults != null) {
+      result.setTypeMap(context, typeMapForResults);
+    }
+    return result;
+  }
+
+  /**
+   * Encode the parameters of a prepared statement for the types it was
+   * prepared with, the server doesn't convert binary values. Integers
+   * are encoded for the integer type of the parameter and strings for
+   * a bytea parameter are sent as is, in binary. The other values whose
+   * type differs or isn't known, because the statement wasn't
+   * described, are sent as text.
+   */
+  private void encodeForStatement(ThreadContext context, PostgresqlString name, RubyArray params,
+                                  Value[] values, int[] oids) {
+    int[] types = getConnection(context).getParameterTypes(name);
+    for(int i = 0; i < values.length; i++) {
+      int type = types != null && i < types.length ? types[i] : 0;
+      if(oids[i] == 0 || oids[i] == type || params.entry(i) instanceof RubyHash) {
+        continue;
+      }
+      IRubyObject param = params.entry(i);
+      if(isInteger(oids[i]) && isInteger(type)) {
+        values[i] = BinaryEncoders.forOid(type).encode(context, param);
+      } else if(type == Oid.BYTEA && param instanceof RubyString) {
+        // the text form of a bytea is escaped, a NUL can't be sent as text
+        values[i] = BinaryEncoders.BYTEA.encode(context, param);
+      } else {
+        values[i] = textValue(context, param);
+      }
+      oids[i] = type;
+    }
+  }
+
+  /**
+   * Return the text value of a parameter that was encoded in binary
+   */
+  private static Value textValue(ThreadContext context, IRubyObject param) {
+    if(param instanceof RubyTime) {
+      // to_s drops the fraction of the second
+      param = param.callMethod(context, "strftime", context.runtime.newString("%Y-%m-%d %H:%M:%S.%6N %:z"));
+    }
+    return BinaryEncoders.stringValue(param.asString(), Format.Text);
+  }
+
+  private static boolean isInteger(int oid) {
+    return oid == Oid.INT2 || oid == Oid.INT4 || oid == Oid.INT8;
   }
 
   private ResultSet execPreparedCommon(ThreadContext context, IRubyObject[] args, boolean async) throws IOException {
@@ -1544,6 +2511,7 @@ public class Connection extends RubyObject {
       values = new Value[array.getLength()];
       oids = new int[array.getLength()];
       fillValuesAndFormat(context, array, values, oids);
+      encodeForStatement(context, queryName, array, values, oids);
     } else {
       values = new Value[0];
       oids = new int[0];
@@ -0,0 +1,156 @@
+package org.jruby.pg;
+
+import org.jcodings.Encoding;
+import org.jruby.*;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.pg.internal.BinaryCopyReader;
+import org.jruby.pg.internal.BinaryCopyWriter;
+import org.jruby.pg.messages.Format;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Visibility;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * PG::BinaryEncoder::CopyRow and PG::BinaryDecoder::CopyRow, convert
+ * arrays to and from the rows of a COPY in binary format. The binary
+ * format doesn't describe the columns, their types are given by the
+ * :oids option. The fields of a column without a known type are sent
+ * as the bytes of their to_s and received as strings.
+ */
+@SuppressWarnings("serial")
+public class CopyRow extends RubyObject {
+  private final boolean decoder;
+  private IRubyObject oids;
+  private IRubyObject typeMap;
+  private ValueEncoder[] encoders = new ValueEncoder[0];
+  private ValueDecoder[] decoders = new ValueDecoder[0];
+
+  public CopyRow(Ruby ruby, RubyClass rubyClass, boolean decoder) {
+    super(ruby, rubyClass);
+    this.decoder = decoder;
+    this.oids = ruby.getNil();
+    this.typeMap = ruby.getNil();
+  }
+
+  public static void define(Ruby ruby, RubyModule pg) {
+    RubyModule binaryEncoder = (RubyModule) pg.getConstant("BinaryEncoder");
+    RubyClass encoder = binaryEncoder.defineClassUnder("CopyRow", ruby.getObject(), new ObjectAllocator() {
+      @Override
+      public IRubyObject allocate(Ruby ruby, RubyClass klass) {
+        return new CopyRow(ruby, klass, false);
+      }
+    });
+    encoder.defineAnnotatedMethods(CopyRow.class);
+
+    RubyModule binaryDecoder = (RubyModule) pg.getConstant("BinaryDecoder");
+    RubyClass decoder = binaryDecoder.defineClassUnder("CopyRow", ruby.getObject(), new ObjectAllocator() {
+      @Override
+      public IRubyObject allocate(Ruby ruby, RubyClass klass) {
+        return new CopyRow(ruby, klass, true);
+      }
+    });
+    decoder.defineAnnotatedMethods(CopyRow.class);
+  }
+
+  public boolean isDecoder() {
+    return decoder;
+  }
+
+  /**
+   * Write the given array as a row
+   */
+  public void encode(ThreadContext context, IRubyObject row, BinaryCopyWriter writer) {
+    RubyArray fields = row.convertToArray();
+    int count = fields.getLength();
+    writer.startRow(count);
+    for(int i = 0; i < count; i++) {
+      IRubyObject field = fields.eltInternal(i);
+      if(field.isNil()) {
+        writer.writeNull();
+        continue;
+      }
+      ValueEncoder encoder = i < encoders.length ? encoders[i] : null;
+      if(encoder == null) {
+        writer.writeValue(BinaryEncoders.stringValue(field.asString(), Format.Binary));
+      } else {
+        writer.writeValue(encoder.encode(context, field));
+      }
+    }
+  }
+
+  /**
+   * Return the current row of the reader as an array
+   */
+  public IRubyObject decode(ThreadContext context, BinaryCopyReader reader, Encoding encoding) {
+    int count = reader.getFieldCount();
+    byte[] data = reader.getData();
+    IRubyObject[] fields = new IRubyObject[count];
+    for(int i = 0; i < count; i++) {
+      int length = reader.getLength(i);
+      if(length < 0) {
+        fields[i] = context.nil;
+        continue;
+      }
+      ValueDecoder decoder = i < decoders.length ? decoders[i] : null;
+      if(decoder == null) {
+        decoder = BinaryDecoders.STRING;
+      }
+      fields[i] = decoder.decode(context, data, reader.getOffset(i), length, encoding);
+    }
+    return context.runtime.newArrayNoCopy(fields);
+  }
+
+  /******     PG::BinaryEncoder::CopyRow and PG::BinaryDecoder::CopyRow INSTANCE METHODS    ******/
+
+  /**
+   * new(oids: [...], type_map: nil), oids are the types of the
+   * columns. The decoder looks up the decoder of each type in the
+   * given PG::TypeMapByOid before using the built-in decoders.
+   */
+  @JRubyMethod(optional = 1, visibility = Visibility.PRIVATE)
+  public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+    if(args.length == 0 || args[0].isNil()) {
+      return this;
+    }
+    RubyHash options = args[0].convertToHash();
+    typeMap = options.op_aref(context, context.runtime.newSymbol("type_map"));
+    if(!typeMap.isNil() && !(typeMap instanceof TypeMapByOid)) {
+      throw context.runtime.newTypeError("wrong argument type " + typeMap.getMetaClass().getName() +
+                                         " (expected PG::TypeMapByOid)");
+    }
+    oids = options.op_aref(context, context.runtime.newSymbol("oids"));
+    if(oids.isNil()) {
+      return this;
+    }
+
+    RubyArray array = oids.convertToArray();
+    encoders = new ValueEncoder[array.getLength()];
+    decoders = new ValueDecoder[array.getLength()];
+    for(int i = 0; i < encoders.length; i++) {
+      IRubyObject value = array.eltInternal(i);
+      if(value.isNil()) {
+        continue;
+      }
+      int oid = RubyNumeric.num2int(value);
+      encoders[i] = BinaryEncoders.forOid(oid);
+      if(!typeMap.isNil()) {
+        decoders[i] = ((TypeMapByOid) typeMap).getDecoder(oid);
+      }
+      if(decoders[i] == null) {
+        decoders[i] = BinaryDecoders.forOid(oid);
+      }
+    }
+    return this;
+  }
+
+  @JRubyMethod
+  public IRubyObject oids(ThreadContext context) {
+    return oids;
+  }
+
+  @JRubyMethod
+  public IRubyObject type_map(ThreadContext context) {
+    return typeMap;
+  }
+}
@@ -0,0 +1,338 @@
+package org.jruby.pg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+
+import org.jruby.*;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.pg.internal.LargeObjectAPI;
+import org.jruby.pg.internal.LargeObjectChannel;
+import org.jruby.pg.internal.PostgresqlException;
+import org.jruby.pg.internal.ResultSet;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Visibility;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * PG::LargeObject, an IO like wrapper of {@link LargeObjectChannel}.
+ * Reads and writes are buffered, the position is tracked by the
+ * object and the descriptor is only moved when needed. The object
+ * must be closed, or flushed, to make sure all the writes were sent
+ * before the transaction ends.
+ */
+@SuppressWarnings("serial")
+public class LargeObject extends RubyObject {
+  private static final int READ_ALL_CHUNK_SIZE = 64 * 1024;
+
+  private Connection connection;
+  private LargeObjectChannel channel;
+
+  public LargeObject(Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+  }
+
+  public static void define(Ruby ruby, RubyModule pg) {
+    RubyClass largeObject = pg.defineClassUnder("LargeObject", ruby.getObject(), LARGE_OBJECT_ALLOCATOR);
+    largeObject.defineAnnotatedMethods(LargeObject.class);
+  }
+
+  private static ObjectAllocator LARGE_OBJECT_ALLOCATOR = new ObjectAllocator() {
+    @Override
+    public IRubyObject allocate(Ruby ruby, RubyClass klass) {
+      return new LargeObject(ruby, klass);
+    }
+  };
+
+  /******     PG::LargeObject CLASS METHODS    ******/
+
+  /**
+   * PG::LargeObject.open(conn, oid, mode = PG::INV_READ), the large
+   * object is yielded and closed when the block returns if a block is
+   * given
+   */
+  @JRubyMethod(meta = true, required = 2, optional = 1)
+  public static IRubyObject open(ThreadContext context, IRubyObject self, IRubyObject[] args, Block block) {
+    IRubyObject largeObject = ((RubyClass) self).newInstance(context, args, Block.NULL_BLOCK);
+    if(!block.isGiven()) {
+      return largeObject;
+    }
+    try {
+      return block.yield(context, largeObject);
+    } finally {
+      ((LargeObject) largeObject).close(context);
+    }
+  }
+
+  /******     PG::LargeObject INSTANCE METHODS    ******/
+
+  /**
+   * new(conn, oid, mode = PG::INV_READ), open the large object in the
+   * current transaction of the connection
+   */
+  @JRubyMethod(required = 2, optional = 1, visibility = Visibility.PRIVATE)
+  public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+    if(!(args[0] instanceof Connection)) {
+      throw context.runtime.newTypeError("wrong argument type " + args[0].getMetaClass().getName() +
+                                         " (expected PG::Connection)");
+    }
+    connection = (Connection) args[0];
+    int oid = (int) RubyNumeric.num2long(args[1]);
+    int mode = args.length > 2 ? RubyNumeric.num2int(args[2]) : LargeObjectAPI.READ;
+    try {
+      channel = connection.getConnection(context).getLargeObjectAPI().openChannel(oid, mode);
+    } catch(PostgresqlException e) {
+      throw connection.newPgError(context, "lo_open failed: " + e.getLocalizedMessage(), e.getResultSet());
+    } catch(IOException e) {
+      throw connection.newPgError(context, "lo_open failed: " + e.getLocalizedMessage(), null);
+    }
+    return this;
+  }
+
+  @JRubyMethod
+  public IRubyObject oid(ThreadContext context) {
+    return context.runtime.newFixnum(getChannel(context).getOid());
+  }
+
+  /**
+   * read(length = nil), return the next length bytes, nil at the end
+   * of the large object. The rest of the large object is returned if
+   * length is nil.
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject read(ThreadContext context, IRubyObject[] args) {
+    LargeObjectChannel channel = getChannel(context);
+    try {
+      if(args.length == 0 || args[0].isNil()) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_ALL_CHUNK_SIZE);
+        while(channel.read(buffer) >= 0) {
+          out.write(buffer.array(), 0, buffer.position());
+          buffer.clear();
+        }
+        return context.runtime.newString(new ByteList(out.toByteArray(), false));
+      }
+
+      int length = RubyNumeric.num2int(args[0]);
+      if(length < 0) {
+        throw context.runtime.newArgumentError("negative length " + length + " given");
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      if(length > 0 && channel.read(buffer) < 0) {
+        return context.nil;
+      }
+      return context.runtime.newString(new ByteList(buffer.array(), 0, buffer.position(), false));
+    } catch(IOException e) {
+      throw newPgError(context, "lo_read", e);
+    }
+  }
+
+  /**
+   * Write the given string, return the number of bytes written. The
+   * bytes are sent when the write-behind buffer is full or when the
+   * large object is flushed.
+   */
+  @JRubyMethod(name = {"write", "<<"}, required = 1)
+  public IRubyObject write(ThreadContext context, IRubyObject arg) {
+    ByteList bytes = arg.asString().getByteList();
+    try {
+      int written = getChannel(context).write(ByteBuffer.wrap(bytes.getUnsafeBytes(), bytes.getBegin(),
+                                                              bytes.getRealSize()));
+      return context.runtime.newFixnum(written);
+    } catch(NonWritableChannelException e) {
+      throw context.runtime.newIOError("large object not opened for writing");
+    } catch(IOException e) {
+      throw newPgError(context, "lo_write", e);
+    }
+  }
+
+  /**
+   * seek(offset, whence = PG::SEEK_SET), only SEEK_END needs a round
+   * trip to the server
+   */
+  @JRubyMethod(required = 1, optional = 1)
+  public IRubyObject seek(ThreadContext context, IRubyObject[] args) {
+    LargeObjectChannel channel = getChannel(context);
+    long offset = RubyNumeric.num2long(args[0]);
+    int whence = args.length > 1 ? RubyNumeric.num2int(args[1]) : LargeObjectAPI.SEEK_SET;
+    try {
+      switch(whence) {
+      case LargeObjectAPI.SEEK_SET:
+        break;
+      case LargeObjectAPI.SEEK_CUR:
+        offset += channel.position();
+        break;
+      case LargeObjectAPI.SEEK_END:
+        offset += channel.size();
+        break;
+      default:
+        throw context.runtime.newArgumentError("invalid whence " + whence);
+      }
+      if(offset < 0) {
+        throw context.runtime.newErrnoEINVALError("negative position");
+      }
+      channel.position(offset);
+      return context.runtime.newFixnum(0);
+    } catch(IOException e) {
+      throw newPgError(context, "lo_lseek", e);
+    }
+  }
+
+  @JRubyMethod(name = {"pos", "tell"})
+  public IRubyObject pos(ThreadContext context) {
+    try {
+      return context.runtime.newFixnum(getChannel(context).position());
+    } catch(IOException e) {
+      throw newPgError(context, "lo_tell", e);
+    }
+  }
+
+  @JRubyMethod(name = "pos=", required = 1)
+  public IRubyObject set_pos(ThreadContext context, IRubyObject arg) {
+    seek(context, new IRubyObject[] {arg});
+    return arg;
+  }
+
+  @JRubyMethod
+  public IRubyObject rewind(ThreadContext context) {
+    seek(context, new IRubyObject[] {context.runtime.newFixnum(0)});
+    return context.runtime.newFixnum(0);
+  }
+
+  /**
+   * Returns true if the position is at the end of the large object,
+   * the read-ahead buffer is used when possible
+   */
+  @JRubyMethod(name = {"eof?", "eof"})
+  public IRubyObject eof_p(ThreadContext context) {
+    LargeObjectChannel channel = getChannel(context);
+    try {
+      long position = channel.position();
+      boolean eof = channel.read(ByteBuffer.allocate(1)) < 0;
+      channel.position(position);
+      return context.runtime.newBoolean(eof);
+    } catch(IOException e) {
+      throw newPgError(context, "lo_read", e);
+    }
+  }
+
+  @JRubyMethod
+  public IRubyObject size(ThreadContext context) {
+    try {
+      return context.runtime.newFixnum(getChannel(context).size());
+    } catch(IOException e) {
+      throw newPgError(context, "lo_lseek", e);
+    }
+  }
+
+  @JRubyMethod(required = 1)
+  public IRubyObject truncate(ThreadContext context, IRubyObject arg) {
+    long size = RubyNumeric.num2long(arg);
+    if(size < 0) {
+      throw context.runtime.newErrnoEINVALError("negative length");
+    }
+    try {
+      getChannel(context).truncate(size);
+      return context.runtime.newFixnum(0);
+    } catch(NonWritableChannelException e) {
+      throw context.runtime.newIOError("large object not opened for writing");
+    } catch(IOException e) {
+      throw newPgError(context, "lo_truncate", e);
+    }
+  }
+
+  /**
+   * Send the writes that are still buffered
+   */
+  @JRubyMethod
+  public IRubyObject flush(ThreadContext context) {
+    try {
+      getChannel(context).flush();
+      return this;
+    } catch(IOException e) {
+      throw newPgError(context, "lo_write", e);
+    }
+  }
+
+  /**
+   * read_ranges([[offset, length], ...]), return the content of every
+   * range as a string, shorter than length if the range goes past the
+   * end of the large object. The reads of all the ranges are pipelined
+   * and the position isn't changed.
+   */
+  @JRubyMethod(required = 1)
+  public IRubyObject read_ranges(ThreadContext context, IRubyObject arg) {
+    LargeObjectChannel channel = getChannel(context);
+    RubyArray ranges = arg.convertToArray();
+    long[] offsets = new long[ranges.getLength()];
+    ByteBuffer[] buffers = new ByteBuffer[offsets.length];
+    for(int i = 0; i < offsets.length; i++) {
+      RubyArray range = ranges.eltInternal(i).convertToArray();
+      if(range.getLength() != 2) {
+        throw context.runtime.newArgumentError("expected [offset, length] got " + range.inspect());
+      }
+      offsets[i] = RubyNumeric.num2long(range.eltInternal(0));
+      int length = RubyNumeric.num2int(range.eltInternal(1));
+      if(offsets[i] < 0 || length < 0) {
+        throw context.runtime.newArgumentError("negative offset or length in " + range.inspect());
+      }
+      buffers[i] = ByteBuffer.allocate(length);
+    }
+
+    try {
+      channel.readRanges(offsets, buffers);
+    } catch(IOException e) {
+      throw newPgError(context, "lo_read", e);
+    }
+
+    IRubyObject[] strings = new IRubyObject[buffers.length];
+    for(int i = 0; i < buffers.length; i++) {
+      strings[i] = context.runtime.newString(new ByteList(buffers[i].array(), 0, buffers[i].position(), false));
+    }
+    return context.runtime.newArrayNoCopy(strings);
+  }
+
+  /**
+   * Flush the writes and close the descriptor
+   */
+  @JRubyMethod
+  public IRubyObject close(ThreadContext context) {
+    if(channel == null || !channel.isOpen()) {
+      return context.nil;
+    }
+    try {
+      channel.close();
+    } catch(IOException e) {
+      throw newPgError(context, "lo_close", e);
+    }
+    return context.nil;
+  }
+
+  @JRubyMethod(name = "closed?")
+  public IRubyObject closed_p(ThreadContext context) {
+    return context.runtime.newBoolean(channel == null || !channel.isOpen());
+  }
+
+  // private methods
+
+  private LargeObjectChannel getChannel(ThreadContext context) {
+    if(channel == null || !channel.isOpen()) {
+      throw context.runtime.newIOError("closed large object");
+    }
+    connection.getConnection(context);
+    return channel;
+  }
+
+  private RaiseException newPgError(ThreadContext context, String function, IOException e) {
+    ResultSet result = null;
+    if(e.getCause() instanceof PostgresqlException) {
+      result = ((PostgresqlException) e.getCause()).getResultSet();
+    }
+    return connection.newPgError(context, function + " failed: " + e.getLocalizedMessage(), result);
+  }
+}
@@ -0,0 +1,222 @@
+package org.jruby.pg;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.jruby.*;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.pg.internal.ConnectionPool;
+import org.jruby.pg.internal.ConnectionPool.PooledConnection;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * PG::Pool, a thread safe pool of connections backed by {@link
+ * ConnectionPool}. Every pooled connection is wrapped by the same
+ * PG::Connection each time it's checked out.
+ */
+@SuppressWarnings("serial")
+public class Pool extends RubyObject {
+  private static final int DEFAULT_MIN_SIZE = 1;
+  private static final int DEFAULT_MAX_SIZE = 5;
+  private static final double DEFAULT_CHECKOUT_TIMEOUT = 5;
+  private static final double DEFAULT_VALIDATION_INTERVAL = 30;
+
+  private ConnectionPool pool;
+  private Properties props;
+
+  // the default checkout timeout in milliseconds
+  private long checkoutTimeout;
+
+  public Pool(Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+  }
+
+  public static void define(Ruby ruby, RubyModule pg) {
+    RubyClass pool = pg.defineClassUnder("Pool", ruby.getObject(), POOL_ALLOCATOR);
+    pool.defineAnnotatedMethods(Pool.class);
+  }
+
+  private static ObjectAllocator POOL_ALLOCATOR = new ObjectAllocator() {
+    @Override
+    public IRubyObject allocate(Ruby ruby, RubyClass klass) {
+      return new Pool(ruby, klass);
+    }
+  };
+
+  /******     PG::Pool INSTANCE METHODS    ******/
+
+  /**
+   * PG::Pool.new(conninfo, options = {}), conninfo is the connection
+   * hash or string accepted by PG::Connection.new. The options are
+   * :min_size, :max_size, :checkout_timeout and :validation_interval,
+   * the timeouts are in seconds. The first min_size connections are
+   * established before this method returns.
+   */
+  @JRubyMethod(required = 1, optional = 1)
+  public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+    props = Connection.parse_args(context, new IRubyObject[] {args[0]});
+    RubyHash options = args.length > 1 ? args[1].convertToHash() : RubyHash.newHash(context.runtime);
+
+    int minSize = (int) option(context, options, "min_size", DEFAULT_MIN_SIZE);
+    int maxSize = (int) option(context, options, "max_size", DEFAULT_MAX_SIZE);
+    checkoutTimeout = toMillis(option(context, options, "checkout_timeout", DEFAULT_CHECKOUT_TIMEOUT));
+    long validationInterval = toMillis(option(context, options, "validation_interval", DEFAULT_VALIDATION_INTERVAL));
+
+    try {
+      pool = new ConnectionPool(props, minSize, maxSize, validationInterval);
+    } catch(IllegalArgumentException ex) {
+      throw context.runtime.newArgumentError(ex.getLocalizedMessage());
+    }
+
+    try {
+      pool.warmUp();
+    } catch(IOException ex) {
+      pool.close();
+      throw newConnectionBad(context, ex.getLocalizedMessage());
+    }
+    return context.nil;
+  }
+
+  /**
+   * Borrow a connection, waiting at most timeout seconds for one to be
+   * available. The connection must be returned with {@link #checkin}.
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject checkout(ThreadContext context, IRubyObject[] args) {
+    long timeout = checkoutTimeout;
+    if(args.length > 0 && !args[0].isNil()) {
+      timeout = toMillis(RubyNumeric.num2dbl(args[0]));
+    }
+
+    PooledConnection pooled;
+    try {
+      pooled = getPool(context).borrow(timeout);
+    } catch(IOException ex) {
+      throw newConnectionBad(context, ex.getLocalizedMessage());
+    }
+
+    Connection connection = (Connection) pooled.getAttachment();
+    if(connection == null || !connection.usesPooledConnection()) {
+      connection = Connection.fromPool(context, pooled, props);
+      pooled.setAttachment(connection);
+    }
+    return connection;
+  }
+
+  /**
+   * Return a connection to the pool. An open transaction is rolled
+   * back, a connection that is busy or was closed is discarded.
+   */
+  @JRubyMethod(required = 1)
+  public IRubyObject checkin(ThreadContext context, IRubyObject arg) {
+    if(!(arg instanceof Connection)) {
+      throw context.runtime.newTypeError("wrong argument type " + arg.getMetaClass().getName() +
+                                         " (expected PG::Connection)");
+    }
+
+    Connection connection = (Connection) arg;
+    PooledConnection pooled = connection.getPooledConnection();
+    if(pooled == null || pooled.getAttachment() != connection || !getPool(context).release(pooled)) {
+      throw context.runtime.newArgumentError("connection wasn't checked out of this pool");
+    }
+
+    if(!connection.usesPooledConnection()) {
+      // the connection was reset or closed by the user, the pool
+      // discarded the original connection
+      pooled.setAttachment(null);
+      if(!connection.finished_p(context).isTrue()) {
+        connection.finish(context);
+      }
+    }
+    return context.nil;
+  }
+
+  /**
+   * Check out a connection, yield it and check it in when the block
+   * returns
+   */
+  @JRubyMethod
+  public IRubyObject with_connection(ThreadContext context, Block block) {
+    if(!block.isGiven()) {
+      throw context.runtime.newLocalJumpErrorNoBlock();
+    }
+
+    IRubyObject connection = checkout(context, IRubyObject.NULL_ARRAY);
+    try {
+      return block.yield(context, connection);
+    } finally {
+      checkin(context, connection);
+    }
+  }
+
+  /**
+   * Return the number of open connections, idle or checked out
+   */
+  @JRubyMethod
+  public IRubyObject size(ThreadContext context) {
+    return context.runtime.newFixnum(getPool(context).getSize());
+  }
+
+  /**
+   * Return the number of idle connections
+   */
+  @JRubyMethod
+  public IRubyObject idle(ThreadContext context) {
+    return context.runtime.newFixnum(getPool(context).getIdleCount());
+  }
+
+  @JRubyMethod
+  public IRubyObject min_size(ThreadContext context) {
+    return context.runtime.newFixnum(getPool(context).getMinSize());
+  }
+
+  @JRubyMethod
+  public IRubyObject max_size(ThreadContext context) {
+    return context.runtime.newFixnum(getPool(context).getMaxSize());
+  }
+
+  /**
+   * Close the idle connections, the checked out connections are
+   * closed when they're checked in
+   */
+  @JRubyMethod(alias = "shutdown")
+  public IRubyObject close(ThreadContext context) {
+    getPool(context).close();
+    return context.nil;
+  }
+
+  @JRubyMethod(name = "closed?")
+  public IRubyObject closed_p(ThreadContext context) {
+    return context.runtime.newBoolean(getPool(context).isClosed());
+  }
+
+  // private methods
+
+  private ConnectionPool getPool(ThreadContext context) {
+    if(pool == null) {
+      throw context.runtime.newRuntimeError("pool isn't initialized");
+    }
+    return pool;
+  }
+
+  private static double option(ThreadContext context, RubyHash options, String name, double defaultValue) {
+    IRubyObject value = options.op_aref(context, context.runtime.newSymbol(name));
+    if(value.isNil()) {
+      return defaultValue;
+    }
+    return RubyNumeric.num2dbl(value);
+  }
+
+  private static long toMillis(double seconds) {
+    return (long) (seconds * 1000);
+  }
+
+  private static RaiseException newConnectionBad(ThreadContext context, String message) {
+    RubyClass klass = (RubyClass) context.runtime.getClassFromPath("PG::ConnectionBad");
+    return context.runtime.newRaiseException(klass, message == null ? "Unknown error" : message);
+  }
+}
@@ -23,6 +23,11 @@ public class Result extends RubyObject {
   private Connection conn;
   private final Encoding encoding;
 
+  // the type map used to decode binary columns and the decoder of
+  // each column, looked up the first time a value is decoded
+  private TypeMapByOid typeMap;
+  private ValueDecoder[] decoders;
+
   public Result(Ruby ruby, RubyClass rubyClass, Connection connection, ResultSet resultSet, Encoding encoding) {
     super(ruby, rubyClass);
     this.conn = connection;
@@ -90,9 +95,12 @@ public class Result extends RubyObject {
       case PGRES_COPY_IN:
       case PGRES_COPY_BOTH:
       case PGRES_SINGLE_TUPLE:
+      case PGRES_TUPLES_CHUNK:
       case PGRES_EMPTY_QUERY:
       case PGRES_COMMAND_OK:
+      case PGRES_PIPELINE_SYNC:
         return this;
+      case PGRES_PIPELINE_ABORTED:
       case PGRES_BAD_RESPONSE:
       case PGRES_FATAL_ERROR:
       case PGRES_NONFATAL_ERROR:
@@ -208,11 +216,10 @@ public class Result extends RubyObject {
       throw context.runtime.newIndexError("row " + row + " is out of range");
     }
     DataRow dataRow = rows.get(row);
-    byte[][] columns = dataRow.getValues();
-    if(column >= columns.length) {
+    if(column >= dataRow.getColumnCount()) {
       throw context.runtime.newIndexError("column " + column + " is out of range");
     }
-    return valueAsString(context, row, column);
+    return columnValue(context, row, column);
   }
 
   @JRubyMethod
@@ -261,6 +268,17 @@ public class Result extends RubyObject {
 
   /******     PG::Result INSTANCE METHODS: other     ******/
 
+  @JRubyMethod
+  public IRubyObject type_map(ThreadContext context) {
+    return typeMap == null ? context.nil : typeMap;
+  }
+
+  @JRubyMethod(name = "type_map=")
+  public IRubyObject type_map_set(ThreadContext context, IRubyObject typeMap) {
+    setTypeMap(context, typeMap);
+    return typeMap;
+  }
+
   @JRubyMethod
   public IRubyObject values(ThreadContext context) {
     int len = res.getRows().size();
@@ -316,12 +334,12 @@ public class Result extends RubyObject {
     int column = (int)((RubyFixnum) index).getLongValue();
 
     List<DataRow> rows = res.getRows();
-    if(rows.size() > 0 && column >= rows.get(0).getValues().length) {
+    if(rows.size() > 0 && column >= rows.get(0).getColumnCount()) {
       throw context.runtime.newIndexError("column " + column + " is out of range");
     }
     RubyArray array = context.runtime.newArray();
     for(int i = 0; i < rows.size(); i++) {
-      array.append(valueAsString(context, i, column));
+      array.append(columnValue(context, i, column));
     }
     return array;
   }
@@ -338,7 +356,7 @@ public class Result extends RubyObject {
       if(columns[j].getName().equals(fieldName)) {
         RubyArray array = context.runtime.newArray();
         for(int i = 0; i < res.getRows().size(); i++) {
-          array.append(valueAsString(context, i, j));
+          array.append(columnValue(context, i, j));
         }
         return array;
       }
@@ -354,8 +372,8 @@ public class Result extends RubyObject {
 
     RubyArray array = context.runtime.newArray();
 
-    for(int i = 0; i < rows.get(rowIndex).getValues().length; i++) {
-      IRubyObject value = valueAsString(context, rowIndex, i);
+    for(int i = 0; i < rows.get(rowIndex).getColumnCount(); i++) {
+      IRubyObject value = columnValue(context, rowIndex, i);
       array.append(value);
     }
     return array;
@@ -370,27 +388,63 @@ public class Result extends RubyObject {
 
     RubyHash hash = new RubyHash(context.runtime);
 
-    for(int i = 0; i < rows.get(rowIndex).getValues().length; i++) {
+    for(int i = 0; i < rows.get(rowIndex).getColumnCount(); i++) {
       IRubyObject name = context.runtime.newString(columns[i].getName());
-      IRubyObject value = valueAsString(context, rowIndex, i);
+      IRubyObject value = columnValue(context, rowIndex, i);
       hash.op_aset(context, name, value);
     }
     return hash;
   }
 
-  private IRubyObject valueAsString(ThreadContext context, int row, int column) {
-    byte[][] values = res.getRows().get(row).getValues();
-    if(values[column] == null) {
+  private IRubyObject columnValue(ThreadContext context, int row, int column) {
+    DataRow dataRow = res.getRows().get(row);
+    if(dataRow.isNull(column)) {
       return context.nil;
     }
 
-    byte[] bytes = values[column];
+    // the string shares the row's backing array, newStringShared makes
+    // sure the string is copied before being modified
+    byte[] data = dataRow.getData();
+    int offset = dataRow.getOffset(column);
+    int length = dataRow.getLength(column);
 
     if(isBinary(column)) {
-      return context.runtime.newString(new ByteList(bytes));
+      ValueDecoder decoder = getDecoder(column);
+      if(decoder != null) {
+        return decoder.decode(context, data, offset, length, encoding);
+      }
+      return RubyString.newStringShared(context.runtime, new ByteList(data, offset, length, false));
     } else {
-      return context.runtime.newString(new ByteList(bytes, encoding, false));
+      return RubyString.newStringShared(context.runtime, new ByteList(data, offset, length, encoding, false));
+    }
+  }
+
+  /**
+   * Set the type map used to decode the values of binary columns, nil
+   * returns all values as strings
+   */
+  void setTypeMap(ThreadContext context, IRubyObject typeMap) {
+    if(!typeMap.isNil() && !(typeMap instanceof TypeMapByOid)) {
+      throw context.runtime.newTypeError("wrong argument type " + typeMap.getMetaClass().getName() +
+                                         " (expected PG::TypeMapByOid)");
+    }
+    this.typeMap = typeMap.isNil() ? null : (TypeMapByOid) typeMap;
+    this.decoders = null;
+  }
+
+  private ValueDecoder getDecoder(int column) {
+    if(typeMap == null) {
+      return null;
+    }
+
+    if(decoders == null) {
+      Column[] columns = res.getDescription().getColumns();
+      decoders = new ValueDecoder[columns.length];
+      for(int i = 0; i < columns.length; i++) {
+        decoders[i] = typeMap.getDecoder(columns[i].getOid());
+      }
     }
+    return decoders[column];
   }
 
   private boolean isBinary(int column) {
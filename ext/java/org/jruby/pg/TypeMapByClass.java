@@ -0,0 +1,128 @@
+package org.jruby.pg;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jruby.*;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Map the class of a query parameter to the encoder used to send it to
+ * the backend. The ancestors of the parameter's class are searched in
+ * order, parameters without an encoder are sent as strings.
+ */
+@SuppressWarnings("serial")
+public class TypeMapByClass extends RubyObject {
+  // the coders as registered by the user
+  private final Map<RubyModule, Coder> coders = new LinkedHashMap<RubyModule, Coder>();
+
+  // the result of the ancestors lookup of every class seen so far,
+  // cleared whenever the coders change
+  private final Map<RubyModule, Coder> cache = new HashMap<RubyModule, Coder>();
+
+  public TypeMapByClass(Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+  }
+
+  public static void define(Ruby ruby, RubyModule pg) {
+    RubyClass typeMap = pg.defineClassUnder("TypeMapByClass", ruby.getObject(), TYPE_MAP_ALLOCATOR);
+    typeMap.defineAnnotatedMethods(TypeMapByClass.class);
+  }
+
+  private static ObjectAllocator TYPE_MAP_ALLOCATOR = new ObjectAllocator() {
+    @Override
+    public IRubyObject allocate(Ruby ruby, RubyClass klass) {
+      return new TypeMapByClass(ruby, klass);
+    }
+  };
+
+  /**
+   * Return the coder of the given value or null if there isn't one
+   */
+  public synchronized Coder getCoder(IRubyObject value) {
+    RubyModule klass = value.getMetaClass().getRealClass();
+    if(cache.containsKey(klass)) {
+      return cache.get(klass);
+    }
+
+    Coder coder = null;
+    for(RubyModule ancestor = klass; ancestor != null && coder == null; ancestor = ancestor.getSuperClass()) {
+      coder = coders.get(ancestor.isIncluded() ? ancestor.getNonIncludedClass() : ancestor);
+    }
+    cache.put(klass, coder);
+    return coder;
+  }
+
+  /******     PG::TypeMapByClass CLASS METHODS    ******/
+
+  /**
+   * Return a new type map with the built-in encoders of Integer,
+   * Float, true, false, Time, BigDecimal and String
+   */
+  @JRubyMethod(meta = true)
+  public static IRubyObject binary_defaults(ThreadContext context, IRubyObject self) {
+    Ruby runtime = context.runtime;
+    TypeMapByClass typeMap = (TypeMapByClass) ((RubyClass) self).newInstance(context, Block.NULL_BLOCK);
+    if(runtime.getClass("BigDecimal") == null) {
+      runtime.getLoadService().require("bigdecimal");
+    }
+    String[][] defaults = {
+      {"Integer", "PG::BinaryEncoder::Int8"},
+      {"Float", "PG::BinaryEncoder::Float8"},
+      {"TrueClass", "PG::BinaryEncoder::Boolean"},
+      {"FalseClass", "PG::BinaryEncoder::Boolean"},
+      {"Time", "PG::BinaryEncoder::TimestampTz"},
+      {"BigDecimal", "PG::BinaryEncoder::Numeric"},
+      {"String", "PG::TextEncoder::String"}
+    };
+    for(String[] entry : defaults) {
+      RubyClass klass = (RubyClass) runtime.getClassFromPath(entry[1]);
+      typeMap.op_aset(context, runtime.getClassFromPath(entry[0]), klass.newInstance(context, Block.NULL_BLOCK));
+    }
+    return typeMap;
+  }
+
+  /******     PG::TypeMapByClass INSTANCE METHODS    ******/
+
+  /**
+   * Register the given encoder for instances of the given class and
+   * its subclasses, a nil encoder removes the class
+   */
+  @JRubyMethod(name = "[]=", required = 2)
+  public synchronized IRubyObject op_aset(ThreadContext context, IRubyObject klass, IRubyObject coder) {
+    if(!(klass instanceof RubyModule)) {
+      throw context.runtime.newTypeError("wrong argument type " + klass.getMetaClass().getName() +
+                                         " (expected Module)");
+    }
+    if(coder.isNil()) {
+      coders.remove(klass);
+    } else if(coder instanceof Coder && ((Coder) coder).getEncoder() != null) {
+      coders.put((RubyModule) klass, (Coder) coder);
+    } else {
+      throw context.runtime.newTypeError("wrong argument type " + coder.getMetaClass().getName() +
+                                         " (expected an encoder)");
+    }
+    cache.clear();
+    return coder;
+  }
+
+  @JRubyMethod(name = "[]", required = 1)
+  public synchronized IRubyObject op_aref(ThreadContext context, IRubyObject klass) {
+    Coder coder = coders.get(klass);
+    return coder == null ? context.nil : coder;
+  }
+
+  @JRubyMethod
+  public synchronized IRubyObject coders(ThreadContext context) {
+    RubyHash hash = RubyHash.newHash(context.runtime);
+    for(Map.Entry<RubyModule, Coder> entry : coders.entrySet()) {
+      hash.op_aset(context, entry.getKey(), entry.getValue());
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,146 @@
+package org.jruby.pg;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jcodings.Encoding;
+import org.jruby.*;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.Oid;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Map the oid of a column's type to the decoder that converts the
+ * column's values to ruby objects. Only columns in binary format are
+ * decoded, text columns are always returned as strings.
+ */
+@SuppressWarnings("serial")
+public class TypeMapByOid extends RubyObject {
+  // the coders as registered by the user, used by #coders
+  private final Map<Integer, IRubyObject> coders = new LinkedHashMap<Integer, IRubyObject>();
+
+  // the decoders of the coders above
+  private final Map<Integer, ValueDecoder> decoders = new HashMap<Integer, ValueDecoder>();
+
+  public TypeMapByOid(Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+  }
+
+  public static void define(Ruby ruby, RubyModule pg) {
+    RubyClass typeMap = pg.defineClassUnder("TypeMapByOid", ruby.getObject(), TYPE_MAP_ALLOCATOR);
+    typeMap.defineAnnotatedMethods(TypeMapByOid.class);
+  }
+
+  private static ObjectAllocator TYPE_MAP_ALLOCATOR = new ObjectAllocator() {
+    @Override
+    public IRubyObject allocate(Ruby ruby, RubyClass klass) {
+      return new TypeMapByOid(ruby, klass);
+    }
+  };
+
+  /**
+   * Return the decoder of the given type or null if there isn't one
+   */
+  public ValueDecoder getDecoder(int oid) {
+    return decoders.get(oid);
+  }
+
+  /******     PG::TypeMapByOid CLASS METHODS    ******/
+
+  /**
+   * Return a new type map with the built-in binary decoders of all
+   * the supported types
+   */
+  @JRubyMethod(meta = true)
+  public static IRubyObject binary_defaults(ThreadContext context, IRubyObject self) {
+    TypeMapByOid typeMap = (TypeMapByOid) ((RubyClass) self).newInstance(context, Block.NULL_BLOCK);
+    RubyModule binaryDecoder = context.runtime.getClassFromPath("PG::BinaryDecoder");
+    Object[][] defaults = {
+      {"Integer", Oid.INT2}, {"Integer", Oid.INT4}, {"Integer", Oid.INT8},
+      {"Oid", Oid.OID},
+      {"Float", Oid.FLOAT4}, {"Float", Oid.FLOAT8},
+      {"Boolean", Oid.BOOL},
+      {"Numeric", Oid.NUMERIC},
+      {"String", Oid.TEXT}, {"String", Oid.VARCHAR}, {"String", Oid.BPCHAR}, {"String", Oid.NAME},
+      {"Bytea", Oid.BYTEA},
+      {"Date", Oid.DATE},
+      {"Timestamp", Oid.TIMESTAMP},
+      {"TimestampTz", Oid.TIMESTAMPTZ},
+      {"Uuid", Oid.UUID}
+    };
+    for(Object[] entry : defaults) {
+      RubyClass klass = (RubyClass) binaryDecoder.getConstant((String) entry[0]);
+      Coder coder = (Coder) klass.newInstance(context, Block.NULL_BLOCK);
+      coder.oid_set(context, context.runtime.newFixnum((Integer) entry[1]));
+      typeMap.add_coder(context, coder);
+    }
+    return typeMap;
+  }
+
+  /******     PG::TypeMapByOid INSTANCE METHODS    ******/
+
+  /**
+   * Register the given coder for its oid. The coder is either one of
+   * the PG::BinaryDecoder classes or any object that responds to
+   * `oid' and `decode(string)'
+   */
+  @JRubyMethod(required = 1)
+  public IRubyObject add_coder(ThreadContext context, IRubyObject coder) {
+    int oid;
+    ValueDecoder decoder;
+    if(coder instanceof Coder && ((Coder) coder).getDecoder() != null) {
+      oid = ((Coder) coder).getOid();
+      decoder = ((Coder) coder).getDecoder();
+    } else if(coder.respondsTo("oid") && coder.respondsTo("decode")) {
+      oid = (int) ((RubyNumeric) coder.callMethod(context, "oid")).getLongValue();
+      decoder = new RubyDecoder(coder);
+    } else {
+      throw context.runtime.newTypeError("wrong argument type " + coder.getMetaClass().getName() +
+                                         " (expected PG::Coder)");
+    }
+    coders.put(oid, coder);
+    decoders.put(oid, decoder);
+    return this;
+  }
+
+  @JRubyMethod(required = 2)
+  public IRubyObject rm_coder(ThreadContext context, IRubyObject format, IRubyObject oid) {
+    if(((RubyNumeric) format).getLongValue() != Format.Binary.getValue()) {
+      return context.nil;
+    }
+    int key = (int) ((RubyNumeric) oid).getLongValue();
+    decoders.remove(key);
+    IRubyObject coder = coders.remove(key);
+    return coder == null ? context.nil : coder;
+  }
+
+  @JRubyMethod
+  public IRubyObject coders(ThreadContext context) {
+    return context.runtime.newArray(coders.values().toArray(new IRubyObject[coders.size()]));
+  }
+
+  /**
+   * Adapt a ruby object that responds to `decode(string)' to the
+   * {@link ValueDecoder} interface
+   */
+  private static class RubyDecoder implements ValueDecoder {
+    private final IRubyObject coder;
+
+    RubyDecoder(IRubyObject coder) {
+      this.coder = coder;
+    }
+
+    @Override
+    public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                              int length, Encoding encoding) {
+      RubyString value = RubyString.newStringShared(context.runtime, new ByteList(data, offset, length, false));
+      return coder.callMethod(context, "decode", value);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package org.jruby.pg;
+
+import org.jcodings.Encoding;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Convert the value of a column, as received from the backend, to a
+ * ruby object
+ */
+public interface ValueDecoder {
+  /**
+   * Decode the value stored in the given range of the array. The
+   * array must not be modified or retained, unless the returned
+   * object copies it on write.
+   *
+   * @param encoding the encoding of the connection, used by decoders
+   *                 that return strings
+   */
+  public IRubyObject decode(ThreadContext context, byte[] data, int offset,
+                            int length, Encoding encoding);
+}
@@ -0,0 +1,23 @@
+package org.jruby.pg;
+
+import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.Value;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Convert a ruby object to the value of a query parameter
+ */
+public interface ValueEncoder {
+  /**
+   * Return the format of the values returned by {@link #encode}
+   */
+  public Format getFormat();
+
+  /**
+   * Encode the given object. The returned value is written to the
+   * output buffer before the current call returns, so it can share
+   * the object's bytes.
+   */
+  public Value encode(ThreadContext context, IRubyObject value);
+}
@@ -16,4 +16,6 @@ public enum AsyncStatus {
   CopyOut,
   /** UNUSED: Doing CopyBoth */
   CopyBoth,
+  /** In pipeline mode, all results of the current command were retrieved */
+  PipelineIdle,
 }
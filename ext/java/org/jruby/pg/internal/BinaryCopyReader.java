@@ -0,0 +1,168 @@
+package org.jruby.pg.internal;
+
+import java.io.IOException;
+
+/**
+ * Parse the data of a COPY TO STDOUT (FORMAT binary). The payloads of
+ * the CopyData messages are passed to {@link #feed} as they're
+ * received, rows can span several messages. {@link #nextRow} returns
+ * true once a complete row is available, its fields are then
+ * available through {@link #getData}, {@link #getOffset} and {@link
+ * #getLength}.
+ *
+ * The arrays passed to {@link #feed} are never modified, the fields
+ * can be decoded by decoders that share the array with the objects
+ * they return.
+ */
+public class BinaryCopyReader {
+  private static final int HEADER_LENGTH = BinaryCopyWriter.SIGNATURE.length + 8;
+
+  private byte[] data = new byte[0];
+  private int position;
+  private int limit;
+
+  private boolean headerRead;
+  private boolean finished;
+
+  private int fieldCount;
+  private int[] offsets = new int[16];
+  private int[] lengths = new int[16];
+
+  /**
+   * Append the payload of a CopyData message to the data that wasn't
+   * parsed yet
+   */
+  public void feed(byte[] bytes) {
+    int remaining = limit - position;
+    if(remaining == 0) {
+      data = bytes;
+      position = 0;
+      limit = bytes.length;
+      return;
+    }
+    // the previous row is decoded by now, a new array is used to
+    // leave the arrays that were shared with decoded values intact
+    byte[] newData = new byte[remaining + bytes.length];
+    System.arraycopy(data, position, newData, 0, remaining);
+    System.arraycopy(bytes, 0, newData, remaining, bytes.length);
+    data = newData;
+    position = 0;
+    limit = newData.length;
+  }
+
+  /**
+   * Parse the next row, return false if the data of the row wasn't
+   * entirely received yet or if the end of the data was reached
+   *
+   * @throws IOException if the data isn't in the binary copy format
+   */
+  public boolean nextRow() throws IOException {
+    if(finished || !readHeader() || limit - position < 2) {
+      return false;
+    }
+
+    int count = getShort(position);
+    if(count == -1) {
+      position += 2;
+      finished = true;
+      return false;
+    } else if(count < 0) {
+      throw new IOException("invalid field count in binary copy data: " + count);
+    }
+
+    if(count > offsets.length) {
+      offsets = new int[count];
+      lengths = new int[count];
+    }
+    int current = position + 2;
+    for(int i = 0; i < count; i++) {
+      if(limit - current < 4) {
+        return false;
+      }
+      int length = getInt(current);
+      current += 4;
+      if(length > 0 && limit - current < length) {
+        return false;
+      }
+      offsets[i] = current;
+      lengths[i] = length;
+      current += Math.max(length, 0);
+    }
+    fieldCount = count;
+    position = current;
+    return true;
+  }
+
+  /**
+   * Returns true if the end of data marker was received
+   */
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Prepare the reader for a new COPY
+   */
+  public void reset() {
+    data = new byte[0];
+    position = limit = 0;
+    headerRead = finished = false;
+  }
+
+  /**
+   * Return the number of fields of the current row
+   */
+  public int getFieldCount() {
+    return fieldCount;
+  }
+
+  /**
+   * Return the array that contains the fields of the current row
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  public int getOffset(int field) {
+    return offsets[field];
+  }
+
+  /**
+   * Return the length of the given field, -1 if the field is null
+   */
+  public int getLength(int field) {
+    return lengths[field];
+  }
+
+  // private methods
+
+  private boolean readHeader() throws IOException {
+    if(headerRead) {
+      return true;
+    }
+    if(limit - position < HEADER_LENGTH) {
+      return false;
+    }
+    for(int i = 0; i < BinaryCopyWriter.SIGNATURE.length; i++) {
+      if(data[position + i] != BinaryCopyWriter.SIGNATURE[i]) {
+        throw new IOException("invalid binary copy signature");
+      }
+    }
+    int extensionLength = getInt(position + HEADER_LENGTH - 4);
+    if(limit - position < HEADER_LENGTH + extensionLength) {
+      return false;
+    }
+    position += HEADER_LENGTH + extensionLength;
+    headerRead = true;
+    return true;
+  }
+
+  private int getShort(int offset) {
+    return (short) (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+  }
+
+  private int getInt(int offset) {
+    return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+      ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+  }
+}
@@ -0,0 +1,157 @@
+package org.jruby.pg.internal;
+
+import java.nio.ByteBuffer;
+
+import org.jruby.pg.messages.FieldWriter;
+import org.jruby.pg.messages.Value;
+
+/**
+ * Format the rows of a COPY FROM STDIN (FORMAT binary). The header is
+ * written before the first row, every row starts with its number of
+ * fields and every field with its length, -1 for a null field. The
+ * trailer is written by {@link #writeTrailer}.
+ *
+ * The rows are accumulated in a buffer which is meant to be passed to
+ * {@link PostgresqlConnection#putCopyData(byte[], int, int)} and
+ * cleared after every row or every few rows.
+ */
+public class BinaryCopyWriter implements FieldWriter {
+  static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+
+  private ByteBuffer buffer = ByteBuffer.allocate(1024);
+  private boolean headerWritten;
+
+  /**
+   * Start a new row with the given number of fields, the fields are
+   * written by {@link #writeValue} and {@link #writeNull}
+   */
+  public void startRow(int fields) {
+    writeHeader();
+    writeShort(fields);
+  }
+
+  public void writeValue(Value value) {
+    if(value.getLength() < 0) {
+      writeNull();
+      return;
+    }
+    writeInt(value.getLength());
+    value.write(this);
+  }
+
+  public void writeNull() {
+    writeInt(-1);
+  }
+
+  /**
+   * Write the end of data marker. The header is written as well if
+   * there wasn't any row, so that the output is always valid.
+   */
+  public void writeTrailer() {
+    writeHeader();
+    writeShort(-1);
+  }
+
+  /**
+   * Forget the rows that were written so far. The header isn't
+   * written again unless {@link #reset} is called.
+   */
+  public void clear() {
+    buffer.clear();
+  }
+
+  /**
+   * Prepare the writer for a new COPY
+   */
+  public void reset() {
+    buffer.clear();
+    headerWritten = false;
+  }
+
+  public byte[] getBuffer() {
+    return buffer.array();
+  }
+
+  public int getLength() {
+    return buffer.position();
+  }
+
+  // FieldWriter methods
+
+  @Override
+  public void writeByte(char b) {
+    ensureCapacity(1);
+    buffer.put((byte) b);
+  }
+
+  @Override
+  public void writeInt(int n) {
+    ensureCapacity(4);
+    buffer.putInt(n);
+  }
+
+  @Override
+  public void writeShort(int s) {
+    ensureCapacity(2);
+    buffer.putShort((short) s);
+  }
+
+  @Override
+  public void writeLong(long n) {
+    ensureCapacity(8);
+    buffer.putLong(n);
+  }
+
+  @Override
+  public void writeString(byte[] b) {
+    writeNChar(b);
+    if(b.length == 0 || b[b.length - 1] != 0) {
+      writeByte((char) 0);
+    }
+  }
+
+  @Override
+  public void writeString(String s) {
+    writeString(s.getBytes());
+  }
+
+  @Override
+  public void writeString(PostgresqlString s) {
+    writeString(s.getBytes());
+  }
+
+  @Override
+  public void writeNChar(byte[] b) {
+    writeNChar(b, 0, b.length);
+  }
+
+  @Override
+  public void writeNChar(byte[] b, int offset, int len) {
+    ensureCapacity(len);
+    buffer.put(b, offset, len);
+  }
+
+  // private methods
+
+  private void writeHeader() {
+    if(headerWritten) {
+      return;
+    }
+    headerWritten = true;
+    writeNChar(SIGNATURE);
+    // flags and the length of the header extension
+    writeInt(0);
+    writeInt(0);
+  }
+
+  private void ensureCapacity(int length) {
+    if(buffer.remaining() >= length) {
+      return;
+    }
+    int capacity = Math.max(buffer.capacity() * 2, buffer.position() + length);
+    ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+    buffer.flip();
+    newBuffer.put(buffer);
+    buffer = newBuffer;
+  }
+}
@@ -0,0 +1,283 @@
+package org.jruby.pg.internal;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Buffers shared by the connections of the process. The buffers are
+ * grouped in size classes, powers of two from {@link #MIN_BUFFER_SIZE}
+ * up to the max buffer size. A connection borrows a buffer of the
+ * class that fits what it needs when its buffers grow and gives it
+ * back when it's done with it, the buffers that are given back are
+ * kept for the next connection that needs one of the same class until
+ * the pooled buffers reach the max pooled bytes. Bigger buffers are
+ * allocated as needed and left to the garbage collector.
+ *
+ * The buffers are on the heap unless the pool is set to direct, a
+ * direct buffer is expensive to allocate but doesn't need to be copied
+ * when it's read from or written to the socket.
+ *
+ * The pool of the process is exposed as the MXBean
+ * org.jruby.pg:type=BufferPool.
+ */
+public class BufferPool implements BufferPoolMXBean {
+  public static final String OBJECT_NAME = "org.jruby.pg:type=BufferPool";
+
+  public static final int MIN_BUFFER_SIZE = 4096;
+  public static final int DEFAULT_MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+  public static final long DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024;
+
+  private static final int CLASSES = Integer.numberOfTrailingZeros(Integer.highestOneBit(Integer.MAX_VALUE)) -
+                                     Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+
+  private static BufferPool defaultPool;
+
+  // the pooled buffers by size class, class i holds buffers of
+  // MIN_BUFFER_SIZE << i bytes
+  private final ArrayDeque<ByteBuffer>[] classes;
+
+  private boolean direct;
+  private long maxPooledBytes;
+  private int maxBufferSize;
+  private long pooledBytes;
+  private int pooledBuffers;
+  private long hits;
+  private long misses;
+  private long discarded;
+
+  /**
+   * Create a pool that keeps heap buffers with the default limits
+   */
+  public BufferPool() {
+    this(false, DEFAULT_MAX_POOLED_BYTES, DEFAULT_MAX_BUFFER_SIZE);
+  }
+
+  /**
+   * Create a pool that keeps up to maxPooledBytes of buffers of up to
+   * maxBufferSize bytes
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(boolean direct, long maxPooledBytes, int maxBufferSize) {
+    classes = new ArrayDeque[CLASSES];
+    for(int i = 0; i < classes.length; i++) {
+      classes[i] = new ArrayDeque<ByteBuffer>();
+    }
+    this.direct = direct;
+    setMaxPooledBytes(maxPooledBytes);
+    setMaxBufferSize(maxBufferSize);
+  }
+
+  /**
+   * Return the pool of the process, registering its MXBean on the
+   * first call
+   */
+  public static synchronized BufferPool getDefault() {
+    if(defaultPool == null) {
+      defaultPool = new BufferPool();
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(defaultPool,
+                                                                 new ObjectName(OBJECT_NAME));
+      } catch(JMException ex) {
+        // e.g. another copy of the extension registered it already,
+        // the pool works the same without it
+      } catch(SecurityException ex) {
+        // same as above
+      }
+    }
+    return defaultPool;
+  }
+
+  /**
+   * Return the capacity of the buffers that are borrowed to hold the
+   * given number of bytes
+   */
+  public static int sizeFor(int capacity) {
+    if(capacity <= MIN_BUFFER_SIZE) {
+      return MIN_BUFFER_SIZE;
+    }
+    int size = Integer.highestOneBit(capacity - 1) << 1;
+    // there's no power of two class above 1GB
+    return size > 0 ? size : capacity;
+  }
+
+  /**
+   * Return an empty buffer, ready for writing, that holds at least the
+   * given number of bytes
+   */
+  public ByteBuffer acquire(int capacity) {
+    int size = sizeFor(capacity);
+    synchronized(this) {
+      if(size <= maxBufferSize && Integer.bitCount(size) == 1) {
+        ByteBuffer buffer = classes[classOf(size)].pollFirst();
+        if(buffer != null) {
+          pooledBytes -= size;
+          pooledBuffers--;
+          hits++;
+          return buffer;
+        }
+      }
+      misses++;
+    }
+    return allocate(size);
+  }
+
+  /**
+   * Give back a buffer returned by {@link #acquire}, the buffer mustn't
+   * be used after this call. Buffers that exceed the limits of the pool
+   * are discarded.
+   */
+  public void release(ByteBuffer buffer) {
+    if(buffer == null || buffer.capacity() == 0) {
+      return;
+    }
+    int size = buffer.capacity();
+    synchronized(this) {
+      if(size < MIN_BUFFER_SIZE || size > maxBufferSize || Integer.bitCount(size) != 1 ||
+          buffer.isDirect() != direct || pooledBytes + size > maxPooledBytes) {
+        discarded++;
+        return;
+      }
+      buffer.clear();
+      // the most recently used buffer is borrowed first, it's more
+      // likely to be in the cache
+      classes[classOf(size)].addFirst(buffer);
+      pooledBytes += size;
+      pooledBuffers++;
+    }
+  }
+
+  /**
+   * Switch between heap and direct buffers, the pooled buffers of the
+   * other kind are dropped
+   */
+  public synchronized void setDirect(boolean direct) {
+    if(this.direct != direct) {
+      this.direct = direct;
+      trim(0);
+    }
+  }
+
+  /**
+   * Set the number of bytes the pooled buffers can add up to, the
+   * largest pooled buffers are dropped to get under the new limit
+   */
+  public synchronized void setMaxPooledBytes(long maxPooledBytes) {
+    if(maxPooledBytes < 0) {
+      throw new IllegalArgumentException("max pooled bytes can't be negative");
+    }
+    this.maxPooledBytes = maxPooledBytes;
+    trim(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Set the size of the largest buffer that is pooled, the pooled
+   * buffers that are larger are dropped
+   */
+  public synchronized void setMaxBufferSize(int maxBufferSize) {
+    if(maxBufferSize < MIN_BUFFER_SIZE) {
+      throw new IllegalArgumentException("max buffer size must be at least " + MIN_BUFFER_SIZE);
+    }
+    this.maxBufferSize = maxBufferSize;
+    trim(maxBufferSize);
+  }
+
+  // BufferPoolMXBean methods
+
+  @Override
+  public synchronized boolean isDirect() {
+    return direct;
+  }
+
+  @Override
+  public synchronized long getMaxPooledBytes() {
+    return maxPooledBytes;
+  }
+
+  @Override
+  public synchronized int getMaxBufferSize() {
+    return maxBufferSize;
+  }
+
+  @Override
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+
+  @Override
+  public synchronized int getPooledBuffers() {
+    return pooledBuffers;
+  }
+
+  /**
+   * Return the number of buffers that were borrowed from the pool
+   */
+  @Override
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Return the number of buffers that were allocated because the pool
+   * didn't have one
+   */
+  @Override
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Return the number of buffers that were given back but not kept
+   */
+  @Override
+  public synchronized long getDiscarded() {
+    return discarded;
+  }
+
+  /**
+   * Return the number of pooled buffers by capacity
+   */
+  @Override
+  public synchronized Map<Integer, Integer> getPooledBuffersBySize() {
+    Map<Integer, Integer> map = new LinkedHashMap<Integer, Integer>();
+    for(int i = 0; i < classes.length; i++) {
+      if(!classes[i].isEmpty()) {
+        map.put(MIN_BUFFER_SIZE << i, classes[i].size());
+      }
+    }
+    return map;
+  }
+
+  // private methods
+
+  private ByteBuffer allocate(int size) {
+    return isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+  }
+
+  private static int classOf(int size) {
+    return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+  }
+
+  /**
+   * Drop the pooled buffers larger than the given size and the ones of
+   * the wrong kind, then the largest ones until the pooled bytes are
+   * within the limit
+   */
+  private void trim(int maxSize) {
+    for(int i = classes.length - 1; i >= 0; i--) {
+      int size = MIN_BUFFER_SIZE << i;
+      ArrayDeque<ByteBuffer> buffers = classes[i];
+      while(!buffers.isEmpty() &&
+            (size > maxSize || buffers.peekFirst().isDirect() != direct || pooledBytes > maxPooledBytes)) {
+        buffers.pollFirst();
+        pooledBytes -= size;
+        pooledBuffers--;
+      }
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package org.jruby.pg.internal;
+
+import java.util.Map;
+
+/**
+ * The occupancy of the process-wide buffer pool, see {@link
+ * BufferPool}
+ */
+public interface BufferPoolMXBean {
+  public boolean isDirect();
+
+  public long getMaxPooledBytes();
+
+  public int getMaxBufferSize();
+
+  public long getPooledBytes();
+
+  public int getPooledBuffers();
+
+  public long getHits();
+
+  public long getMisses();
+
+  public long getDiscarded();
+
+  public Map<Integer, Integer> getPooledBuffersBySize();
+}
@@ -0,0 +1,70 @@
+package org.jruby.pg.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * The outcome of a CancelRequest sent by {@link CancelService}. The
+ * request is done once the server closed the connection, which is
+ * the only confirmation that it processed the request, or once it
+ * failed.
+ */
+public class CancelFuture {
+  private boolean done;
+  private IOException error;
+
+  synchronized boolean complete(IOException error) {
+    if(done) {
+      return false;
+    }
+    this.error = error;
+    done = true;
+    notifyAll();
+    return true;
+  }
+
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Return the reason the request failed, null if it succeeded or
+   * isn't done yet
+   */
+  public synchronized IOException getError() {
+    return error;
+  }
+
+  /**
+   * Block until the request is done or the timeout expires
+   *
+   * @param timeout the timeout in milliseconds, 0 means wait forever
+   * @return true if the request is done, false if the timeout expired
+   * @throws IOException if the request failed
+   * @throws InterruptedIOException if the thread was interrupted
+   */
+  public synchronized boolean await(long timeout) throws IOException {
+    long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    while(!done) {
+      long waitTime = 0;
+      if(deadline > 0) {
+        waitTime = deadline - System.currentTimeMillis();
+        if(waitTime <= 0) {
+          return false;
+        }
+      }
+
+      try {
+        wait(waitTime);
+      } catch(InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for the cancel request");
+      }
+    }
+
+    if(error != null) {
+      throw error;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,205 @@
+package org.jruby.pg.internal;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import org.jruby.pg.io.EventLoop;
+import org.jruby.pg.io.ReadinessListener;
+import org.jruby.pg.io.TimerWheel;
+
+/**
+ * Send CancelRequests without blocking a thread per request. Every
+ * request opens a connection to the server, sends the CancelRequest
+ * and waits for the server to close the connection, all the sockets
+ * are driven by the shared {@link EventLoop}. At most {@link
+ * #getMaxConcurrent} requests are in flight, the others are queued.
+ * A request that takes longer than {@link #getTimeout} milliseconds,
+ * connecting included, fails.
+ */
+public class CancelService {
+  public static final int DEFAULT_MAX_CONCURRENT = 16;
+  public static final long DEFAULT_TIMEOUT = 10000;
+
+  // the code of a CancelRequest, see the protocol documentation
+  private static final int CANCEL_REQUEST_CODE = 80877102;
+
+  private static CancelService defaultService;
+
+  private final EventLoop eventLoop;
+  private final TimerWheel timerWheel;
+  private final LinkedList<Request> queue = new LinkedList<Request>();
+  private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+  private long timeout = DEFAULT_TIMEOUT;
+  private int active;
+
+  /**
+   * Return the service shared by all the connections
+   */
+  public static synchronized CancelService getDefault() throws IOException {
+    if(defaultService == null) {
+      defaultService = new CancelService(EventLoop.getDefault(), TimerWheel.getDefault());
+    }
+    return defaultService;
+  }
+
+  public CancelService(EventLoop eventLoop, TimerWheel timerWheel) {
+    this.eventLoop = eventLoop;
+    this.timerWheel = timerWheel;
+  }
+
+  public synchronized int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  public synchronized void setMaxConcurrent(int maxConcurrent) {
+    if(maxConcurrent <= 0) {
+      throw new IllegalArgumentException("invalid number of concurrent cancel requests " + maxConcurrent);
+    }
+    this.maxConcurrent = maxConcurrent;
+  }
+
+  public synchronized long getTimeout() {
+    return timeout;
+  }
+
+  public synchronized void setTimeout(long timeout) {
+    if(timeout <= 0) {
+      throw new IllegalArgumentException("invalid cancel request timeout " + timeout);
+    }
+    this.timeout = timeout;
+  }
+
+  /**
+   * Cancel the command that the given backend is running. This method
+   * doesn't block, the returned future can be ignored or waited on.
+   */
+  public CancelFuture cancel(InetSocketAddress address, int pid, int secret) {
+    Request request = new Request(address, pid, secret);
+    synchronized(this) {
+      if(active >= maxConcurrent) {
+        queue.add(request);
+        return request.future;
+      }
+      active++;
+    }
+    request.start();
+    return request.future;
+  }
+
+  // private methods
+
+  private void done() {
+    Request next;
+    synchronized(this) {
+      next = queue.poll();
+      if(next == null) {
+        active--;
+        return;
+      }
+    }
+    next.start();
+  }
+
+  /**
+   * The state of a request, the listener callbacks run on the event
+   * loop thread and the timeout on the timer thread
+   */
+  private class Request implements ReadinessListener, Runnable {
+    private final InetSocketAddress address;
+    private final ByteBuffer buffer = ByteBuffer.allocate(16);
+    private final CancelFuture future = new CancelFuture();
+    private SocketChannel socket;
+    private TimerWheel.Timeout timer;
+
+    Request(InetSocketAddress address, int pid, int secret) {
+      this.address = address;
+      buffer.putInt(16).putInt(CANCEL_REQUEST_CODE).putInt(pid).putInt(secret).flip();
+    }
+
+    synchronized void start() {
+      timer = timerWheel.schedule(this, getTimeout());
+      try {
+        socket = SocketChannel.open();
+        socket.configureBlocking(false);
+        if(socket.connect(address)) {
+          ready(SelectionKey.OP_CONNECT);
+        } else {
+          eventLoop.register(socket, SelectionKey.OP_CONNECT, this);
+        }
+      } catch(IOException ex) {
+        finish(ex);
+      }
+    }
+
+    @Override
+    public synchronized void ready(int readyOps) {
+      if(future.isDone()) {
+        return;
+      }
+      try {
+        if(socket.isConnectionPending() && !socket.finishConnect()) {
+          eventLoop.register(socket, SelectionKey.OP_CONNECT, this);
+          return;
+        }
+
+        if(buffer.hasRemaining()) {
+          socket.write(buffer);
+          if(buffer.hasRemaining()) {
+            eventLoop.register(socket, SelectionKey.OP_WRITE, this);
+            return;
+          }
+        }
+
+        // the server closes the connection once it processed the
+        // request, anything it sends before that is ignored
+        ByteBuffer discard = ByteBuffer.allocate(64);
+        int read;
+        while((read = socket.read(discard)) > 0) {
+          discard.clear();
+        }
+        if(read < 0) {
+          finish(null);
+        } else {
+          eventLoop.register(socket, SelectionKey.OP_READ, this);
+        }
+      } catch(IOException ex) {
+        finish(ex);
+      }
+    }
+
+    @Override
+    public synchronized void failed(IOException ex) {
+      finish(ex);
+    }
+
+    /**
+     * Called by the timer wheel if the request takes too long
+     */
+    @Override
+    public synchronized void run() {
+      finish(new SocketTimeoutException("cancel request to " + address + " timed out"));
+    }
+
+    private void finish(IOException error) {
+      if(!future.complete(error)) {
+        return;
+      }
+      if(timer != null) {
+        timer.cancel();
+      }
+      try {
+        if(socket != null) {
+          socket.close();
+        }
+      } catch(IOException ex) {
+        // the request is done anyway
+      }
+      done();
+    }
+  }
+}
@@ -0,0 +1,476 @@
+package org.jruby.pg.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.SelectionKey;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jruby.pg.internal.ResultSet.ResultStatus;
+import org.jruby.pg.io.ReadinessListener;
+import org.jruby.pg.messages.TransactionStatus;
+
+/**
+ * A pool of connections to the same database. The idle connections
+ * are kept in one queue per stripe and a thread always returns its
+ * connections to the same stripe, borrowing and returning a
+ * connection don't take any lock. Threads waiting for a connection
+ * are served in FIFO order.
+ *
+ * The pool holds at most maxSize connections. The first minSize
+ * connections are established in parallel by {@link #warmUp}, the
+ * rest are opened on demand.
+ */
+public class ConnectionPool {
+  private static final PostgresqlString ROLLBACK_QUERY = new PostgresqlString("ROLLBACK");
+
+  /**
+   * A connection owned by the pool
+   */
+  public static class PooledConnection {
+    private final ConnectionPool pool;
+    private final PostgresqlConnection connection;
+    private final AtomicBoolean borrowed = new AtomicBoolean();
+    private volatile long lastUsed;
+
+    // an object associated with the connection by the user of the
+    // pool, e.g. the ruby object that wraps the connection
+    private volatile Object attachment;
+
+    PooledConnection(ConnectionPool pool, PostgresqlConnection connection) {
+      this.pool = pool;
+      this.connection = connection;
+      this.lastUsed = System.currentTimeMillis();
+    }
+
+    public ConnectionPool getPool() {
+      return pool;
+    }
+
+    public PostgresqlConnection getConnection() {
+      return connection;
+    }
+
+    public Object getAttachment() {
+      return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+      this.attachment = attachment;
+    }
+  }
+
+  private final Properties props;
+  private final int minSize;
+  private final int maxSize;
+  private final long validationInterval;
+
+  // the idle connections, see stripe()
+  private final ConcurrentLinkedQueue<PooledConnection>[] stripes;
+
+  // one permit per connection that can be borrowed, fair so that
+  // waiting threads get a connection in the order they asked for it
+  private final Semaphore permits;
+
+  // the number of connections that are open or being opened
+  private final AtomicInteger size = new AtomicInteger();
+
+  // a thread that holds a permit but finds neither an idle
+  // connection nor room for a new one waits on this until a connection
+  // is queued or the size shrinks. waiters is checked first so the
+  // lock is only taken when someone is waiting
+  private final Object available = new Object();
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  private volatile boolean closed;
+
+  /**
+   * @param validationInterval connections that have been idle for
+   *                           more than this number of milliseconds
+   *                           are pinged before they're borrowed
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public ConnectionPool(Properties props, int minSize, int maxSize, long validationInterval) {
+    if(maxSize <= 0 || minSize < 0 || minSize > maxSize) {
+      throw new IllegalArgumentException("invalid pool size " + minSize + ".." + maxSize);
+    }
+    this.props = props;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.validationInterval = validationInterval;
+    this.permits = new Semaphore(maxSize, true);
+
+    int count = Math.min(maxSize, Runtime.getRuntime().availableProcessors());
+    stripes = new ConcurrentLinkedQueue[count];
+    for(int i = 0; i < count; i++) {
+      stripes[i] = new ConcurrentLinkedQueue<PooledConnection>();
+    }
+  }
+
+  public int getMinSize() {
+    return minSize;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Return the number of open connections, idle or borrowed
+   */
+  public int getSize() {
+    return size.get();
+  }
+
+  /**
+   * Return the number of idle connections
+   */
+  public int getIdleCount() {
+    int count = 0;
+    for(ConcurrentLinkedQueue<PooledConnection> stripe : stripes) {
+      count += stripe.size();
+    }
+    return count;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Open connections until the pool has minSize connections. The
+   * connections are established in parallel, the sockets of all the
+   * pending connections are polled on the event loop.
+   *
+   * @throws IOException if one of the connections can't be
+   *                     established, the connections that succeeded
+   *                     are kept in the pool
+   */
+  public void warmUp() throws IOException {
+    final LinkedBlockingQueue<PostgresqlConnection> ready = new LinkedBlockingQueue<PostgresqlConnection>();
+    IOException error = null;
+    int pending = 0;
+
+    while(size.get() < minSize && reserve()) {
+      try {
+        ready.add(PostgresqlConnection.connectStart(props));
+        pending++;
+      } catch(IOException ex) {
+        decrementSize();
+        error = ex;
+        break;
+      } catch(GeneralSecurityException ex) {
+        decrementSize();
+        error = new IOException(ex.getLocalizedMessage());
+        break;
+      }
+    }
+
+    while(pending > 0) {
+      final PostgresqlConnection connection = take(ready);
+      ReadinessListener listener = new ReadinessListener() {
+        @Override
+        public void ready(int readyOps) {
+          ready.add(connection);
+        }
+
+        @Override
+        public void failed(IOException ex) {
+          // the next connectPoll will fail
+          ready.add(connection);
+        }
+      };
+
+      switch(connection.connectPoll()) {
+      case PGRES_POLLING_WRITING:
+        connection.waitForSocket(SelectionKey.OP_WRITE, listener);
+        break;
+      case PGRES_POLLING_READING:
+        connection.waitForSocket(SelectionKey.OP_READ, listener);
+        break;
+      case PGRES_POLLING_OK:
+        pending--;
+        stripe().offer(new PooledConnection(this, connection));
+        signalAvailable();
+        break;
+      case PGRES_POLLING_FAILED:
+        pending--;
+        decrementSize();
+        error = new IOException(connection.getErrorMessage());
+        closeQuietly(connection);
+        break;
+      }
+    }
+
+    if(error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Borrow a connection, opening a new one if there are no idle
+   * connections and the pool isn't full
+   *
+   * @param timeout the timeout in milliseconds, 0 means wait forever
+   * @throws IOException if the timeout expires or a new connection
+   *                     can't be established
+   */
+  public PooledConnection borrow(long timeout) throws IOException {
+    try {
+      if(timeout <= 0) {
+        permits.acquire();
+      } else if(!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        throw new IOException("timeout expired while waiting for a connection");
+      }
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a connection");
+    }
+
+    boolean success = false;
+    try {
+      PooledConnection pooled = acquire();
+      pooled.borrowed.set(true);
+      success = true;
+      return pooled;
+    } finally {
+      if(!success) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Return a borrowed connection to the pool. Connections in a
+   * transaction are rolled back, connections that are executing a
+   * command or are broken are closed.
+   *
+   * @return false if the connection wasn't borrowed from this pool
+   */
+  public boolean release(PooledConnection pooled) {
+    if(pooled.pool != this || !pooled.borrowed.compareAndSet(true, false)) {
+      return false;
+    }
+
+    try {
+      if(closed || !reset(pooled.connection)) {
+        discard(pooled);
+      } else {
+        pooled.lastUsed = System.currentTimeMillis();
+        stripe().offer(pooled);
+        signalAvailable();
+      }
+    } finally {
+      permits.release();
+    }
+    return true;
+  }
+
+  /**
+   * Close the idle connections, the borrowed connections are closed
+   * when they're returned. Threads waiting for a connection fail.
+   */
+  public void close() {
+    closed = true;
+    for(ConcurrentLinkedQueue<PooledConnection> stripe : stripes) {
+      PooledConnection pooled;
+      while((pooled = stripe.poll()) != null) {
+        discard(pooled);
+      }
+    }
+    // wake up the waiting threads
+    permits.release(maxSize);
+    signalAvailable();
+  }
+
+  // private methods
+
+  /**
+   * Take an idle connection or open a new one, the caller holds a
+   * permit so one of them is always possible
+   */
+  private PooledConnection acquire() throws IOException {
+    for(;;) {
+      if(closed) {
+        throw new IOException("connection pool is closed");
+      }
+
+      PooledConnection pooled = pollIdle();
+      if(pooled != null) {
+        if(isUsable(pooled)) {
+          return pooled;
+        }
+        discard(pooled);
+        continue;
+      }
+
+      if(reserve()) {
+        return open();
+      }
+
+      // a connection is being returned or is still being opened by
+      // warmUp
+      awaitAvailable();
+    }
+  }
+
+  /**
+   * Wait until a connection is queued, the size shrinks or the pool is
+   * closed
+   */
+  private void awaitAvailable() throws IOException {
+    synchronized(available) {
+      waiters.incrementAndGet();
+      try {
+        // check again now that the signals can't be missed
+        if(!closed && !hasIdle() && size.get() >= maxSize) {
+          available.wait();
+        }
+      } catch(InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for a connection");
+      } finally {
+        waiters.decrementAndGet();
+      }
+    }
+  }
+
+  private void signalAvailable() {
+    if(waiters.get() > 0) {
+      synchronized(available) {
+        available.notifyAll();
+      }
+    }
+  }
+
+  private boolean hasIdle() {
+    for(ConcurrentLinkedQueue<PooledConnection> stripe : stripes) {
+      if(!stripe.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private PooledConnection pollIdle() {
+    int start = stripeIndex();
+    for(int i = 0; i < stripes.length; i++) {
+      PooledConnection pooled = stripes[(start + i) % stripes.length].poll();
+      if(pooled != null) {
+        return pooled;
+      }
+    }
+    return null;
+  }
+
+  private boolean isUsable(PooledConnection pooled) {
+    PostgresqlConnection connection = pooled.connection;
+    if(connection.closed()) {
+      return false;
+    }
+    if(System.currentTimeMillis() - pooled.lastUsed < validationInterval) {
+      return true;
+    }
+    return connection.ping() == PingStatus.PQPING_OK;
+  }
+
+  private PooledConnection open() throws IOException {
+    PostgresqlConnection connection = null;
+    try {
+      connection = PostgresqlConnection.connectDb(props);
+    } finally {
+      if(connection == null) {
+        decrementSize();
+      }
+    }
+
+    if(connection.getStatus() == ConnectionStatus.CONNECTION_BAD) {
+      decrementSize();
+      closeQuietly(connection);
+      throw new IOException(connection.getErrorMessage());
+    }
+    return new PooledConnection(this, connection);
+  }
+
+  /**
+   * Bring the connection back to a clean state, return false if the
+   * connection can't be reused
+   */
+  private static boolean reset(PostgresqlConnection connection) {
+    switch(connection.getTransactionStatus()) {
+    case PQTRANS_IDLE:
+      return true;
+
+    case PQTRANS_INTRANS:
+    case PQTRANS_INERROR:
+      try {
+        ResultSet result = connection.exec(ROLLBACK_QUERY);
+        return result != null && result.getStatus() == ResultStatus.PGRES_COMMAND_OK &&
+          connection.getTransactionStatus() == TransactionStatus.PQTRANS_IDLE;
+      } catch(IOException ex) {
+        return false;
+      }
+
+    default:
+      // a command is in progress or the connection is broken
+      return false;
+    }
+  }
+
+  /**
+   * Increment the size if the pool isn't full, return false otherwise
+   */
+  private boolean reserve() {
+    for(;;) {
+      int current = size.get();
+      if(current >= maxSize) {
+        return false;
+      }
+      if(size.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private void decrementSize() {
+    size.decrementAndGet();
+    signalAvailable();
+  }
+
+  private void discard(PooledConnection pooled) {
+    decrementSize();
+    closeQuietly(pooled.connection);
+  }
+
+  private ConcurrentLinkedQueue<PooledConnection> stripe() {
+    return stripes[stripeIndex()];
+  }
+
+  private int stripeIndex() {
+    return (int) (Thread.currentThread().getId() % stripes.length);
+  }
+
+  private static PostgresqlConnection take(LinkedBlockingQueue<PostgresqlConnection> queue)
+  throws IOException {
+    try {
+      return queue.take();
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while establishing the connections");
+    }
+  }
+
+  private static void closeQuietly(PostgresqlConnection connection) {
+    try {
+      connection.close();
+    } catch(IOException ex) {
+      // ignore the exception, the connection is discarded anyway
+    }
+  }
+}
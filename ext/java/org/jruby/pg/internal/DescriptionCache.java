@@ -0,0 +1,116 @@
+package org.jruby.pg.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.ParameterDescription;
+import org.jruby.pg.messages.RowDescription;
+
+/**
+ * The descriptions of the prepared statements, keyed by statement
+ * name. A statement whose rows were described once is executed
+ * without sending a Describe, the cached RowDescription is used
+ * instead.
+ */
+public class DescriptionCache {
+  /**
+   * What is known about a prepared statement
+   */
+  public static class Description {
+    private ParameterDescription parameters;
+
+    // the row descriptions by result format, the format of the columns
+    // depends on the format requested in the Bind message
+    private RowDescription textRows;
+    private RowDescription binaryRows;
+
+    // true if the statement doesn't return rows
+    private boolean noData;
+
+    public ParameterDescription getParameters() {
+      return parameters;
+    }
+
+    /**
+     * Returns true if the statement was described for the given result
+     * format, i.e. {@link #getRows(Format)} can be used instead of
+     * sending a Describe
+     */
+    public boolean isDescribed(Format format) {
+      return noData || getRows(format) != null;
+    }
+
+    /**
+     * Return the description of the rows in the given format, null if
+     * the statement doesn't return rows
+     */
+    public RowDescription getRows(Format format) {
+      return format == Format.Binary ? binaryRows : textRows;
+    }
+  }
+
+  private final Map<String, Description> descriptions = new HashMap<String, Description>();
+
+  /**
+   * Return the description of the given statement, null if it's unknown
+   */
+  public Description get(String name) {
+    return descriptions.get(name);
+  }
+
+  /**
+   * Remember the parameters and rows of the given statement as
+   * returned by Describe(statement). The columns of a statement's
+   * description are always in text format.
+   */
+  public void describedStatement(String name, ParameterDescription parameters, RowDescription rows) {
+    Description description = getOrCreate(name);
+    description.parameters = parameters;
+    if(rows == null) {
+      description.noData = true;
+    } else {
+      description.textRows = rows;
+    }
+  }
+
+  /**
+   * Remember the rows of the given statement as returned by
+   * Describe(portal) for a portal with the given result format, rows
+   * is null if the statement doesn't return any rows
+   */
+  public void describedPortal(String name, Format format, RowDescription rows) {
+    Description description = getOrCreate(name);
+    if(rows == null) {
+      description.noData = true;
+    } else if(format == Format.Binary) {
+      description.binaryRows = rows;
+    } else {
+      description.textRows = rows;
+    }
+  }
+
+  /**
+   * Forget the given statement, called when the statement is closed,
+   * parsed again or when its execution fails
+   */
+  public void invalidate(String name) {
+    descriptions.remove(name);
+  }
+
+  /**
+   * Forget all statements, e.g. after a DEALLOCATE
+   */
+  public void clear() {
+    descriptions.clear();
+  }
+
+  private Description getOrCreate(String name) {
+    Description description = descriptions.get(name);
+    if(description == null) {
+      description = new Description();
+      descriptions.put(name, description);
+    }
+    return description;
+  }
+}
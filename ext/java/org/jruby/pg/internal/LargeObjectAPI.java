@@ -2,8 +2,16 @@ package org.jruby.pg.internal;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.jruby.pg.messages.DataRow;
 import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.TransactionStatus;
 import org.jruby.pg.messages.Value;
 
 /**
@@ -36,6 +44,11 @@ import org.jruby.pg.messages.Value;
  *
  * ================================================================
  *
+ * The functions are called through the fastpath interface, see
+ * {@link PostgresqlConnection#functionCall}, every call is a single
+ * FunctionCall message and its response. The oids of the functions
+ * are looked up once per server.
+ *
  * @author jvshahid
  */
 public class LargeObjectAPI {
@@ -45,16 +58,40 @@ public class LargeObjectAPI {
   public static final int SEEK_CUR = 1;
   public static final int SEEK_END = 2;
 
+  // the size of the chunks sent by loImport and requested by
+  // loExport, and the number of chunks that are in flight
+  public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+  public static final int DEFAULT_IN_FLIGHT = 4;
+
+  private static final PostgresqlString BEGIN_QUERY = new PostgresqlString("BEGIN");
+  private static final PostgresqlString COMMIT_QUERY = new PostgresqlString("COMMIT");
+  private static final PostgresqlString ROLLBACK_QUERY = new PostgresqlString("ROLLBACK");
+
+  private static final PostgresqlString FUNCTIONS_QUERY = new PostgresqlString(
+    "SELECT proname, oid FROM pg_catalog.pg_proc WHERE proname IN (" +
+    "'lo_open', 'lo_close', 'loread', 'lowrite', 'lo_lseek', 'lo_lseek64', 'lo_creat', " +
+    "'lo_create', 'lo_tell', 'lo_tell64', 'lo_truncate', 'lo_truncate64', 'lo_unlink') " +
+    "AND pronamespace = (SELECT oid FROM pg_catalog.pg_namespace WHERE nspname = 'pg_catalog')");
+
+  // the oids of the functions by server, see PostgresqlConnection#getServerKey
+  private static final ConcurrentHashMap<String, Map<String, Integer>> serverFunctions =
+    new ConcurrentHashMap<String, Map<String, Integer>>();
+
+  private final PostgresqlConnection postgresqlConnection;
+  private Map<String, Integer> functions;
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  private int inFlight = DEFAULT_IN_FLIGHT;
+
   public LargeObjectAPI(PostgresqlConnection postgresqlConnection) {
     this.postgresqlConnection = postgresqlConnection;
   }
 
   public int loCreate(int oid) throws IOException, PostgresqlException {
-    return createCommon("lo_create", oid);
+    return intFunction("lo_create", Value.int4(oid));
   }
 
   public int loCreat(int mode) throws IOException, PostgresqlException {
-    return createCommon("lo_creat", mode);
+    return intFunction("lo_creat", Value.int4(mode));
   }
 
   public int loOpen(int oid) throws IOException, PostgresqlException {
@@ -62,150 +99,354 @@ public class LargeObjectAPI {
   }
 
   public int loOpen(int oid, int mode) throws IOException, PostgresqlException {
-    return twoArgFunction("lo_open", oid, mode);
+    return intFunction("lo_open", Value.int4(oid), Value.int4(mode));
   }
 
-  private int createCommon(String functionName, int argValue) throws IOException, PostgresqlException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    buffer.putInt(argValue);
-    Value value = new Value(buffer.array(), Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select " + functionName + "($1)"), new Value[] { value },
-                       Format.Binary, new int[0]);
-    if(result.getError() != null) {
-      throw new PostgresqlException(result.getError(), result);
-    }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
+  public int loWrite(int fd, byte[] bytes) throws IOException, PostgresqlException {
+    return loWrite(fd, bytes, 0, bytes.length);
   }
 
-  private final PostgresqlConnection postgresqlConnection;
-
-  public int loWrite(int fd, byte[] bytes) throws IOException, PostgresqlException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    buffer.putInt(fd);
-    Value fdValue = new Value(buffer.array(), Format.Binary);
-    Value byteValue = new Value(bytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select lowrite($1, $2)"),
-                       new Value[] { fdValue, byteValue }, Format.Binary, new int[0]);
-    if(result.getError() != null) {
-      throw new PostgresqlException(result.getError(), result);
-    }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
+  /**
+   * Write length bytes of the given array starting at offset
+   */
+  public int loWrite(int fd, byte[] bytes, int offset, int length) throws IOException, PostgresqlException {
+    return intFunction("lowrite", Value.int4(fd), new Value(bytes, offset, length, Format.Binary));
   }
 
   public byte[] loRead(int fd, int count) throws PostgresqlException, IOException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    byte[] fdBytes, countBytes;
-    fdBytes = new byte[4];
-    countBytes = new byte[4];
-    buffer.putInt(fd);
-    buffer.flip();
-    buffer.get(fdBytes);
-    buffer.clear();
-    buffer.putInt(count);
-    buffer.flip();
-    buffer.get(countBytes);
-
-    Value fdValue = new Value(fdBytes, Format.Binary);
-    Value countValue = new Value(countBytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select loread($1, $2)"),
-                       new Value[] { fdValue, countValue }, Format.Binary, new int[0]);
-    if(result.getError() != null) {
-      throw new PostgresqlException(result.getError(), result);
-    }
-    return result.getRows().get(0).getValues()[0];
+    byte[] value = call("loread", Value.int4(fd), Value.int4(count));
+    return value == null ? new byte[0] : value;
   }
 
   public int loSeek(int fd, int offset, int whence) throws IOException, PostgresqlException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    byte[] fdBytes, offsetBytes, whenceBytes;
-    fdBytes = new byte[4];
-    offsetBytes = new byte[4];
-    whenceBytes = new byte[4];
-    buffer.putInt(fd);
-    buffer.flip();
-    buffer.get(fdBytes);
-    buffer.clear();
-    buffer.putInt(offset);
-    buffer.flip();
-    buffer.get(offsetBytes);
-    buffer.clear();
-    buffer.putInt(whence);
-    buffer.flip();
-    buffer.get(whenceBytes);
-
-    Value fdValue = new Value(fdBytes, Format.Binary);
-    Value offsetValue = new Value(offsetBytes, Format.Binary);
-    Value whenceValue = new Value(whenceBytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select lo_lseek($1, $2, $3)"), new Value[] {
-                         fdValue,
-                         offsetValue, whenceValue
-                       }, Format.Binary, new int[0]);
-    if(result.getError() != null) {
-      throw new PostgresqlException(result.getError(), result);
-    }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
+    return intFunction("lo_lseek", Value.int4(fd), Value.int4(offset), Value.int4(whence));
+  }
+
+  /**
+   * Same as {@link #loSeek} for large objects bigger than 2GB,
+   * requires PostgreSQL 9.3
+   */
+  public long loSeek64(int fd, long offset, int whence) throws IOException, PostgresqlException {
+    return longFunction("lo_lseek64", Value.int4(fd), Value.int8(offset), Value.int4(whence));
   }
 
   public int loTell(int fd) throws IOException, PostgresqlException {
-    return oneArgFunction("lo_tell", fd);
+    return intFunction("lo_tell", Value.int4(fd));
+  }
+
+  public long loTell64(int fd) throws IOException, PostgresqlException {
+    return longFunction("lo_tell64", Value.int4(fd));
   }
 
   public int loClose(int fd) throws IOException, PostgresqlException {
-    return oneArgFunction("lo_close", fd);
+    return intFunction("lo_close", Value.int4(fd));
   }
 
   public int loUnlink(int fd) throws IOException, PostgresqlException {
-    return oneArgFunction("lo_unlink", fd);
+    return intFunction("lo_unlink", Value.int4(fd));
+  }
+
+  public int loTruncate(int fd, int len) throws PostgresqlException, IOException {
+    return intFunction("lo_truncate", Value.int4(fd), Value.int4(len));
+  }
+
+  public int loTruncate64(int fd, long len) throws PostgresqlException, IOException {
+    return intFunction("lo_truncate64", Value.int4(fd), Value.int8(len));
+  }
+
+  /**
+   * Open the given large object as a channel, see {@link
+   * LargeObjectChannel}. The 64 bit functions are used if the server
+   * has them.
+   */
+  public LargeObjectChannel openChannel(int oid, int mode) throws IOException, PostgresqlException {
+    int fd = loOpen(oid, mode);
+    return new LargeObjectChannel(this, oid, fd, mode, postgresqlConnection.getServerVersion() >= 90300);
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public void setChunkSize(int chunkSize) {
+    if(chunkSize <= 0) {
+      throw new IllegalArgumentException("invalid chunk size " + chunkSize);
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  public int getInFlight() {
+    return inFlight;
+  }
+
+  public void setInFlight(int inFlight) {
+    if(inFlight <= 0) {
+      throw new IllegalArgumentException("invalid number of chunks in flight " + inFlight);
+    }
+    this.inFlight = inFlight;
+  }
+
+  /**
+   * Create a large object with the content of the given channel. The
+   * content is sent in chunks of {@link #getChunkSize} bytes, up to
+   * {@link #getInFlight} lowrite calls are sent before waiting for
+   * their results. The transfer runs in the current transaction, or
+   * in its own transaction if the connection is idle.
+   *
+   * @param oid the oid of the new large object, 0 to let the server
+   *            assign one
+   * @return the oid of the new large object
+   */
+  public int loImport(ReadableByteChannel in, int oid) throws IOException, PostgresqlException {
+    boolean ownTransaction = begin();
+    boolean success = false;
+    try {
+      oid = loCreate(oid);
+      int fd = loOpen(oid, WRITE);
+      int lowrite = getFunctionOid("lowrite");
+
+      byte[] chunk = new byte[chunkSize];
+      ByteBuffer buffer = ByteBuffer.wrap(chunk);
+      int pending = 0;
+      boolean eof = false;
+      PostgresqlException error = null;
+      while(!eof && error == null) {
+        buffer.clear();
+        while(buffer.hasRemaining()) {
+          if(in.read(buffer) < 0) {
+            eof = true;
+            break;
+          }
+        }
+        if(buffer.position() == 0) {
+          break;
+        }
+
+        // the chunk is copied to the output buffer, it can be reused
+        // right away
+        Value[] args = {Value.int4(fd), new Value(chunk, 0, buffer.position(), Format.Binary)};
+        postgresqlConnection.sendFunctionCall(lowrite, args);
+        if(++pending == inFlight) {
+          error = checkResult("lowrite", postgresqlConnection.getFunctionCallResult());
+          pending--;
+        }
+      }
+      error = drain("lowrite", pending, error);
+      if(error != null) {
+        throw error;
+      }
+
+      loClose(fd);
+      success = true;
+      return oid;
+    } finally {
+      end(ownTransaction, success);
+    }
+  }
+
+  /**
+   * Write the content of the given large object to the channel. Up to
+   * {@link #getInFlight} loread calls of {@link #getChunkSize} bytes
+   * are in flight. The transfer runs in the current transaction, or
+   * in its own transaction if the connection is idle.
+   *
+   * @return the size of the large object
+   */
+  public long loExport(int oid, WritableByteChannel out) throws IOException, PostgresqlException {
+    boolean ownTransaction = begin();
+    boolean success = false;
+    try {
+      int fd = loOpen(oid, READ);
+      int loread = getFunctionOid("loread");
+      Value[] args = {Value.int4(fd), Value.int4(chunkSize)};
+
+      int pending = 0;
+      for(; pending < inFlight; pending++) {
+        postgresqlConnection.sendFunctionCall(loread, args);
+      }
+
+      long size = 0;
+      boolean eof = false;
+      PostgresqlException error = null;
+      while(pending > 0 && error == null) {
+        ResultSet result = postgresqlConnection.getFunctionCallResult();
+        pending--;
+        error = checkResult("loread", result);
+        if(error != null) {
+          break;
+        }
+
+        byte[] value = result.getFunctionResult();
+        int length = value == null ? 0 : value.length;
+        if(length > 0) {
+          ByteBuffer buffer = ByteBuffer.wrap(value);
+          while(buffer.hasRemaining()) {
+            out.write(buffer);
+          }
+          size += length;
+        }
+        // a short read means the end of the large object, the reads
+        // that are still in flight return nothing
+        if(length < chunkSize) {
+          eof = true;
+        } else if(!eof) {
+          postgresqlConnection.sendFunctionCall(loread, args);
+          pending++;
+        }
+      }
+      error = drain("loread", pending, error);
+      if(error != null) {
+        throw error;
+      }
+
+      loClose(fd);
+      success = true;
+      return size;
+    } finally {
+      end(ownTransaction, success);
+    }
+  }
+
+  /**
+   * Return the oid of the given function
+   *
+   * @throws PostgresqlException if the server doesn't have the function
+   */
+  public int getFunctionOid(String name) throws IOException, PostgresqlException {
+    if(functions == null) {
+      functions = lookupFunctions();
+    }
+    Integer oid = functions.get(name);
+    if(oid == null) {
+      throw new PostgresqlException("function " + name + " isn't supported by the server", null);
+    }
+    return oid;
   }
 
-  private int oneArgFunction(String name, int fd) throws IOException, PostgresqlException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    byte[] fdBytes;
-    fdBytes = new byte[4];
-    buffer.putInt(fd);
-    buffer.flip();
-    buffer.get(fdBytes);
+  PostgresqlConnection getConnection() {
+    return postgresqlConnection;
+  }
 
-    Value fdValue = new Value(fdBytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select " + name + "($1)"), new Value[] { fdValue }, Format.Binary, new int[0]);
+  /**
+   * Return an exception if the result of the given function call is
+   * an error, null otherwise
+   */
+  static PostgresqlException checkResult(String name, ResultSet result) {
+    if(result.getError() != null) {
+      return new PostgresqlException(result.getError(), result);
+    }
+    if(result.getFunctionResult() == null) {
+      return new PostgresqlException("unexpected result of " + name, result);
+    }
+    return null;
+  }
+
+  // private methods
+
+  private int intFunction(String name, Value... args) throws IOException, PostgresqlException {
+    byte[] value = call(name, args);
+    if(value == null || value.length != 4) {
+      throw new PostgresqlException("unexpected result of " + name, null);
+    }
+    return getInt(value, 0);
+  }
+
+  private long longFunction(String name, Value... args) throws IOException, PostgresqlException {
+    byte[] value = call(name, args);
+    if(value == null || value.length != 8) {
+      throw new PostgresqlException("unexpected result of " + name, null);
+    }
+    return ((long) getInt(value, 0) << 32) | (getInt(value, 4) & 0xFFFFFFFFL);
+  }
+
+  private byte[] call(String name, Value... args) throws IOException, PostgresqlException {
+    ResultSet result = postgresqlConnection.functionCall(getFunctionOid(name), args);
+    if(result == null) {
+      throw new IOException("no result for " + name);
+    }
     if(result.getError() != null) {
       throw new PostgresqlException(result.getError(), result);
     }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
+    return result.getFunctionResult();
   }
 
-  public int loTruncate(int fd, int len) throws PostgresqlException, IOException {
-    return twoArgFunction("lo_truncate", fd, len);
-  }
-
-  private int twoArgFunction(String name, int value1, int value2) throws PostgresqlException, IOException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    byte[] value1Bytes, value2Bytes;
-    value1Bytes = new byte[4];
-    value2Bytes = new byte[4];
-    buffer.putInt(value1);
-    buffer.flip();
-    buffer.get(value1Bytes);
-    buffer.clear();
-    buffer.putInt(value2);
-    buffer.flip();
-    buffer.get(value2Bytes);
-
-    Value value1Value = new Value(value1Bytes, Format.Binary);
-    Value value2Value = new Value(value2Bytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select " + name + "($1, $2)"),
-                       new Value[] { value1Value, value2Value }, Format.Binary, new int[0]);
+  /**
+   * Wait for the results of the function calls that are still in
+   * flight, return the first error
+   */
+  private PostgresqlException drain(String name, int pending, PostgresqlException error)
+  throws IOException {
+    for(; pending > 0; pending--) {
+      PostgresqlException ex = checkResult(name, postgresqlConnection.getFunctionCallResult());
+      if(error == null) {
+        error = ex;
+      }
+    }
+    return error;
+  }
+
+  /**
+   * Start a transaction unless the connection is already in one,
+   * return true if a transaction was started
+   */
+  private boolean begin() throws IOException, PostgresqlException {
+    if(postgresqlConnection.getTransactionStatus() != TransactionStatus.PQTRANS_IDLE) {
+      return false;
+    }
+    check(postgresqlConnection.exec(BEGIN_QUERY));
+    return true;
+  }
+
+  /**
+   * Commit or roll back the transaction started by {@link #begin}.
+   * The transaction of the caller is left alone, the caller rolls it
+   * back if the transfer failed.
+   */
+  private void end(boolean ownTransaction, boolean success) throws IOException, PostgresqlException {
+    if(!ownTransaction) {
+      return;
+    }
+    if(success) {
+      check(postgresqlConnection.exec(COMMIT_QUERY));
+    } else if(!postgresqlConnection.closed()) {
+      postgresqlConnection.exec(ROLLBACK_QUERY);
+    }
+  }
+
+  private static void check(ResultSet result) throws IOException, PostgresqlException {
+    if(result == null) {
+      throw new IOException("no result");
+    }
     if(result.getError() != null) {
       throw new PostgresqlException(result.getError(), result);
     }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
   }
 
-  private PostgresqlString createString(String value) {
-    return new PostgresqlString(value);
+  private Map<String, Integer> lookupFunctions() throws IOException, PostgresqlException {
+    String key = postgresqlConnection.getServerKey();
+    Map<String, Integer> oids = serverFunctions.get(key);
+    if(oids != null) {
+      return oids;
+    }
+
+    ResultSet result = postgresqlConnection.exec(FUNCTIONS_QUERY);
+    if(result == null) {
+      throw new IOException("no result for the large object functions lookup");
+    }
+    if(result.getError() != null) {
+      throw new PostgresqlException(result.getError(), result);
+    }
+    oids = new HashMap<String, Integer>();
+    for(DataRow row : result.getRows()) {
+      oids.put(new String(row.getValue(0)), Integer.parseInt(new String(row.getValue(1))));
+    }
+    oids = Collections.unmodifiableMap(oids);
+    serverFunctions.putIfAbsent(key, oids);
+    return oids;
   }
 
-  private static int bytesToInt(byte[] bytes) {
-    return ByteBuffer.wrap(bytes).getInt();
+  private static int getInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) |
+      ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
   }
 }
@@ -0,0 +1,369 @@
+package org.jruby.pg.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedList;
+
+import org.jruby.pg.messages.Value;
+
+/**
+ * A large object opened as a channel. The position is tracked locally
+ * and the descriptor is only moved with lo_lseek when a read or a
+ * write doesn't start where the previous one ended, lo_tell is never
+ * needed.
+ *
+ * Reads go through a read-ahead buffer whose size doubles, up to
+ * {@link #MAX_READ_AHEAD}, as long as the object is read
+ * sequentially. Writes are coalesced in a write-behind buffer that is
+ * sent with a single lowrite when it's full, before any other
+ * operation and when the channel is flushed or closed.
+ *
+ * Like the descriptor, the channel is only valid until the end of the
+ * transaction it was opened in.
+ */
+public class LargeObjectChannel implements SeekableByteChannel {
+  public static final int MIN_READ_AHEAD = 8 * 1024;
+  public static final int MAX_READ_AHEAD = 1024 * 1024;
+  public static final int WRITE_BEHIND_SIZE = 256 * 1024;
+
+  private final LargeObjectAPI api;
+  private final int oid;
+  private final int fd;
+  private final int mode;
+  private final boolean large;
+  private boolean open = true;
+
+  // the position of the channel and of the descriptor on the server
+  private long position;
+  private long serverPosition;
+
+  // the data read ahead, starting at readStart in the object
+  private byte[] readBuffer = new byte[0];
+  private int readLength;
+  private int readRequested;
+  private long readStart;
+  private int readAhead = MIN_READ_AHEAD;
+
+  // the data written but not sent yet, starting at writeStart
+  private final ByteBuffer writeBuffer;
+  private long writeStart;
+
+  LargeObjectChannel(LargeObjectAPI api, int oid, int fd, int mode, boolean large) {
+    this.api = api;
+    this.oid = oid;
+    this.fd = fd;
+    this.mode = mode;
+    this.large = large;
+    this.writeBuffer = ByteBuffer.allocate((mode & LargeObjectAPI.WRITE) != 0 ? WRITE_BEHIND_SIZE : 0);
+  }
+
+  public int getOid() {
+    return oid;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    checkOpen();
+    flushWrites();
+    int count = 0;
+    while(dst.hasRemaining()) {
+      if(position < readStart || position >= readStart + readLength) {
+        if(readLength < readRequested && position == readStart + readLength) {
+          // the previous read was short, i.e. the end of the object
+          break;
+        }
+        if(!fill(dst.remaining())) {
+          break;
+        }
+      }
+      int offset = (int) (position - readStart);
+      int length = Math.min(dst.remaining(), readLength - offset);
+      dst.put(readBuffer, offset, length);
+      position += length;
+      count += length;
+    }
+    return count == 0 && dst.hasRemaining() ? -1 : count;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    checkOpen();
+    if((mode & LargeObjectAPI.WRITE) == 0) {
+      throw new NonWritableChannelException();
+    }
+    if(writeBuffer.position() > 0 && position != writeStart + writeBuffer.position()) {
+      flushWrites();
+    }
+    if(writeBuffer.position() == 0) {
+      writeStart = position;
+    }
+
+    // the data read ahead is stale once the object is modified
+    discardReadAhead();
+
+    int count = src.remaining();
+    while(src.hasRemaining()) {
+      if(!writeBuffer.hasRemaining()) {
+        flushWrites();
+        writeStart = position;
+      }
+      int length = Math.min(src.remaining(), writeBuffer.remaining());
+      int limit = src.limit();
+      src.limit(src.position() + length);
+      writeBuffer.put(src);
+      src.limit(limit);
+      position += length;
+    }
+    return count;
+  }
+
+  @Override
+  public long position() throws IOException {
+    checkOpen();
+    return position;
+  }
+
+  /**
+   * Move the position of the channel, the descriptor is moved by the
+   * next read or write if needed
+   */
+  @Override
+  public LargeObjectChannel position(long newPosition) throws IOException {
+    checkOpen();
+    if(newPosition < 0) {
+      throw new IllegalArgumentException("negative position");
+    }
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+    checkOpen();
+    flushWrites();
+    serverPosition = seek(0, LargeObjectAPI.SEEK_END);
+    return serverPosition;
+  }
+
+  @Override
+  public LargeObjectChannel truncate(long size) throws IOException {
+    checkOpen();
+    if((mode & LargeObjectAPI.WRITE) == 0) {
+      throw new NonWritableChannelException();
+    }
+    flushWrites();
+    try {
+      if(large) {
+        api.loTruncate64(fd, size);
+      } else {
+        api.loTruncate(fd, (int) size);
+      }
+    } catch(PostgresqlException ex) {
+      throw new IOException(ex.getLocalizedMessage(), ex);
+    }
+    discardReadAhead();
+    if(position > size) {
+      position = size;
+    }
+    return this;
+  }
+
+  /**
+   * Send the data in the write-behind buffer
+   */
+  public void flush() throws IOException {
+    checkOpen();
+    flushWrites();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Flush the pending writes and close the descriptor
+   */
+  @Override
+  public void close() throws IOException {
+    if(!open) {
+      return;
+    }
+    try {
+      flushWrites();
+      api.loClose(fd);
+    } catch(PostgresqlException ex) {
+      throw new IOException(ex.getLocalizedMessage(), ex);
+    } finally {
+      open = false;
+    }
+  }
+
+  /**
+   * Read the given ranges of the object, ranges are filled until
+   * their buffer is full or the end of the object is reached. Every
+   * range is read through its own descriptor, the seeks and the reads
+   * of all the ranges are sent without waiting for each other's
+   * results, in chunks of {@link LargeObjectAPI#getChunkSize}
+   * bytes. The position of the channel isn't changed.
+   */
+  public void readRanges(long[] offsets, ByteBuffer[] dests) throws IOException {
+    checkOpen();
+    flushWrites();
+    PostgresqlConnection connection = api.getConnection();
+    int[] fds = new int[offsets.length];
+    int opened = 0;
+    try {
+      for(; opened < fds.length; opened++) {
+        fds[opened] = api.loOpen(oid, LargeObjectAPI.READ);
+      }
+
+      int seekOid = api.getFunctionOid(large ? "lo_lseek64" : "lo_lseek");
+      int readOid = api.getFunctionOid("loread");
+      int chunkSize = api.getChunkSize();
+
+      // the ranges whose results are expected, in order. A negative
+      // index is the result of the seek of range -index - 1
+      LinkedList<Integer> expected = new LinkedList<Integer>();
+      for(int i = 0; i < fds.length; i++) {
+        Value offset = large ? Value.int8(offsets[i]) : Value.int4((int) offsets[i]);
+        connection.sendFunctionCall(seekOid, new Value[] {Value.int4(fds[i]), offset,
+                                                          Value.int4(LargeObjectAPI.SEEK_SET)});
+        expected.add(-i - 1);
+        if(dests[i].hasRemaining()) {
+          sendRead(connection, readOid, fds[i], Math.min(chunkSize, dests[i].remaining()));
+          expected.add(i);
+        }
+      }
+
+      PostgresqlException error = null;
+      while(!expected.isEmpty()) {
+        int range = expected.removeFirst();
+        ResultSet result = connection.getFunctionCallResult();
+        if(error == null) {
+          error = LargeObjectAPI.checkResult(range < 0 ? "lo_lseek" : "loread", result);
+        }
+        if(error != null || range < 0) {
+          continue;
+        }
+
+        byte[] data = result.getFunctionResult();
+        int requested = Math.min(chunkSize, dests[range].remaining());
+        dests[range].put(data);
+        if(data.length == requested && dests[range].hasRemaining()) {
+          sendRead(connection, readOid, fds[range], Math.min(chunkSize, dests[range].remaining()));
+          expected.add(range);
+        }
+      }
+      if(error != null) {
+        throw new IOException(error.getLocalizedMessage(), error);
+      }
+    } catch(PostgresqlException ex) {
+      throw new IOException(ex.getLocalizedMessage(), ex);
+    } finally {
+      // the results of the calls that were sent must be read before
+      // the descriptors are closed. If they can't be the connection is
+      // broken and the descriptors are gone with it
+      try {
+        connection.discardFunctionCallResults();
+      } catch(IOException ex) {
+        opened = 0;
+      }
+      for(int i = 0; i < opened; i++) {
+        try {
+          api.loClose(fds[i]);
+        } catch(PostgresqlException ex) {
+          // the transaction failed, the descriptors are gone anyway
+        }
+      }
+    }
+  }
+
+  // private methods
+
+  /**
+   * Read ahead starting at the current position, return false at the
+   * end of the object
+   */
+  private boolean fill(int wanted) throws IOException {
+    // grow the read-ahead while the reads are sequential, start over
+    // after a random access
+    if(readLength > 0 && position == readStart + readLength) {
+      readAhead = Math.min(readAhead * 2, MAX_READ_AHEAD);
+    } else {
+      readAhead = MIN_READ_AHEAD;
+    }
+    int length = Math.max(readAhead, Math.min(wanted, MAX_READ_AHEAD));
+
+    moveTo(position);
+    byte[] data;
+    try {
+      data = api.loRead(fd, length);
+    } catch(PostgresqlException ex) {
+      throw new IOException(ex.getLocalizedMessage(), ex);
+    }
+    serverPosition += data.length;
+    readBuffer = data;
+    readStart = position;
+    readLength = data.length;
+    readRequested = length;
+    return data.length > 0;
+  }
+
+  private void discardReadAhead() {
+    readLength = readRequested = 0;
+  }
+
+  private void flushWrites() throws IOException {
+    if(writeBuffer.position() == 0) {
+      return;
+    }
+    moveTo(writeStart);
+    try {
+      int length = writeBuffer.position();
+      api.loWrite(fd, writeBuffer.array(), 0, length);
+      serverPosition += length;
+    } catch(PostgresqlException ex) {
+      throw new IOException(ex.getLocalizedMessage(), ex);
+    } finally {
+      writeBuffer.clear();
+    }
+  }
+
+  /**
+   * Move the descriptor to the given offset unless it's already there
+   */
+  private void moveTo(long offset) throws IOException {
+    if(serverPosition != offset) {
+      serverPosition = seek(offset, LargeObjectAPI.SEEK_SET);
+    }
+  }
+
+  private long seek(long offset, int whence) throws IOException {
+    try {
+      if(large) {
+        return api.loSeek64(fd, offset, whence);
+      }
+      if(offset > Integer.MAX_VALUE) {
+        throw new IOException("the server doesn't support large objects bigger than 2GB");
+      }
+      return api.loSeek(fd, (int) offset, whence);
+    } catch(PostgresqlException ex) {
+      throw new IOException(ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  private static void sendRead(PostgresqlConnection connection, int readOid, int fd, int length)
+  throws IOException {
+    connection.sendFunctionCall(readOid, new Value[] {Value.int4(fd), Value.int4(length)});
+  }
+
+  private void checkOpen() throws IOException {
+    if(!open) {
+      throw new ClosedChannelException();
+    }
+  }
+}
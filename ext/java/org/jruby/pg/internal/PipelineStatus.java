@@ -0,0 +1,8 @@
+package org.jruby.pg.internal;
+
+public enum PipelineStatus {
+  PQ_PIPELINE_OFF,      /* not in pipeline mode */
+  PQ_PIPELINE_ON,       /* in pipeline mode */
+  PQ_PIPELINE_ABORTED   /* in pipeline mode, an error occurred and the
+                           commands up to the next sync are skipped */
+}
@@ -1,6 +1,7 @@
 package org.jruby.pg.internal;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -8,8 +9,8 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
@@ -21,8 +22,10 @@ import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.jruby.pg.internal.ResultSet.ResultStatus;
+import org.jruby.pg.io.EventLoop;
 import org.jruby.pg.io.FlushableByteChannel;
 import org.jruby.pg.io.HandshakeStatus;
+import org.jruby.pg.io.ReadinessListener;
 import org.jruby.pg.io.SecureByteChannel;
 import org.jruby.pg.io.SocketByteChannel;
 import org.jruby.pg.messages.*;
@@ -33,12 +36,35 @@ import org.jruby.pg.messages.ProtocolMessage.MessageType;
 /**
  * postgresql connection
  */
-public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
+public class PostgresqlConnection implements ProtocolWriter {
   // this hashmap holds the static status of the parameters, the last
   // connection wins
   private static final Map<String, String> staticParameters =
     new ConcurrentHashMap<String, String>();
 
+  // in pipeline mode the output buffer is flushed only when it grows
+  // beyond this size, or when the user calls pipelineSync() or flush()
+  private static final int PIPELINE_FLUSH_THRESHOLD = 64 * 1024;
+
+  // the name of the portal used by sendQueryPortal
+  private static final PostgresqlString PORTAL_NAME = new PostgresqlString("_jruby_pg_portal");
+
+  // the default size of the CopyData messages sent by putCopyData
+  private static final int DEFAULT_COPY_BUFFER_SIZE = 64 * 1024;
+
+  // by default the buffers are shrunk back once a result is
+  // delivered if they grew beyond this size
+  private static final int DEFAULT_BUFFER_RETAIN_SIZE = 64 * 1024;
+
+  // the size of the buffer that copyOutTo packs the rows in
+  private static final int COPY_OUT_BUFFER_SIZE = 128 * 1024;
+
+  // the query used to check that an established connection is usable
+  private static final PostgresqlString PING_QUERY = new PostgresqlString("SELECT 1");
+
+  // the sqlstate of query_canceled
+  private static final String QUERY_CANCELED = "57014";
+
   // status fields
   private ConnectionStatus cStatus;
 
@@ -51,14 +77,28 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   // not secure if the user didn't set `sslmode' to `required'
   private boolean trySSL;
 
-  // socket, optional SslEngine and buffers. outBuffer and inBuffer
-  // are always ready to do put() operations on
-  private ByteBuffer outBuffer, inBuffer;
+  // the pool the buffers are borrowed from
+  private final BufferPool pool = BufferPool.getDefault();
+
+  // socket, optional SslEngine and buffers. outBuffer is always ready
+  // to do put() operations on
+  private ByteBuffer outBuffer;
+
+  // the data received from the backend, messages are parsed directly
+  // from this buffer
+  private final ReceiveBuffer inBuffer = new ReceiveBuffer(pool, BufferPool.MIN_BUFFER_SIZE);
+
+  // the buffers that grow beyond this size are given back to the pool
+  // once a result is delivered
+  private int bufferRetainSize = DEFAULT_BUFFER_RETAIN_SIZE;
 
   // the BackendKeyData, i.e. the pid of the server and the secret
   // used to cancel queries
   private BackendKeyData bkd;
 
+  // the address of the server, the CancelRequests are sent there
+  private InetSocketAddress serverAddress;
+
   // store the original properties of the connection
   private final Properties props;
 
@@ -78,6 +118,19 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   // true if singleRowMode is on
   private boolean singleRowMode;
 
+  // the maximum number of rows per result in chunked rows mode, 0 if
+  // chunked rows mode is off
+  private int chunkSize;
+
+  // the number of rows affected by each execution of the current
+  // batch and the number of executions that completed
+  private int[] batchCounts;
+  private int batchCount;
+
+  // true if nextResult is complete and should be returned right after
+  // the current result, without waiting for more messages
+  private boolean nextResultReady;
+
   // the last query that was executed, this can
   // be used when reporting errors, but is currently
   // not used
@@ -90,16 +143,78 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   // the status of the connection
   private AsyncStatus aStatus;
 
+  // the pipeline status of the connection
+  private PipelineStatus pipelineStatus = PipelineStatus.PQ_PIPELINE_OFF;
+
+  // in pipeline mode, the class of the commands that were sent and
+  // whose results weren't consumed yet. The head of the queue is the
+  // command whose results are currently being processed
+  private final LinkedList<QueryClass> pipelineQueue =
+    new LinkedList<QueryClass>();
+
   // the transaction status
   private TransactionStatus xStatus;
 
+  // the statements prepared on behalf of sendQueryParams, null if
+  // the statement cache is disabled
+  private StatementCache statementCache;
+
+  // the id of the first statement of the next statement cache
+  private long nextStatementId;
+
+  // the cached statement used by the last sendQueryParams, null if it
+  // used the unnamed statement
+  private StatementCache.Statement lastStatement;
+
+  // the descriptions of the prepared statements, used to execute them
+  // without a Describe
+  private final DescriptionCache descriptionCache = new DescriptionCache();
+
+  // created on the first use of the large object functions
+  private LargeObjectAPI largeObjectAPI;
+
+  // the number of function calls whose ReadyForQuery wasn't received
+  private int pendingFunctionCalls;
+
+  // the default timeout of the synchronous commands in milliseconds,
+  // 0 means no timeout, and the deadline of the current command
+  private long queryTimeout;
+  private QueryDeadline deadline;
+
+  // the named statement that is being executed or described, null
+  // otherwise and in pipeline mode
+  private String describedStatement;
+
+  // the result format of the statement being executed, set only if
+  // the Describe response should be cached
+  private Format describedFormat;
+
+  // true if the Describe was skipped, cachedRows is the description
+  // of the rows that will be returned by the statement, null if it
+  // doesn't return rows
+  private boolean useCachedRows;
+  private RowDescription cachedRows;
+
+  // the number of rows fetched at a time by sendQueryPortal and the
+  // description of the portal's rows, shared by all the batches
+  private int portalFetchSize;
+  private RowDescription portalRows;
+
+  // true if the portal was suspended and the next batch should be
+  // requested once the current one is returned
+  private boolean portalSuspended;
+
+  // true if at least one batch of the portal was returned
+  private boolean portalFetched;
+
+  // true if the portal was closed before its rows were exhausted, the
+  // rows that are still on their way are discarded
+  private boolean portalClosed;
+
   // holds error messages from exceptions that aren't propagated back
   // to the caller
   private String errorMessage;
 
-  // this is set if we opened this connection to cancel a request
-  private boolean forCancel;
-
   // used in ping() to determine if the connection failed due to
   // invalid credentials
   private boolean authReqReceived;
@@ -114,13 +229,25 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   // store the non blocking mode of the connection
   private boolean nonBlocking;
 
+  // during CopyIn the rows are packed in CopyData messages of up to
+  // this many bytes, the output buffer is flushed when it's full
+  private int copyBufferSize = DEFAULT_COPY_BUFFER_SIZE;
+
+  // true if the last message in the output buffer is a CopyData that
+  // more rows can be appended to
+  private boolean copyFrameOpen;
+
   // holds the length's position of the current message being sent,
   // and the position of the first byte. this is used by writeMsgEnd
   // to write the final size
   private int lengthPosition = -1, firstPosition = -1;
 
-  // used to trace the activity of the connection
-  private PrintWriter tracer;
+  // records the messages exchanged with the server, null if tracing
+  // is disabled
+  private ProtocolTrace trace;
+
+  // the protocol counters of the connection
+  private final ProtocolMetrics metrics = ProtocolMetricsRegistry.getDefault().register(this);
 
   // the current notice receiver, defaults to printing the error
   // message to standard error
@@ -154,7 +281,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    */
   public static PostgresqlConnection connectDb(Properties props)
   throws IOException {
-    return connectDbCommon(props, false);
+    return connectDbCommon(props);
   }
 
   /**
@@ -218,6 +345,26 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     }
   }
 
+  /**
+   * Check that this connection can still execute queries, the
+   * connection must not be executing a command
+   */
+  public PingStatus ping() {
+    if(cStatus != ConnectionStatus.CONNECTION_OK || aStatus != AsyncStatus.Idle) {
+      return PingStatus.PQPING_NO_ATTEMPT;
+    }
+
+    try {
+      ResultSet result = exec(PING_QUERY);
+      if(result != null && result.getStatus() == ResultStatus.PGRES_TUPLES_OK) {
+        return PingStatus.PQPING_OK;
+      }
+      return PingStatus.PQPING_REJECT;
+    } catch(IOException ex) {
+      return PingStatus.PQPING_NO_RESPONSE;
+    }
+  }
+
   /**
    * Close the connection and release all its resources
    */
@@ -229,10 +376,23 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     // configure blocking since we have to send the Terminate message
     // anyway
     cStatus = ConnectionStatus.CONNECTION_BAD;
-    socket.configureBlocking(true);
-    sendMessage(new Terminate());
-    flush();
-    channel.close();
+    try {
+      EventLoop.getDefault().deregister(socket);
+      socket.configureBlocking(true);
+      sendMessage(new Terminate());
+      flush();
+      channel.close();
+    } finally {
+      releaseBuffers();
+    }
+    ProtocolMetricsRegistry.getDefault().unregister(metrics);
+  }
+
+  /**
+   * Return the protocol counters of the connection
+   */
+  public ProtocolMetrics getMetrics() {
+    return metrics;
   }
 
   /**
@@ -311,9 +471,91 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
                                    Format format, int[] oids) throws IOException {
     execStart();
     sendQueryParams(query, values, format, oids);
+    ResultSet result = execFinish(true);
+    if(shouldRetry(result)) {
+      // the cached statement was invalidated by the server, it will
+      // be prepared again under the same deadline
+      sendQueryParams(query, values, format, oids);
+      result = execFinish();
+    }
+    return result;
+  }
+
+  /**
+   * Call the function with the given oid using the fastpath
+   * interface, i.e. a FunctionCall message instead of a query. The
+   * arguments and the result are in binary format.
+   *
+   * @return a result whose {@link ResultSet#getFunctionResult} is the
+   *         value returned by the function, or the error
+   * @throws IOException
+   */
+  public ResultSet functionCall(int oid, Value[] args) throws IOException {
+    execStart();
+    sendFunctionCall(oid, args);
+    flush();
     return execFinish();
   }
 
+  /**
+   * Send a function call without waiting for its result. Function
+   * calls can be sent while the results of the previous ones are
+   * pending, the results are retrieved in order using {@link
+   * #getFunctionCallResult}.
+   *
+   * @throws IOException
+   */
+  public void sendFunctionCall(int oid, Value[] args) throws IOException {
+    if(pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF) {
+      throw new IOException("function call is not allowed in pipeline mode");
+    }
+    if(pendingFunctionCalls == 0 || qClass != QueryClass.Function) {
+      sendQueryStart();
+      qClass = QueryClass.Function;
+      aStatus = AsyncStatus.Busy;
+      lastQuery = null;
+    }
+    sendMessage(new FunctionCall(oid, args, Format.Binary));
+    pendingFunctionCalls++;
+    if(outBuffer.position() >= PIPELINE_FLUSH_THRESHOLD) {
+      flush();
+    }
+  }
+
+  /**
+   * Return the result of the oldest function call sent by {@link
+   * #sendFunctionCall} whose result wasn't retrieved yet, blocks until
+   * the result is received
+   *
+   * @throws IOException
+   */
+  public ResultSet getFunctionCallResult() throws IOException {
+    if(pendingFunctionCalls == 0 || qClass != QueryClass.Function) {
+      throw new IOException("no function call in progress");
+    }
+    flush();
+    ResultSet res = getResult();
+    if(res == null) {
+      throw new IOException("no result for the function call");
+    }
+    return res;
+  }
+
+  /**
+   * Read and discard the results of the function calls sent by {@link
+   * #sendFunctionCall} that weren't retrieved, e.g. after a send failed
+   *
+   * @throws IOException
+   */
+  public void discardFunctionCallResults() throws IOException {
+    if(qClass != QueryClass.Function) {
+      return;
+    }
+    while(getResult() != null) {
+      // discard the result
+    }
+  }
+
   /**
    * Create a prepared statement with the given query and parameters
    *
@@ -333,10 +575,29 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    */
   public ResultSet describePrepared(PostgresqlString queryName) throws IOException {
     execStart();
+    DescriptionCache.Description description = descriptionCache.get(queryName.toString());
+    if(description != null && description.getParameters() != null &&
+        description.isDescribed(Format.Text)) {
+      return makeEmptyResult(ResultStatus.PGRES_COMMAND_OK)
+             .setParameterDescription(description.getParameters())
+             .setDescription(description.getRows(Format.Text));
+    }
     sendDescribe(queryName, StatementType.Prepared);
     return execFinish();
   }
 
+  /**
+   * Return the types of the parameters of the given prepared
+   * statement, null unless the statement was described
+   */
+  public int[] getParameterTypes(PostgresqlString name) {
+    DescriptionCache.Description description = descriptionCache.get(name.toString());
+    if(description == null || description.getParameters() == null) {
+      return null;
+    }
+    return description.getParameters().getOids();
+  }
+
   /**
    * Obtain information about the given portal
    *
@@ -360,6 +621,60 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     return execFinish();
   }
 
+  /**
+   * Execute a statement once for every set of values in a single
+   * round trip. A Bind and an Execute are sent for every set of values
+   * followed by one Sync. The rows returned by the statement are
+   * discarded.
+   *
+   * @param name the prepared statement to execute, ignored if query
+   *             isn't null
+   * @param query if not null the query is parsed as the unnamed
+   *              statement using the given oids
+   * @return a ResultSet whose batch counts are the number of rows
+   *         affected by every execution. If an execution fails the
+   *         error is returned and the number of batch counts is the
+   *         index of the failed execution
+   * @throws IOException
+   */
+  public ResultSet execBatch(PostgresqlString name, PostgresqlString query, Value[][] values,
+                             int[] oids) throws IOException {
+    execStart();
+    sendQueryStart();
+
+    PostgresqlString empty = new PostgresqlString("");
+    if(query != null) {
+      sendParse(empty, query, oids, null);
+      name = empty;
+    }
+
+    // set the state before writing the executions, flush() reads the
+    // results of a batch while it's blocked on a full socket
+    batchCounts = new int[values.length];
+    batchCount = 0;
+    qClass = QueryClass.Batch;
+    aStatus = AsyncStatus.Busy;
+    lastQuery = query;
+
+    for(Value[] params : values) {
+      sendMessage(new Bind(empty, name, params, Format.Text));
+      sendMessage(new Execute(empty));
+      if(outBuffer.position() >= PIPELINE_FLUSH_THRESHOLD) {
+        flush();
+      }
+    }
+    sendMessage(new Sync());
+
+    ResultSet result = execFinish();
+    if(result == null) {
+      result = makeEmptyResult(ResultStatus.PGRES_COMMAND_OK);
+    }
+    int[] counts = new int[batchCount];
+    System.arraycopy(batchCounts, 0, counts, 0, batchCount);
+    batchCounts = null;
+    return result.setBatchCounts(counts);
+  }
+
   /**
    * Execute a query asynchronously
    *
@@ -368,6 +683,10 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * @throws IOException
    */
   public boolean sendQuery(PostgresqlString query) throws IOException {
+    if(pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF) {
+      throw new IOException("simple query protocol is not allowed in pipeline mode");
+    }
+
     sendQueryStart();
 
     // add the query message to the output buffer
@@ -396,24 +715,102 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     sendQueryStart();
 
     PostgresqlString empty = new PostgresqlString("");
+    StatementCache.Statement statement = null;
+    if(statementCache != null) {
+      statement = statementCache.lookup(query, oids);
+      for(StatementCache.Statement evicted : statementCache.drainEvicted()) {
+        sendClose(evicted.getName());
+      }
+    }
+    lastStatement = statement;
 
-    // send parse, bind, execute and sync
-    sendMessage(new Parse(empty, query, oids));
-    sendMessage(new Bind(empty, empty, values, resultFormat));
-    sendMessage(new Describe(empty, StatementType.Portal));
-    sendMessage(new Execute(empty));
-    sendMessage(new Sync());
+    // send parse, bind, execute and sync. Cached statements are only
+    // parsed the first time they're used
+    if(statement == null) {
+      sendParse(empty, query, oids, null);
+      sendExecute(empty, values, resultFormat);
+    } else {
+      PostgresqlString name = new PostgresqlString(statement.getName());
+      if(!statement.isPrepared()) {
+        if(statement.wasParsed()) {
+          sendClose(statement.getName());
+        }
+        sendParse(name, query, oids, statement);
+      }
+      sendExecute(name, values, resultFormat);
+    }
 
     // remember the state and the query that we are running
-    qClass = QueryClass.Extended;
-    aStatus = AsyncStatus.Busy;
+    sendCommandEnd(QueryClass.Extended);
     lastQuery = query;
 
     // try to flush
+    pipelineFlush();
+    return true;
+  }
+
+  /**
+   * Execute the given query through a named portal, fetching
+   * fetchSize rows at a time. Every batch of rows is returned by
+   * getResult() as a separate ResultSet, the next batch is requested
+   * as soon as the previous one is returned. The remaining rows are
+   * kept on the server until they're fetched.
+   *
+   * @throws IOException
+   */
+  public boolean sendQueryPortal(PostgresqlString query, Value[] values, Format resultFormat,
+                                 int[] oids, int fetchSize) throws IOException {
+    if(pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF) {
+      throw new IOException("portal fetch is not allowed in pipeline mode");
+    }
+    if(fetchSize <= 0) {
+      throw new IOException("fetch size must be positive");
+    }
+
+    sendQueryStart();
+
+    // send Flush instead of Sync, a Sync would close the implicit
+    // transaction and the portal with it
+    PostgresqlString empty = new PostgresqlString("");
+    sendParse(empty, query, oids, null);
+    sendMessage(new Bind(PORTAL_NAME, empty, values, resultFormat));
+    sendMessage(new Describe(PORTAL_NAME, StatementType.Portal));
+    sendMessage(new Execute(PORTAL_NAME, fetchSize));
+    sendMessage(new Flush());
+
+    portalFetchSize = fetchSize;
+    portalRows = null;
+    portalSuspended = false;
+    portalFetched = false;
+    portalClosed = false;
+    qClass = QueryClass.Portal;
+    aStatus = AsyncStatus.Busy;
+    lastQuery = query;
+
     flush();
     return true;
   }
 
+  /**
+   * Stop fetching the rows of the portal started by sendQueryPortal.
+   * The portal is closed and the results that are still on their way
+   * are discarded, the connection is ready for the next command when
+   * this method returns.
+   *
+   * @throws IOException
+   */
+  public void closePortal() throws IOException {
+    if(qClass == QueryClass.Portal && !portalClosed) {
+      sendMessage(new Close(PORTAL_NAME.toString(), StatementType.Portal));
+      sendMessage(new Sync());
+      flush();
+      portalClosed = true;
+    }
+    while(getResult() != null) {
+      // discard the batch
+    }
+  }
+
   /**
    * Asynchronous version of {@link prepare()}
    *
@@ -423,14 +820,12 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
                              int[] oids) throws IOException {
     sendQueryStart();
 
-    sendMessage(new Parse(name, query, oids));
-    sendMessage(new Sync());
+    sendParse(name, query, oids, null);
 
-    qClass = QueryClass.Prepare;
-    aStatus = AsyncStatus.Busy;
+    sendCommandEnd(QueryClass.Prepare);
     lastQuery = query;
 
-    flush();
+    pipelineFlush();
 
     return true;
   }
@@ -460,18 +855,15 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    */
   public boolean sendQueryPrepared(PostgresqlString name, Value[] values,
                                    Format format) throws IOException {
-    PostgresqlString empty = new PostgresqlString("");
-    sendMessage(new Bind(empty, name, values, format));
-    sendMessage(new Describe(empty, StatementType.Portal));
-    sendMessage(new Execute(empty));
-    sendMessage(new Sync());
+    sendQueryStart();
 
-    qClass = QueryClass.Extended;
-    aStatus = AsyncStatus.Busy;
+    sendExecute(name, values, format);
+
+    sendCommandEnd(QueryClass.Extended);
     lastQuery = null;
 
     // try to flush
-    flush();
+    pipelineFlush();
     return true;
   }
 
@@ -480,31 +872,67 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * ResultSet is ready
    */
   public ResultSet getResult() throws IOException {
-    Selector selector = Selector.open();
-    SelectionKey key = socket.register(selector, 0);
+    ResultSet res = getResultCommon();
+    if(res != null) {
+      metrics.result(res.getRowCount());
+    }
+    shrinkBuffers();
+    return res;
+  }
 
+  private ResultSet getResultCommon() throws IOException {
     // while we are busy keep reading more data
     while(isBusy()) {
       // wait until we send all the data in the output buffer
       while(!flush()) {
-        key.interestOps(SelectionKey.OP_WRITE);
-        selector.select();
+        if(!waitForResult(SelectionKey.OP_WRITE)) {
+          return abandonTimedOutCommand();
+        }
       }
 
-      key.interestOps(SelectionKey.OP_READ);
-      selector.select();
+      if(!waitForResult(SelectionKey.OP_READ)) {
+        return abandonTimedOutCommand();
+      }
       consumeInput();
     }
 
-    selector.close();
-
     switch(aStatus) {
     case Idle:
       return null;
 
+    case PipelineIdle:
+      // we're done with the current command, return the null that
+      // terminates its results and move to the next one
+      pipelineQueue.poll();
+      pipelineProcessNext();
+      return null;
+
     case Ready:
       ResultSet res = prepareAsyncResult();
-      aStatus = AsyncStatus.Busy;
+      if(nextResultReady) {
+        // the next result is complete, stay Ready
+        nextResultReady = false;
+      } else if(portalSuspended) {
+        // fetch the next batch while the caller processes this one
+        portalSuspended = false;
+        portalFetched = true;
+        sendMessage(new Execute(PORTAL_NAME, portalFetchSize));
+        sendMessage(new Flush());
+        flush();
+        aStatus = AsyncStatus.Busy;
+      } else if(pipelineStatus == PipelineStatus.PQ_PIPELINE_OFF) {
+        aStatus = AsyncStatus.Busy;
+      } else if(res.getStatus() == ResultStatus.PGRES_PIPELINE_SYNC) {
+        // a sync point doesn't have a terminating null, start
+        // processing the next command right away
+        pipelineQueue.poll();
+        pipelineProcessNext();
+      } else if(result != null || res.getStatus() == ResultStatus.PGRES_SINGLE_TUPLE) {
+        // the current command has more results
+        aStatus = AsyncStatus.Busy;
+      } else {
+        aStatus = AsyncStatus.PipelineIdle;
+      }
       return res;
 
     case CopyIn:
@@ -552,18 +980,49 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     // response to something that the server didn't receive yet
     flush();
 
-    do {
-      // make the inBuffer ready for reading from the channel
-      if(!inBuffer.hasRemaining()) {
-        // if the inBuffer doesn't have enough data, double the capacity
-        ByteBuffer newInBuffer = ByteBuffer.allocate(inBuffer.capacity() * 2);
-        inBuffer.flip();
-        newInBuffer.put(inBuffer);
-        inBuffer = newInBuffer;
+    readInput();
+  }
+
+  /**
+   * Block until the socket is ready for the given operations. The
+   * socket is multiplexed with the sockets of the other connections
+   * on the shared {@link EventLoop}
+   *
+   * @param ops the operations, see {@link SelectionKey}
+   * @param timeout the timeout in milliseconds, 0 means wait forever
+   * @return true if the socket is ready, false if the timeout expired
+   * @throws IOException
+   */
+  public boolean waitForSocket(int ops, long timeout) throws IOException {
+    if((ops & SelectionKey.OP_WRITE) != 0 && socket.isConnectionPending()) {
+      // a socket that is still connecting never reports OP_WRITE
+      ops = (ops & ~SelectionKey.OP_WRITE) | SelectionKey.OP_CONNECT;
+    }
+    long start = System.nanoTime();
+    try {
+      return EventLoop.getDefault().await(socket, ops, timeout);
+    } finally {
+      // the time spent connecting isn't counted
+      if((ops & SelectionKey.OP_CONNECT) == 0) {
+        if((ops & SelectionKey.OP_WRITE) == 0) {
+          metrics.resultWait(System.nanoTime() - start);
+        } else {
+          metrics.flushWait(System.nanoTime() - start);
+        }
       }
-      // as long as the channel is returning data keep going,
-      // otherwise return
-    } while(channel.read(inBuffer) > 0);
+    }
+  }
+
+  /**
+   * Same as {@link #waitForSocket(int, long)} but doesn't block, the
+   * listener is called on the event loop thread once the socket is
+   * ready. Used to establish many connections from one thread.
+   */
+  public void waitForSocket(int ops, ReadinessListener listener) throws IOException {
+    if((ops & SelectionKey.OP_WRITE) != 0 && socket.isConnectionPending()) {
+      ops = (ops & ~SelectionKey.OP_WRITE) | SelectionKey.OP_CONNECT;
+    }
+    EventLoop.getDefault().register(socket, ops, listener);
   }
 
   /**
@@ -578,26 +1037,145 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   }
 
   /**
-   * Set single row mode to true. This method has to be called after
-   * the starting a query asynchronously and before any results are
-   * retrieved using {@link #getResult}
+   * Put the connection in pipeline mode. In pipeline mode queries
+   * can be sent without waiting for the results of the previous
+   * ones. Results are retrieved in order using {@link #getResult},
+   * the results of every command are followed by a null. Use {@link
+   * #pipelineSync} to mark a synchronization point.
+   *
+   * @throws IOException
    */
-  public void setSingleRowMode() throws IOException {
-    if(aStatus != AsyncStatus.Busy) {
-      throw new IOException("connection not busy");
+  public void enterPipelineMode() throws IOException {
+    if(pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF) {
+      return;
     }
 
-    if(qClass != QueryClass.Simple && qClass != QueryClass.Extended) {
-      throw new IOException("connection isn't executing a query");
+    if(aStatus != AsyncStatus.Idle) {
+      throw new IOException("cannot enter pipeline mode, connection not idle");
     }
 
-    if(result != null) {
-      throw new IOException("result set already received");
+    clearDescribedStatement();
+    pipelineStatus = PipelineStatus.PQ_PIPELINE_ON;
+  }
+
+  /**
+   * Exit pipeline mode. All the results of the commands that were
+   * sent must have been retrieved before calling this method.
+   *
+   * @throws IOException
+   */
+  public void exitPipelineMode() throws IOException {
+    if(pipelineStatus == PipelineStatus.PQ_PIPELINE_OFF) {
+      return;
+    }
+
+    if(aStatus != AsyncStatus.Idle || !pipelineQueue.isEmpty()) {
+      throw new IOException("cannot exit pipeline mode with uncollected results");
+    }
+
+    pipelineStatus = PipelineStatus.PQ_PIPELINE_OFF;
+  }
+
+  /**
+   * Return the pipeline status of the connection
+   */
+  public PipelineStatus getPipelineStatus() {
+    return pipelineStatus;
+  }
+
+  /**
+   * Mark a synchronization point in the pipeline. This sends a Sync
+   * message and flushes the output buffer. The server will commit
+   * the implicit transaction (if any) and the result of this
+   * synchronization point is a result with status {@link
+   * ResultStatus.PGRES_PIPELINE_SYNC}. If a command fails all the
+   * commands up to the next synchronization point are aborted.
+   *
+   * @throws IOException
+   */
+  public void pipelineSync() throws IOException {
+    if(pipelineStatus == PipelineStatus.PQ_PIPELINE_OFF) {
+      throw new IOException("cannot send pipeline sync when not in pipeline mode");
+    }
+
+    if(aStatus == AsyncStatus.CopyIn || aStatus == AsyncStatus.CopyOut ||
+        aStatus == AsyncStatus.CopyBoth) {
+      throw new IOException("cannot send pipeline sync while in copy state");
+    }
+
+    sendMessage(new Sync());
+    sendCommandEnd(QueryClass.PipelineSync);
+    flush();
+  }
+
+  /**
+   * Ask the server to flush its output buffer. This is mostly useful
+   * in pipeline mode to get the results of the commands that were
+   * sent without having to send a synchronization point
+   *
+   * @throws IOException
+   */
+  public void sendFlushRequest() throws IOException {
+    if(cStatus != ConnectionStatus.CONNECTION_OK) {
+      throw new IOException("no connection");
     }
 
+    sendMessage(new Flush());
+    pipelineFlush();
+  }
+
+  /**
+   * Read as much data as available from the socket without blocking
+   */
+  private void readInput() throws IOException {
+    int count;
+    try {
+      count = inBuffer.readFrom(channel);
+    } catch(IOException ex) {
+      dumpTrace();
+      throw ex;
+    }
+    if(count < 0) {
+      // the server closed the connection, e.g. the backend was
+      // terminated
+      dumpTrace();
+      cStatus = ConnectionStatus.CONNECTION_BAD;
+      EventLoop.getDefault().deregister(socket);
+      channel.close();
+      ProtocolMetricsRegistry.getDefault().unregister(metrics);
+      throw new IOException("server closed the connection unexpectedly");
+    }
+    if(count > 0) {
+      metrics.bytesIn(count, inBuffer.remaining());
+    }
+  }
+
+  /**
+   * Set single row mode to true. This method has to be called after
+   * the starting a query asynchronously and before any results are
+   * retrieved using {@link #getResult}
+   */
+  public void setSingleRowMode() throws IOException {
+    checkRowModeAllowed();
     singleRowMode = true;
   }
 
+  /**
+   * Return the rows of the current query in results of up to
+   * chunkSize rows, with status {@link ResultStatus#PGRES_TUPLES_CHUNK}.
+   * The chunks share the row description, the last result has status
+   * {@link ResultStatus#PGRES_TUPLES_OK} and no rows. Must be called
+   * right after the query is sent.
+   */
+  public void setChunkedRowsMode(int chunkSize) throws IOException {
+    if(chunkSize <= 0) {
+      throw new IOException("chunk size must be positive");
+    }
+
+    checkRowModeAllowed();
+    this.chunkSize = chunkSize;
+  }
+
   /**
    * Set non blocking send mode, by default sending messages to the
    * backend are sent synchronously. In non blocking mode the messages
@@ -619,36 +1197,26 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   }
 
   /**
-   * Cancel the current request. This method will open
-   * a new connection to the backend and send a Cancel
-   * request
+   * Cancel the current request and wait for the server to process
+   * the CancelRequest. The server closing the connection is the only
+   * way to tell that it processed the request, otherwise a new query
+   * issued too fast could be cancelled instead.
    *
-   * @throws IOException
-   * @throws GeneralSecurityException
+   * @throws IOException if the CancelRequest couldn't be sent
    */
   public void cancel() throws IOException {
-    PostgresqlConnection conn = null;
-    try {
-      conn = PostgresqlConnection.connectDbCommon(props, true);
-      // we should do this synchronously
-      conn.socket.configureBlocking(true);
-      conn.sendMessage(new CancelRequest(bkd.getPid(), bkd.getSecret()));
-      while(!conn.flush()) ;
-      // try to close the connection
-      // wait for the connection to be closed by the
-      // server. That's the only way we have to tell that the
-      // server has processed the CancelRequest. Otherwise, we
-      // might issue a new query too fast before the previous
-      // CancelRequest is processed which will cause the new query
-      // to be cancelled.
-      conn.channel.read(ByteBuffer.allocate(1));
-    } catch(IOException ex) {
-      // ignore the exception
-    } finally {
-      if(conn != null) {
-        conn.close();
-      }
+    cancelAsync().await(0);
+  }
+
+  /**
+   * Send a CancelRequest for the current request without blocking,
+   * see {@link CancelService}
+   */
+  public CancelFuture cancelAsync() throws IOException {
+    if(bkd == null || serverAddress == null) {
+      throw new IOException("no connection to cancel");
     }
+    return CancelService.getDefault().cancel(serverAddress, bkd.getPid(), bkd.getSecret());
   }
 
   /**
@@ -660,14 +1228,39 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * false otherwise.
    */
   public boolean flush() throws IOException {
+    endCopyFrame();
+
     boolean done;
     do {
       outBuffer.flip();
       if(outBuffer.hasRemaining()) {
-        channel.write(outBuffer);
+        metrics.outputBuffered(outBuffer.remaining());
+        int count;
+        try {
+          count = channel.write(outBuffer);
+        } catch(IOException ex) {
+          dumpTrace();
+          throw ex;
+        }
+        if(count > 0) {
+          metrics.bytesOut(count);
+        }
       }
       outBuffer.compact();
       done = outBuffer.position() == 0 && channel.flush();
+      if(!done && (pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF || qClass == QueryClass.Batch ||
+                   qClass == QueryClass.Function)) {
+        // the server could be blocked on sending us the results of
+        // the commands in the pipeline, the batch or the function
+        // calls, read them to avoid a deadlock
+        readInput();
+        if(!nonBlocking) {
+          waitForSocket(SelectionKey.OP_WRITE | SelectionKey.OP_READ, 0);
+        }
+      } else if(!done && !nonBlocking && !socket.isBlocking()) {
+        // wait for the server to read some data instead of spinning
+        waitForSocket(SelectionKey.OP_WRITE, 0);
+      }
     } while(!done && !nonBlocking) ;
     return done;
   }
@@ -695,19 +1288,94 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    *
    * @throws IOException
    */
-  public void putCopyData(byte[] data) throws IOException {
+  public boolean putCopyData(byte[] data) throws IOException {
+    return putCopyData(data, 0, data.length);
+  }
+
+  /**
+   * Send the copy data to the server during CopyIn state. Consecutive
+   * calls append the data to the same CopyData message, the output
+   * buffer is flushed once it holds {@link #getCopyBufferSize} bytes.
+   *
+   * @return true if the data was queued, false if the connection is
+   *         non blocking and the output buffer is full, in which case
+   *         the call should be retried once the socket is writable
+   * @throws IOException
+   */
+  public boolean putCopyData(byte[] data, int offset, int length) throws IOException {
     if(aStatus != AsyncStatus.CopyIn && aStatus != AsyncStatus.CopyBoth) {
       throw new UnsupportedOperationException("not in copy in/both state");
     }
 
-    // make sure we read all the notice or notify messages that could
-    // be accumulating during the copy
-    parseInput();
+    if(outBuffer.position() > 0 && outBuffer.position() + length + 5 > copyBufferSize) {
+      // make sure we read all the notice or notify messages that could
+      // be accumulating during the copy
+      parseInput();
 
-    sendMessage(new CopyData(data));
+      // in non blocking mode flush() sends what the socket accepts
+      flush();
+      if(nonBlocking && outBuffer.position() > 0 &&
+          outBuffer.position() + length + 5 > copyBufferSize) {
+        return false;
+      }
+    }
 
-    // try to flush the data
-    flush();
+    if(!copyFrameOpen) {
+      writeMsgStart(MessageType.CopyData.firstByte);
+      copyFrameOpen = true;
+    }
+    writeNChar(data, offset, length);
+    return true;
+  }
+
+  /**
+   * Return the timeout of the synchronous commands in milliseconds
+   */
+  public long getQueryTimeout() {
+    return queryTimeout;
+  }
+
+  /**
+   * Set the timeout of the synchronous commands in milliseconds, 0 to
+   * wait forever. A command that runs for longer is cancelled and its
+   * result is an error for which {@link ResultSet#isTimedOut} returns
+   * true.
+   */
+  public void setQueryTimeout(long queryTimeout) {
+    if(queryTimeout < 0) {
+      throw new IllegalArgumentException("query timeout can't be negative");
+    }
+    this.queryTimeout = queryTimeout;
+  }
+
+  /**
+   * Return the size of the CopyData messages and of the output buffer
+   * during CopyIn
+   */
+  public int getCopyBufferSize() {
+    return copyBufferSize;
+  }
+
+  public void setCopyBufferSize(int copyBufferSize) {
+    if(copyBufferSize <= 0) {
+      throw new IllegalArgumentException("copy buffer size must be positive");
+    }
+    this.copyBufferSize = copyBufferSize;
+  }
+
+  public int getBufferRetainSize() {
+    return bufferRetainSize;
+  }
+
+  /**
+   * Set the size the buffers can grow to and still be kept after a
+   * result is delivered, larger buffers are given back to the pool
+   */
+  public void setBufferRetainSize(int bufferRetainSize) {
+    if(bufferRetainSize < 0) {
+      throw new IllegalArgumentException("buffer retain size can't be negative");
+    }
+    this.bufferRetainSize = bufferRetainSize;
   }
 
   /**
@@ -768,6 +1436,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         // any other message should terminate the CopyOut and/or
         // CopyBoth modes
         aStatus = AsyncStatus.Busy;
+        disarmDeadline();
         return null;
       }
 
@@ -779,10 +1448,10 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
 
         // if we're waiting synchronously, then block until the socket
         // is ready for read
-        Selector selector = Selector.open();
-        socket.register(selector, SelectionKey.OP_READ);
-        selector.select();
-        selector.close();
+        if(!waitForResult(SelectionKey.OP_READ)) {
+          abandonTimedOutCommand();
+          throw new IOException("the server didn't answer the cancel request, connection closed");
+        }
         continue;
       }
 
@@ -804,6 +1473,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
           aStatus = AsyncStatus.Busy;
         }
         result = null;
+        disarmDeadline();
         return null;
 
       default:
@@ -813,10 +1483,97 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   }
 
   /**
-   * Create a {@link LargeObjectAPI} that uses this connection
+   * Write the rest of the data of the current CopyOut to the given
+   * channel. The payloads of the CopyData messages are copied from
+   * the receive buffer to a direct buffer that is written to the
+   * channel whenever it's full, rows that don't fit in the buffer are
+   * written directly.
+   *
+   * @return the result of the COPY command, i.e. the CommandComplete
+   *         or the error that ended the copy
+   * @throws IOException
+   */
+  public ResultSet copyOutTo(WritableByteChannel dest) throws IOException {
+    if(aStatus != AsyncStatus.CopyOut) {
+      throw new IOException("not in copy out mode");
+    }
+
+    ByteBuffer staging = ByteBuffer.allocateDirect(COPY_OUT_BUFFER_SIZE);
+    for(;;) {
+      int length = inBuffer.copyDataLength();
+      if(length >= 0) {
+        if(length > staging.remaining()) {
+          writeFully(staging, dest);
+        }
+        if(length > staging.capacity()) {
+          inBuffer.getCopyData(dest);
+        } else {
+          inBuffer.getCopyData(staging);
+        }
+        metrics.messageIn(MessageType.CopyData.firstByte);
+        continue;
+      }
+
+      if(hasAsynchronousMessage()) {
+        ProtocolMessage msg = getMessage();
+        if(msg != null) {
+          handleAsyncMessage(msg);
+          continue;
+        }
+      } else if(inBuffer.peekType() == MessageType.CopyDone.firstByte) {
+        if(getMessage() != null) {
+          break;
+        }
+      } else if(inBuffer.peekType() != MessageType.CopyData.firstByte &&
+                inBuffer.peekType() != -1) {
+        // any other message, e.g. an ErrorResponse, ends the copy
+        break;
+      }
+
+      // the next message is incomplete, read more data and only
+      // block if there isn't any
+      int remaining = inBuffer.remaining();
+      consumeInput();
+      if(inBuffer.remaining() == remaining) {
+        if(!waitForResult(SelectionKey.OP_READ)) {
+          writeFully(staging, dest);
+          return abandonTimedOutCommand();
+        }
+        consumeInput();
+      }
+    }
+    writeFully(staging, dest);
+
+    aStatus = AsyncStatus.Busy;
+    result = null;
+    try {
+      ResultSet res = markTimedOut(getResult());
+      while(getResult() != null) {
+        // consume the rest of the results
+      }
+      return res;
+    } finally {
+      disarmDeadline();
+    }
+  }
+
+  /**
+   * Return the {@link LargeObjectAPI} of this connection
    */
   public LargeObjectAPI getLargeObjectAPI() {
-    return new LargeObjectAPI(this);
+    if(largeObjectAPI == null) {
+      largeObjectAPI = new LargeObjectAPI(this);
+    }
+    return largeObjectAPI;
+  }
+
+  /**
+   * Return a string that identifies the server this connection is
+   * connected to, used to share what is known about the server's
+   * catalog between connections
+   */
+  public String getServerKey() {
+    return Utils.host(props) + ":" + Utils.port(props) + "/" + getServerVersion();
   }
 
   public String getClientEncoding() {
@@ -892,101 +1649,85 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    */
   public void trace(Writer tracer) {
     untrace();
-    this.tracer = new PrintWriter(tracer, true);
-  }
-
-  /**
-   * Remove any previously added tracer
-   */
-  public void untrace() {
-    if(this.tracer != null) {
-      this.tracer.flush();
-      this.tracer = null;
+    if(trace == null) {
+      setTrace(new ProtocolTrace(0, 0));
     }
+    trace.setWriter(new PrintWriter(tracer, true));
   }
 
   /**
-   * Set the notice receiver
-   */
-  public NoticeReceiver setNoticeReceiver(NoticeReceiver receiver) {
-    NoticeReceiver oldReceiver = this.receiver;
-    if(receiver != null) {
-      this.receiver = receiver;
-    }
-    return oldReceiver;
-  }
-
-  // ProtocolReader methods
-
-  // Note for all ProtocolReader methods, the buffer is assumed to be
-  // ready for read here, i.e. it's flipped.
-
-  public boolean hasCompleteMessage() {
-    if(inBuffer.remaining() < 5) {
-      return false;
-    }
-
-    try {
-      inBuffer.mark();
-      // get the type of the message
-      inBuffer.get();
-      int len = inBuffer.getInt();
-      if(inBuffer.remaining() < len - 4) {
-        // there isn't enough data, return for now
-        return false;
+   * Remove any previously added tracer
+   */
+  public void untrace() {
+    if(trace != null) {
+      trace.setWriter(null);
+      if(trace.getCapacity() == 0) {
+        setTrace(null);
       }
-      return true;
-    } finally {
-      inBuffer.reset();
     }
   }
 
-  public byte getByte() {
-    byte b = inBuffer.get();
-    if(tracer != null) {
-      tracer.printf("From backend> %c\n", b);
+  /**
+   * Start recording the last capacity messages in a ring buffer, see
+   * {@link ProtocolTrace}. The messages recorded so far are discarded.
+   *
+   * @param dumpFile the file the ring is written to if the connection
+   *        fails, can be null
+   */
+  public void enableTraceBuffer(int capacity, int payloadLimit, File dumpFile) {
+    ProtocolTrace newTrace = new ProtocolTrace(capacity, payloadLimit);
+    newTrace.setDumpFile(dumpFile);
+    if(trace != null) {
+      newTrace.setWriter(trace.getWriter());
     }
-    return b;
+    setTrace(newTrace);
   }
 
-  public int getInt() {
-    int i = inBuffer.getInt();
-    if(tracer != null) {
-      tracer.printf("From backend (#%d)> %d\n", 4, i);
+  /**
+   * Stop recording messages, the tracer, if any, is kept
+   */
+  public void disableTraceBuffer() {
+    if(trace != null && trace.getCapacity() > 0) {
+      PrintWriter writer = trace.getWriter();
+      setTrace(null);
+      if(writer != null) {
+        setTrace(new ProtocolTrace(0, 0));
+        trace.setWriter(writer);
+      }
     }
-    return i;
   }
 
-  public short getShort() {
-    short s = inBuffer.getShort();
-    if(tracer != null) {
-      tracer.printf("From backend (#%d)> %d\n", 2, s);
-    }
-    return s;
+  /**
+   * Return the trace of the connection, null if tracing is disabled
+   */
+  public ProtocolTrace getTrace() {
+    return trace;
   }
 
-  public String getString() {
-    ByteBuffer slice = inBuffer.slice();
-    while(slice.get() != '\0')
-      ;
-    slice.flip();
-    int len = slice.remaining();
-    // copy the entire string without the null byte
-    String s = new String(slice.array(), slice.arrayOffset(), len - 1);
-    inBuffer.position(inBuffer.position() + len);
-    if(tracer != null) {
-      tracer.printf("From backend> \"%s\"\n", s);
+  /**
+   * Cache the statements executed with execQueryParams and
+   * sendQueryParams. Statements are prepared once they've been
+   * executed threshold times, a size of 0 disables the cache. The
+   * statements of the previous cache are left on the server.
+   */
+  public void setStatementCache(int size, int threshold) {
+    if(statementCache != null) {
+      // the statements left on the server keep their names
+      nextStatementId = statementCache.getNextId();
     }
-    return s;
+    statementCache = size > 0 ? new StatementCache(size, threshold, nextStatementId) : null;
+    lastStatement = null;
   }
 
-  public byte[] getNChar(int len) {
-    byte[] bytes = new byte[len];
-    inBuffer.get(bytes);
-    if(tracer != null) {
-      tracer.printf("From backend (%d)> %s\n", bytes.length, new String(bytes));
+  /**
+   * Set the notice receiver
+   */
+  public NoticeReceiver setNoticeReceiver(NoticeReceiver receiver) {
+    NoticeReceiver oldReceiver = this.receiver;
+    if(receiver != null) {
+      this.receiver = receiver;
     }
-    return bytes;
+    return oldReceiver;
   }
 
   // ProtocolWriter methods
@@ -1006,43 +1747,39 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     if(b != 0) {
       outBuffer.put(b);
     }
+    metrics.messageOut(b);
     lengthPosition = outBuffer.position();
     // temporary set the length to 0
     outBuffer.putInt(0);
-    if(tracer != null) {
-      tracer.printf("To backend> Msg %c\n", b);
-    }
   }
 
   public void writeByte(char c) {
+    expandOutputBuffer(1);
     outBuffer.put((byte) c);
-    if(tracer != null) {
-      tracer.printf("To backend> %c\n", c);
-    }
   }
 
   public void writeInt(int n) {
     expandOutputBuffer(4);
     outBuffer.putInt(n);
-    if(tracer != null) {
-      tracer.printf("To backend (%d#)> %d\n", 4, n);
-    }
   }
 
   public void writeShort(int s) {
     expandOutputBuffer(2);
     outBuffer.putShort((short) s);
-    if(tracer != null) {
-      tracer.printf("To backend (%d#)> %d\n", 2, s);
-    }
+  }
+
+  public void writeLong(long n) {
+    expandOutputBuffer(8);
+    outBuffer.putLong(n);
   }
 
   public void writeNChar(byte[] bytes) {
-    expandOutputBuffer(bytes.length);
-    outBuffer.put(bytes);
-    if(tracer != null) {
-      tracer.printf("To backend> %s\n", new String(bytes));
-    }
+    writeNChar(bytes, 0, bytes.length);
+  }
+
+  public void writeNChar(byte[] bytes, int offset, int len) {
+    expandOutputBuffer(len);
+    outBuffer.put(bytes, offset, len);
   }
 
   public void writeString(byte[] bytes) {
@@ -1056,9 +1793,6 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     if(requiredLength > bytes.length) {
       outBuffer.put((byte) 0);
     }
-    if(tracer != null) {
-      tracer.printf("To backend> \"%s\"\n", new String(bytes));
-    }
   }
 
   public void writeString(String s) {
@@ -1075,16 +1809,34 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     }
 
     int msgLen = outBuffer.position() - lengthPosition;
-    int actualLen = outBuffer.position() - firstPosition;
     outBuffer.putInt(lengthPosition, msgLen);
-    lengthPosition = -1;
-    if(tracer != null) {
-      tracer.printf("To backend> Msg complete, length %d\n", actualLen);
+    if(trace != null) {
+      byte type = lengthPosition > firstPosition ? outBuffer.get(firstPosition) : 0;
+      trace.record(false, type, outBuffer, lengthPosition + 4, msgLen - 4);
     }
+    lengthPosition = -1;
   }
 
   // private methods
 
+  /**
+   * Throw if the row mode can't be changed, i.e. the connection isn't
+   * running a query or already received some of its results
+   */
+  private void checkRowModeAllowed() throws IOException {
+    if(aStatus != AsyncStatus.Busy) {
+      throw new IOException("connection not busy");
+    }
+
+    if(qClass != QueryClass.Simple && qClass != QueryClass.Extended) {
+      throw new IOException("connection isn't executing a query");
+    }
+
+    if(result != null) {
+      throw new IOException("result set already received");
+    }
+  }
+
   /**
    * Expand the output buffer to guarantee that at least required bytes
    * are available in the output buffer
@@ -1096,13 +1848,38 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       // try to double the buffer if this adds up enough space,
       // otherwise add (required - oldRemaining)
       int newCapacity = oldCapacity + Math.max(oldCapacity, required - oldRemaining);
-      ByteBuffer newOutBuffer = ByteBuffer.allocate(newCapacity);
+      ByteBuffer newOutBuffer = pool.acquire(newCapacity);
       outBuffer.flip();
       newOutBuffer.put(outBuffer);
+      pool.release(outBuffer);
       outBuffer = newOutBuffer;
     }
   }
 
+  /**
+   * Give the buffers that grew beyond the retain size back to the
+   * pool, the data that wasn't sent or parsed yet is kept
+   */
+  private void shrinkBuffers() {
+    inBuffer.shrink(bufferRetainSize);
+    if(outBuffer.position() == 0 && outBuffer.capacity() > bufferRetainSize &&
+        outBuffer.capacity() > BufferPool.MIN_BUFFER_SIZE) {
+      pool.release(outBuffer);
+      outBuffer = pool.acquire(BufferPool.MIN_BUFFER_SIZE);
+    }
+  }
+
+  /**
+   * Give the buffers back to the pool once the connection is closed,
+   * they're replaced by empty ones in case the connection is used
+   * after that
+   */
+  private void releaseBuffers() {
+    inBuffer.release();
+    pool.release(outBuffer);
+    outBuffer = ByteBuffer.allocate(0);
+  }
+
   private PollingStatus connectPollInternal()
   throws IOException, GeneralSecurityException {
     for(;;) {
@@ -1112,7 +1889,8 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         // start the connection
         String host = Utils.host(props);
         int port = Utils.port(props);
-        socket.connect(new InetSocketAddress(host, port));
+        serverAddress = new InetSocketAddress(host, port);
+        socket.connect(serverAddress);
         cStatus = ConnectionStatus.CONNECTION_STARTED;
         return PollingStatus.PGRES_POLLING_WRITING;
 
@@ -1152,13 +1930,6 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
           channel = new SocketByteChannel(socket);
         }
 
-        // if we opened this connection to send a cancel request, stop
-        // here and let the caller send the CancelRequest
-        if(forCancel) {
-          // just return something, to stop the loop in connectDbCommon
-          return PollingStatus.PGRES_POLLING_OK;
-        }
-
         // send StartupRequest, usage of encryption has been
         // established at this point
         String user = Utils.user(props);
@@ -1367,41 +2138,29 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * This method will finish establishing the connection by calling
    * {@link #connectionPoll} until the connection fails or is
    * established.
-   *
-   * @param forCancel if true then the connection is used to send a
-   *        CancelRequest and no StartupRequest will be sent
    */
-  private static PostgresqlConnection connectDbCommon(Properties props, boolean forCancel)
+  private static PostgresqlConnection connectDbCommon(Properties props)
   throws IOException {
     // start a connection asynchronously
     PostgresqlConnection conn = new PostgresqlConnection(props);
-    conn.forCancel = forCancel;
     conn.connect();
 
     // while the connection isn't established keep calling connectPoll
     // and wait for the socket to be read/write ready depending on
     // the return value of connectPoll
-    Selector selector = Selector.open();
-    try {
-      SelectionKey key = conn.getSocket().register(selector, 0);
-      for(;;) {
-        PollingStatus status = conn.connectPoll();
-        switch(status) {
-        case PGRES_POLLING_WRITING:
-          key.interestOps(SelectionKey.OP_WRITE);
-          selector.select();
-          continue;
-        case PGRES_POLLING_READING:
-          key.interestOps(SelectionKey.OP_READ);
-          selector.select();
-          continue;
-        case PGRES_POLLING_OK:
-        case PGRES_POLLING_FAILED:
-          return conn;
-        }
+    for(;;) {
+      PollingStatus status = conn.connectPoll();
+      switch(status) {
+      case PGRES_POLLING_WRITING:
+        conn.waitForSocket(SelectionKey.OP_WRITE, 0);
+        continue;
+      case PGRES_POLLING_READING:
+        conn.waitForSocket(SelectionKey.OP_READ, 0);
+        continue;
+      case PGRES_POLLING_OK:
+      case PGRES_POLLING_FAILED:
+        return conn;
       }
-    } finally {
-      selector.close();
     }
   }
 
@@ -1415,12 +2174,15 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    */
   private void sendDescribe(PostgresqlString name, StatementType type)
   throws IOException {
+    sendQueryStart();
+
     sendMessage(new Describe(name, type));
-    sendMessage(new Sync());
-    aStatus = AsyncStatus.Busy;
-    qClass = QueryClass.Describe;
+    if(type == StatementType.Prepared && pipelineStatus == PipelineStatus.PQ_PIPELINE_OFF) {
+      describedStatement = name.toString();
+    }
+    sendCommandEnd(QueryClass.Describe);
     lastQuery = null;
-    flush();
+    pipelineFlush();
   }
 
   /**
@@ -1432,10 +2194,19 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       throw new IOException("no connection");
     }
 
+    if(pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF) {
+      throw new IOException("synchronous command execution functions are not allowed in pipeline mode");
+    }
+
+    disarmDeadline();
     while(getResult() != null) {
       // todo: make we sure we exit from CopyIn and CopyOut modes
       // properly
     }
+
+    if(queryTimeout > 0) {
+      deadline = new QueryDeadline(this, queryTimeout);
+    }
   }
 
   /**
@@ -1444,6 +2215,40 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * status
    */
   private ResultSet execFinish() throws IOException {
+    return execFinish(false);
+  }
+
+  /**
+   * Same as {@link #execFinish()}, if retry is true the deadline stays
+   * armed when the command will be sent again. It also stays armed
+   * for a CopyOut, the rows are part of the command.
+   */
+  private ResultSet execFinish(boolean retry) throws IOException {
+    ResultSet result = null;
+    try {
+      result = markTimedOut(execFinishCommon());
+      return result;
+    } finally {
+      if(result == null || (result.getStatus() != ResultStatus.PGRES_COPY_OUT &&
+                            !(retry && shouldRetry(result)))) {
+        disarmDeadline();
+      }
+    }
+  }
+
+  /**
+   * Mark the result as timed out if it's the error of the cancel sent
+   * when the deadline passed
+   */
+  private ResultSet markTimedOut(ResultSet result) {
+    if(deadline != null && deadline.isExpired() && result != null &&
+       QUERY_CANCELED.equals(result.getErrorField(ErrorField.PG_DIAG_SQLSTATE.getCode()))) {
+      result.setTimedOut(deadline.getTimeout());
+    }
+    return result;
+  }
+
+  private ResultSet execFinishCommon() throws IOException {
     ResultSet result, lastResult;
     lastResult = null;
     while((result = getResult()) != null) {
@@ -1478,6 +2283,41 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     return lastResult;
   }
 
+  private void disarmDeadline() {
+    if(deadline != null) {
+      deadline.disarm();
+      deadline = null;
+    }
+  }
+
+  /**
+   * Wait for the socket while waiting for the results of a command,
+   * return false if the command timed out and the server didn't
+   * answer the cancel request in time
+   */
+  private boolean waitForResult(int ops) throws IOException {
+    if(deadline == null) {
+      return waitForSocket(ops, 0);
+    }
+    return waitForSocket(ops, deadline.remainingWait());
+  }
+
+  /**
+   * Close the connection of a command that couldn't be cancelled, its
+   * results can't be told apart from the results of the next command
+   */
+  private ResultSet abandonTimedOutCommand() throws IOException {
+    dumpTrace();
+    EventLoop.getDefault().deregister(socket);
+    cStatus = ConnectionStatus.CONNECTION_BAD;
+    aStatus = AsyncStatus.Idle;
+    channel.close();
+    ProtocolMetricsRegistry.getDefault().unregister(metrics);
+    return makeEmptyResult(ResultStatus.PGRES_FATAL_ERROR)
+           .appendErrorMessage("the server didn't answer the cancel request, connection closed")
+           .setTimedOut(deadline.getTimeout());
+  }
+
   /**
    * Called at the beginning of all asynchronous exec or prepare
    * methods to make sure the connection is ok and not busy
@@ -1488,6 +2328,16 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       throw new UnsupportedOperationException("Bad connection");
     }
 
+    if(pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF) {
+      // in pipeline mode commands can be queued while we're busy,
+      // but not in the middle of a copy
+      if(aStatus == AsyncStatus.CopyIn || aStatus == AsyncStatus.CopyOut ||
+          aStatus == AsyncStatus.CopyBoth) {
+        throw new UnsupportedOperationException("Copy in progress");
+      }
+      return;
+    }
+
     // if we're not idle, throw an exception
     if(aStatus != AsyncStatus.Idle) {
       throw new UnsupportedOperationException("Busy");
@@ -1496,6 +2346,86 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     // clear the state from previous queries
     result = null;
     singleRowMode = false;
+    chunkSize = 0;
+    nextResultReady = false;
+    clearDescribedStatement();
+    pendingFunctionCalls = 0;
+  }
+
+  /**
+   * Forget the statement whose description the current command uses
+   * or caches
+   */
+  private void clearDescribedStatement() {
+    describedStatement = null;
+    describedFormat = null;
+    useCachedRows = false;
+    cachedRows = null;
+  }
+
+  /**
+   * Called at the end of all asynchronous exec or prepare methods
+   * after the messages of the command are written. Outside pipeline
+   * mode this sends a Sync and waits for the results of the
+   * command. In pipeline mode the command is queued and processed
+   * once the results of the previous commands are consumed.
+   */
+  private void sendCommandEnd(QueryClass queryClass) {
+    if(pipelineStatus == PipelineStatus.PQ_PIPELINE_OFF) {
+      sendMessage(new Sync());
+      qClass = queryClass;
+      aStatus = AsyncStatus.Busy;
+      return;
+    }
+
+    pipelineQueue.add(queryClass);
+    if(aStatus == AsyncStatus.Idle) {
+      pipelineProcessNext();
+    }
+  }
+
+  /**
+   * Start processing the results of the command at the head of the
+   * pipeline queue. If the pipeline is aborted, the result of the
+   * command is {@link ResultStatus.PGRES_PIPELINE_ABORTED} since the
+   * server will skip it.
+   */
+  private void pipelineProcessNext() {
+    if(pipelineQueue.isEmpty()) {
+      aStatus = AsyncStatus.Idle;
+      return;
+    }
+
+    qClass = pipelineQueue.peek();
+    result = null;
+    nextResult = null;
+    singleRowMode = false;
+    chunkSize = 0;
+    nextResultReady = false;
+    // the statement descriptions are only used outside pipeline mode
+    clearDescribedStatement();
+
+    if(pipelineStatus == PipelineStatus.PQ_PIPELINE_ABORTED &&
+        qClass != QueryClass.PipelineSync) {
+      result = makeEmptyResult(ResultStatus.PGRES_PIPELINE_ABORTED).
+               appendErrorMessage("pipeline aborted");
+      aStatus = AsyncStatus.Ready;
+      return;
+    }
+
+    aStatus = AsyncStatus.Busy;
+  }
+
+  /**
+   * Flush the output buffer after sending a command. In pipeline mode
+   * the output buffer is flushed only if it's grown too much, the
+   * rest is flushed by {@link #pipelineSync} or {@link #flush}
+   */
+  private void pipelineFlush() throws IOException {
+    if(pipelineStatus == PipelineStatus.PQ_PIPELINE_OFF ||
+        outBuffer.position() >= PIPELINE_FLUSH_THRESHOLD) {
+      flush();
+    }
   }
 
   /**
@@ -1503,8 +2433,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    */
   private PostgresqlConnection(Properties props) {
     this.props = props;
-    inBuffer = ByteBuffer.allocate(4096);
-    outBuffer = ByteBuffer.allocate(4096);
+    outBuffer = pool.acquire(BufferPool.MIN_BUFFER_SIZE);
     // by default the connection should be blocking on send
     nonBlocking = false;
     cStatus = ConnectionStatus.CONNECTION_NEEDED;
@@ -1653,7 +2582,115 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * flush the output buffer to the socket
    */
   private void sendMessage(FrontendMessage msg) {
+    endCopyFrame();
     msg.write(this);
+    if(statementCache != null) {
+      MessageType type = msg.getType();
+      if(type == MessageType.Sync || type == MessageType.Query || type == MessageType.FunctionCall) {
+        statementCache.syncSent();
+      }
+    }
+  }
+
+  /**
+   * Write the content of the given buffer to the channel and clear it
+   */
+  private static void writeFully(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+    buffer.flip();
+    while(buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * End the CopyData message that putCopyData appends to, must be
+   * called before anything else is written or sent
+   */
+  private void endCopyFrame() {
+    if(copyFrameOpen) {
+      copyFrameOpen = false;
+      writeMsgEnd();
+    }
+  }
+
+  private void setTrace(ProtocolTrace trace) {
+    this.trace = trace;
+    inBuffer.setTrace(trace);
+  }
+
+  /**
+   * Write the trace to its dump file, if there's one, called when the
+   * connection fails
+   */
+  private void dumpTrace() {
+    if(trace != null) {
+      trace.dumpOnError();
+    }
+  }
+
+  /**
+   * Send Bind, Describe and Execute for the given statement. The
+   * Describe is skipped if the statement was described before, the
+   * cached description is used when the BindComplete is received.
+   * Outside pipeline mode only one command is in flight, in pipeline
+   * mode the Describe is always sent.
+   */
+  private void sendExecute(PostgresqlString name, Value[] values, Format format) {
+    PostgresqlString empty = new PostgresqlString("");
+    sendMessage(new Bind(empty, name, values, format));
+
+    String statement = name.toString();
+    if(statement.isEmpty() || pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF) {
+      sendMessage(new Describe(empty, StatementType.Portal));
+    } else {
+      describedStatement = statement;
+      DescriptionCache.Description description = descriptionCache.get(statement);
+      if(description != null && description.isDescribed(format)) {
+        useCachedRows = true;
+        cachedRows = description.getRows(format);
+      } else {
+        describedFormat = format;
+        sendMessage(new Describe(empty, StatementType.Portal));
+      }
+    }
+    sendMessage(new Execute(empty));
+  }
+
+  /**
+   * Close the given prepared statement
+   */
+  private void sendClose(String name) {
+    sendMessage(new Close(name, StatementType.Prepared));
+    descriptionCache.invalidate(name);
+  }
+
+  /**
+   * Send a Parse message and let the statement cache know about it,
+   * statement is null unless a cached statement is being prepared
+   */
+  private void sendParse(PostgresqlString name, PostgresqlString query, int[] oids,
+                         StatementCache.Statement statement) {
+    sendMessage(new Parse(name, query, oids));
+    descriptionCache.invalidate(name.toString());
+    if(statementCache != null) {
+      statementCache.parseSent(statement);
+    }
+  }
+
+  /**
+   * Returns true if the given result is an error caused by a cached
+   * statement being invalidated and the query can be safely sent
+   * again, i.e. we aren't in a transaction
+   */
+  private boolean shouldRetry(ResultSet result) {
+    if(lastStatement == null || result == null ||
+        result.getStatus() != ResultStatus.PGRES_FATAL_ERROR ||
+        xStatus != TransactionStatus.PQTRANS_IDLE) {
+      return false;
+    }
+    return StatementCache.isInvalidationError(result.getErrorField(ErrorField.PG_DIAG_SQLSTATE.getCode()),
+                                              result.getErrorField(ErrorField.PG_DIAG_MESSAGE_PRIMARY.getCode()));
   }
 
   /**
@@ -1662,6 +2699,22 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * @throws IOException
    */
   private void parseInput() throws IOException {
+    long start = System.nanoTime();
+    try {
+      parseMessages();
+    } catch(IOException ex) {
+      dumpTrace();
+      throw ex;
+    } catch(RuntimeException ex) {
+      // e.g. an unknown message
+      dumpTrace();
+      throw ex;
+    } finally {
+      metrics.parse(System.nanoTime() - start);
+    }
+  }
+
+  private void parseMessages() throws IOException {
     for(;;) {
       // check the first character to see if it's an asynchronous
       // message
@@ -1695,10 +2748,42 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       switch(msg.getType()) {
 
       case CommandComplete:
+        if(qClass == QueryClass.Batch) {
+          // keep the number of affected rows only
+          batchCounts[batchCount++] = ((CommandComplete) msg).getRows();
+          break;
+        }
+        startPortalBatch();
         if(result == null) {
           result = makeEmptyResult(ResultStatus.PGRES_COMMAND_OK);
         }
         result.setCmdStatus((CommandComplete) msg);
+        if(chunkSize > 0 && result.getStatus() == ResultStatus.PGRES_TUPLES_OK &&
+            result.getRowCount() > 0) {
+          // return the remaining rows as a chunk, followed by an
+          // empty result
+          nextResult = result.copy();
+          result.setStatus(ResultStatus.PGRES_TUPLES_CHUNK);
+          nextResultReady = true;
+        }
+        String command = ((CommandComplete) msg).getCommand();
+        if(command.startsWith("DEALLOCATE") || command.equals("DISCARD ALL")) {
+          descriptionCache.clear();
+        }
+        if(qClass == QueryClass.Portal) {
+          // the portal is exhausted, close it and end the command. If
+          // the rows ended with the previous batch don't return an
+          // empty one
+          boolean emptyBatch = portalFetched && result.getRows().isEmpty();
+          if(!portalClosed) {
+            sendMessage(new Close(PORTAL_NAME.toString(), StatementType.Portal));
+          }
+          endPortal();
+          if(emptyBatch) {
+            result = null;
+            break;
+          }
+        }
         aStatus = AsyncStatus.Ready;
         break;
 
@@ -1707,15 +2792,46 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         result.setErrorResponse((ErrorResponse) msg);
         lastSqlState = ((ErrorResponse)msg).getErrorField(ErrorField.PG_DIAG_SQLSTATE);
         errorMessage = ((ErrorResponse)msg).getErrorMessage();
+        if(describedStatement != null) {
+          descriptionCache.invalidate(describedStatement);
+        }
+        if(statementCache != null) {
+          statementCache.error(lastSqlState, ((ErrorResponse)msg).getErrorField(ErrorField.PG_DIAG_MESSAGE_PRIMARY));
+        }
+        if(pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF) {
+          // the server will skip everything until the next Sync
+          pipelineStatus = PipelineStatus.PQ_PIPELINE_ABORTED;
+        } else if(qClass == QueryClass.Portal) {
+          // the server is waiting for a Sync
+          endPortal();
+        }
         aStatus = AsyncStatus.Ready;
         break;
 
       case ReadyForQuery:
         xStatus = ((ReadyForQuery)msg).getTransactionStatus();
-        aStatus = AsyncStatus.Idle;
+        if(statementCache != null) {
+          statementCache.syncCompleted();
+        }
+        if(qClass == QueryClass.Function && --pendingFunctionCalls > 0) {
+          // the results of the next function calls are on their way
+          break;
+        }
+        if(pipelineStatus != PipelineStatus.PQ_PIPELINE_OFF &&
+            qClass == QueryClass.PipelineSync) {
+          // we reached a synchronization point in the pipeline
+          result = makeEmptyResult(ResultStatus.PGRES_PIPELINE_SYNC);
+          pipelineStatus = PipelineStatus.PQ_PIPELINE_ON;
+          aStatus = AsyncStatus.Ready;
+        } else {
+          aStatus = AsyncStatus.Idle;
+        }
         break;
 
       case ParseComplete:
+        if(statementCache != null) {
+          statementCache.parseCompleted();
+        }
         // if we're just doing a prepare, then we're done. Otherwise,
         // just ignore
         if(qClass == QueryClass.Prepare) {
@@ -1727,8 +2843,22 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         break;
 
       case BindComplete:
+        // if the Describe was skipped start the result as if the
+        // RowDescription was received
+        if(useCachedRows && cachedRows != null) {
+          result = makeEmptyResult(ResultStatus.PGRES_TUPLES_OK);
+          result.setDescription(cachedRows);
+        }
+        break;
+
       case CloseComplete:
-        // we can safely ignore these messages
+        // we can safely ignore this message
+        break;
+
+      case FunctionCallResponse:
+        result = makeEmptyResult(ResultStatus.PGRES_COMMAND_OK);
+        result.setFunctionResult(((FunctionCallResponse) msg).getValue());
+        aStatus = AsyncStatus.Ready;
         break;
 
       case ParameterDescription:
@@ -1757,6 +2887,10 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
 
         // get the row descrption
         result.setDescription((RowDescription)msg);
+        if(qClass == QueryClass.Portal) {
+          portalRows = (RowDescription) msg;
+        }
+        cacheDescription((RowDescription) msg);
 
         // if this is a Describe query then we're done
         if(qClass == QueryClass.Describe) {
@@ -1768,6 +2902,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       case NoData:
         // NoData means the query won't return data, thus we won't get
         // a RowDescription
+        cacheDescription(null);
         if(qClass == QueryClass.Describe) {
           if(result == null) {
             result = makeEmptyResult(ResultStatus.PGRES_COMMAND_OK);
@@ -1777,6 +2912,11 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         break;
 
       case DataRow:
+        if(qClass == QueryClass.Batch) {
+          // the rows of a batch are discarded
+          break;
+        }
+        startPortalBatch();
         if(result == null) {
           throw new IOException("invalid result set");
         }
@@ -1798,6 +2938,22 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         }
 
         result.appendRow((DataRow) msg);
+
+        // in chunked rows mode, return the chunk once it's full and
+        // collect the next rows in a new result
+        if(chunkSize > 0 && result.getRowCount() >= chunkSize) {
+          nextResult = result.copy();
+          result.setStatus(ResultStatus.PGRES_TUPLES_CHUNK);
+          aStatus = AsyncStatus.Ready;
+        }
+        break;
+
+      case PortalSuspended:
+        // the current batch is complete
+        startPortalBatch();
+        // don't fetch the next batch of a closed portal
+        portalSuspended = !portalClosed;
+        aStatus = AsyncStatus.Ready;
         break;
 
       case CopyInResponse:
@@ -1834,17 +2990,54 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     }
   }
 
+  /**
+   * Start the result of the next batch of a portal if it wasn't started
+   * yet, only the first batch receives a RowDescription
+   */
+  private void startPortalBatch() {
+    if(qClass == QueryClass.Portal && result == null && portalRows != null) {
+      result = makeEmptyResult(ResultStatus.PGRES_TUPLES_OK);
+      result.setDescription(portalRows);
+    }
+  }
+
+  /**
+   * Send the Sync that ends the portal, the command continues as a
+   * normal extended query until ReadyForQuery. A closed portal sent
+   * its Sync already.
+   */
+  private void endPortal() throws IOException {
+    if(!portalClosed) {
+      sendMessage(new Sync());
+      flush();
+    }
+    qClass = QueryClass.Extended;
+    portalRows = null;
+  }
+
+  /**
+   * Remember the description of the statement being described or
+   * executed, rows is null if the statement doesn't return rows
+   */
+  private void cacheDescription(RowDescription rows) {
+    if(describedStatement == null) {
+      return;
+    }
+    if(qClass == QueryClass.Describe) {
+      ParameterDescription parameters = result == null ? null : result.getParameterDescription();
+      descriptionCache.describedStatement(describedStatement, parameters, rows);
+    } else if(describedFormat != null) {
+      descriptionCache.describedPortal(describedStatement, describedFormat, rows);
+    }
+  }
+
   /**
    * Returns true if the type of the next message is of an
    * Asynchronous type, i.e. ParameterStatus, NoticeResponse, or
    * NotificationResponse.
    */
   private boolean hasAsynchronousMessage() {
-    ByteBuffer buf = (ByteBuffer) inBuffer.duplicate().flip();
-    if(!buf.hasRemaining()) {
-      return false;
-    }
-    byte type = buf.get();
+    int type = inBuffer.peekType();
     if(type == MessageType.NoticeResponse.firstByte ||
         type == MessageType.NotificationResponse.firstByte ||
         type == MessageType.ParameterStatus.firstByte) {
@@ -1858,11 +3051,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * CopyData or CopyDone
    */
   private boolean hasCopyMessage() {
-    ByteBuffer buf = (ByteBuffer) inBuffer.duplicate().flip();
-    if(!buf.hasRemaining()) {
-      return false;
-    }
-    byte type = buf.get();
+    int type = inBuffer.peekType();
     if(type == MessageType.CopyData.firstByte ||
         type == MessageType.CopyDone.firstByte) {
       return true;
@@ -1935,9 +3124,10 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * messages ready for parsing
    */
   private ProtocolMessage getMessage() {
-    inBuffer.flip();
-    ProtocolMessage msg = ProtocolMessageParser.parseMessage(this);
-    inBuffer.compact();
+    ProtocolMessage msg = ProtocolMessageParser.parseMessage(inBuffer);
+    if(msg != null) {
+      metrics.messageIn(msg.getFirstByte());
+    }
     return msg;
   }
 
@@ -1948,10 +3138,9 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * @throws IOException
    */
   private void connect() throws IOException {
-    // if this connection was not created to cancel another request
-    // and SSL wasn't explicitly disabled, then try to establish a
+    // if SSL wasn't explicitly disabled, then try to establish a
     // secure connection
-    if(!forCancel && !Utils.ssl(props).equals("disable")) {
+    if(!Utils.ssl(props).equals("disable")) {
       trySSL = true;
     }
 
@@ -0,0 +1,228 @@
+package org.jruby.pg.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jruby.pg.messages.ProtocolMessage.MessageType;
+
+/**
+ * Protocol counters of a connection. A connection is used by one
+ * thread at a time, the counters are plain fields updated by that
+ * thread without synchronization, which keeps them cheap enough to
+ * always be on. Readers on other threads, e.g. JMX, can see slightly
+ * stale values.
+ *
+ * The counters of all the connections are aggregated by {@link
+ * ProtocolMetricsRegistry}.
+ */
+public class ProtocolMetrics {
+  // the names of the messages by first byte, the first byte of the
+  // frontend and backend messages overlap
+  private static final String[] FRONTEND_NAMES = new String[128];
+  private static final String[] BACKEND_NAMES = new String[128];
+
+  static {
+    for(MessageType type : MessageType.values()) {
+      switch(type) {
+      case Bind:
+      case Close:
+      case CopyData:
+      case CopyDone:
+      case CopyFail:
+      case Describe:
+      case Execute:
+      case Flush:
+      case FunctionCall:
+      case Parse:
+      case PasswordMessage:
+      case Query:
+      case Sync:
+      case Terminate:
+        FRONTEND_NAMES[type.firstByte] = type.name();
+        break;
+      case CancelRequest:
+      case SSLRequest:
+      case StartupMessage:
+        // no first byte
+        FRONTEND_NAMES[0] = "StartupMessage";
+        break;
+      default:
+        BACKEND_NAMES[type.firstByte] = type.name().startsWith("Authentication") ?
+          "Authentication" : type.name();
+        break;
+      }
+    }
+    // CopyData and CopyDone are sent by both sides
+    BACKEND_NAMES['d'] = MessageType.CopyData.name();
+    BACKEND_NAMES['c'] = MessageType.CopyDone.name();
+  }
+
+  final long[] messagesIn = new long[128];
+  final long[] messagesOut = new long[128];
+  long bytesIn;
+  long bytesOut;
+  long roundTrips;
+  long resultWaitNanos;
+  long flushWaitNanos;
+  long parseNanos;
+  long results;
+  long rows;
+  long inputBufferHighWater;
+  long outputBufferHighWater;
+
+  // true if data was sent since the last time data was received
+  private boolean awaitingResponse;
+
+  void messageIn(byte type) {
+    messagesIn[type & 0x7F]++;
+  }
+
+  void messageOut(byte type) {
+    messagesOut[type & 0x7F]++;
+  }
+
+  void bytesIn(int count, int buffered) {
+    bytesIn += count;
+    if(awaitingResponse) {
+      roundTrips++;
+      awaitingResponse = false;
+    }
+    if(buffered > inputBufferHighWater) {
+      inputBufferHighWater = buffered;
+    }
+  }
+
+  void bytesOut(int count) {
+    bytesOut += count;
+    awaitingResponse = true;
+  }
+
+  void outputBuffered(int buffered) {
+    if(buffered > outputBufferHighWater) {
+      outputBufferHighWater = buffered;
+    }
+  }
+
+  void resultWait(long nanos) {
+    resultWaitNanos += nanos;
+  }
+
+  void flushWait(long nanos) {
+    flushWaitNanos += nanos;
+  }
+
+  void parse(long nanos) {
+    parseNanos += nanos;
+  }
+
+  void result(int rowCount) {
+    results++;
+    rows += rowCount;
+  }
+
+  public long getBytesIn() {
+    return bytesIn;
+  }
+
+  public long getBytesOut() {
+    return bytesOut;
+  }
+
+  /**
+   * Return the number of times data was received after data was sent
+   */
+  public long getRoundTrips() {
+    return roundTrips;
+  }
+
+  /**
+   * Return the time spent blocked waiting for the server to send data
+   */
+  public long getResultWaitNanos() {
+    return resultWaitNanos;
+  }
+
+  /**
+   * Return the time spent blocked waiting for the socket to accept
+   * data
+   */
+  public long getFlushWaitNanos() {
+    return flushWaitNanos;
+  }
+
+  public long getParseNanos() {
+    return parseNanos;
+  }
+
+  public long getResults() {
+    return results;
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * Return the largest number of bytes that were buffered but not
+   * parsed yet
+   */
+  public long getInputBufferHighWater() {
+    return inputBufferHighWater;
+  }
+
+  /**
+   * Return the largest number of bytes that were buffered before
+   * being sent
+   */
+  public long getOutputBufferHighWater() {
+    return outputBufferHighWater;
+  }
+
+  /**
+   * Return the number of messages received by message name
+   */
+  public Map<String, Long> getMessagesIn() {
+    return countsByName(messagesIn, BACKEND_NAMES);
+  }
+
+  /**
+   * Return the number of messages sent by message name
+   */
+  public Map<String, Long> getMessagesOut() {
+    return countsByName(messagesOut, FRONTEND_NAMES);
+  }
+
+  /**
+   * Add the counters of this connection to the given totals, the high
+   * water marks are the maximum of both
+   */
+  void addTo(ProtocolMetrics total) {
+    for(int i = 0; i < messagesIn.length; i++) {
+      total.messagesIn[i] += messagesIn[i];
+      total.messagesOut[i] += messagesOut[i];
+    }
+    total.bytesIn += bytesIn;
+    total.bytesOut += bytesOut;
+    total.roundTrips += roundTrips;
+    total.resultWaitNanos += resultWaitNanos;
+    total.flushWaitNanos += flushWaitNanos;
+    total.parseNanos += parseNanos;
+    total.results += results;
+    total.rows += rows;
+    total.inputBufferHighWater = Math.max(total.inputBufferHighWater, inputBufferHighWater);
+    total.outputBufferHighWater = Math.max(total.outputBufferHighWater, outputBufferHighWater);
+  }
+
+  private static Map<String, Long> countsByName(long[] counts, String[] names) {
+    Map<String, Long> map = new LinkedHashMap<String, Long>();
+    for(int i = 0; i < counts.length; i++) {
+      if(counts[i] == 0) {
+        continue;
+      }
+      String name = names[i] == null ? String.valueOf((char) i) : names[i];
+      Long previous = map.get(name);
+      map.put(name, previous == null ? counts[i] : previous + counts[i]);
+    }
+    return map;
+  }
+}
@@ -0,0 +1,35 @@
+package org.jruby.pg.internal;
+
+import java.util.Map;
+
+/**
+ * The protocol counters of all the connections of the process, see
+ * {@link ProtocolMetricsRegistry}
+ */
+public interface ProtocolMetricsMXBean {
+  public int getOpenConnections();
+
+  public long getBytesIn();
+
+  public long getBytesOut();
+
+  public long getRoundTrips();
+
+  public long getResultWaitNanos();
+
+  public long getFlushWaitNanos();
+
+  public long getParseNanos();
+
+  public long getResults();
+
+  public long getRows();
+
+  public long getInputBufferHighWater();
+
+  public long getOutputBufferHighWater();
+
+  public Map<String, Long> getMessagesIn();
+
+  public Map<String, Long> getMessagesOut();
+}
@@ -0,0 +1,204 @@
+package org.jruby.pg.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Aggregate the {@link ProtocolMetrics} of all the connections of the
+ * process. The counters of the open connections are summed when the
+ * totals are read and the counters of a closed connection are added to
+ * the totals of the closed connections, updating a counter never
+ * contends with the other connections. The registry only keeps weak
+ * references to the connections, the counters of a connection that is
+ * garbage collected without being closed are added to the totals of
+ * the closed connections as well.
+ *
+ * The totals are exposed as the MXBean
+ * org.jruby.pg:type=ProtocolMetrics.
+ */
+public class ProtocolMetricsRegistry implements ProtocolMetricsMXBean {
+  public static final String OBJECT_NAME = "org.jruby.pg:type=ProtocolMetrics";
+
+  private static ProtocolMetricsRegistry defaultRegistry;
+
+  // the counters of the open connections and the queue their
+  // connections are put on once they are garbage collected
+  private final Map<ProtocolMetrics, Registration> open =
+    new HashMap<ProtocolMetrics, Registration>();
+  private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+  private final ProtocolMetrics closed = new ProtocolMetrics();
+
+  /**
+   * Return the registry of the process, registering its MXBean on
+   * the first call
+   */
+  public static synchronized ProtocolMetricsRegistry getDefault() {
+    if(defaultRegistry == null) {
+      defaultRegistry = new ProtocolMetricsRegistry();
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(defaultRegistry,
+                                                                 new ObjectName(OBJECT_NAME));
+      } catch(JMException ex) {
+        // e.g. another copy of the extension registered it already,
+        // the metrics are still available through the registry
+      } catch(SecurityException ex) {
+        // same as above
+      }
+    }
+    return defaultRegistry;
+  }
+
+  /**
+   * Start aggregating the counters of a new connection, the
+   * connection is only weakly referenced
+   */
+  public ProtocolMetrics register(Object connection) {
+    ProtocolMetrics metrics = new ProtocolMetrics();
+    synchronized(open) {
+      expungeCollected();
+      open.put(metrics, new Registration(connection, metrics, collected));
+    }
+    return metrics;
+  }
+
+  /**
+   * Called when a connection is closed, its counters are kept in the
+   * totals
+   */
+  public void unregister(ProtocolMetrics metrics) {
+    synchronized(open) {
+      Registration registration = open.remove(metrics);
+      if(registration == null) {
+        return;
+      }
+      registration.clear();
+    }
+    synchronized(closed) {
+      metrics.addTo(closed);
+    }
+  }
+
+  /**
+   * Return the sum of the counters of all the connections, open or
+   * closed
+   */
+  public ProtocolMetrics getTotals() {
+    ProtocolMetrics totals = new ProtocolMetrics();
+    synchronized(open) {
+      expungeCollected();
+      synchronized(closed) {
+        closed.addTo(totals);
+      }
+      for(ProtocolMetrics metrics : open.keySet()) {
+        metrics.addTo(totals);
+      }
+    }
+    return totals;
+  }
+
+  // ProtocolMetricsMXBean methods
+
+  @Override
+  public int getOpenConnections() {
+    synchronized(open) {
+      expungeCollected();
+      return open.size();
+    }
+  }
+
+  @Override
+  public long getBytesIn() {
+    return getTotals().getBytesIn();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return getTotals().getBytesOut();
+  }
+
+  @Override
+  public long getRoundTrips() {
+    return getTotals().getRoundTrips();
+  }
+
+  @Override
+  public long getResultWaitNanos() {
+    return getTotals().getResultWaitNanos();
+  }
+
+  @Override
+  public long getFlushWaitNanos() {
+    return getTotals().getFlushWaitNanos();
+  }
+
+  @Override
+  public long getParseNanos() {
+    return getTotals().getParseNanos();
+  }
+
+  @Override
+  public long getResults() {
+    return getTotals().getResults();
+  }
+
+  @Override
+  public long getRows() {
+    return getTotals().getRows();
+  }
+
+  @Override
+  public long getInputBufferHighWater() {
+    return getTotals().getInputBufferHighWater();
+  }
+
+  @Override
+  public long getOutputBufferHighWater() {
+    return getTotals().getOutputBufferHighWater();
+  }
+
+  @Override
+  public Map<String, Long> getMessagesIn() {
+    return getTotals().getMessagesIn();
+  }
+
+  @Override
+  public Map<String, Long> getMessagesOut() {
+    return getTotals().getMessagesOut();
+  }
+
+  // private methods
+
+  /**
+   * Move the counters of the connections that were garbage collected
+   * without being closed to the totals of the closed connections, must
+   * be called with the lock of open held
+   */
+  private void expungeCollected() {
+    Registration registration;
+    while((registration = (Registration) collected.poll()) != null) {
+      if(open.remove(registration.metrics) != null) {
+        synchronized(closed) {
+          registration.metrics.addTo(closed);
+        }
+      }
+    }
+  }
+
+  /**
+   * A weak reference to a connection that keeps its counters
+   */
+  private static class Registration extends WeakReference<Object> {
+    private final ProtocolMetrics metrics;
+
+    Registration(Object connection, ProtocolMetrics metrics, ReferenceQueue<Object> queue) {
+      super(connection, queue);
+      this.metrics = metrics;
+    }
+  }
+}
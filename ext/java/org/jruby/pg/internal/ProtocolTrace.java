@@ -0,0 +1,262 @@
+package org.jruby.pg.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record the messages exchanged with the backend in a fixed size ring
+ * buffer. Every record holds the direction, type, length and the time
+ * of the message and the first bytes of its payload, the oldest
+ * records are overwritten once the ring is full. Recording a message
+ * copies at most payloadLimit bytes and doesn't allocate, cheap enough
+ * to be left on in production.
+ *
+ * The ring is written by the thread that uses the connection without
+ * locking, {@link #writeTo} can be called from any thread and skips the
+ * records that could have been overwritten while they were copied, the
+ * oldest record of a full ring is always left out. The dump is decoded
+ * by {@link ProtocolTraceDecoder}.
+ *
+ * A writer can also be set to decode the messages as they're recorded,
+ * see PG::Connection#trace.
+ */
+public class ProtocolTrace {
+  static final long MAGIC = 0x5047545243450001L; // "PGTRCE" + version 1
+
+  public static final int DEFAULT_CAPACITY = 4096;
+  public static final int DEFAULT_PAYLOAD_LIMIT = 64;
+
+  private final int capacity;
+  private final int mask;
+  private final int payloadLimit;
+
+  // the records, the record with sequence number n is at n & mask
+  private final long[] times;
+  private final byte[] types;
+  private final boolean[] fromBackend;
+  private final int[] lengths;
+  private final int[] recorded;
+  private final byte[] payloads;
+
+  // the sequence number of the next record, written only by the
+  // recording thread and published after the record is complete
+  private volatile long next;
+
+  // used to convert the nanoTime of the records to the wall clock
+  private final long startMillis = System.currentTimeMillis();
+  private final long startNanos = System.nanoTime();
+
+  private volatile PrintWriter writer;
+  private volatile File dumpFile;
+
+  /**
+   * Create a trace that keeps the last capacity messages, rounded up to
+   * a power of two, and up to payloadLimit bytes of each payload. A
+   * capacity of 0 doesn't keep any message and is only useful with a
+   * writer.
+   */
+  public ProtocolTrace(int capacity, int payloadLimit) {
+    if(capacity < 0 || payloadLimit < 0) {
+      throw new IllegalArgumentException("invalid trace size " + capacity + "/" + payloadLimit);
+    }
+    int size = capacity <= 1 ? capacity : Integer.highestOneBit(capacity - 1) << 1;
+    this.capacity = size;
+    this.mask = size - 1;
+    this.payloadLimit = size == 0 ? 0 : payloadLimit;
+    this.times = new long[size];
+    this.types = new byte[size];
+    this.fromBackend = new boolean[size];
+    this.lengths = new int[size];
+    this.recorded = new int[size];
+    this.payloads = new byte[size * this.payloadLimit];
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getPayloadLimit() {
+    return payloadLimit;
+  }
+
+  /**
+   * Return the number of messages recorded so far, including the ones
+   * that were overwritten
+   */
+  public long getCount() {
+    return next;
+  }
+
+  public PrintWriter getWriter() {
+    return writer;
+  }
+
+  /**
+   * Set the writer that receives the messages decoded as they're
+   * recorded, null disables it
+   */
+  public void setWriter(PrintWriter writer) {
+    PrintWriter previous = this.writer;
+    this.writer = writer;
+    if(previous != null) {
+      previous.flush();
+    }
+  }
+
+  public File getDumpFile() {
+    return dumpFile;
+  }
+
+  /**
+   * Set the file the trace is written to by {@link #dumpOnError}, null
+   * disables it
+   */
+  public void setDumpFile(File dumpFile) {
+    this.dumpFile = dumpFile;
+  }
+
+  /**
+   * Record a message
+   *
+   * @param fromBackend true if the message was received
+   * @param type the first byte of the message, 0 for the messages
+   *        without one, e.g. StartupMessage
+   * @param payload the array that holds the payload, i.e. what follows
+   *        the length of the message
+   * @param offset the start of the payload
+   * @param length the length of the payload
+   */
+  public void record(boolean fromBackend, byte type, byte[] payload, int offset, int length) {
+    if(capacity > 0) {
+      int index = startRecord(fromBackend, type, length);
+      System.arraycopy(payload, offset, payloads, index * payloadLimit, recorded[index]);
+      next = next + 1;
+    }
+
+    PrintWriter writer = this.writer;
+    if(writer != null) {
+      ProtocolTraceDecoder.print(writer, fromBackend, type, payload, offset, length, length);
+    }
+  }
+
+  /**
+   * Record a message whose payload starts at the given index of the
+   * given buffer. The payload of a direct buffer is copied straight to
+   * the ring, it's only copied whole when a writer decodes it.
+   */
+  public void record(boolean fromBackend, byte type, ByteBuffer buffer, int index, int length) {
+    if(buffer.hasArray()) {
+      record(fromBackend, type, buffer.array(), buffer.arrayOffset() + index, length);
+      return;
+    }
+    ByteBuffer view = buffer.duplicate();
+    if(writer != null) {
+      byte[] payload = new byte[length];
+      view.limit(index + length).position(index);
+      view.get(payload);
+      record(fromBackend, type, payload, 0, length);
+      return;
+    }
+    if(capacity > 0) {
+      int slot = startRecord(fromBackend, type, length);
+      view.limit(index + recorded[slot]).position(index);
+      view.get(payloads, slot * payloadLimit, recorded[slot]);
+      next = next + 1;
+    }
+  }
+
+  /**
+   * Write the recorded messages, oldest first, to the given stream in
+   * the format read by {@link ProtocolTraceDecoder}
+   *
+   * @return the number of messages written
+   */
+  public int writeTo(OutputStream stream) throws IOException {
+    // copy the ring first, the recording thread keeps going
+    long end = next;
+    long start = Math.max(0, end - capacity);
+    int count = (int) (end - start);
+    long[] times = new long[count];
+    byte[] types = new byte[count];
+    boolean[] fromBackend = new boolean[count];
+    int[] lengths = new int[count];
+    int[] recorded = new int[count];
+    byte[] payloads = new byte[count * payloadLimit];
+    for(int i = 0; i < count; i++) {
+      int index = (int) (start + i) & mask;
+      times[i] = this.times[index];
+      types[i] = this.types[index];
+      fromBackend[i] = this.fromBackend[index];
+      lengths[i] = this.lengths[index];
+      recorded[i] = Math.min(this.recorded[index], payloadLimit);
+      System.arraycopy(this.payloads, index * payloadLimit, payloads, i * payloadLimit, payloadLimit);
+    }
+
+    // the record being written when the copy ended overwrote the
+    // record capacity messages older than it, skip the records that
+    // could have been overwritten during the copy
+    long valid = next - capacity + 1;
+    int skip = (int) Math.max(0, Math.min(count, valid - start));
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+    out.writeLong(MAGIC);
+    out.writeInt(count - skip);
+    for(int i = skip; i < count; i++) {
+      long micros = startMillis * 1000 + TimeUnit.NANOSECONDS.toMicros(times[i] - startNanos);
+      out.writeLong(micros);
+      out.writeBoolean(fromBackend[i]);
+      out.writeByte(types[i]);
+      out.writeInt(lengths[i]);
+      out.writeInt(recorded[i]);
+      out.write(payloads, i * payloadLimit, recorded[i]);
+    }
+    out.flush();
+    return count - skip;
+  }
+
+  /**
+   * Write the trace to the dump file, if there's one. Called when the
+   * connection fails, errors are ignored so they don't hide the
+   * original one.
+   */
+  public void dumpOnError() {
+    File file = dumpFile;
+    if(file == null) {
+      return;
+    }
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        writeTo(out);
+      } finally {
+        out.close();
+      }
+    } catch(IOException ex) {
+      // best effort
+    }
+  }
+
+  // private methods
+
+  /**
+   * Fill the header of the next record and return its index in the
+   * ring, the record is published by incrementing next once its
+   * payload is copied
+   */
+  private int startRecord(boolean fromBackend, byte type, int length) {
+    int index = (int) next & mask;
+    times[index] = System.nanoTime();
+    types[index] = type;
+    this.fromBackend[index] = fromBackend;
+    lengths[index] = length;
+    recorded[index] = Math.min(length, payloadLimit);
+    return index;
+  }
+}
@@ -0,0 +1,287 @@
+package org.jruby.pg.internal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.jruby.pg.messages.ProtocolMessageParser;
+import org.jruby.pg.messages.ProtocolReader;
+
+/**
+ * Decode the messages recorded by {@link ProtocolTrace} to the human
+ * readable format of PG::Connection#trace. The backend messages are
+ * decoded by the message parser, the frontend messages field by field
+ * in the order they're written. A payload that was truncated when it
+ * was recorded is decoded up to the first field that is missing.
+ *
+ * Dumps can be decoded from the command line with:
+ *
+ *   java -cp pg_ext.jar org.jruby.pg.internal.ProtocolTraceDecoder trace.dump
+ */
+public class ProtocolTraceDecoder {
+  private static final int STARTUP_CODE = 196608;
+
+  public static void main(String[] args) throws IOException {
+    if(args.length != 1) {
+      System.err.println("usage: ProtocolTraceDecoder <trace dump>");
+      System.exit(1);
+    }
+    InputStream in = new FileInputStream(args[0]);
+    try {
+      decode(in, new OutputStreamWriter(System.out));
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Decode the dump read from the given stream, every message is
+   * preceded by the time it was recorded
+   *
+   * @return the number of messages decoded
+   */
+  public static int decode(InputStream stream, Writer writer) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+    PrintWriter out = new PrintWriter(writer);
+    if(in.readLong() != ProtocolTrace.MAGIC) {
+      throw new IOException("not a protocol trace dump");
+    }
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    int count = in.readInt();
+    try {
+      for(int i = 0; i < count; i++) {
+        long micros = in.readLong();
+        boolean fromBackend = in.readBoolean();
+        byte type = in.readByte();
+        int length = in.readInt();
+        int recorded = in.readInt();
+        byte[] payload = new byte[recorded];
+        in.readFully(payload);
+        out.printf("%s%03d\n", format.format(new Date(micros / 1000)), micros % 1000);
+        print(out, fromBackend, type, payload, 0, recorded, length);
+      }
+    } catch(EOFException ex) {
+      throw new IOException("truncated protocol trace dump");
+    } finally {
+      out.flush();
+    }
+    return count;
+  }
+
+  /**
+   * Decode one message
+   *
+   * @param recorded the number of bytes of the payload that are
+   *        available
+   * @param length the length of the payload
+   */
+  static void print(PrintWriter out, boolean fromBackend, byte type,
+                    byte[] payload, int offset, int recorded, int length) {
+    if(fromBackend) {
+      printBackendMessage(out, type, payload, offset, recorded, length);
+    } else {
+      printFrontendMessage(out, type, payload, offset, recorded, length);
+    }
+  }
+
+  // private methods
+
+  private static void printBackendMessage(PrintWriter out, byte type, byte[] payload,
+                                          int offset, int recorded, int length) {
+    ByteBuffer buffer = ByteBuffer.allocate(5 + recorded);
+    buffer.put(type).putInt(length + 4).put(payload, offset, recorded).flip();
+    TraceReader reader = new TraceReader(buffer, out, true);
+    try {
+      if(type == 'D') {
+        // the parser reads the row in one chunk, print every column
+        reader.getByte();
+        reader.getInt();
+        for(int i = reader.getShort(); i > 0; i--) {
+          int valueLength = reader.getInt();
+          if(valueLength >= 0) {
+            reader.getNChar(valueLength);
+          }
+        }
+      } else {
+        ProtocolMessageParser.parseMessage(reader);
+      }
+    } catch(BufferUnderflowException ex) {
+      printTruncated(out, "From backend", recorded, length);
+    } catch(RuntimeException ex) {
+      out.printf("From backend> %s\n", ex.getMessage());
+    }
+  }
+
+  private static void printFrontendMessage(PrintWriter out, byte type, byte[] payload,
+                                           int offset, int recorded, int length) {
+    TraceReader reader = new TraceReader(ByteBuffer.wrap(payload, offset, recorded), out, false);
+    out.printf("To backend> Msg %c\n", (char) type);
+    try {
+      switch(type) {
+      case 'Q':
+      case 'p':
+      case 'f':
+        // Query, PasswordMessage, CopyFail
+        reader.getString();
+        break;
+      case 'P':
+        reader.getString();
+        reader.getString();
+        for(int i = reader.getShort(); i > 0; i--) {
+          reader.getInt();
+        }
+        break;
+      case 'B':
+        reader.getString();
+        reader.getString();
+        readValues(reader);
+        reader.getShort();
+        reader.getShort();
+        break;
+      case 'F':
+        reader.getInt();
+        readValues(reader);
+        reader.getShort();
+        break;
+      case 'E':
+        reader.getString();
+        reader.getInt();
+        break;
+      case 'D':
+      case 'C':
+        // Describe, Close
+        reader.getByte();
+        reader.getString();
+        break;
+      case 0:
+        if(reader.remaining() >= 4 && reader.peekInt() == STARTUP_CODE) {
+          reader.getShort();
+          reader.getShort();
+          while(reader.remaining() > 1) {
+            reader.getString();
+          }
+          reader.getByte();
+        } else {
+          // SSLRequest, CancelRequest
+          while(reader.remaining() >= 4) {
+            reader.getInt();
+          }
+        }
+        break;
+      default:
+        // CopyData and the messages without a payload
+        if(length > 0) {
+          reader.getNChar(length);
+        }
+        break;
+      }
+    } catch(BufferUnderflowException ex) {
+      printTruncated(out, "To backend", recorded, length);
+    }
+    out.printf("To backend> Msg complete, length %d\n", length + (type == 0 ? 4 : 5));
+  }
+
+  private static void readValues(TraceReader reader) {
+    for(int i = reader.getShort(); i > 0; i--) {
+      reader.getShort();
+    }
+    for(int i = reader.getShort(); i > 0; i--) {
+      int valueLength = reader.getInt();
+      if(valueLength >= 0) {
+        reader.getNChar(valueLength);
+      }
+    }
+  }
+
+  private static void printTruncated(PrintWriter out, String prefix, int recorded, int length) {
+    out.printf("%s> ... %d of %d bytes recorded\n", prefix, recorded, length);
+  }
+
+  /**
+   * Read the fields of a message and print them as they're read. A
+   * field that was partially recorded is printed before the underflow
+   * is reported.
+   */
+  private static class TraceReader implements ProtocolReader {
+    private final ByteBuffer buffer;
+    private final PrintWriter out;
+    private final boolean fromBackend;
+
+    TraceReader(ByteBuffer buffer, PrintWriter out, boolean fromBackend) {
+      this.buffer = buffer;
+      this.out = out;
+      this.fromBackend = fromBackend;
+    }
+
+    int remaining() {
+      return buffer.remaining();
+    }
+
+    int peekInt() {
+      return buffer.getInt(buffer.position());
+    }
+
+    public boolean hasCompleteMessage() {
+      return true;
+    }
+
+    public byte getByte() {
+      byte b = buffer.get();
+      out.printf(fromBackend ? "From backend> %c\n" : "To backend> %c\n", (char) b);
+      return b;
+    }
+
+    public int getInt() {
+      int i = buffer.getInt();
+      out.printf(fromBackend ? "From backend (#%d)> %d\n" : "To backend (%d#)> %d\n", 4, i);
+      return i;
+    }
+
+    public short getShort() {
+      short s = buffer.getShort();
+      out.printf(fromBackend ? "From backend (#%d)> %d\n" : "To backend (%d#)> %d\n", 2, s);
+      return s;
+    }
+
+    public String getString() {
+      int start = buffer.position();
+      int end = start;
+      while(end < buffer.limit() && buffer.get(end) != '\0') {
+        end++;
+      }
+      String s = new String(buffer.array(), buffer.arrayOffset() + start, end - start);
+      if(end == buffer.limit()) {
+        out.printf(fromBackend ? "From backend> \"%s...\n" : "To backend> \"%s...\n", s);
+        throw new BufferUnderflowException();
+      }
+      buffer.position(end + 1);
+      out.printf(fromBackend ? "From backend> \"%s\"\n" : "To backend> \"%s\"\n", s);
+      return s;
+    }
+
+    public byte[] getNChar(int len) {
+      int available = Math.min(len, buffer.remaining());
+      byte[] bytes = new byte[available];
+      buffer.get(bytes);
+      if(fromBackend) {
+        out.printf("From backend (%d)> %s\n", len, new String(bytes));
+      } else {
+        out.printf("To backend> %s\n", new String(bytes));
+      }
+      if(available < len) {
+        throw new BufferUnderflowException();
+      }
+      return bytes;
+    }
+  }
+}
@@ -9,4 +9,8 @@ public enum QueryClass {
   Extended,
   Prepare,
   Describe,
+  PipelineSync,
+  Portal,
+  Batch,
+  Function,
 }
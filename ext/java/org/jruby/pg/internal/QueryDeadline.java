@@ -0,0 +1,89 @@
+package org.jruby.pg.internal;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.pg.io.TimerWheel;
+
+/**
+ * The deadline of a synchronous command. When the deadline passes a
+ * CancelRequest is sent by the {@link CancelService} while the thread
+ * that runs the command keeps waiting for the results, the server answers
+ * the cancel with an error and the connection goes back to idle as
+ * usual. If the server doesn't answer within {@link #CANCEL_GRACE}
+ * milliseconds the connection is given up on.
+ */
+class QueryDeadline implements Runnable {
+  static final long CANCEL_GRACE = 5000;
+
+  private final PostgresqlConnection connection;
+  private final long timeout;
+  private final long expiresAt;
+  private final TimerWheel.Timeout timer;
+  private final CountDownLatch fired = new CountDownLatch(1);
+  private volatile CancelFuture cancel;
+
+  QueryDeadline(PostgresqlConnection connection, long timeout) {
+    this.connection = connection;
+    this.timeout = timeout;
+    this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    this.timer = TimerWheel.getDefault().schedule(this, timeout);
+  }
+
+  /**
+   * Called by the timer wheel when the deadline passes
+   */
+  @Override
+  public void run() {
+    try {
+      cancel = connection.cancelAsync();
+    } catch(IOException ex) {
+      // the results are still awaited until the grace period ends
+    } finally {
+      fired.countDown();
+    }
+  }
+
+  /**
+   * Return true if the deadline passed and the command is being
+   * cancelled
+   */
+  boolean isExpired() {
+    return timer.isExpired();
+  }
+
+  long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Return how long to wait for the socket before giving up on the
+   * connection, in milliseconds and never 0
+   */
+  long remainingWait() {
+    long remaining = TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()) + CANCEL_GRACE;
+    return Math.max(remaining, 1);
+  }
+
+  /**
+   * Called when the command is done. If the CancelRequest was already
+   * sent wait for the server to process it, otherwise it could cancel
+   * the next command.
+   */
+  void disarm() {
+    if(timer.cancel()) {
+      return;
+    }
+    try {
+      fired.await(CANCEL_GRACE, TimeUnit.MILLISECONDS);
+      if(cancel != null) {
+        cancel.await(CANCEL_GRACE);
+      }
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch(IOException ex) {
+      // the server is unreachable, so is the next command
+    }
+  }
+}
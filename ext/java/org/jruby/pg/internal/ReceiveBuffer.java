@@ -0,0 +1,318 @@
+package org.jruby.pg.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.jruby.pg.messages.ProtocolMessage.MessageType;
+import org.jruby.pg.messages.ProtocolReader;
+
+/**
+ * Buffer for the data received from the backend. The buffer is
+ * always ready for reading, i.e. the position is the read index and
+ * the limit is the write index. New data is appended after the limit,
+ * consumed messages are only discarded when the buffer runs out of
+ * room, so parsing a message doesn't move the rest of the buffer.
+ *
+ * The buffer is borrowed from a {@link BufferPool}, it's replaced by a
+ * bigger one when it's full and by a smaller one when {@link #shrink}
+ * is called.
+ */
+public class ReceiveBuffer implements ProtocolReader {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final BufferPool pool;
+  private ByteBuffer buffer;
+
+  // the position and the total length (including the type byte) of
+  // the message at the head of the buffer, the header is parsed once
+  // no matter how many times hasCompleteMessage() is called
+  private int pendingStart = -1, pendingLength;
+
+  // used to trace the received messages, every message is recorded
+  // once it's complete
+  private ProtocolTrace trace;
+  private boolean pendingTraced;
+
+  public ReceiveBuffer(int capacity) {
+    this(BufferPool.getDefault(), capacity);
+  }
+
+  public ReceiveBuffer(BufferPool pool, int capacity) {
+    this.pool = pool;
+    buffer = pool.acquire(capacity);
+    buffer.flip();
+  }
+
+  /**
+   * Set the trace, null disables tracing
+   */
+  public void setTrace(ProtocolTrace trace) {
+    this.trace = trace;
+  }
+
+  /**
+   * Read as much data as available from the channel without blocking
+   *
+   * @return the number of bytes read, -1 if the channel reached the
+   *         end of stream and no data was read
+   */
+  public int readFrom(ReadableByteChannel channel) throws IOException {
+    int total = 0, n;
+    do {
+      ensureWritable(1);
+      int readIndex = buffer.position();
+      buffer.position(buffer.limit());
+      buffer.limit(buffer.capacity());
+      try {
+        n = channel.read(buffer);
+      } finally {
+        buffer.limit(buffer.position());
+        buffer.position(readIndex);
+      }
+      if(n > 0) {
+        total += n;
+      }
+      // as long as the channel is returning data keep going,
+      // otherwise return
+    } while(n > 0);
+    return n < 0 && total == 0 ? -1 : total;
+  }
+
+  /**
+   * Append the given bytes to the buffer
+   */
+  public void put(byte[] bytes, int offset, int length) {
+    ensureWritable(length);
+    int readIndex = buffer.position();
+    buffer.position(buffer.limit());
+    buffer.limit(buffer.capacity());
+    buffer.put(bytes, offset, length);
+    buffer.limit(buffer.position());
+    buffer.position(readIndex);
+  }
+
+  /**
+   * Return the number of bytes that weren't consumed yet
+   */
+  public int remaining() {
+    return buffer.remaining();
+  }
+
+  /**
+   * Return the capacity of the underlying buffer
+   */
+  public int capacity() {
+    return buffer.capacity();
+  }
+
+  /**
+   * Replace the buffer by the smallest one that holds the data that
+   * wasn't consumed yet, if the buffer is larger than the given limit
+   * and the data fits in the limit. Called once the connection is done
+   * with a result, so a large result doesn't pin a large buffer.
+   */
+  public void shrink(int limit) {
+    int capacity = buffer.capacity();
+    if(capacity <= limit || buffer.remaining() > limit ||
+        BufferPool.sizeFor(buffer.remaining()) >= capacity) {
+      return;
+    }
+    ByteBuffer newBuffer = pool.acquire(buffer.remaining());
+    moveTo(newBuffer);
+  }
+
+  /**
+   * Give the buffer back to the pool, the data that wasn't consumed
+   * is discarded
+   */
+  public void release() {
+    ByteBuffer old = buffer;
+    buffer = EMPTY;
+    pendingStart = -1;
+    if(old != EMPTY) {
+      pool.release(old);
+    }
+  }
+
+  /**
+   * Return the type of the next message without consuming it or -1
+   * if the buffer is empty
+   */
+  public int peekType() {
+    if(!buffer.hasRemaining()) {
+      return -1;
+    }
+    return buffer.get(buffer.position());
+  }
+
+  /**
+   * Return the length of the payload of the CopyData message at the
+   * head of the buffer, -1 if the head of the buffer isn't a complete
+   * CopyData message
+   */
+  public int copyDataLength() {
+    if(peekType() != MessageType.CopyData.firstByte || !hasCompleteMessage()) {
+      return -1;
+    }
+    return pendingLength - 5;
+  }
+
+  /**
+   * Consume the CopyData message at the head of the buffer and copy
+   * its payload to the given buffer, which must have enough room
+   */
+  public void getCopyData(ByteBuffer dest) {
+    int length = copyDataLength();
+    int start = buffer.position() + 5;
+    int limit = buffer.limit();
+    buffer.position(start);
+    buffer.limit(start + length);
+    dest.put(buffer);
+    buffer.limit(limit);
+  }
+
+  /**
+   * Consume the CopyData message at the head of the buffer and write
+   * its payload to the given channel
+   */
+  public void getCopyData(WritableByteChannel channel) throws IOException {
+    int length = copyDataLength();
+    int start = buffer.position() + 5;
+    int limit = buffer.limit();
+    buffer.position(start);
+    buffer.limit(start + length);
+    try {
+      while(buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } finally {
+      buffer.limit(limit);
+    }
+  }
+
+  // ProtocolReader methods
+
+  public boolean hasCompleteMessage() {
+    int position = buffer.position();
+    if(pendingStart != position) {
+      if(buffer.remaining() < 5) {
+        return false;
+      }
+      pendingStart = position;
+      pendingLength = buffer.getInt(position + 1) + 1;
+      pendingTraced = false;
+    }
+    if(buffer.remaining() < pendingLength) {
+      return false;
+    }
+    if(trace != null && !pendingTraced) {
+      pendingTraced = true;
+      trace.record(true, buffer.get(position), buffer, position + 5, pendingLength - 5);
+    }
+    return true;
+  }
+
+  public byte getByte() {
+    return buffer.get();
+  }
+
+  public int getInt() {
+    return buffer.getInt();
+  }
+
+  public short getShort() {
+    return buffer.getShort();
+  }
+
+  public String getString() {
+    if(!buffer.hasArray()) {
+      return getDirectString();
+    }
+    byte[] array = buffer.array();
+    int start = buffer.arrayOffset() + buffer.position();
+    int end = start;
+    while(array[end] != '\0') {
+      end++;
+    }
+    // copy the entire string without the null byte
+    String s = new String(array, start, end - start);
+    buffer.position(buffer.position() + end - start + 1);
+    return s;
+  }
+
+  public byte[] getNChar(int len) {
+    byte[] bytes = new byte[len];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  // private methods
+
+  private String getDirectString() {
+    int start = buffer.position();
+    int end = start;
+    while(buffer.get(end) != '\0') {
+      end++;
+    }
+    byte[] bytes = new byte[end - start];
+    buffer.get(bytes);
+    buffer.get();
+    return new String(bytes);
+  }
+
+  /**
+   * Copy the data that wasn't consumed to the given buffer, which
+   * replaces the current one, and give the current one back to the pool
+   */
+  private void moveTo(ByteBuffer newBuffer) {
+    int shift = buffer.position();
+    newBuffer.put(buffer);
+    newBuffer.flip();
+    ByteBuffer old = buffer;
+    buffer = newBuffer;
+    pendingStart -= shift;
+    if(old != EMPTY) {
+      pool.release(old);
+    }
+  }
+
+  /**
+   * Make sure there's room for the given number of bytes after the
+   * limit. The consumed data is only discarded if the buffer is full,
+   * and the capacity is doubled if discarding it isn't enough
+   */
+  private void ensureWritable(int required) {
+    if(!buffer.hasRemaining()) {
+      // everything was consumed, start from the beginning
+      buffer.position(0);
+      buffer.limit(0);
+      pendingStart = -1;
+    }
+
+    if(buffer.capacity() - buffer.limit() >= required) {
+      return;
+    }
+
+    if(buffer == EMPTY) {
+      // the buffer was released
+      buffer = pool.acquire(required);
+      buffer.flip();
+      return;
+    }
+
+    if(buffer.capacity() - buffer.remaining() >= required) {
+      int shift = buffer.position();
+      buffer.compact();
+      buffer.flip();
+      pendingStart -= shift;
+    } else {
+      int capacity = buffer.capacity() * 2;
+      while(capacity - buffer.remaining() < required) {
+        capacity *= 2;
+      }
+      moveTo(pool.acquire(capacity));
+    }
+  }
+}
@@ -20,7 +20,11 @@ public class ResultSet {
     PGRES_NONFATAL_ERROR,       /* notice or warning message */
     PGRES_FATAL_ERROR,          /* query failed */
     PGRES_COPY_BOTH,            /* Copy In/Out data transfer in progress */
-    PGRES_SINGLE_TUPLE;         /* single tuple from larger resultset */
+    PGRES_SINGLE_TUPLE,         /* single tuple from larger resultset */
+    PGRES_PIPELINE_SYNC,        /* pipeline synchronization point */
+    PGRES_PIPELINE_ABORTED,     /* command didn't run because of an
+                                 * earlier error in the pipeline */
+    PGRES_TUPLES_CHUNK;         /* chunk of tuples from larger resultset */
 
     public boolean isCopyStatus() {
       switch(this) {
@@ -42,6 +46,9 @@ public class ResultSet {
   private final List<DataRow> rows = new ArrayList<DataRow>();
   private String errorMsg;
   private ErrorResponse error;
+  private int[] batchCounts;
+  private byte[] functionResult;
+  private long timeout = -1;
 
   public static ResultSet createWithStatus(ResultStatus status) {
     return new ResultSet().setStatus(status);
@@ -54,6 +61,13 @@ public class ResultSet {
     return Collections.unmodifiableList(rows);
   }
 
+  /**
+   * Return the number of data rows in the result
+   */
+  public int getRowCount() {
+    return rows.size();
+  }
+
   /**
    * Return true if the ResultSet contain binary data, false if it
    * contains textual data
@@ -115,6 +129,40 @@ public class ResultSet {
     return cmdStatus;
   }
 
+  /**
+   * Return the number of rows affected by each execution of a batch,
+   * see {@link PostgresqlConnection#execBatch}. If the batch failed
+   * the counts stop before the execution that failed.
+   */
+  public int[] getBatchCounts() {
+    return batchCounts;
+  }
+
+  /**
+   * Return the value returned by a function called with {@link
+   * PostgresqlConnection#functionCall}, null if the function returned
+   * null
+   */
+  public byte[] getFunctionResult() {
+    return functionResult;
+  }
+
+  /**
+   * Returns true if the command was cancelled because it ran for
+   * longer than its timeout
+   */
+  public boolean isTimedOut() {
+    return timeout >= 0;
+  }
+
+  /**
+   * Return the timeout of the command in milliseconds, only valid if
+   * {@link #isTimedOut} returns true
+   */
+  public long getTimeout() {
+    return timeout;
+  }
+
   public ResultSet copy() {
     ResultSet res = new ResultSet().setStatus(ResultStatus.PGRES_TUPLES_OK);
     res.binaryTuples = binaryTuples;
@@ -145,6 +193,21 @@ public class ResultSet {
     return this;
   }
 
+  ResultSet setFunctionResult(byte[] functionResult) {
+    this.functionResult = functionResult;
+    return this;
+  }
+
+  ResultSet setTimedOut(long timeout) {
+    this.timeout = timeout;
+    return this;
+  }
+
+  ResultSet setBatchCounts(int[] batchCounts) {
+    this.batchCounts = batchCounts;
+    return this;
+  }
+
   ResultSet setCmdStatus(CommandComplete cmdStatus) {
     this.cmdStatus = cmdStatus;
     return this;
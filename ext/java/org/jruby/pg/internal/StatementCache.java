@@ -0,0 +1,237 @@
+package org.jruby.pg.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of the server side prepared statements created on behalf of
+ * execQueryParams and sendQueryParams. Queries are keyed by their text
+ * and parameter types, and are prepared once they've been executed
+ * {@code threshold} times. The least recently used statement is
+ * evicted when the cache is full.
+ */
+public class StatementCache {
+  private static final String NAME_PREFIX = "_jruby_pg_";
+  private static final Statement SYNC = new Statement(null);
+
+  /**
+   * A query that was executed at least once
+   */
+  public static class Statement {
+    private final String name;
+    private int executions;
+
+    // true if a Parse was sent and the statement wasn't invalidated
+    // since, i.e. the statement can be executed directly
+    private boolean prepared;
+
+    // true if a Parse was ever sent for this statement, the server
+    // may still have a statement with this name that has to be closed
+    // before the statement is prepared again
+    private boolean parsed;
+
+    Statement(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public boolean isPrepared() {
+      return prepared;
+    }
+
+    public boolean wasParsed() {
+      return parsed;
+    }
+  }
+
+  private static class Key {
+    private final byte[] query;
+    private final int[] oids;
+    private final int hash;
+
+    Key(byte[] query, int[] oids) {
+      this.query = query;
+      this.oids = oids;
+      this.hash = 31 * Arrays.hashCode(query) + Arrays.hashCode(oids);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash && Arrays.equals(query, other.query) && Arrays.equals(oids, other.oids);
+    }
+  }
+
+  private final int size;
+  private final int threshold;
+  private final LinkedHashMap<Key, Statement> statements;
+
+  // the statements that were evicted and may exist on the server,
+  // they're closed the next time a command is sent
+  private final List<Statement> evicted = new ArrayList<Statement>();
+
+  // the statements whose Parse was sent but whose ParseComplete
+  // wasn't received yet, null for the Parse of other statements. SYNC
+  // marks the end of the messages answered by one ReadyForQuery
+  private final LinkedList<Statement> pendingParses = new LinkedList<Statement>();
+
+  private long nextId;
+
+  /**
+   * Create a cache whose statements are named starting with the given
+   * id, the names mustn't clash with the statements of a previous cache
+   */
+  public StatementCache(int size, int threshold, long firstId) {
+    this.size = size;
+    this.threshold = threshold;
+    this.nextId = firstId;
+    this.statements = new LinkedHashMap<Key, Statement>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Statement> eldest) {
+        if(size() <= StatementCache.this.size) {
+          return false;
+        }
+        if(eldest.getValue().parsed) {
+          evicted.add(eldest.getValue());
+        }
+        return true;
+      }
+    };
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Return the id of the next statement that will be named
+   */
+  public long getNextId() {
+    return nextId;
+  }
+
+  /**
+   * Record an execution of the given query and return its statement
+   * if it's prepared or should be prepared now, null if the query
+   * should be executed using the unnamed statement
+   */
+  public Statement lookup(PostgresqlString query, int[] oids) {
+    Key key = new Key(query.getBytes(), oids);
+    Statement statement = statements.get(key);
+    if(statement == null) {
+      statement = new Statement(NAME_PREFIX + nextId++);
+      statements.put(key, statement);
+    }
+    if(statement.prepared || ++statement.executions >= threshold) {
+      return statement;
+    }
+    return null;
+  }
+
+  /**
+   * Return and forget the statements that were evicted since the
+   * last call
+   */
+  public List<Statement> drainEvicted() {
+    if(evicted.isEmpty()) {
+      return evicted;
+    }
+    List<Statement> result = new ArrayList<Statement>(evicted);
+    evicted.clear();
+    return result;
+  }
+
+  /**
+   * Must be called for every Parse message that is sent, statement is
+   * null if the Parse isn't for a cached statement
+   */
+  public void parseSent(Statement statement) {
+    if(statement != null) {
+      statement.prepared = true;
+      statement.parsed = true;
+    }
+    pendingParses.add(statement);
+  }
+
+  /**
+   * Must be called for every ParseComplete that is received
+   */
+  public void parseCompleted() {
+    pendingParses.poll();
+  }
+
+  /**
+   * Must be called for every message that is answered by a
+   * ReadyForQuery, i.e. Sync, Query and FunctionCall
+   */
+  public void syncSent() {
+    pendingParses.add(SYNC);
+  }
+
+  /**
+   * Must be called for every ReadyForQuery that is received. After an
+   * error the server skips all the messages until the next Sync, the
+   * statements whose Parse wasn't acknowledged before the Sync have to
+   * be prepared again. The Parses sent after the Sync, e.g. by the
+   * following commands of a pipeline, are still pending.
+   */
+  public void syncCompleted() {
+    while(!pendingParses.isEmpty()) {
+      Statement statement = pendingParses.removeFirst();
+      if(statement == SYNC) {
+        break;
+      }
+      if(statement != null) {
+        statement.prepared = false;
+      }
+    }
+  }
+
+  /**
+   * Called when an ErrorResponse is received. If the error means that
+   * the cached statements are no longer usable, e.g. the result type
+   * of a query changed or the statements were deallocated, all the
+   * statements are prepared again.
+   */
+  public void error(String sqlState, String message) {
+    if(isInvalidationError(sqlState, message)) {
+      for(Statement statement : statements.values()) {
+        statement.prepared = false;
+      }
+    }
+  }
+
+  /**
+   * Returns true if the given error is caused by a cached statement
+   * that is no longer valid, in which case the query can be retried
+   */
+  public static boolean isInvalidationError(String sqlState, String message) {
+    if("26000".equals(sqlState)) {
+      // invalid_sql_statement_name, e.g. after DEALLOCATE ALL
+      return true;
+    }
+    return "0A000".equals(sqlState) && message != null &&
+      message.startsWith("cached plan must not change result type");
+  }
+}
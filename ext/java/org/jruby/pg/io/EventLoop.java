@@ -0,0 +1,308 @@
+package org.jruby.pg.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A selector thread shared by all the connections in the process.
+ * Instead of opening a new {@link Selector} every time a connection
+ * has to wait for its socket, the socket is registered once with the
+ * event loop and the waiting thread is notified through a {@link
+ * ReadinessListener}.
+ *
+ * Registrations are one-shot, the interest set of the channel is
+ * cleared before the listener is invoked. A channel can have one
+ * listener at a time. All operations on the selection keys happen on
+ * the event loop thread.
+ *
+ * If the selector breaks the listeners that are registered fail and
+ * the selector is replaced, the loop backs off while it keeps failing.
+ */
+public class EventLoop implements Runnable {
+  private static EventLoop defaultLoop;
+
+  // the longest the loop sleeps between two failed selects
+  private static final long MAX_BACKOFF = 1000;
+
+  // replaced by the event loop thread when it breaks
+  private volatile Selector selector;
+
+  // tasks that have to run on the event loop thread
+  private final ConcurrentLinkedQueue<Runnable> tasks =
+    new ConcurrentLinkedQueue<Runnable>();
+
+  private final Thread thread;
+
+  /**
+   * Return the event loop shared by all the connections, starting it
+   * if necessary
+   */
+  public static synchronized EventLoop getDefault() throws IOException {
+    if(defaultLoop == null) {
+      defaultLoop = new EventLoop("jruby-pg-event-loop");
+    }
+    return defaultLoop;
+  }
+
+  public EventLoop(String name) throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Register interest in the given operations. The listener is
+   * called once on the event loop thread as soon as the channel is
+   * ready. The listener replaces any listener that is currently
+   * registered for this channel.
+   *
+   * @param channel a non blocking channel
+   * @param ops the operations, see {@link SelectionKey}
+   */
+  public void register(final SelectableChannel channel, final int ops,
+                       final ReadinessListener listener) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          SelectionKey key = channel.keyFor(selector);
+          if(key != null && !key.isValid()) {
+            // the key was cancelled but the channel is still
+            // registered, a select will deregister it
+            selector.selectNow();
+            key = null;
+          }
+
+          if(key == null) {
+            channel.register(selector, ops, listener);
+          } else {
+            key.attach(listener);
+            key.interestOps(ops);
+          }
+        } catch(ClosedChannelException ex) {
+          listener.failed(ex);
+        } catch(CancelledKeyException ex) {
+          listener.failed(new ClosedChannelException());
+        } catch(ClosedSelectorException ex) {
+          // the selector broke and couldn't be replaced yet
+          listener.failed(new IOException("selector closed"));
+        } catch(IOException ex) {
+          listener.failed(ex);
+        }
+      }
+    });
+  }
+
+  /**
+   * Remove the given listener if it's still registered with the
+   * channel
+   */
+  public void unregister(final SelectableChannel channel,
+                         final ReadinessListener listener) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        SelectionKey key = channel.keyFor(selector);
+        if(key != null && key.isValid() && key.attachment() == listener) {
+          key.attach(null);
+          key.interestOps(0);
+        }
+      }
+    });
+  }
+
+  /**
+   * Block until the channel is ready for the given operations
+   *
+   * @param timeout the timeout in milliseconds, 0 means wait forever
+   * @return true if the channel is ready, false if the timeout expired
+   */
+  public boolean await(SelectableChannel channel, int ops, long timeout)
+  throws IOException {
+    ReadinessFuture future = new ReadinessFuture();
+    register(channel, ops, future);
+    boolean ready = false;
+    try {
+      ready = future.await(timeout);
+    } finally {
+      if(!ready) {
+        unregister(channel, future);
+      }
+    }
+    return ready;
+  }
+
+  /**
+   * Remove the channel from the event loop. When this method returns
+   * the channel is no longer registered with the selector and can be
+   * put in blocking mode.
+   */
+  public void deregister(final SelectableChannel channel) throws IOException {
+    if(!channel.isRegistered()) {
+      return;
+    }
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          SelectionKey key = channel.keyFor(selector);
+          if(key != null) {
+            Object attachment = key.attachment();
+            key.cancel();
+            selector.selectNow();
+            if(attachment instanceof ReadinessListener) {
+              ((ReadinessListener) attachment).failed(new ClosedChannelException());
+            }
+          }
+        } catch(IOException ex) {
+          // the selector is broken, nothing we can do
+        } finally {
+          latch.countDown();
+        }
+      }
+    });
+
+    try {
+      latch.await();
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while deregistering the socket");
+    }
+  }
+
+  @Override
+  public void run() {
+    int failures = 0;
+    for(;;) {
+      runTasks();
+
+      try {
+        selector.select();
+        failures = 0;
+        dispatch();
+      } catch(IOException ex) {
+        recover(ex, ++failures);
+      } catch(ClosedSelectorException ex) {
+        recover(new IOException("selector closed"), ++failures);
+      }
+    }
+  }
+
+  /**
+   * Run the given task on the event loop thread
+   */
+  private void execute(Runnable task) {
+    if(Thread.currentThread() == thread) {
+      task.run();
+      return;
+    }
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch(RuntimeException ex) {
+        // don't let a bad task kill the event loop
+      }
+    }
+  }
+
+  /**
+   * Notify the listeners of the channels that are ready
+   */
+  private void dispatch() {
+    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+    while(keys.hasNext()) {
+      SelectionKey key = keys.next();
+      keys.remove();
+
+      ReadinessListener listener = (ReadinessListener) key.attach(null);
+      if(listener == null) {
+        continue;
+      }
+
+      try {
+        int readyOps = key.readyOps();
+        key.interestOps(0);
+        notifyListener(listener, readyOps);
+      } catch(CancelledKeyException ex) {
+        // the channel was closed by another thread
+        listener.failed(new ClosedChannelException());
+      }
+    }
+  }
+
+  /**
+   * Called when a select fails, the selector is most likely broken.
+   * Fail the listeners that are waiting on it and open a new one, the
+   * channels are registered with the new selector the next time they
+   * wait. Back off if the selects keep failing.
+   */
+  private void recover(IOException error, int failures) {
+    Selector broken = selector;
+    if(broken.isOpen()) {
+      try {
+        for(SelectionKey key : broken.keys()) {
+          Object attachment = key.attach(null);
+          if(attachment instanceof ReadinessListener) {
+            failListener((ReadinessListener) attachment, error);
+          }
+        }
+      } catch(ClosedSelectorException ex) {
+        // closed in the meantime, there's nothing left to fail
+      }
+      try {
+        broken.close();
+      } catch(IOException ex) {
+        // it's replaced anyway
+      }
+    }
+
+    try {
+      selector = Selector.open();
+    } catch(IOException ex) {
+      // keep the closed selector, the next select fails and we try
+      // again after backing off
+    }
+
+    if(failures > 1) {
+      try {
+        Thread.sleep(Math.min(MAX_BACKOFF, 10L << Math.min(failures, 10)));
+      } catch(InterruptedException ex) {
+        // the event loop thread is never interrupted on purpose
+      }
+    }
+  }
+
+  private static void failListener(ReadinessListener listener, IOException error) {
+    try {
+      listener.failed(error);
+    } catch(RuntimeException ex) {
+      // don't let a bad listener kill the event loop
+    }
+  }
+
+  private static void notifyListener(ReadinessListener listener, int readyOps) {
+    try {
+      listener.ready(readyOps);
+    } catch(RuntimeException ex) {
+      // don't let a bad listener kill the event loop
+    }
+  }
+}
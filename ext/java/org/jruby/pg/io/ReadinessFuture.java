@@ -0,0 +1,76 @@
+package org.jruby.pg.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * A {@link ReadinessListener} that threads can block on until the
+ * channel is ready
+ */
+public class ReadinessFuture implements ReadinessListener {
+  private boolean done;
+  private int readyOps;
+  private IOException error;
+
+  @Override
+  public synchronized void ready(int readyOps) {
+    this.readyOps = readyOps;
+    done = true;
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void failed(IOException ex) {
+    this.error = ex;
+    done = true;
+    notifyAll();
+  }
+
+  /**
+   * Return true if the channel is ready or the registration failed
+   */
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Return the operations the channel is ready for, only valid once
+   * {@link #isDone} returns true
+   */
+  public synchronized int getReadyOps() {
+    return readyOps;
+  }
+
+  /**
+   * Block until the channel is ready or the timeout expires
+   *
+   * @param timeout the timeout in milliseconds, 0 means wait forever
+   * @return true if the channel is ready, false if the timeout expired
+   * @throws IOException if the registration failed
+   * @throws InterruptedIOException if the thread was interrupted
+   */
+  public synchronized boolean await(long timeout) throws IOException {
+    long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    while(!done) {
+      long waitTime = 0;
+      if(deadline > 0) {
+        waitTime = deadline - System.currentTimeMillis();
+        if(waitTime <= 0) {
+          return false;
+        }
+      }
+
+      try {
+        wait(waitTime);
+      } catch(InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for the socket");
+      }
+    }
+
+    if(error != null) {
+      throw error;
+    }
+    return true;
+  }
+}
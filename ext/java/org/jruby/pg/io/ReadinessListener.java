@@ -0,0 +1,25 @@
+package org.jruby.pg.io;
+
+import java.io.IOException;
+
+/**
+ * Callback invoked by the {@link EventLoop} when a channel becomes
+ * ready. Callbacks are invoked on the event loop thread and must not
+ * block.
+ */
+public interface ReadinessListener {
+  /**
+   * Called once the channel is ready for some of the operations the
+   * listener registered for
+   *
+   * @param readyOps the operations the channel is ready for, see
+   *                 {@link java.nio.channels.SelectionKey}
+   */
+  public void ready(int readyOps);
+
+  /**
+   * Called if the channel couldn't be registered, e.g. because it
+   * was closed
+   */
+  public void failed(IOException ex);
+}
@@ -0,0 +1,205 @@
+package org.jruby.pg.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel shared by all the connections in the process.
+ * Scheduling and cancelling a timeout are O(1), which matters since
+ * almost every timeout is cancelled before it expires. Timeouts
+ * expire with a precision of one tick.
+ *
+ * The tasks run on the timer thread and must not block. The thread
+ * only wakes up every tick while there are pending timeouts.
+ */
+public class TimerWheel implements Runnable {
+  public static final long DEFAULT_TICK_MILLIS = 10;
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private static TimerWheel defaultWheel;
+
+  private final long tickNanos;
+  private final Timeout[] buckets;
+  private final int mask;
+  private final long startTime = System.nanoTime();
+
+  // the last tick whose bucket was processed and the number of
+  // pending timeouts, guarded by this
+  private long processedTick;
+  private int pending;
+
+  /**
+   * A scheduled task, see {@link TimerWheel#schedule}
+   */
+  public class Timeout {
+    private final Runnable task;
+    private long rounds;
+    private int bucket = -1;
+    private boolean expired;
+    private Timeout previous, next;
+
+    private Timeout(Runnable task) {
+      this.task = task;
+    }
+
+    /**
+     * Return true if the task ran or is about to run
+     */
+    public boolean isExpired() {
+      synchronized(TimerWheel.this) {
+        return expired;
+      }
+    }
+
+    /**
+     * Cancel the timeout, return false if it already expired
+     */
+    public boolean cancel() {
+      synchronized(TimerWheel.this) {
+        if(expired) {
+          return false;
+        }
+        if(bucket >= 0) {
+          remove(this);
+          pending--;
+        }
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Return the timer wheel shared by all the connections, starting it
+   * if necessary
+   */
+  public static synchronized TimerWheel getDefault() {
+    if(defaultWheel == null) {
+      defaultWheel = new TimerWheel("jruby-pg-timer", DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+    return defaultWheel;
+  }
+
+  /**
+   * @param wheelSize the number of buckets, rounded up to a power of
+   *                  two
+   */
+  public TimerWheel(String name, long tickMillis, int wheelSize) {
+    if(tickMillis <= 0 || wheelSize <= 0) {
+      throw new IllegalArgumentException("invalid tick duration or wheel size");
+    }
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    int size = Integer.highestOneBit(wheelSize);
+    if(size < wheelSize) {
+      size <<= 1;
+    }
+    buckets = new Timeout[size];
+    mask = size - 1;
+
+    Thread thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Run the task once the delay elapsed, unless the returned timeout
+   * is cancelled first
+   */
+  public Timeout schedule(Runnable task, long delayMillis) {
+    Timeout timeout = new Timeout(task);
+    long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+    synchronized(this) {
+      if(pending == 0) {
+        // skip the ticks that elapsed while the wheel was empty
+        processedTick = Math.max(processedTick, currentTick() - 1);
+      }
+      long deadlineTick = Math.max(currentTick() + ticks, processedTick + 1);
+      timeout.rounds = (deadlineTick - processedTick - 1) / buckets.length;
+      add(timeout, (int) (deadlineTick & mask));
+      if(pending++ == 0) {
+        notifyAll();
+      }
+    }
+    return timeout;
+  }
+
+  @Override
+  public void run() {
+    List<Timeout> expired = new ArrayList<Timeout>();
+    for(;;) {
+      synchronized(this) {
+        try {
+          waitForTick();
+        } catch(InterruptedException ex) {
+          continue;
+        }
+        long tick = currentTick();
+        while(processedTick < tick) {
+          processedTick++;
+          expire((int) (processedTick & mask), expired);
+        }
+      }
+
+      for(Timeout timeout : expired) {
+        try {
+          timeout.task.run();
+        } catch(RuntimeException ex) {
+          // don't let a bad task kill the timer thread
+        }
+      }
+      expired.clear();
+    }
+  }
+
+  // private methods
+
+  private long currentTick() {
+    return (System.nanoTime() - startTime) / tickNanos;
+  }
+
+  private void waitForTick() throws InterruptedException {
+    while(pending == 0) {
+      wait();
+    }
+    long nanos = (processedTick + 1) * tickNanos - (System.nanoTime() - startTime);
+    if(nanos > 0) {
+      TimeUnit.NANOSECONDS.timedWait(this, nanos);
+    }
+  }
+
+  private void expire(int bucket, List<Timeout> expired) {
+    Timeout timeout = buckets[bucket];
+    while(timeout != null) {
+      Timeout next = timeout.next;
+      if(timeout.rounds-- <= 0) {
+        remove(timeout);
+        timeout.expired = true;
+        pending--;
+        expired.add(timeout);
+      }
+      timeout = next;
+    }
+  }
+
+  private void add(Timeout timeout, int bucket) {
+    timeout.bucket = bucket;
+    timeout.next = buckets[bucket];
+    if(timeout.next != null) {
+      timeout.next.previous = timeout;
+    }
+    buckets[bucket] = timeout;
+  }
+
+  private void remove(Timeout timeout) {
+    if(timeout.previous == null) {
+      buckets[timeout.bucket] = timeout.next;
+    } else {
+      timeout.previous.next = timeout.next;
+    }
+    if(timeout.next != null) {
+      timeout.next.previous = timeout.previous;
+    }
+    timeout.previous = timeout.next = null;
+    timeout.bucket = -1;
+  }
+}
@@ -24,11 +24,9 @@ public class Bind extends FrontendMessage {
     }
     writer.writeShort(params.length);
     for(Value parameter : params) {
-      if(parameter.getBytes() == null) {
-        writer.writeInt(-1);
-      } else {
-        writer.writeInt(parameter.getBytes().length);
-        writer.writeNChar(parameter.getBytes());
+      writer.writeInt(parameter.getLength());
+      if(parameter.getLength() >= 0) {
+        parameter.write(writer);
       }
     }
     writer.writeShort(1);
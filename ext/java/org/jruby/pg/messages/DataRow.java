@@ -1,11 +1,24 @@
 package org.jruby.pg.messages;
 
 
+/**
+ * A row of data. The values of all the columns are stored in one
+ * byte array (the body of the message as received from the backend)
+ * and a table of offsets and lengths is used to find the value of
+ * each column. This way a row costs a constant number of allocations
+ * regardless of the number of columns.
+ */
 public class DataRow extends BackendMessage {
-  private final byte[][] values;
+  // the body of the message, i.e. everything after the length
+  private final byte[] data;
 
-  public DataRow(byte[][] values, int length) {
-    this.values = values;
+  // the offset of the ith column is at 2*i and the length is at
+  // 2*i+1. the length is -1 if the value is NULL
+  private final int[] columns;
+
+  public DataRow(byte[] data, int[] columns, int length) {
+    this.data = data;
+    this.columns = columns;
   }
 
   @Override
@@ -13,7 +26,55 @@ public class DataRow extends BackendMessage {
     return MessageType.DataRow;
   }
 
-  public byte[][] getValues() {
-    return values;
+  /**
+   * Return the number of columns in this row
+   */
+  public int getColumnCount() {
+    return columns.length / 2;
+  }
+
+  /**
+   * Return true if the value of the given column is NULL
+   */
+  public boolean isNull(int column) {
+    return columns[column * 2 + 1] == -1;
+  }
+
+  /**
+   * Return the offset of the given column's value in {@link #getData}
+   */
+  public int getOffset(int column) {
+    return columns[column * 2];
+  }
+
+  /**
+   * Return the length of the given column's value or -1 if the value
+   * is NULL
+   */
+  public int getLength(int column) {
+    return columns[column * 2 + 1];
+  }
+
+  /**
+   * Return the byte array backing all the values of this row. Use
+   * {@link #getOffset} and {@link #getLength} to find the value of a
+   * given column. The array must not be modified.
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * Return a copy of the value of the given column or null if the
+   * value is NULL
+   */
+  public byte[] getValue(int column) {
+    int length = getLength(column);
+    if(length == -1) {
+      return null;
+    }
+    byte[] value = new byte[length];
+    System.arraycopy(data, getOffset(column), value, 0, length);
+    return value;
   }
 }
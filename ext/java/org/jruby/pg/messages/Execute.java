@@ -4,15 +4,25 @@ import org.jruby.pg.internal.PostgresqlString;
 
 public class Execute extends FrontendMessage {
   private PostgresqlString name;
+  private final int maxRows;
 
   public Execute(PostgresqlString name) {
+    this(name, 0);
+  }
+
+  /**
+   * Execute the given portal returning at most maxRows rows, 0 means
+   * return all the rows
+   */
+  public Execute(PostgresqlString name, int maxRows) {
     this.name = name;
+    this.maxRows = maxRows;
   }
 
   @Override
   public void writeInternal(ProtocolWriter writer) {
     writer.writeString(name.getBytes());
-    writer.writeInt(0);
+    writer.writeInt(maxRows);
   }
 
   @Override
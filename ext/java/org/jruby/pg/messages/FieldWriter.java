@@ -0,0 +1,54 @@
+package org.jruby.pg.messages;
+
+import org.jruby.pg.internal.PostgresqlString;
+
+/**
+ * A FieldWriter writes the fields of the messages and the values of
+ * the parameters in network byte order. This is implemented by
+ * PostgresqlConnection and by BinaryCopyWriter, which writes values
+ * into COPY data instead of messages
+ */
+public interface FieldWriter {
+  /**
+   * Write a byte
+   */
+  public void writeByte(char b);
+
+  /**
+   * Write a 4 byte integer
+   */
+  public void writeInt(int n);
+
+  /**
+   * Write a 2 byte integer. The argument has to fit in a short,
+   * otherwise it will be truncated. The argument isn't of type short
+   * for convenience, otherwise there will be short casting all over
+   * the place
+   */
+  public void writeShort(int s);
+
+  /**
+   * Write an 8 byte integer
+   */
+  public void writeLong(long n);
+
+  /**
+   * Write a null terminated string, add the null byte if the string
+   * doesn't end with a null byte already
+   */
+  public void writeString(byte[] b);
+
+  public void writeString(String s);
+
+  public void writeString(PostgresqlString s);
+
+  /**
+   * Write n bytes
+   */
+  public void writeNChar(byte[] b);
+
+  /**
+   * Write len bytes of the given array starting at offset
+   */
+  public void writeNChar(byte[] b, int offset, int len);
+}
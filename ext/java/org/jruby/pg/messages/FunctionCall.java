@@ -0,0 +1,39 @@
+package org.jruby.pg.messages;
+
+/**
+ * A call of a function through the fastpath interface, the arguments
+ * and the result are sent without going through a query
+ */
+public class FunctionCall extends FrontendMessage {
+  private final int oid;
+  private final Value[] args;
+  private final Format resultFormat;
+
+  public FunctionCall(int oid, Value[] args, Format resultFormat) {
+    this.oid = oid;
+    this.args = args;
+    this.resultFormat = resultFormat;
+  }
+
+  @Override
+  public void writeInternal(ProtocolWriter writer) {
+    writer.writeInt(oid);
+    writer.writeShort(args.length);
+    for(Value arg : args) {
+      writer.writeShort(arg.getFormat().getValue());
+    }
+    writer.writeShort(args.length);
+    for(Value arg : args) {
+      writer.writeInt(arg.getLength());
+      if(arg.getLength() >= 0) {
+        arg.write(writer);
+      }
+    }
+    writer.writeShort(resultFormat.getValue());
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.FunctionCall;
+  }
+}
@@ -0,0 +1,8 @@
+package org.jruby.pg.messages;
+
+public class PortalSuspended extends BackendMessage {
+  @Override
+  public MessageType getType() {
+    return MessageType.PortalSuspended;
+  }
+}
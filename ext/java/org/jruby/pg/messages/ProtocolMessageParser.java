@@ -52,19 +52,23 @@ public class ProtocolMessageParser {
       return new RowDescription(columns, len);
 
     case 'D':
-      int numberOfDataColumns = reader.getShort();
-      byte[][] data = new byte[numberOfDataColumns][];
+      // copy the entire row in one shot and remember where the value
+      // of each column starts, instead of allocating an array per
+      // column
+      byte[] data = reader.getNChar(len - 4);
+      int numberOfDataColumns = getShort(data, 0);
+      int[] dataColumns = new int[numberOfDataColumns * 2];
+      int position = 2;
       for(int i = 0; i < numberOfDataColumns; i++) {
-        int byteLength = reader.getInt();
-        if(byteLength == -1) {
-          data[i] = null;
-        } else {
-          // create a new ByteBuffer that will share with `buf' the
-          // bytes constituting the value of the ith column
-          data[i] = reader.getNChar(byteLength);
+        int byteLength = getInt(data, position);
+        position += 4;
+        dataColumns[i * 2] = position;
+        dataColumns[i * 2 + 1] = byteLength;
+        if(byteLength > 0) {
+          position += byteLength;
         }
       }
-      return new DataRow(data, len);
+      return new DataRow(data, dataColumns, len);
 
     case 'K':
       int pid = reader.getInt();
@@ -101,6 +105,9 @@ public class ProtocolMessageParser {
     case '2':
       return new BindComplete();
 
+    case '3':
+      return new CloseComplete();
+
     case 'A':
       pid = reader.getInt();
       return new NotificationResponse(pid, reader.getString(), reader.getString());
@@ -132,6 +139,13 @@ public class ProtocolMessageParser {
     case 'n':
       return new NoData();
 
+    case 'V':
+      int valueLength = reader.getInt();
+      return new FunctionCallResponse(valueLength < 0 ? null : reader.getNChar(valueLength));
+
+    case 's':
+      return new PortalSuspended();
+
     case 'Z':
       byte transactionStatus = reader.getByte();
       return new ReadyForQuery(TransactionStatus.fromByte(transactionStatus), len);
@@ -141,4 +155,21 @@ public class ProtocolMessageParser {
         "Cannot translate buffer to message for type '" + ((char) type) + "'");
     }
   }
+
+  /**
+   * Decode the unsigned 2 byte integer at the given offset
+   */
+  private static int getShort(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+  }
+
+  /**
+   * Decode the 4 byte integer at the given offset
+   */
+  private static int getInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24) |
+           ((bytes[offset + 1] & 0xFF) << 16) |
+           ((bytes[offset + 2] & 0xFF) << 8) |
+           (bytes[offset + 3] & 0xFF);
+  }
 }
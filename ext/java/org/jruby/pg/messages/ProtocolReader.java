@@ -2,7 +2,7 @@ package org.jruby.pg.messages;
 
 /**
  * A protocol reader is used by the ProtocolMessageParser to parse
- * messages. This is implemented by the PostgresqlConnection to read
+ * messages. This is implemented by the ReceiveBuffer to read
  * messages from the input buffer
  */
 public interface ProtocolReader {
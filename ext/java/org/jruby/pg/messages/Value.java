@@ -1,12 +1,25 @@
 package org.jruby.pg.messages;
 
-
+/**
+ * The value of a parameter of a {@link Bind} message. Values are
+ * written straight into the connection's output buffer, the binary
+ * values returned by the static methods below don't need to be turned
+ * into a byte array first.
+ */
 public class Value {
   private final Format format;
   private final byte[] bytes;
+  private final int offset;
+  private final int length;
 
   public Value(byte[] bytes, Format format) {
+    this(bytes, 0, bytes == null ? -1 : bytes.length, format);
+  }
+
+  public Value(byte[] bytes, int offset, int length, Format format) {
     this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
     this.format = format;
   }
 
@@ -14,7 +27,99 @@ public class Value {
     return format;
   }
 
-  public byte[] getBytes() {
-    return bytes;
+  /**
+   * Return the length of the value on the wire, -1 for a null value
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Write the value, without its length, to the given writer
+   */
+  public void write(FieldWriter writer) {
+    writer.writeNChar(bytes, offset, length);
+  }
+
+  /**
+   * Return a binary bool
+   */
+  public static Value bool(final boolean value) {
+    return new Value(null, 0, 1, Format.Binary) {
+      @Override
+      public void write(FieldWriter writer) {
+        writer.writeByte(value ? (char) 1 : (char) 0);
+      }
+    };
+  }
+
+  /**
+   * Return a binary int8, also used for timestamps which are the
+   * number of microseconds since 2000-01-01
+   */
+  public static Value int8(final long value) {
+    return new Value(null, 0, 8, Format.Binary) {
+      @Override
+      public void write(FieldWriter writer) {
+        writer.writeLong(value);
+      }
+    };
+  }
+
+  /**
+   * Return a binary int4, also used for dates which are the number of
+   * days since 2000-01-01
+   */
+  public static Value int4(final int value) {
+    return new Value(null, 0, 4, Format.Binary) {
+      @Override
+      public void write(FieldWriter writer) {
+        writer.writeInt(value);
+      }
+    };
+  }
+
+  /**
+   * Return a binary int2
+   */
+  public static Value int2(final short value) {
+    return new Value(null, 0, 2, Format.Binary) {
+      @Override
+      public void write(FieldWriter writer) {
+        writer.writeShort(value);
+      }
+    };
+  }
+
+  /**
+   * Return a binary float4
+   */
+  public static Value float4(float value) {
+    return int4(Float.floatToIntBits(value));
+  }
+
+  /**
+   * Return a binary float8
+   */
+  public static Value float8(double value) {
+    return int8(Double.doubleToLongBits(value));
+  }
+
+  /**
+   * Return a binary numeric, digits are base 10000 digits
+   */
+  public static Value numeric(final short[] digits, final int weight, final int sign, final int dscale) {
+    return new Value(null, 0, 8 + digits.length * 2, Format.Binary) {
+      @Override
+      public void write(FieldWriter writer) {
+        writer.writeShort(digits.length);
+        writer.writeShort(weight);
+        writer.writeShort(sign);
+        writer.writeShort(dscale);
+        for(short digit : digits) {
+          writer.writeShort(digit);
+        }
+      }
+    };
   }
 }
@@ -14,6 +14,7 @@ BEGIN {
 require 'spec/lib/helpers'
 require 'rspec'
 require 'pg'
+require 'stringio'
 
 describe PG::Connection do
   before(:all) do
@@ -209,6 +210,22 @@ describe PG::Connection do
       @conn.exec 'ROLLBACK'
     end
 
+    it 'returns nil when the cancel request was processed' do
+      @conn.exec 'ROLLBACK'
+      @conn.send_query 'SELECT pg_sleep(1000)'
+      @conn.cancel.should be_nil
+      expect { @conn.get_last_result }.to raise_error(PG::QueryCanceled)
+      @conn.exec 'BEGIN'
+    end
+
+    it 'can send the cancel request without waiting for it' do
+      @conn.exec 'ROLLBACK'
+      @conn.send_query 'SELECT pg_sleep(1000)'
+      @conn.cancel(wait: false).should be_nil
+      expect { @conn.get_last_result }.to raise_error(PG::QueryCanceled)
+      @conn.exec 'BEGIN'
+    end
+
     it "described_class#block should allow a timeout" do
       @conn.send_query( "select pg_sleep(3)" )
 
@@ -358,4 +375,673 @@ describe PG::Connection do
       res.ntuples.should == 40
     end
   end
+
+  describe 'pipeline mode', :without_transaction do
+    after(:each) do
+      @conn.exit_pipeline_mode
+    end
+
+    it 'returns the results of the commands in order' do
+      @conn.enter_pipeline_mode
+      @conn.pipeline_status.should == PG::PQ_PIPELINE_ON
+      @conn.send_query('select $1::int', [1])
+      @conn.send_prepare('pipelined', 'select $1::int * 2')
+      @conn.send_query_prepared('pipelined', [21])
+      @conn.pipeline_sync
+
+      @conn.get_result.values.should == [['1']]
+      @conn.get_result.should be_nil
+      @conn.get_result.result_status.should == PG::PGRES_COMMAND_OK
+      @conn.get_result.should be_nil
+      @conn.get_result.values.should == [['42']]
+      @conn.get_result.should be_nil
+      @conn.get_result.result_status.should == PG::PGRES_PIPELINE_SYNC
+      @conn.get_result.should be_nil
+    end
+
+    it 'aborts the commands following an error until the next sync' do
+      @conn.enter_pipeline_mode
+      @conn.send_query('select 1/0', [])
+      @conn.send_query('select 1', [])
+      @conn.pipeline_sync
+      @conn.send_query('select 2', [])
+      @conn.pipeline_sync
+
+      @conn.get_result.result_status.should == PG::PGRES_FATAL_ERROR
+      @conn.pipeline_status.should == PG::PQ_PIPELINE_ABORTED
+      @conn.get_result.should be_nil
+      expect { @conn.get_result.check }.to raise_error(PG::Error)
+      @conn.get_result.should be_nil
+      @conn.get_result.result_status.should == PG::PGRES_PIPELINE_SYNC
+      @conn.pipeline_status.should == PG::PQ_PIPELINE_ON
+      @conn.get_result.values.should == [['2']]
+      @conn.get_result.should be_nil
+      @conn.get_result.result_status.should == PG::PGRES_PIPELINE_SYNC
+      @conn.get_result.should be_nil
+    end
+
+    it "doesn't use the description of the last statement executed outside the pipeline" do
+      @conn.prepare 'pipeline_stale', 'select $1::int'
+      2.times { @conn.exec_prepared('pipeline_stale', [1]) }
+      @conn.enter_pipeline_mode
+      @conn.send_query('select 1, 2', [])
+      @conn.send_query('unlisten pipeline_stale', [])
+      @conn.send_describe_prepared('pipeline_stale')
+      @conn.pipeline_sync
+
+      @conn.get_result.values.should == [['1', '2']]
+      @conn.get_result.should be_nil
+      @conn.get_result.result_status.should == PG::PGRES_COMMAND_OK
+      @conn.get_result.should be_nil
+      @conn.get_result.paramtype(0).should == PG::OID_INT4
+      @conn.get_result.should be_nil
+      @conn.get_result.result_status.should == PG::PGRES_PIPELINE_SYNC
+      @conn.get_result.should be_nil
+    end
+
+    it 'returns the rows of the next command in one result after a chunked one' do
+      @conn.enter_pipeline_mode
+      @conn.send_query('select generate_series(1, 3)', [])
+      @conn.set_chunked_rows_mode 2
+      @conn.send_query('select generate_series(1, 3)', [])
+      @conn.pipeline_sync
+
+      results = []
+      while res = @conn.get_result
+        results << [res.result_status, res.ntuples]
+      end
+      results.should == [[PG::PGRES_TUPLES_CHUNK, 2], [PG::PGRES_TUPLES_CHUNK, 1], [PG::PGRES_TUPLES_OK, 0]]
+      res = @conn.get_result
+      [res.result_status, res.ntuples].should == [PG::PGRES_TUPLES_OK, 3]
+      @conn.get_result.should be_nil
+      @conn.get_result.result_status.should == PG::PGRES_PIPELINE_SYNC
+      @conn.get_result.should be_nil
+    end
+
+    it "doesn't allow synchronous commands or exiting with pending results" do
+      @conn.enter_pipeline_mode
+      expect { @conn.exec('select 1') }.to raise_error(PG::Error)
+      @conn.send_query('select 1', [])
+      expect { @conn.exit_pipeline_mode }.to raise_error(PG::Error)
+      @conn.pipeline_sync
+      @conn.get_result
+      @conn.get_result
+      @conn.get_result.result_status.should == PG::PGRES_PIPELINE_SYNC
+    end
+  end
+
+  describe 'type map for queries' do
+    before(:each) do
+      @conn.type_map_for_queries = PG::TypeMapByClass.binary_defaults
+    end
+
+    after(:each) do
+      @conn.type_map_for_queries = nil
+    end
+
+    it 'sends parameters in binary format with their type' do
+      res = @conn.exec_params('SELECT $1 + 1, pg_typeof($1)::text, $2 * 2, NOT $3, $4::numeric', [41, 1.25, true, BigDecimal('-12.50')])
+      res.values.should == [['42', 'bigint', '2.5', 'f', '-12.50']]
+    end
+
+    it 'sends times as timestamptz' do
+      time = Time.at(1456749296, 789012)
+      res = @conn.exec_params('SELECT $1 = to_timestamp(1456749296.789012)', [time])
+      res.getvalue(0, 0).should == 't'
+    end
+
+    it 'sends strings and nil in text format' do
+      res = @conn.exec_params('SELECT $1::int, $2::text', ['7', nil])
+      res.values.should == [['7', nil]]
+    end
+
+    it 'encodes the parameters of a prepared statement for its types' do
+      @conn.prepare 'type_map_int4', 'SELECT $1::int4 + 1, $2::timestamptz = to_timestamp(1456749296.789012)'
+      params = [41, Time.at(1456749296, 789012)]
+      @conn.exec_prepared('type_map_int4', params).values.should == [['42', 't']]
+      @conn.describe_prepared 'type_map_int4'
+      @conn.exec_prepared('type_map_int4', params).values.should == [['42', 't']]
+    end
+
+    it 'sends the strings of a bytea parameter of a prepared statement as is' do
+      @conn.type_map_for_queries[String] = PG::TextEncoder::String.new(oid: PG::OID_TEXT)
+      @conn.prepare 'type_map_bytea', "SELECT encode($1::bytea, 'hex')"
+      @conn.describe_prepared 'type_map_bytea'
+      @conn.exec_prepared('type_map_bytea', ["a\x00\\x41".b]).values.should == [['61005c783431']]
+    end
+  end
+
+  describe 'statement cache', :without_transaction do
+    before(:each) do
+      @conn.statement_cache_size = 2
+      @conn.prepare_threshold = 2
+    end
+
+    after(:each) do
+      @conn.statement_cache_size = 0
+      @conn.exec 'DEALLOCATE ALL'
+    end
+
+    def prepared_statements
+      @conn.exec('SELECT name FROM pg_prepared_statements').column_values(0)
+    end
+
+    it "doesn't reuse the names of the statements of a replaced cache" do
+      2.times { @conn.exec_params('SELECT $1::int', [1]) }
+      @conn.prepare_threshold = 1
+      @conn.exec_params('SELECT $1::text', ['a']).values.should == [['a']]
+      prepared_statements.size.should == 2
+    end
+
+    it 'prepares statements after the threshold is reached' do
+      @conn.exec_params('SELECT $1::int', [1])
+      prepared_statements.should be_empty
+      @conn.exec_params('SELECT $1::int', [2]).values.should == [['2']]
+      prepared_statements.size.should == 1
+      @conn.exec_params('SELECT $1::int', [3]).values.should == [['3']]
+      prepared_statements.size.should == 1
+    end
+
+    it 'closes the least recently used statement' do
+      3.times do |i|
+        2.times { @conn.exec_params("SELECT $1::int + #{i}", [1]) }
+      end
+      prepared_statements.size.should == 2
+    end
+
+    it 'prepares the statement again if it was invalidated' do
+      @conn.exec 'CREATE TEMPORARY TABLE statement_cache (a int)'
+      2.times { @conn.exec_params('SELECT * FROM statement_cache WHERE a = $1', [1]) }
+      @conn.exec 'ALTER TABLE statement_cache ADD COLUMN b int'
+      @conn.exec_params('SELECT * FROM statement_cache WHERE a = $1', [1]).nfields.should == 2
+      @conn.exec 'DEALLOCATE ALL'
+      @conn.exec_params('SELECT * FROM statement_cache WHERE a = $1', [1]).nfields.should == 2
+    end
+
+    it 'tracks the statements parsed after an error in a pipeline' do
+      @conn.prepare_threshold = 1
+      @conn.enter_pipeline_mode
+      @conn.send_query('SELEC $1', [1])
+      @conn.pipeline_sync
+      @conn.send_query('SELECT $1::int + 1', [1])
+      @conn.get_result.result_status.should == PG::PGRES_FATAL_ERROR
+      @conn.get_result.should be_nil
+      @conn.send_query('SELEC2 $1', [1])
+      @conn.pipeline_sync
+      results = 6.times.map { res = @conn.get_result; res && res.result_status }
+      results.should == [PG::PGRES_PIPELINE_SYNC, PG::PGRES_TUPLES_OK, nil,
+                         PG::PGRES_FATAL_ERROR, nil, PG::PGRES_PIPELINE_SYNC]
+      @conn.exit_pipeline_mode
+
+      # in a transaction the query isn't retried, a statement that is
+      # believed to be prepared fails with a different error
+      @conn.exec 'BEGIN'
+      expect { @conn.exec_params('SELEC2 $1', [1]) }.to raise_error(PG::SyntaxError)
+      @conn.exec 'ROLLBACK'
+      @conn.exec_params('SELECT $1::int + 1', [5]).values.should == [['6']]
+    end
+  end
+
+  describe 'prepared statement descriptions' do
+    it 'reuses the description of a prepared statement' do
+      @conn.prepare 'described', 'SELECT $1::int AS a, $1::text AS b'
+      2.times do |i|
+        res = @conn.exec_prepared 'described', [i]
+        res.fields.should == ['a', 'b']
+        res.values.should == [[i.to_s, i.to_s]]
+      end
+      res = @conn.exec_prepared 'described', [1], 1
+      res.fformat(0).should == 1
+      res.getvalue(0, 0).should == "\x00\x00\x00\x01"
+    end
+
+    it 'describes the statement again after it is deallocated' do
+      @conn.prepare 'described', 'SELECT $1::int AS a'
+      @conn.exec_prepared('described', [1]).fields.should == ['a']
+      @conn.exec 'DEALLOCATE described'
+      @conn.prepare 'described', 'SELECT $1::int AS b, 2 AS c'
+      @conn.exec_prepared('described', [1]).fields.should == ['b', 'c']
+    end
+  end
+
+  describe 'portal fetch' do
+    it 'returns the rows in batches of the fetch size' do
+      @conn.send_query_portal 'SELECT g FROM generate_series(1, $1::int) g', [5], 2
+      batches = []
+      while res = @conn.get_result
+        batches << res.column_values(0)
+      end
+      batches.should == [['1', '2'], ['3', '4'], ['5']]
+    end
+
+    it 'yields every batch to the block' do
+      batches = []
+      @conn.exec_portal('SELECT g FROM generate_series(1, 4) g', [], 2) do |res|
+        batches << res.column_values(0)
+      end
+      batches.should == [['1', '2'], ['3', '4']]
+      @conn.exec('SELECT 1').values.should == [['1']]
+    end
+
+    it 'raises the error after the end of the command' do
+      expect {
+        @conn.exec_portal('SELECT 1/(g - 3) FROM generate_series(1, 4) g', [], 1) { |res| }
+      }.to raise_error(PG::Error, /division by zero/)
+    end
+
+    it 'closes the portal when the block breaks out' do
+      batches = []
+      @conn.exec_portal('SELECT g FROM generate_series(1, 10) g', [], 2) do |res|
+        batches << res.column_values(0)
+        break
+      end
+      batches.should == [['1', '2']]
+      @conn.exec('SELECT 1').values.should == [['1']]
+    end
+
+    it 'closes the portal when the block raises' do
+      expect {
+        @conn.exec_portal('SELECT g FROM generate_series(1, 10) g', [], 2) { |res| raise 'stop' }
+      }.to raise_error(RuntimeError, 'stop')
+      @conn.exec('SELECT 1').values.should == [['1']]
+    end
+  end
+
+  describe 'chunked rows mode' do
+    it 'returns the rows in chunks followed by an empty result' do
+      @conn.send_query 'SELECT generate_series(1, 5)'
+      @conn.set_chunked_rows_mode 2
+      results = []
+      while res = @conn.get_result
+        results << [res.result_status, res.ntuples]
+      end
+      results.should == [[PG::PGRES_TUPLES_CHUNK, 2], [PG::PGRES_TUPLES_CHUNK, 2],
+                         [PG::PGRES_TUPLES_CHUNK, 1], [PG::PGRES_TUPLES_OK, 0]]
+    end
+
+    it 'raises an error if the connection is not busy' do
+      expect { @conn.set_chunked_rows_mode 2 }.to raise_error(PG::Error)
+    end
+  end
+
+  describe 'exec_batch' do
+    before(:each) do
+      @conn.exec 'CREATE TABLE batch_test (id integer PRIMARY KEY, name text)'
+    end
+
+    it 'returns the number of rows affected by every parameter set' do
+      counts = @conn.exec_batch 'INSERT INTO batch_test VALUES ($1, $2)', [[1, 'a'], [2, 'b'], [3, 'c']]
+      counts.should == [1, 1, 1]
+    end
+
+    it 'executes a prepared statement' do
+      @conn.exec 'INSERT INTO batch_test VALUES (1, \'a\'), (2, \'b\')'
+      @conn.prepare 'batch_update', 'UPDATE batch_test SET name = $2 WHERE id <= $1'
+      @conn.exec_batch_prepared('batch_update', [[2, 'x'], [0, 'y'], [1, 'z']]).should == [2, 0, 1]
+    end
+
+    it 'types a parameter from the first set that has a value' do
+      @conn.type_map_for_queries = PG::TypeMapByClass.binary_defaults
+      begin
+        @conn.exec_batch('INSERT INTO batch_test VALUES ($1, $2)', [[1, nil], [2, 'b']]).should == [1, 1]
+        @conn.exec_batch('UPDATE batch_test SET id = $1 WHERE name IS NOT DISTINCT FROM $2',
+                         [[nil, 'x'], [3, 'b']]).should == [0, 1]
+      ensure
+        @conn.type_map_for_queries = nil
+      end
+      @conn.exec('SELECT id, name FROM batch_test ORDER BY id').values.should == [['1', nil], ['3', 'b']]
+    end
+
+    it 'reports the index of the failed parameter set' do
+      expect {
+        @conn.exec_batch 'INSERT INTO batch_test VALUES ($1, $2)', [[1, 'a'], [2, 'b'], [1, 'c'], [3, 'd']]
+      }.to raise_error(PG::Error) { |error| error.batch_index.should == 2 }
+    end
+  end
+
+  describe 'coalesced copy in' do
+    before(:each) do
+      @conn.exec 'CREATE TABLE copy_test (id integer, name text)'
+    end
+
+    it 'packs the rows in CopyData messages of the copy buffer size' do
+      @conn.copy_buffer_size = 1024
+      @conn.copy_data 'COPY copy_test FROM STDIN' do
+        1000.times { |i| @conn.put_copy_data("#{i}\tname #{i}\n").should == true }
+      end
+      @conn.exec('SELECT count(*), sum(id) FROM copy_test').values.should == [['1000', '499500']]
+    end
+
+    it 'rejects a non positive copy buffer size' do
+      expect { @conn.copy_buffer_size = 0 }.to raise_error(ArgumentError)
+    end
+  end
+
+  describe 'copy_out_to' do
+    it 'writes the copy data to an io' do
+      @conn.exec 'COPY (SELECT i, i * 2 FROM generate_series(1, 1000) i) TO STDOUT'
+      io = StringIO.new
+      res = @conn.copy_out_to io
+      res.result_status.should == PG::PGRES_COMMAND_OK
+      io.string.should == (1..1000).map { |i| "#{i}\t#{i * 2}\n" }.join
+    end
+
+    it 'writes the copy data to a file' do
+      path = TEST_DIRECTORY + 'copy_out_to.txt'
+      @conn.exec 'COPY (SELECT repeat(\'x\', 200000)) TO STDOUT'
+      @conn.copy_out_to path.to_s
+      File.read(path).should == 'x' * 200000 + "\n"
+      File.unlink path
+    end
+
+    it 'raises the error that ends the copy' do
+      @conn.exec 'COPY (SELECT 1 / (i - 1000) FROM generate_series(1, 2000) i) TO STDOUT'
+      expect { @conn.copy_out_to StringIO.new }.to raise_error(PG::Error, /division by zero/)
+    end
+  end
+
+  describe 'binary copy' do
+    before(:each) do
+      @conn.exec 'CREATE TABLE binary_copy_test (id int4, value float8, at timestamptz, name text)'
+      @oids = [PG::OID_INT4, PG::OID_FLOAT8, PG::OID_TIMESTAMPTZ, PG::OID_TEXT]
+    end
+
+    it 'encodes rows with a CopyRow encoder' do
+      encoder = PG::BinaryEncoder::CopyRow.new(oids: @oids)
+      @conn.copy_data 'COPY binary_copy_test FROM STDIN (FORMAT binary)', encoder do
+        @conn.put_copy_data [1, 1.5, Time.utc(2020, 1, 2, 3, 4, 5), 'one']
+        @conn.put_copy_data [2, nil, nil, nil]
+      end
+      @conn.exec('SELECT id, value, extract(epoch FROM at), name FROM binary_copy_test ORDER BY id').values.should ==
+        [['1', '1.5', '1577934245', 'one'], ['2', nil, nil, nil]]
+    end
+
+    it 'decodes rows with a CopyRow decoder' do
+      @conn.exec "INSERT INTO binary_copy_test VALUES (1, 2.5, '2020-01-02 03:04:05+00', 'one'), (2, NULL, NULL, NULL)"
+      decoder = PG::BinaryDecoder::CopyRow.new(oids: @oids)
+      rows = []
+      @conn.copy_data 'COPY binary_copy_test TO STDOUT (FORMAT binary)', decoder do
+        while row = @conn.get_copy_data
+          rows << row
+        end
+      end
+      rows.should == [[1, 2.5, Time.utc(2020, 1, 2, 3, 4, 5), 'one'], [2, nil, nil, nil]]
+    end
+
+    it 'writes the header of a COPY that follows an unfinished one' do
+      conn = PG.connect @conninfo
+      begin
+        conn.exec 'CREATE TABLE binary_copy_reset_test (id int4)'
+        encoder = PG::BinaryEncoder::CopyRow.new(oids: [PG::OID_INT4])
+        conn.exec 'COPY binary_copy_reset_test FROM STDIN (FORMAT binary)'
+        conn.put_copy_data [1], encoder
+        conn.reset
+        conn.copy_data 'COPY binary_copy_reset_test FROM STDIN (FORMAT binary)', encoder do
+          conn.put_copy_data [2]
+        end
+        conn.exec('SELECT id FROM binary_copy_reset_test').values.should == [['2']]
+      ensure
+        conn.exec 'DROP TABLE IF EXISTS binary_copy_reset_test'
+        conn.close
+      end
+    end
+
+    it 'writes the trailer again when put_copy_end is retried in nonblocking mode' do
+      @conn.exec "CREATE FUNCTION pg_temp.binary_copy_stall() RETURNS trigger AS $$ " +
+                 "BEGIN IF NEW.id = 0 THEN PERFORM pg_sleep(1); END IF; RETURN NEW; END $$ LANGUAGE plpgsql"
+      @conn.exec 'CREATE TRIGGER binary_copy_stall BEFORE INSERT ON binary_copy_test ' +
+                 'FOR EACH ROW EXECUTE PROCEDURE pg_temp.binary_copy_stall()'
+      encoder = PG::BinaryEncoder::CopyRow.new(oids: @oids)
+      @conn.exec 'COPY binary_copy_test FROM STDIN (FORMAT binary)'
+      copy_buffer_size = @conn.copy_buffer_size
+      begin
+        @conn.set_nonblocking(true)
+        rows = 0
+        rows += 1 while @conn.put_copy_data([rows, nil, nil, 'x' * 10000], encoder)
+        @conn.copy_buffer_size = 1
+        @conn.put_copy_end.should == false
+        until @conn.put_copy_end
+          @conn.flush
+          sleep 0.01
+        end
+      ensure
+        @conn.set_nonblocking(false)
+        @conn.copy_buffer_size = copy_buffer_size
+      end
+      @conn.get_result.result_status.should == PG::PGRES_COMMAND_OK
+      @conn.get_result.should be_nil
+      @conn.exec('SELECT count(*) FROM binary_copy_test').getvalue(0, 0).to_i.should == rows
+    end
+
+    it 'rejects a decoder as encoder' do
+      expect {
+        @conn.encoder_for_put_copy_data = PG::BinaryDecoder::CopyRow.new(oids: @oids)
+      }.to raise_error(TypeError)
+    end
+  end
+
+  describe 'lo_import and lo_export' do
+    before(:each) do
+      @source = TEST_DIRECTORY + 'lo_import.bin'
+      @target = TEST_DIRECTORY + 'lo_export.bin'
+      @data = Random.new(42).bytes(1024 * 1024 + 13)
+      File.binwrite(@source, @data)
+    end
+
+    after(:each) do
+      File.unlink(@source) if File.exist?(@source)
+      File.unlink(@target) if File.exist?(@target)
+    end
+
+    it 'copies a file to a large object and back' do
+      oid = @conn.lo_import(@source.to_s)
+      @conn.lo_export(oid, @target.to_s)
+      File.binread(@target).should == @data
+    end
+
+    it 'imports in the current transaction' do
+      oid = @conn.lo_import(@source.to_s)
+      @conn.transaction_status.should == PG::PQTRANS_INTRANS
+      fd = @conn.lo_open(oid, PG::INV_READ)
+      @conn.lo_read(fd, 10).should == @data[0, 10]
+    end
+
+    it 'raises an error if the large object does not exist', :without_transaction do
+      expect { @conn.lo_export(0, @target.to_s) }.to raise_error(PG::Error, /lo_export failed/)
+      @conn.transaction_status.should == PG::PQTRANS_IDLE
+    end
+  end
+
+  describe PG::LargeObject do
+    before(:each) do
+      @oid = @conn.lo_creat(PG::INV_READ | PG::INV_WRITE)
+      @data = Random.new(42).bytes(100 * 1024 + 7)
+    end
+
+    it 'reads what was written in small pieces' do
+      PG::LargeObject.open(@conn, @oid, PG::INV_READ | PG::INV_WRITE) do |lo|
+        0.step(@data.bytesize - 1, 100) { |offset| lo.write(@data[offset, 100]) }
+        lo.pos.should == @data.bytesize
+        lo.size.should == @data.bytesize
+        lo.rewind
+        lo.read(10).should == @data[0, 10]
+        lo.read.should == @data[10..-1]
+        lo.read(1).should be_nil
+        lo.eof?.should be true
+      end
+    end
+
+    it 'seeks relative to the current position and to the end' do
+      PG::LargeObject.open(@conn, @oid, PG::INV_READ | PG::INV_WRITE) do |lo|
+        lo.write(@data)
+        lo.seek(-5, PG::SEEK_END)
+        lo.read.should == @data[-5..-1]
+        lo.seek(100)
+        lo.write('abc')
+        lo.seek(-3, PG::SEEK_CUR)
+        lo.read(3).should == 'abc'
+      end
+    end
+
+    it 'truncates the large object' do
+      PG::LargeObject.open(@conn, @oid, PG::INV_READ | PG::INV_WRITE) do |lo|
+        lo.write(@data)
+        lo.truncate(1000)
+        lo.size.should == 1000
+        lo.pos.should == 1000
+      end
+    end
+
+    it 'reads several ranges at once' do
+      PG::LargeObject.open(@conn, @oid, PG::INV_READ | PG::INV_WRITE) do |lo|
+        lo.write(@data)
+        ranges = lo.read_ranges([[0, 10], [5000, 50_000], [@data.bytesize - 3, 10]])
+        ranges.should == [@data[0, 10], @data[5000, 50_000], @data[-3..-1]]
+        lo.pos.should == @data.bytesize
+      end
+    end
+
+    it 'refuses to read ranges in pipeline mode' do
+      PG::LargeObject.open(@conn, @oid, PG::INV_READ | PG::INV_WRITE) do |lo|
+        lo.write(@data)
+        lo.flush
+        @conn.enter_pipeline_mode
+        begin
+          expect { lo.read_ranges([[0, 10]]) }.to raise_error(PG::Error)
+        ensure
+          @conn.exit_pipeline_mode
+        end
+        lo.read_ranges([[0, 10]]).should == [@data[0, 10]]
+      end
+    end
+
+    it 'refuses to write if opened for reading' do
+      lo = PG::LargeObject.open(@conn, @oid)
+      expect { lo.write('abc') }.to raise_error(IOError)
+      lo.close
+      lo.closed?.should be true
+      expect { lo.read }.to raise_error(IOError)
+    end
+  end
+
+  describe 'query timeout', :without_transaction do
+    after(:each) do
+      @conn.query_timeout = nil
+    end
+
+    it 'cancels a query that runs for longer than its timeout' do
+      start = Time.now
+      expect {
+        @conn.exec("SELECT pg_sleep(10)", timeout: 0.2)
+      }.to raise_error(PG::QueryTimeout, /timed out/)
+      (Time.now - start).should < 5
+      @conn.transaction_status.should == PG::PQTRANS_IDLE
+      @conn.exec("SELECT 1").values.should == [["1"]]
+    end
+
+    it 'uses the timeout of the connection by default' do
+      @conn.query_timeout = 0.2
+      @conn.query_timeout.should == 0.2
+      expect { @conn.exec("SELECT pg_sleep(10)") }.to raise_error(PG::QueryCanceled)
+      @conn.exec("SELECT pg_sleep(0.5)", timeout: nil).ntuples.should == 1
+    end
+
+    it 'applies to prepared statements' do
+      @conn.prepare('sleep', 'SELECT pg_sleep($1::float8)')
+      expect { @conn.exec_prepared('sleep', [10], timeout: 0.2) }.to raise_error(PG::QueryTimeout)
+      @conn.exec_prepared('sleep', [0]).ntuples.should == 1
+    end
+
+    it 'applies to the rows of a copy out' do
+      @conn.exec("COPY (SELECT i, pg_sleep(0.2) FROM generate_series(1, 50) i) TO STDOUT", timeout: 0.5)
+      start = Time.now
+      expect { @conn.copy_out_to(StringIO.new) }.to raise_error(PG::QueryTimeout)
+      (Time.now - start).should < 5
+      @conn.transaction_status.should == PG::PQTRANS_IDLE
+      @conn.exec("SELECT 1").values.should == [["1"]]
+    end
+  end
+
+  describe 'stats' do
+    it 'counts the messages, rows and round trips of the connection' do
+      before = @conn.stats
+      @conn.exec("SELECT generate_series(1, 10)")
+      after = @conn.stats
+      (after[:messages_out]['Query'] - before[:messages_out].fetch('Query', 0)).should == 1
+      (after[:messages_in]['DataRow'] - before[:messages_in].fetch('DataRow', 0)).should == 10
+      (after[:rows] - before[:rows]).should == 10
+      after[:round_trips].should > before[:round_trips]
+      after[:bytes_in].should > before[:bytes_in]
+    end
+
+    it 'sums the counters of all the connections' do
+      stats = PG::Connection.stats
+      stats[:open_connections].should >= 1
+      stats[:bytes_in].should >= @conn.stats[:bytes_in]
+    end
+
+    it 'keeps the counters of a connection that is garbage collected without being closed' do
+      conn = PG.connect @conninfo
+      conn.exec("SELECT generate_series(1, 10)")
+      before = PG::Connection.stats
+      conn = nil
+      5.times { java.lang.System.gc }
+      after = PG::Connection.stats
+      after[:bytes_in].should >= before[:bytes_in]
+      after[:rows].should >= before[:rows]
+    end
+  end
+
+  describe 'trace buffer' do
+    after(:each) do
+      @conn.disable_trace_buffer
+    end
+
+    it 'keeps the last messages and decodes them' do
+      @conn.dump_trace.should be_nil
+      @conn.enable_trace_buffer(records: 16)
+      @conn.exec("SELECT 1 AS one")
+      trace = PG::Connection.decode_trace(@conn.dump_trace)
+      trace.should include('To backend> "SELECT 1 AS one"')
+      trace.should include('From backend> "one"')
+    end
+
+    it 'truncates the payloads' do
+      @conn.enable_trace_buffer(records: 4, payload: 8)
+      @conn.exec("SELECT repeat('x', 100)")
+      trace = PG::Connection.decode_trace(@conn.dump_trace)
+      trace.should include('8 of 106 bytes recorded')
+      trace.should_not include('x' * 9)
+    end
+  end
+
+  describe 'buffer pool' do
+    after(:each) do
+      PG::Connection.configure_buffer_pool(direct: false)
+    end
+
+    it 'gives the buffers of a large result back to the pool' do
+      @conn.buffer_retain_size = 16 * 1024
+      @conn.exec("SELECT repeat('x', 1024) FROM generate_series(1, 1000)").ntuples.should == 1000
+      stats = PG::Connection.buffer_pool_stats
+      stats[:pooled_buffers_by_size].keys.max.should > 16 * 1024
+      stats[:pooled_bytes].should <= stats[:max_pooled_bytes]
+    end
+
+    it 'works with direct buffers' do
+      PG::Connection.configure_buffer_pool(direct: true)[:direct].should == true
+      conn = PG.connect @conninfo
+      begin
+        conn.exec("SELECT repeat('x', 100000) AS x").getvalue(0, 0).size.should == 100000
+        conn.exec("SELECT 'a' AS one").getvalue(0, 0).should == 'a'
+      ensure
+        conn.finish
+      end
+    end
+
+    it 'validates the limits' do
+      expect { @conn.buffer_retain_size = -1 }.to raise_error(ArgumentError)
+      expect { PG::Connection.configure_buffer_pool(max_buffer_size: 1) }.to raise_error(ArgumentError)
+    end
+  end
 end
@@ -0,0 +1,76 @@
+#!/usr/bin/env rspec
+#encoding: utf-8
+
+BEGIN {
+	require 'pathname'
+
+	basedir = Pathname( __FILE__ ).dirname.parent.parent
+	libdir = basedir + 'lib'
+
+	$LOAD_PATH.unshift( basedir.to_s ) unless $LOAD_PATH.include?( basedir.to_s )
+	$LOAD_PATH.unshift( libdir.to_s ) unless $LOAD_PATH.include?( libdir.to_s )
+}
+
+require 'spec/lib/helpers'
+require 'rspec'
+require 'pg'
+
+describe PG::Pool do
+  before(:all) do
+    @conn = setup_testing_db( "PG_Pool" )
+  end
+
+  before(:each) do
+    @pool = PG::Pool.new(@conninfo, min_size: 2, max_size: 3, checkout_timeout: 0.5)
+  end
+
+  after(:each) do
+    @pool.close
+  end
+
+  after(:all) do
+    teardown_testing_db( @conn )
+  end
+
+  it 'establishes min_size connections' do
+    @pool.size.should == 2
+    @pool.idle.should == 2
+  end
+
+  it 'yields a connection and checks it back in' do
+    @pool.with_connection { |conn| conn.exec('SELECT 1').values }.should == [['1']]
+    @pool.idle.should == 2
+  end
+
+  it 'rolls back the transaction of a connection that is checked in' do
+    conn = @pool.checkout
+    conn.exec 'BEGIN'
+    @pool.checkin conn
+    @pool.with_connection { |c| c.transaction_status }.should == PG::PQTRANS_IDLE
+  end
+
+  it 'discards a connection that is checked in while busy' do
+    conn = @pool.checkout
+    conn.send_query 'SELECT pg_sleep(0.1)'
+    @pool.checkin conn
+    @pool.size.should == 1
+  end
+
+  it 'raises an error if no connection is available before the timeout' do
+    3.times { @pool.checkout }
+    expect { @pool.checkout }.to raise_error(PG::ConnectionBad, /timeout/)
+  end
+
+  it 'refuses connections that were not checked out of the pool' do
+    expect { @pool.checkin @conn }.to raise_error(ArgumentError)
+  end
+
+  it 'replaces connections that were closed by the server' do
+    pool = PG::Pool.new(@conninfo, min_size: 0, max_size: 1, validation_interval: 0)
+    pid = pool.with_connection { |conn| conn.backend_pid }
+    @conn.exec "SELECT pg_terminate_backend(#{pid})"
+    sleep 0.1
+    pool.with_connection { |conn| conn.backend_pid }.should_not == pid
+    pool.close
+  end
+end
@@ -88,4 +88,31 @@ describe PG::Result do
     res = @conn.exec "VALUES ('#{@conn.escape value}')"
     res.getvalue(0, 0).should== value
   end
+
+  describe 'type maps' do
+    it 'decodes binary columns using the type map' do
+      @conn.type_map_for_results = PG::TypeMapByOid.binary_defaults
+      res = @conn.exec_params "SELECT 1::int4, 1.5::float8, true, 1.25::numeric, '2016-02-29'::date, 'foo'::text", [], 1
+      res.values.should== [[1, 1.5, true, BigDecimal('1.25'), Date.new(2016, 2, 29), 'foo']]
+      @conn.type_map_for_results = nil
+    end
+
+    it 'returns strings for text columns and types without a decoder' do
+      res = @conn.exec_params "SELECT 1::int4, 2::int4", [], 1
+      res.type_map = PG::TypeMapByOid.new
+      res.getvalue(0, 0).should== "\x00\x00\x00\x01"
+      res = @conn.exec "SELECT 1::int4"
+      res.type_map = PG::TypeMapByOid.binary_defaults
+      res.getvalue(0, 0).should== '1'
+    end
+
+    it 'accepts any object that responds to oid and decode' do
+      coder = Object.new
+      def coder.oid; 25; end
+      def coder.decode(value); value.upcase; end
+      res = @conn.exec_params "SELECT 'foo'::text", [], 1
+      res.type_map = PG::TypeMapByOid.new.add_coder(coder)
+      res.getvalue(0, 0).should== 'FOO'
+    end
+  end
 end